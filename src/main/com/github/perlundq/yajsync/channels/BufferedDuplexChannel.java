@@ -50,6 +50,13 @@ public class BufferedDuplexChannel implements Readable, Bufferable
         _outputChannel.put(src);
     }
 
+    @Override
+    public void put(ByteBuffer[] srcs, int offset, int length)
+        throws ChannelException
+    {
+        _outputChannel.put(srcs, offset, length);
+    }
+
     @Override
     public void put(byte[] src, int offset, int length) throws ChannelException
     {
@@ -23,12 +23,12 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.WritableByteChannel;
 
 import com.github.perlundq.yajsync.util.Consts;
 import com.github.perlundq.yajsync.util.Environment;
 import com.github.perlundq.yajsync.util.RuntimeInterruptException;
-import com.github.perlundq.yajsync.util.Util;
 
 public class BufferedOutputChannel implements Bufferable
 {
@@ -71,6 +71,42 @@ public class BufferedOutputChannel implements Bufferable
         }
     }
 
+    /**
+     * Writes all remaining bytes of srcs[offset] .. srcs[offset + length - 1]
+     * with as few gathering writes as possible.
+     * NOTE: requires isGatheringSink()
+     */
+    protected void send(ByteBuffer[] srcs, int offset, int length)
+        throws ChannelException
+    {
+        assert isGatheringSink();
+        GatheringByteChannel sink = (GatheringByteChannel) _sinkChannel;
+        int end = offset + length;
+        try {
+            while (offset < end) {
+                if (!srcs[offset].hasRemaining()) {
+                    offset++;
+                    continue;
+                }
+                long count = sink.write(srcs, offset, end - offset);
+                if (count <= 0) {
+                    throw new ChannelEOFException(String.format(
+                        "channel write unexpectedly returned %d (EOF)", count));
+                }
+                _numBytesWritten += count;
+            }
+        } catch (ClosedByInterruptException e) {
+            throw new RuntimeInterruptException(e);
+        } catch (IOException e) {
+            throw new ChannelException(e);
+        }
+    }
+
+    protected boolean isGatheringSink()
+    {
+        return _sinkChannel instanceof GatheringByteChannel;
+    }
+
     @Override
     public void flush() throws ChannelException
     {
@@ -89,20 +125,32 @@ public class BufferedOutputChannel implements Bufferable
             if (l == 0) {
                 flush();
             } else {
-                ByteBuffer slice = Util.slice(src,
-                                              src.position(),
-                                              src.position() + l);
-                _buffer.put(slice);
-                src.position(slice.position());
+                int limit = src.limit();
+                src.limit(src.position() + l);
+                _buffer.put(src);
+                src.limit(limit);
             }
         }
     }
 
+    @Override
+    public void put(ByteBuffer[] srcs, int offset, int length)
+        throws ChannelException
+    {
+        for (int i = offset; i < offset + length; i++) {
+            put(srcs[i]);
+        }
+    }
+
     @Override
     public void put(byte[] src, int offset, int length)
         throws ChannelException
     {
-        put(ByteBuffer.wrap(src, offset, length));
+        if (length <= _buffer.remaining()) {                                    // the common case of small puts, without wrapping src
+            _buffer.put(src, offset, length);
+        } else {
+            put(ByteBuffer.wrap(src, offset, length));
+        }
     }
 
     @Override
@@ -24,16 +24,32 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.ReadableByteChannel;
 
-import com.github.perlundq.yajsync.text.Text;
 import com.github.perlundq.yajsync.util.Consts;
 import com.github.perlundq.yajsync.util.Environment;
-import com.github.perlundq.yajsync.util.Util;
 
+/**
+ * A tagged input channel reading as much as is available from the underlying
+ * channel into a ring buffer of raw (still tagged) input. Message headers and
+ * messages are parsed in place once the reader reaches them, so a full buffer
+ * costs one read regardless of how many frames it contains and nothing is
+ * ever compacted.
+ *
+ * The ring starts out at bufferSize bytes and is doubled, up to maxBufferSize
+ * bytes, whenever a read fills it completely.
+ */
 public class PrefetchedTaggedInputChannel extends TaggedInputChannel
 {
-    private static final int DEFAULT_BUF_SIZE = 8 * 1024; // TODO: make buffer size configurable
-    private final ByteBuffer _buf;                                              // never flipped, never marked and its limit is never changed
-    private int _readIndex = 0;
+    public static final int DEFAULT_BUF_SIZE = 8 * 1024;
+    public static final int DEFAULT_MAX_BUF_SIZE = 1024 * 1024;
+    public static final int MIN_BUF_SIZE = 1024;
+    public static final int MAX_BUF_SIZE = 64 * 1024 * 1024;
+    private int _maxBufSize;
+    private ByteBuffer _buf;                                                    // only accessed using absolute indices
+    private ByteBuffer _view;                                                   // duplicate of _buf used for bulk transfers
+    private int _head = 0;                                                      // index of first unconsumed byte
+    private int _size = 0;                                                      // number of unconsumed bytes, starting at _head and possibly wrapping around
+    private int _frameRemaining = 0;                                            // unconsumed payload of current DATA frame, not necessarily read yet
+    private boolean _isGrowPending = false;
 
     public PrefetchedTaggedInputChannel(ReadableByteChannel sock,
                                         MessageHandler handler)
@@ -44,128 +60,292 @@ public class PrefetchedTaggedInputChannel extends TaggedInputChannel
     public PrefetchedTaggedInputChannel(ReadableByteChannel sock,
                                         MessageHandler handler,
                                         int bufferSize)
+    {
+        this(sock, handler, bufferSize,
+             Math.max(bufferSize, DEFAULT_MAX_BUF_SIZE));
+    }
+
+    public PrefetchedTaggedInputChannel(ReadableByteChannel sock,
+                                        MessageHandler handler,
+                                        int bufferSize,
+                                        int maxBufferSize)
     {
         super(sock, handler);
-        if (Environment.isAllocateDirect()) {
-            _buf = ByteBuffer.allocateDirect(bufferSize);
-        } else {
-            _buf = ByteBuffer.allocate(bufferSize);
-        }
-        _buf.order(ByteOrder.LITTLE_ENDIAN);
+        assert bufferSize >= Consts.SIZE_INT;
+        assert maxBufferSize >= bufferSize;
+        _maxBufSize = maxBufferSize;
+        setBuffer(allocate(bufferSize));
+    }
+
+    /**
+     * Replaces the initial ring of bufferSize bytes, which may grow up to
+     * maxBufferSize bytes (at least bufferSize). Must be called before the
+     * first read.
+     */
+    public void setBufferSize(int bufferSize, int maxBufferSize)
+    {
+        assert bufferSize >= Consts.SIZE_INT;
+        assert _size == 0 && _head == 0 && _frameRemaining == 0;
+        _maxBufSize = Math.max(bufferSize, maxBufferSize);
+        _isGrowPending = false;
+        setBuffer(allocate(bufferSize));
     }
 
     @Override
     public String toString()
     {
-        return String.format("buf=%s, readIndex=%d prefetched=%d, " +
-                             "contents:%n\t%s",
-                             _buf, _readIndex, numBytesPrefetched(),
-                             Text.byteBufferToString(_buf,
-                                                     _readIndex,
-                                                     writeIndex()));
+        return String.format("%s (capacity=%d, head=%d, prefetched=%d, " +
+                             "frameRemaining=%d)",
+                             getClass().getSimpleName(), _buf.capacity(),
+                             _head, _size, _frameRemaining);
     }
 
     @Override
     public void get(ByteBuffer dst) throws ChannelException
     {
-        ByteBuffer prefetched = nextReadableSlice(Math.min(numBytesPrefetched(),
-                                                           dst.remaining()));
-        dst.put(prefetched);
-        super.get(dst);
+        while (dst.hasRemaining()) {
+            ensureData();
+            int length = Math.min(numContiguousData(), dst.remaining());
+            dst.put(region(_head, _head + length));
+            consumeData(length);
+        }
     }
 
+    /**
+     * WARNING: the returned buffer is only valid until the next read from
+     * this channel
+     */
     @Override
     public ByteBuffer get(int numBytes) throws ChannelException
     {
         assert numBytes >= 0;
-        assert numBytes <= _buf.capacity();
-        ensureMinimumPrefetched(numBytes);
-        ByteBuffer slice = nextReadableSlice(numBytes);
-        assert slice.remaining() == numBytes;
+        if (numBytes == 0) {
+            return ByteBuffer.allocate(0);
+        }
+        ensureData();
+        if (numContiguousData() >= numBytes) {
+            ByteBuffer slice = region(_head, _head + numBytes).slice();
+            consumeData(numBytes);
+            return slice;
+        }
+        return super.get(numBytes);                                             // straddles a frame boundary or the end of the ring
+    }
+
+    /**
+     * Returns the next 1 to maxBytes bytes of data as a read-only slice of the
+     * receive buffer, without copying. Typically fewer than maxBytes bytes are
+     * returned when the data straddles a frame boundary or the end of the
+     * ring.
+     *
+     * WARNING: the returned buffer is only valid until the next read from
+     * this channel
+     */
+    public ByteBuffer getDataSlice(int maxBytes) throws ChannelException
+    {
+        assert maxBytes > 0;
+        ensureData();
+        int length = Math.min(numContiguousData(), maxBytes);
+        ByteBuffer slice = _buf.asReadOnlyBuffer();
+        slice.position(_head).limit(_head + length);
+        consumeData(length);
         return slice;
     }
 
     @Override
     public byte getByte() throws ChannelException
     {
-        ensureMinimumPrefetched(Consts.SIZE_BYTE);
-        byte result = _buf.get(_readIndex);
-        _readIndex += Consts.SIZE_BYTE;
+        ensureData();
+        byte result = _buf.get(_head);
+        consumeData(Consts.SIZE_BYTE);
         return result;
     }
 
     @Override
     public char getChar() throws ChannelException
     {
-        ensureMinimumPrefetched(Consts.SIZE_CHAR);
-        char result = _buf.getChar(_readIndex);
-        _readIndex += Consts.SIZE_CHAR;
+        ensureData();
+        if (numContiguousData() < Consts.SIZE_CHAR) {
+            return super.getChar();
+        }
+        char result = _buf.getChar(_head);
+        consumeData(Consts.SIZE_CHAR);
         return result;
     }
 
     @Override
     public int getInt() throws ChannelException
     {
-        ensureMinimumPrefetched(Consts.SIZE_INT);
-        int result = _buf.getInt(_readIndex);
-        _readIndex += Consts.SIZE_INT;
+        ensureData();
+        if (numContiguousData() < Consts.SIZE_INT) {
+            return super.getInt();
+        }
+        int result = _buf.getInt(_head);
+        consumeData(Consts.SIZE_INT);
         return result;
     }
 
+    @Override
+    public void skip(int numBytes) throws ChannelException
+    {
+        assert numBytes >= 0;
+        int numBytesSkipped = 0;
+        while (numBytesSkipped < numBytes) {
+            ensureData();
+            int length = Math.min(numContiguousData(),
+                                  numBytes - numBytesSkipped);
+            consumeData(length);
+            numBytesSkipped += length;
+        }
+    }
+
     @Override
     public int numBytesAvailable()
     {
-        return super.numBytesAvailable() + numBytesPrefetched();
+        return _frameRemaining;
     }
 
+    /**
+     * @return the number of bytes read from the underlying channel but not yet
+     *         consumed, including any tags and messages
+     */
     public int numBytesPrefetched()
     {
-        assert _readIndex <= writeIndex();
-        return writeIndex() - _readIndex;
+        return _size;
     }
 
-    private int writeIndex()
+    private static ByteBuffer allocate(int capacity)
     {
-        return _buf.position();
+        ByteBuffer buf;
+        if (Environment.isAllocateDirect()) {
+            buf = ByteBuffer.allocateDirect(capacity);
+        } else {
+            buf = ByteBuffer.allocate(capacity);
+        }
+        return buf.order(ByteOrder.LITTLE_ENDIAN);
     }
 
-    private ByteBuffer nextReadableSlice(int length)
+    private void setBuffer(ByteBuffer buf)
     {
-        assert length >= 0;
-        assert length <= numBytesPrefetched();
-        ByteBuffer slice = Util.slice(_buf, _readIndex, _readIndex + length);
-        _readIndex += length;
-        assert _readIndex <= _buf.limit();
-        assert _readIndex <= writeIndex();
-        assert slice.remaining() == length;
-        return slice;
+        _buf = buf;
+        _view = buf.duplicate();
     }
 
-    private ByteBuffer readableSlice()
+    private ByteBuffer region(int start, int end)
     {
-        return nextReadableSlice(numBytesPrefetched());
+        _view.clear();
+        _view.position(start).limit(end);
+        return _view;
     }
 
-    private void ensureSpaceFor(int numBytes)
+    private int index(int offset)
     {
-        assert numBytes >= 0;
-        assert numBytes <= _buf.limit();
-        if (_readIndex + numBytes > _buf.limit()) {
-            ByteBuffer prefetched = readableSlice();
-            assert _readIndex == writeIndex();
-            prefetched.compact();
-            _readIndex = 0;
-            _buf.position(prefetched.position());
+        int i = _head + offset;
+        return i < _buf.capacity() ? i : i - _buf.capacity();
+    }
+
+    private int numContiguous()
+    {
+        return Math.min(_size, _buf.capacity() - _head);
+    }
+
+    private int numContiguousData()
+    {
+        return Math.min(_frameRemaining, numContiguous());
+    }
+
+    private void consume(int numBytes)
+    {
+        assert numBytes <= _size;
+        _head = index(numBytes);
+        _size -= numBytes;
+        if (_size == 0) {
+            _head = 0;
         }
     }
 
-    private void ensureMinimumPrefetched(int numBytes) throws ChannelException
+    private void consumeData(int numBytes)
+    {
+        assert numBytes <= _frameRemaining;
+        _frameRemaining -= numBytes;
+        consume(numBytes);
+    }
+
+    /**
+     * Reads as much as is available (at least one byte) into the free space
+     * following the prefetched bytes.
+     */
+    private void fill() throws ChannelException
     {
-        assert numBytes <= _buf.limit();
-        ensureSpaceFor(numBytes);
-        while (numBytesPrefetched() < numBytes) {
-            readNextAvailable(_buf);
+        if (_isGrowPending) {
+            grow();
+        }
+        int capacity = _buf.capacity();
+        assert _size < capacity;
+        int tail = _head + _size;
+        ByteBuffer free = tail < capacity ? region(tail, capacity)
+                                          : region(tail - capacity, _head);
+        _size += readAvailable(free);
+        _isGrowPending = _size == capacity && capacity < _maxBufSize;
+    }
+
+    private void grow()
+    {
+        int capacity = (int) Math.min(2L * _buf.capacity(), _maxBufSize);
+        ByteBuffer buf = allocate(capacity);
+        int numContiguous = numContiguous();
+        buf.put(region(_head, _head + numContiguous));
+        buf.put(region(0, _size - numContiguous));
+        setBuffer(buf);
+        _head = 0;
+        _isGrowPending = false;
+    }
+
+    private void ensurePrefetched(int numBytes) throws ChannelException
+    {
+        while (_size < numBytes) {
+            fill();
+        }
+    }
+
+    /**
+     * Ensures that there is at least one byte of data prefetched, handling
+     * any messages preceding it.
+     * @throws RsyncProtocolException if peer sends an invalid message
+     */
+    private void ensureData() throws ChannelException
+    {
+        while (_frameRemaining == 0) {
+            readNextHeader();
+        }
+        ensurePrefetched(1);
+    }
+
+    private void readNextHeader() throws ChannelException
+    {
+        ensurePrefetched(Consts.SIZE_INT);
+        int tag;
+        if (numContiguous() >= Consts.SIZE_INT) {
+            tag = _buf.getInt(_head);
+        } else {
+            tag = 0;
+            for (int i = 0; i < Consts.SIZE_INT; i++) {
+                tag |= (_buf.get(index(i)) & 0xFF) << (8 * i);
+            }
+        }
+        consume(Consts.SIZE_INT);
+        MessageHeader hdr = toMessageHeader(tag);
+        if (hdr.messageType() == MessageCode.DATA) {
+            _frameRemaining = hdr.length();
+            return;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(hdr.length());
+        while (payload.hasRemaining()) {
+            ensurePrefetched(1);
+            int length = Math.min(numContiguous(), payload.remaining());
+            payload.put(region(_head, _head + length));
+            consume(length);
         }
-        assert numBytesPrefetched() >= numBytes;
+        payload.flip();
+        handleMessage(hdr, payload);
     }
 }
@@ -0,0 +1,145 @@
+/*
+ * Channel limiting the rate of written bytes
+ *
+ * Copyright (C) 2013, 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.channels;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+import com.github.perlundq.yajsync.util.TokenBucket;
+
+/**
+ * A writable channel limiting the rate of written bytes to the rate of the
+ * slowest of a number of, possibly shared, token buckets. Bytes are reserved
+ * from the buckets in chunks of at least weight * QUANTUM bytes, which are
+ * then used by the following writes. Since a bucket serves reservations in
+ * order, sessions sharing a bucket get a share of its rate proportional to
+ * their weight.
+ *
+ * Bytes are reserved in all buckets before waiting for the slowest one,
+ * hence a session limited by one bucket may use more than its share of the
+ * others.
+ *
+ * An interrupt while waiting closes the underlying channel and results in a
+ * ClosedByInterruptException, as with an interruptible channel.
+ */
+public class RateLimitedChannel implements GatheringByteChannel
+{
+    public static final int QUANTUM = 16 * 1024;
+
+    private final WritableByteChannel _sink;
+    private final TokenBucket[] _buckets;
+    private final long _chunkSize;
+    private long _numBytesReserved;                                             // reserved but not yet written
+
+    public RateLimitedChannel(WritableByteChannel sink, int weight,
+                              TokenBucket... buckets)
+    {
+        assert sink != null;
+        assert weight > 0;
+        assert buckets.length > 0;
+        _sink = sink;
+        _buckets = buckets.clone();
+        _chunkSize = (long) weight * QUANTUM;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s (sink=%s, chunkSize=%d)",
+                             getClass().getSimpleName(), _sink, _chunkSize);
+    }
+
+    @Override
+    public synchronized int write(ByteBuffer src) throws IOException
+    {
+        awaitTokens(src.remaining());
+        int count = _sink.write(src);
+        _numBytesReserved -= Math.max(count, 0);
+        return count;
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException
+    {
+        return write(srcs, 0, srcs.length);
+    }
+
+    @Override
+    public synchronized long write(ByteBuffer[] srcs, int offset, int length)
+        throws IOException
+    {
+        if (!(_sink instanceof GatheringByteChannel)) {
+            for (int i = offset; i < offset + length; i++) {
+                if (srcs[i].hasRemaining()) {
+                    return write(srcs[i]);
+                }
+            }
+            return 0;
+        }
+        long numBytes = 0;
+        for (int i = offset; i < offset + length; i++) {
+            numBytes += srcs[i].remaining();
+        }
+        awaitTokens(numBytes);
+        long count = ((GatheringByteChannel) _sink).write(srcs, offset,
+                                                          length);
+        _numBytesReserved -= Math.max(count, 0);
+        return count;
+    }
+
+    @Override
+    public boolean isOpen()
+    {
+        return _sink.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        _sink.close();
+    }
+
+    private void awaitTokens(long numBytes) throws IOException
+    {
+        if (numBytes <= _numBytesReserved) {
+            return;
+        }
+        long numBytesToReserve = Math.max(numBytes - _numBytesReserved,
+                                          _chunkSize);
+        long waitNanos = 0;
+        for (TokenBucket bucket : _buckets) {
+            waitNanos = Math.max(waitNanos, bucket.reserve(numBytesToReserve));
+        }
+        _numBytesReserved += numBytesToReserve;
+        if (waitNanos == 0) {
+            return;
+        }
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            _sink.close();
+            throw new ClosedByInterruptException();
+        }
+    }
+}
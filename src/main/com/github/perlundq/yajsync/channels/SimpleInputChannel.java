@@ -117,15 +117,27 @@ public class SimpleInputChannel implements Readable
 
     protected void get(ByteBuffer dst) throws ChannelException
     {
+        while (dst.hasRemaining()) {
+            readAvailable(dst);
+        }
+    }
+
+    /**
+     * Reads at least one byte into dst and as many more as are available
+     * without blocking, up to dst.remaining().
+     * @return the number of bytes read
+     */
+    protected int readAvailable(ByteBuffer dst) throws ChannelException
+    {
+        assert dst.hasRemaining();
         try {
-            while (dst.hasRemaining()) {
-                int count = _sourceChannel.read(dst);
-                if (count <= 0) {
-                    throw new ChannelEOFException(String.format(
-                        "channel read unexpectedly returned %d (EOF)", count));
-                }
-                _numBytesRead += count;
+            int count = _sourceChannel.read(dst);
+            if (count <= 0) {
+                throw new ChannelEOFException(String.format(
+                    "channel read unexpectedly returned %d (EOF)", count));
             }
+            _numBytesRead += count;
+            return count;
         } catch (EOFException e) {
             throw new ChannelEOFException(e);
         } catch (ClosedByInterruptException e) {
@@ -80,17 +80,38 @@ public class TaggedInputChannel extends SimpleInputChannel
      * @throws RsyncProtocolException
      */
     private int readNextMessage() throws ChannelException
+    {
+        MessageHeader hdr = toMessageHeader(_inputChannel.getInt());
+        if (hdr.messageType() == MessageCode.DATA) {
+            return hdr.length();
+        }
+        handleMessage(hdr, _inputChannel.get(hdr.length()));
+        return 0;
+    }
+
+    /**
+     * @throws RsyncProtocolException if tag is not a valid message header
+     */
+    protected static MessageHeader toMessageHeader(int tag)
+    {
+        try {
+            return MessageHeader.fromTag(tag);
+        } catch (IllegalArgumentException e) {
+            throw new RsyncProtocolException(e);
+        }
+    }
+
+    /**
+     * Passes the (non DATA) message with header hdr and payload to the
+     * message handler.
+     * @throws RsyncProtocolException if peer sent an invalid message
+     */
+    protected void handleMessage(MessageHeader hdr, ByteBuffer payload)
     {
         try {
-            MessageHeader hdr = MessageHeader.fromTag(_inputChannel.getInt()); // throws IllegalArgumentException
-            if (hdr.messageType() == MessageCode.DATA) {
-                return hdr.length();
-            }
-            ByteBuffer payload =
-                _inputChannel.get(hdr.length()).order(ByteOrder.LITTLE_ENDIAN);
-            Message message = new Message(hdr, payload);                       // throws IllegalArgumentException, IllegalStateException
+            Message message = new Message(hdr,
+                                          payload.order(ByteOrder.LITTLE_ENDIAN)); // throws IllegalArgumentException, IllegalStateException
             _msgHandler.handleMessage(message);
-            return 0;
         } catch (IllegalStateException | IllegalArgumentException e) {
             throw new RsyncProtocolException(e);
         }
@@ -20,7 +20,10 @@
  */
 package com.github.perlundq.yajsync.channels;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 
 import com.github.perlundq.yajsync.util.Consts;
 
@@ -29,7 +32,11 @@ public class TaggedOutputChannel extends BufferedOutputChannel
 {
     private static final int DEFAULT_TAG_OFFSET = 0;
     private static final int TAG_SIZE = Consts.SIZE_INT;
+    private static final int MIN_GATHER_SIZE = 4 * 1024;
+    private static final int MAX_GATHER_FRAMES = 32;
     private int _tag_offset;
+    private ByteBuffer[] _gatherBuffers;                                        // tag and data buffers, allocated on first use
+    private ByteBuffer[] _tags;
 
     public TaggedOutputChannel(WritableByteChannel sock)
     {
@@ -64,6 +71,99 @@ public class TaggedOutputChannel extends BufferedOutputChannel
         updateTagOffsetAndBufPos(_buffer.position());
     }
 
+    /**
+     * Large payloads are written with gathering writes directly from src
+     * instead of being copied to the buffer first (if the sink is a
+     * GatheringByteChannel), see put(ByteBuffer[], int, int).
+     */
+    @Override
+    public void put(ByteBuffer src) throws ChannelException
+    {
+        if (src.remaining() < MIN_GATHER_SIZE ||
+            src.remaining() <= _buffer.remaining() || !isGatheringSink()) {
+            super.put(src);
+            return;
+        }
+        put(new ByteBuffer[] { src }, 0, 1);
+    }
+
+    /**
+     * Writes srcs[offset] .. srcs[offset + length - 1] as one contiguous
+     * payload. If it is large it is written with gathering writes directly
+     * from srcs (if the sink is a GatheringByteChannel). The data is split
+     * into exactly the same tagged frames as when copying it: first the
+     * currently buffered data filled up with the head of srcs, then frames of
+     * the size of a full buffer, each possibly spanning several of srcs. The
+     * tail of srcs is buffered as usual.
+     */
+    @Override
+    public void put(ByteBuffer[] srcs, int offset, int length)
+        throws ChannelException
+    {
+        int end = offset + length;
+        long numBytes = 0;
+        for (int i = offset; i < end; i++) {
+            numBytes += srcs[i].remaining();
+        }
+        if (numBytes < MIN_GATHER_SIZE || numBytes <= _buffer.remaining() ||
+            !isGatheringSink()) {
+            super.put(srcs, offset, length);
+            return;
+        }
+        if (_gatherBuffers == null) {
+            _gatherBuffers = new ByteBuffer[4 * MAX_GATHER_FRAMES];
+            _tags = new ByteBuffer[MAX_GATHER_FRAMES];
+            for (int i = 0; i < _tags.length; i++) {
+                _tags[i] = ByteBuffer.allocate(TAG_SIZE).
+                    order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+
+        int headLength = _buffer.remaining();
+        putMessageHeader(_tag_offset,
+                         new MessageHeader(MessageCode.DATA,
+                                           numBytesUntagged() + headLength));
+        _buffer.flip();
+        _gatherBuffers[0] = _buffer;
+        int numBuffers = 1;
+        int numTags = 0;
+
+        int frameLength = _buffer.capacity() - DEFAULT_TAG_OFFSET - TAG_SIZE;
+        int tag = new MessageHeader(MessageCode.DATA, frameLength).toTag();
+        int frameRemaining = headLength;                                        // bytes of srcs left to gather into the current frame
+        long numBytesAfterFrame = numBytes - headLength;
+        int i = offset;
+        while (frameRemaining > 0 || numBytesAfterFrame > frameLength) {
+            if (numBuffers == _gatherBuffers.length ||
+                frameRemaining == 0 && numTags == _tags.length) {
+                send(_gatherBuffers, 0, numBuffers);
+                numBuffers = 0;
+                numTags = 0;
+            }
+            if (frameRemaining == 0) {
+                ByteBuffer tagBuf = _tags[numTags++];
+                tagBuf.clear();
+                tagBuf.putInt(0, tag);
+                _gatherBuffers[numBuffers++] = tagBuf;
+                frameRemaining = frameLength;
+                numBytesAfterFrame -= frameLength;
+            } else {
+                while (!srcs[i].hasRemaining()) {
+                    i++;
+                }
+                int len = Math.min(frameRemaining, srcs[i].remaining());
+                _gatherBuffers[numBuffers++] = slice(srcs[i], len);
+                frameRemaining -= len;
+            }
+        }
+        send(_gatherBuffers, 0, numBuffers);
+        Arrays.fill(_gatherBuffers, null);                                      // don't keep references to caller's data
+
+        _buffer.clear();
+        updateTagOffsetAndBufPos(DEFAULT_TAG_OFFSET);
+        super.put(srcs, i, end - i);
+    }
+
     @Override
     public void flush() throws ChannelException
     {
@@ -86,6 +186,15 @@ public class TaggedOutputChannel extends BufferedOutputChannel
         return _buffer.position() - TAG_SIZE;
     }
 
+    // returns the next length bytes of src and advances src past them
+    private static ByteBuffer slice(ByteBuffer src, int length)
+    {
+        ByteBuffer slice = src.duplicate();
+        slice.limit(slice.position() + length);
+        src.position(src.position() + length);
+        return slice;
+    }
+
     private int numBytesUntagged()
     {
         int dataStartOffset = _tag_offset + TAG_SIZE;
@@ -23,6 +23,8 @@ import java.nio.ByteBuffer;
 public interface Writable
 {
     void put(ByteBuffer src) throws ChannelException;
+    void put(ByteBuffer[] srcs, int offset, int length)
+        throws ChannelException;
     void put(byte[] src, int offset, int length) throws ChannelException;
     void putByte(byte b) throws ChannelException;
     void putChar(char c) throws ChannelException;
@@ -18,95 +18,247 @@
  */
 package com.github.perlundq.yajsync.channels.net;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InterruptedIOException;
 import java.net.InetAddress;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.SocketChannel;
+import java.security.NoSuchAlgorithmException;
 import java.security.Principal;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
-import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLPeerUnverifiedException;
-import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.SSLSession;
 
 import com.github.perlundq.yajsync.util.Environment;
 
-public class SSLChannel implements DuplexByteChannel
+/**
+ * SSL/TLS over a blocking SocketChannel using an SSLEngine, works with both
+ * heap and direct buffers.
+ *
+ * read and write may be called concurrently by different threads. The
+ * initial handshake is performed lazily by whichever thread first reads,
+ * writes or asks for the peer principal, so that accepting a connection
+ * never blocks on the peer, holding both the read and the write lock.
+ *
+ * Any later handshake (e.g. a renegotiation requested by peer) is driven by
+ * whichever thread notices it, without ever holding the write lock while
+ * waiting for the read lock: handshake messages are wrapped and sent under
+ * the write lock, and unwrapped by the reader as part of reading. A writer
+ * waiting for a handshake message from peer unwraps it itself only if there
+ * is no reader, otherwise it waits for the reader to make progress. The
+ * read lock is always acquired before the write lock.
+ */
+public class SSLChannel implements DuplexByteChannel, GatheringByteChannel
 {
-    private final InputStream _is;
-    private final OutputStream _os;
-    private final SSLSocket _sslSocket;
+    private static final int NUM_PACKETS_BUFFERED = 4;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+    private static final long HANDSHAKE_POLL_NANOS =
+        TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final SocketChannel _sock;
+    private final SSLEngine _engine;
+    private final ReentrantLock _readLock = new ReentrantLock();
+    private final ReentrantLock _writeLock = new ReentrantLock();
+    private final ReentrantLock _initialHandshakeLock = new ReentrantLock();
+    private final ReentrantLock _handshakeLock = new ReentrantLock();
+    private final Condition _isHandshakeProgressed =
+        _handshakeLock.newCondition();
+    private ByteBuffer _netIn;                                                  // ciphertext read but not yet unwrapped, always flipped
+    private ByteBuffer _netOut;                                                 // ciphertext being written, cleared between writes
+    private ByteBuffer _appIn;                                                  // plaintext unwrapped but not yet read, always flipped
+    private volatile boolean _isHandshakeDone;
 
-    public SSLChannel(SSLSocket sslSocket) throws IOException
+    public SSLChannel(SocketChannel sock, SSLEngine engine)
     {
-        assert Environment.hasAllocateDirectArray() ||
-               !Environment.isAllocateDirect();
-        _sslSocket = sslSocket;
-        _is = _sslSocket.getInputStream();
-        _os = _sslSocket.getOutputStream();
+        _sock = sock;
+        _engine = engine;
+        SSLSession session = engine.getSession();
+        _netIn = allocate(NUM_PACKETS_BUFFERED * session.getPacketBufferSize());
+        _netIn.flip();
+        _netOut = allocate(NUM_PACKETS_BUFFERED * session.getPacketBufferSize());
+        _appIn = allocate(session.getApplicationBufferSize());
+        _appIn.flip();
     }
 
     public static SSLChannel open(String address, int port) throws IOException
     {
-        SocketFactory factory = SSLSocketFactory.getDefault();
-        Socket sock = factory.createSocket(address, port);
-        return new SSLChannel((SSLSocket) sock);
+        SSLContext context;
+        try {
+            context = SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        SSLEngine engine = context.createSSLEngine(address, port);
+        engine.setUseClientMode(true);
+        SocketChannel sock =
+            SocketChannel.open(new InetSocketAddress(address, port));
+        return new SSLChannel(sock, engine);
     }
 
     @Override
     public String toString()
     {
-        return _sslSocket.toString();
+        return String.format("%s (%s)", getClass().getSimpleName(), _sock);
     }
 
+    /**
+     * Sends close_notify to peer unless another thread is currently writing,
+     * then closes the socket.
+     */
     @Override
     public void close() throws IOException
     {
-        _sslSocket.close(); // will implicitly close _is and _os also
+        try {
+            _engine.closeOutbound();
+            if (_isHandshakeDone && _sock.isOpen() && _writeLock.tryLock()) {
+                try {
+                    wrapAndSend(new ByteBuffer[] { EMPTY }, 0, 1);
+                } finally {
+                    _writeLock.unlock();
+                }
+            }
+        } catch (IOException e) {
+            // peer might already be gone, nothing we can do about it
+        } finally {
+            _sock.close();
+        }
     }
 
     @Override
     public boolean isOpen()
     {
-        return !_sslSocket.isClosed();
+        return _sock.isOpen();
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException
+    {
+        ensureHandshake();
+        _readLock.lock();
+        try {
+            while (true) {
+                if (_appIn.hasRemaining()) {
+                    return transfer(_appIn, dst);
+                }
+                if (!dst.hasRemaining()) {
+                    return 0;
+                }
+                int appBufferSize = _engine.getSession().
+                                            getApplicationBufferSize();
+                boolean isDirect = dst.remaining() >= appBufferSize;
+                ByteBuffer target = isDirect ? dst : prepareAppIn();
+                SSLEngineResult result = _engine.unwrap(_netIn, target);
+                if (!isDirect) {
+                    _appIn.flip();
+                }
+                switch (result.getStatus()) {
+                case OK:
+                    if (result.getHandshakeStatus() !=
+                        SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING) {
+                        continueHandshake();
+                    }
+                    if (isDirect && result.bytesProduced() > 0) {
+                        return result.bytesProduced();
+                    }
+                    break;
+                case BUFFER_UNDERFLOW:
+                    if (readNetIn() == -1) {
+                        return -1;
+                    }
+                    break;
+                case BUFFER_OVERFLOW:
+                    _appIn = enlarge(_appIn, appBufferSize);
+                    break;
+                case CLOSED:
+                    return -1;
+                default:
+                    throw new IllegalStateException(result.toString());
+                }
+            }
+        } finally {
+            _readLock.unlock();
+        }
     }
 
     @Override
     public int write(ByteBuffer src) throws IOException
     {
-        byte[] buf = src.array();
-        int offset = src.arrayOffset() + src.position();
-        int len = src.remaining();
-        _os.write(buf, offset, len);
-        src.position(src.position() + len);
-        return len;
+        return (int) write(new ByteBuffer[] { src }, 0, 1);
     }
 
     @Override
-    public int read(ByteBuffer dst) throws IOException
+    public long write(ByteBuffer[] srcs) throws IOException
+    {
+        return write(srcs, 0, srcs.length);
+    }
+
+    /**
+     * Writes all of srcs, several TLS records are wrapped into a single
+     * socket write whenever possible.
+     */
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length)
+        throws IOException
     {
-        byte[] buf = dst.array();
-        int offset = dst.arrayOffset() + dst.position();
-        int len = dst.remaining();
-        int n = _is.read(buf, offset, len);
-        if (n != -1) {
-            dst.position(dst.position() + n);
+        ensureHandshake();
+        long count = 0;
+        while (true) {
+            SSLEngineResult.HandshakeStatus status;
+            _writeLock.lock();
+            try {
+                count += wrapAndSend(srcs, offset, length);
+                status = _engine.getHandshakeStatus();
+            } finally {
+                _writeLock.unlock();
+            }
+            switch (status) {
+            case NEED_TASK:
+                runDelegatedTasks();
+                break;
+            case NEED_UNWRAP:
+                awaitUnwrap();
+                break;
+            case NEED_WRAP:
+                break;                                                          // wrapped by wrapAndSend
+            default:
+                if (!hasRemaining(srcs, offset, length)) {
+                    return count;
+                }
+            }
         }
-        return n;
     }
 
     @Override
     public InetAddress peerAddress()
     {
-        InetAddress address = _sslSocket.getInetAddress();
-        if (address == null) {
-            throw new IllegalStateException(String.format(
-                "unable to determine remote address of %s - not connected",
-                _sslSocket));
+        try {
+            InetSocketAddress socketAddress =
+                (InetSocketAddress) _sock.getRemoteAddress();
+            if (socketAddress == null) {
+                throw new IllegalStateException(String.format(
+                    "unable to determine remote address of %s - not connected",
+                    _sock));
+            }
+            InetAddress addrOrNull = socketAddress.getAddress();
+            if (addrOrNull == null) {
+                throw new IllegalStateException(String.format(
+                    "unable to determine address of %s - unresolved",
+                    socketAddress));
+            }
+            return addrOrNull;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
         }
-        return address;
     }
 
     @Override
@@ -120,13 +272,313 @@ public class SSLChannel implements DuplexByteChannel
         }
     }
 
+    /**
+     * @throws IllegalStateException if the handshake fails or peer is not
+     *         authenticated
+     */
     @Override
     public Principal peerPrincipal()
     {
         try {
-            return _sslSocket.getSession().getPeerPrincipal();
+            ensureHandshake();
+            return _engine.getSession().getPeerPrincipal();
         } catch (SSLPeerUnverifiedException e) {
             throw new IllegalStateException(e);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ByteBuffer allocate(int capacity)
+    {
+        if (Environment.isAllocateDirect()) {
+            return ByteBuffer.allocateDirect(capacity);
+        }
+        return ByteBuffer.allocate(capacity);
+    }
+
+    /**
+     * @return a flipped buffer with the remaining contents of buf and a
+     *         capacity of at least minFree more bytes
+     */
+    private static ByteBuffer enlarge(ByteBuffer buf, int minFree)
+    {
+        ByteBuffer result = allocate(buf.remaining() + minFree);
+        result.put(buf);
+        result.flip();
+        return result;
+    }
+
+    private static int transfer(ByteBuffer src, ByteBuffer dst)
+    {
+        int length = Math.min(src.remaining(), dst.remaining());
+        ByteBuffer slice = src.duplicate();
+        slice.limit(slice.position() + length);
+        dst.put(slice);
+        src.position(src.position() + length);
+        return length;
+    }
+
+    private static boolean isHandshaking(SSLEngineResult.HandshakeStatus status)
+    {
+        return status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING &&
+               status != SSLEngineResult.HandshakeStatus.FINISHED;
+    }
+
+    private void ensureHandshake() throws IOException
+    {
+        if (_isHandshakeDone) {
+            return;
+        }
+        _initialHandshakeLock.lock();                                           // never queue for the read lock once a reader might hold it
+        try {
+            if (_isHandshakeDone) {
+                return;
+            }
+            lockBoth();
+            try {
+                _engine.beginHandshake();
+                handshake();
+                _isHandshakeDone = true;
+            } finally {
+                unlockBoth();
+            }
+        } finally {
+            _initialHandshakeLock.unlock();
+        }
+    }
+
+    /**
+     * Drives a handshake noticed by the reader as far as possible without
+     * reading, i.e. until peer is to send the next handshake message. Requires
+     * the read lock but not the write lock.
+     */
+    private void continueHandshake() throws IOException
+    {
+        try {
+            while (true) {
+                switch (_engine.getHandshakeStatus()) {
+                case NEED_TASK:
+                    runDelegatedTasks();
+                    break;
+                case NEED_WRAP:
+                    _writeLock.lock();
+                    try {
+                        wrapAndSend(new ByteBuffer[] { EMPTY }, 0, 1);
+                    } finally {
+                        _writeLock.unlock();
+                    }
+                    break;
+                default:
+                    return;
+                }
+            }
+        } finally {
+            signalHandshakeProgressed();
+        }
+    }
+
+    /**
+     * Waits for the handshake message peer is to send next to be unwrapped,
+     * by the reader or unwrapped by us if there is no reader. Must not be
+     * called with the write lock held.
+     */
+    private void awaitUnwrap() throws IOException
+    {
+        assert !_writeLock.isHeldByCurrentThread();
+        if (_readLock.tryLock()) {
+            try {
+                while (_engine.getHandshakeStatus() ==
+                       SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
+                    unwrapHandshake();
+                }
+            } finally {
+                _readLock.unlock();
+                signalHandshakeProgressed();
+            }
+            return;
+        }
+        _handshakeLock.lock();
+        try {
+            if (_engine.getHandshakeStatus() ==
+                SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
+                _isHandshakeProgressed.awaitNanos(HANDSHAKE_POLL_NANOS);        // the reader might be about to return without reading
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            _handshakeLock.unlock();
+        }
+    }
+
+    private void signalHandshakeProgressed()
+    {
+        _handshakeLock.lock();
+        try {
+            _isHandshakeProgressed.signalAll();
+        } finally {
+            _handshakeLock.unlock();
+        }
+    }
+
+    private void runDelegatedTasks()
+    {
+        Runnable task;
+        while ((task = _engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private void lockBoth()
+    {
+        _readLock.lock();
+        _writeLock.lock();
+    }
+
+    private void unlockBoth()
+    {
+        _writeLock.unlock();
+        _readLock.unlock();
+    }
+
+    /**
+     * @return _appIn cleared of any consumed data and ready to be unwrapped
+     *         into
+     */
+    private ByteBuffer prepareAppIn()
+    {
+        _appIn.compact();
+        return _appIn;
+    }
+
+    /**
+     * Reads more ciphertext from socket, enlarging the buffer if it is
+     * already full.
+     * @return the number of bytes read or -1 on EOF
+     */
+    private int readNetIn() throws IOException
+    {
+        if (_netIn.limit() == _netIn.capacity() && _netIn.position() == 0) {
+            _netIn = enlarge(_netIn,
+                             _engine.getSession().getPacketBufferSize());
+        }
+        _netIn.compact();
+        try {
+            return _sock.read(_netIn);
+        } finally {
+            _netIn.flip();
+        }
+    }
+
+    private void send(ByteBuffer src) throws IOException
+    {
+        while (src.hasRemaining()) {
+            _sock.write(src);
+        }
+    }
+
+    /**
+     * Wraps as many records as fit into _netOut and sends them, until all of
+     * srcs are sent or the engine requires a handshake. Requires the write
+     * lock.
+     * @return the number of plaintext bytes consumed
+     */
+    private long wrapAndSend(ByteBuffer[] srcs, int offset, int length)
+        throws IOException
+    {
+        long count = 0;
+        boolean isDone = false;
+        while (!isDone) {
+            int packetBufferSize = _engine.getSession().getPacketBufferSize();
+            _netOut.clear();
+            while (_netOut.remaining() >= packetBufferSize) {
+                SSLEngineResult result = _engine.wrap(srcs, offset, length,
+                                                      _netOut);
+                count += result.bytesConsumed();
+                if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                    if (hasRemaining(srcs, offset, length)) {
+                        throw new SSLException(
+                            "unable to write - TLS connection closed");
+                    }
+                    isDone = true;
+                    break;
+                } else if (result.getStatus() ==
+                           SSLEngineResult.Status.BUFFER_OVERFLOW) {
+                    break;
+                }
+                if (!hasRemaining(srcs, offset, length) ||
+                    isHandshaking(result.getHandshakeStatus()))
+                {
+                    isDone = true;
+                    break;
+                }
+            }
+            if (_netOut.position() == 0 && !isDone) {                            // larger packet size negotiated
+                _netOut = allocate(NUM_PACKETS_BUFFERED * packetBufferSize);
+                continue;
+            }
+            _netOut.flip();
+            send(_netOut);
+        }
+        return count;
+    }
+
+    private static boolean hasRemaining(ByteBuffer[] srcs, int offset,
+                                        int length)
+    {
+        for (int i = offset; i < offset + length; i++) {
+            if (srcs[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Drives the initial handshake until completed. Requires both the read
+     * and write locks.
+     */
+    private void handshake() throws IOException
+    {
+        while (true) {
+            switch (_engine.getHandshakeStatus()) {
+            case NEED_TASK:
+                runDelegatedTasks();
+                break;
+            case NEED_WRAP:
+                wrapAndSend(new ByteBuffer[] { EMPTY }, 0, 1);
+                break;
+            case NEED_UNWRAP:
+                unwrapHandshake();
+                break;
+            default:
+                return;
+            }
+        }
+    }
+
+    /**
+     * Unwraps the next handshake record, reading from socket if needed.
+     * Requires the read lock. Application data received during the
+     * handshake is stored in _appIn.
+     */
+    private void unwrapHandshake() throws IOException
+    {
+        SSLEngineResult result = _engine.unwrap(_netIn, prepareAppIn());
+        _appIn.flip();
+        if (result.getStatus() == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+            if (readNetIn() == -1) {
+                throw new EOFException("peer closed connection during TLS " +
+                                       "handshake");
+            }
+        } else if (result.getStatus() ==
+                   SSLEngineResult.Status.BUFFER_OVERFLOW) {
+            _appIn = enlarge(_appIn, _engine.getSession().
+                                             getApplicationBufferSize());
+        } else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+            throw new EOFException("peer closed TLS connection during " +
+                                   "handshake");
         }
     }
 }
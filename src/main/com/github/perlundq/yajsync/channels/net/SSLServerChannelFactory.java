@@ -18,23 +18,19 @@ package com.github.perlundq.yajsync.channels.net;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.security.NoSuchAlgorithmException;
 
-import javax.net.ssl.SSLServerSocket;
-import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLContext;
 
 public class SSLServerChannelFactory implements ServerChannelFactory
 {
-    private final SSLServerSocketFactory _factory;
-
     private boolean _isWantClientAuth;
     private boolean _isReuseAddress;
     private int _backlog = 128;
 
-    public SSLServerChannelFactory()
-    {
-        _factory = (SSLServerSocketFactory) SSLServerSocketFactory.getDefault();
-    }
-
     @Override
     public ServerChannelFactory setReuseAddress(boolean isReuseAddress)
     {
@@ -57,20 +53,26 @@ public class SSLServerChannelFactory implements ServerChannelFactory
     @Override
     public ServerChannel open(InetAddress address, int port) throws IOException
     {
-        SSLServerSocket sock =
-            (SSLServerSocket) _factory.createServerSocket(port,
-                                                          _backlog, address);
+        SSLContext context;
         try {
-            sock.setReuseAddress(_isReuseAddress);
-            sock.setWantClientAuth(_isWantClientAuth);
-            return new SSLServerChannel(sock);
+            context = SSLContext.getDefault();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        ServerSocketChannel sock = ServerSocketChannel.open();
+        try {
+            if (_isReuseAddress) {
+                sock.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            }
+            sock.bind(new InetSocketAddress(address, port), _backlog);
+            return new SSLServerChannel(sock, context, _isWantClientAuth);
         } catch (Throwable t) {
-            if (!sock.isClosed()) {
-                try {
+            try {
+                if (sock.isOpen()) {
                     sock.close();
-                } catch (Throwable tt) {
-                    t.addSuppressed(tt);
                 }
+            } catch (Throwable tt) {
+                t.addSuppressed(tt);
             }
             throw t;
         }
@@ -20,10 +20,12 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.SocketChannel;
 import java.security.Principal;
 
-public class StandardSocketChannel implements DuplexByteChannel
+public class StandardSocketChannel implements DuplexByteChannel,
+                                              GatheringByteChannel
 {
     private final SocketChannel _sock;
 
@@ -62,6 +64,19 @@ public class StandardSocketChannel implements DuplexByteChannel
         return _sock.write(src);
     }
 
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length)
+        throws IOException
+    {
+        return _sock.write(srcs, offset, length);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs) throws IOException
+    {
+        return _sock.write(srcs);
+    }
+
     @Override
     public InetAddress peerAddress()
     {
@@ -19,11 +19,33 @@
 package com.github.perlundq.yajsync.filelist;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.concurrent.ConcurrentSkipListMap;
 
 public class ConcurrentFilelist extends Filelist
 {
+    /**
+     * Immutable copy of the current segments and their directory indices,
+     * replaced (copy-on-write) whenever a segment is added or deleted so that
+     * lookups never have to lock.
+     */
+    private static class Snapshot
+    {
+        private final Segment[] _segments;
+        private final int[] _dirIndices;
+
+        private Snapshot(Segment[] segments)
+        {
+            _segments = segments;
+            _dirIndices = new int[segments.length];
+            for (int i = 0; i < segments.length; i++) {
+                _dirIndices[i] = segments[i].directoryIndex();
+            }
+        }
+    }
+
+    private volatile Snapshot _snapshot = new Snapshot(new Segment[0]);
+
     public ConcurrentFilelist(boolean isRecursive)
     {
         super(isRecursive,
@@ -41,24 +63,53 @@ public class ConcurrentFilelist extends Filelist
     @Override
     public Segment newSegment(SegmentBuilder builder)
     {
-        return super.newSegment(builder,
-                                new ConcurrentSkipListMap<Integer, FileInfo>());
+        synchronized(_segments) {
+            Segment segment = super.newSegment(builder);
+            publish();
+            return segment;
+        }
     }
 
+    // lock-free
     @Override
     public Segment getSegmentWith(int fileIndex)
     {
         assert fileIndex >= 0;
-        synchronized(_segments) {
-            return super.getSegmentWith(fileIndex);
+        Snapshot snapshot = _snapshot;
+        int result = Arrays.binarySearch(snapshot._dirIndices, fileIndex);
+        if (result >= 0) {
+            return snapshot._segments[result];
+        }
+        int insertionPoint = - result - 1;
+        int segmentIndex = insertionPoint - 1;
+        if (segmentIndex < 0) {
+            return null;
         }
+        Segment segment = snapshot._segments[segmentIndex];
+        return segment.contains(fileIndex) ? segment : null;
     }
 
     @Override
     public Segment deleteFirstSegment()
     {
         synchronized(_segments) {
-            return super.deleteFirstSegment();
+            Segment segment = super.deleteFirstSegment();
+            publish();
+            return segment;
         }
     }
+
+    @Override
+    public void close()
+    {
+        synchronized(_segments) {
+            super.close();
+        }
+    }
+
+    // NOTE: must hold the lock of _segments
+    private void publish()
+    {
+        _snapshot = new Snapshot(_segments.toArray(new Segment[0]));
+    }
 }
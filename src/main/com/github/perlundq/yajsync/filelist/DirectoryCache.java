@@ -0,0 +1,354 @@
+/*
+ * Directory listings shared between sessions
+ *
+ * Copyright (C) 2013, 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.filelist;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Immutable snapshots of listed and stat:ed directories, shared by all
+ * sessions reading from the same module so that a directory is listed once
+ * per change instead of once per session. Snapshots hold all entries, any
+ * filtering is done by each session.
+ *
+ * A snapshot is revalidated by comparing the modification time of its
+ * directory, which detects entries being added, removed or renamed, and is
+ * listed again at the latest when it is older than the time to live. Changes
+ * to the contents or attributes of existing entries may thus go unnoticed for
+ * at most the time to live. Concurrent sessions listing the same directory
+ * wait for a single listing.
+ *
+ * At most maxEntries entries are retained, where every snapshot is charged
+ * one entry more than it holds so that empty directories count as well. Once
+ * reached expired snapshots are evicted and new snapshots are not retained if
+ * there still is no room. Expired snapshots are also evicted at least once
+ * per time to live. Only directories with a retained snapshot (or one being
+ * listed) are kept track of.
+ */
+public final class DirectoryCache
+{
+    public static final int DEFAULT_MAX_ENTRIES = 256 * 1024;
+
+    private static final Logger _log =
+        Logger.getLogger(DirectoryCache.class.getName());
+    // a directory modified this recently may be modified again without its
+    // modification time changing, depending on the time stamp granularity of
+    // the file system
+    private static final long RACY_MILLIS = 2000;
+
+    private static final class Key
+    {
+        private final Path _dir;
+        private final boolean _isExactPermissions;
+        private final boolean _isExactOwnership;
+        private final boolean _isResolveNames;
+
+        private Key(Path dir, boolean isExactPermissions,
+                    boolean isExactOwnership, boolean isResolveNames)
+        {
+            _dir = dir;
+            _isExactPermissions = isExactPermissions;
+            _isExactOwnership = isExactOwnership;
+            _isResolveNames = isResolveNames;
+        }
+
+        @Override
+        public boolean equals(Object obj)
+        {
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return _dir.equals(other._dir) &&
+                   _isExactPermissions == other._isExactPermissions &&
+                   _isExactOwnership == other._isExactOwnership &&
+                   _isResolveNames == other._isResolveNames;
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 8 * _dir.hashCode() + (_isExactPermissions ? 4 : 0) +
+                   (_isExactOwnership ? 2 : 0) + (_isResolveNames ? 1 : 0);
+        }
+    }
+
+    private static final class Snapshot implements DirectoryEntries
+    {
+        private final FileTime _lastModifiedTime;
+        private final long _loadTimeNanos;
+        private final Map<Path, Object> _entries;                               // RsyncFileAttributes or the IOException of a failed stat
+
+        private Snapshot(FileTime lastModifiedTime, long loadTimeNanos,
+                         Map<Path, Object> entries)
+        {
+            _lastModifiedTime = lastModifiedTime;
+            _loadTimeNanos = loadTimeNanos;
+            _entries = Collections.unmodifiableMap(entries);
+        }
+
+        // number of entries charged against maxEntries
+        private int cost()
+        {
+            return _entries.size() + 1;
+        }
+
+        @Override
+        public Iterator<Path> iterator()
+        {
+            return _entries.keySet().iterator();
+        }
+
+        @Override
+        public RsyncFileAttributes stat(Path entry) throws IOException
+        {
+            Object value = _entries.get(entry);
+            if (value instanceof RsyncFileAttributes) {
+                return (RsyncFileAttributes) value;
+            } else if (value instanceof IOException) {
+                IOException e = (IOException) value;
+                throw new IOException(e.getMessage(), e);
+            }
+            throw new IllegalArgumentException(String.format(
+                "%s is not listed", entry));
+        }
+
+        @Override
+        public void close()
+        {
+            // NOP
+        }
+    }
+
+    private static final class Holder
+    {
+        private final ReentrantLock _lock = new ReentrantLock();
+        private Snapshot _snapshot;                                             // guarded by _lock
+        private boolean _isRemoved;                                             // guarded by _lock
+    }
+
+    private final ConcurrentMap<Key, Holder> _holders =
+        new ConcurrentHashMap<>();
+    private final long _ttlNanos;
+    private final int _maxEntries;
+    private final AtomicLong _numEntries = new AtomicLong();
+    private final AtomicLong _numHits = new AtomicLong();
+    private final AtomicLong _numMisses = new AtomicLong();
+    private final AtomicLong _lastEvictionNanos =
+        new AtomicLong(System.nanoTime());
+
+    /**
+     * @param ttlMillis the maximum age of a snapshot
+     * @param maxEntries the maximum number of retained entries
+     */
+    public DirectoryCache(long ttlMillis, int maxEntries)
+    {
+        assert ttlMillis > 0;
+        assert maxEntries >= 0;
+        _ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        _maxEntries = maxEntries;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s (ttl=%ds, entries=%d/%d, hits=%d, misses=%d)",
+                             getClass().getSimpleName(),
+                             TimeUnit.NANOSECONDS.toSeconds(_ttlNanos),
+                             _numEntries.get(), _maxEntries, _numHits.get(),
+                             _numMisses.get());
+    }
+
+    /**
+     * @return a current snapshot of dir, listed and stat:ed using
+     *         DirectoryListing.open(dir, isExactPermissions,
+     *         isExactOwnership, isResolveNames)
+     * @throws IOException if dir cannot be listed
+     */
+    public DirectoryEntries list(Path dir, boolean isExactPermissions,
+                                 boolean isExactOwnership,
+                                 boolean isResolveNames)
+        throws IOException
+    {
+        Key key = new Key(dir, isExactPermissions, isExactOwnership,
+                          isResolveNames);
+        while (true) {
+            Holder holder = _holders.get(key);
+            if (holder == null) {
+                Holder newHolder = new Holder();
+                holder = _holders.putIfAbsent(key, newHolder);
+                if (holder == null) {
+                    holder = newHolder;
+                }
+            }
+            holder._lock.lock();
+            try {
+                if (holder._isRemoved) {                                        // evicted while waiting for the lock
+                    continue;
+                }
+                FileTime lastModifiedTime = Files.getLastModifiedTime(dir);     // before listing, a concurrent change is then detected by the next session
+                long now = System.nanoTime();
+                Snapshot snapshot = holder._snapshot;
+                if (snapshot != null &&
+                    snapshot._lastModifiedTime.equals(lastModifiedTime) &&
+                    now - snapshot._loadTimeNanos < _ttlNanos)
+                {
+                    _numHits.incrementAndGet();
+                    return snapshot;
+                }
+                _numMisses.incrementAndGet();
+                long lastEviction = _lastEvictionNanos.get();
+                if (now - lastEviction >= _ttlNanos &&
+                    _lastEvictionNanos.compareAndSet(lastEviction, now))
+                {
+                    evictExpired(holder);
+                }
+                snapshot = load(dir, lastModifiedTime, now, isExactPermissions,
+                                isExactOwnership, isResolveNames);
+                retain(key, holder, snapshot);
+                return snapshot;
+            } finally {
+                holder._lock.unlock();
+            }
+        }
+    }
+
+    public long numEntries()
+    {
+        return _numEntries.get();
+    }
+
+    public long numHits()
+    {
+        return _numHits.get();
+    }
+
+    public long numMisses()
+    {
+        return _numMisses.get();
+    }
+
+    int numDirectories()
+    {
+        return _holders.size();
+    }
+
+    private static Snapshot load(Path dir, FileTime lastModifiedTime,
+                                 long now, boolean isExactPermissions,
+                                 boolean isExactOwnership,
+                                 boolean isResolveNames)
+        throws IOException
+    {
+        Map<Path, Object> entries = new LinkedHashMap<>();
+        try (DirectoryListing listing =
+                DirectoryListing.open(dir, isExactPermissions,
+                                      isExactOwnership, isResolveNames)) {
+            for (Path entry : listing) {
+                try {
+                    entries.put(entry, listing.stat(entry));
+                } catch (IOException e) {
+                    entries.put(entry, e);
+                }
+            }
+        }
+        if (_log.isLoggable(Level.FINE)) {
+            _log.fine(String.format("listed %d entries of %s",
+                                    entries.size(), dir));
+        }
+        return new Snapshot(lastModifiedTime, now, entries);
+    }
+
+    // holder._lock must be held, holder is removed if snapshot is not
+    // retained
+    private void retain(Key key, Holder holder, Snapshot snapshot)
+    {
+        release(holder);
+        if (snapshot._lastModifiedTime.toMillis() >
+            System.currentTimeMillis() - RACY_MILLIS)
+        {
+            remove(key, holder);
+            return;
+        }
+        if (_numEntries.get() + snapshot.cost() > _maxEntries) {
+            evictExpired(holder);
+        }
+        if (_numEntries.addAndGet(snapshot.cost()) > _maxEntries) {
+            _numEntries.addAndGet(-snapshot.cost());
+            remove(key, holder);
+            return;
+        }
+        holder._snapshot = snapshot;
+    }
+
+    // holder._lock must be held
+    private void release(Holder holder)
+    {
+        if (holder._snapshot != null) {
+            _numEntries.addAndGet(-holder._snapshot.cost());
+            holder._snapshot = null;
+        }
+    }
+
+    // holder._lock must be held, sessions waiting for it create a new holder
+    private void remove(Key key, Holder holder)
+    {
+        holder._isRemoved = true;
+        _holders.remove(key, holder);
+    }
+
+    // holders currently locked by other sessions are skipped, they are about
+    // to be replaced anyway
+    private void evictExpired(Holder current)
+    {
+        long now = System.nanoTime();
+        for (Iterator<Holder> it = _holders.values().iterator();
+             it.hasNext();)
+        {
+            Holder holder = it.next();
+            if (holder == current || !holder._lock.tryLock()) {
+                continue;
+            }
+            try {
+                Snapshot snapshot = holder._snapshot;
+                if (snapshot == null ||
+                    now - snapshot._loadTimeNanos >= _ttlNanos)
+                {
+                    release(holder);
+                    holder._isRemoved = true;
+                    it.remove();
+                }
+            } finally {
+                holder._lock.unlock();
+            }
+        }
+    }
+}
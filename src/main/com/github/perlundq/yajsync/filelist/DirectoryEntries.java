@@ -0,0 +1,36 @@
+/*
+ * Listed and stat:ed directory entries
+ *
+ * Copyright (C) 2013, 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.filelist;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * The entries of a directory, either listed from the file system as they are
+ * iterated (DirectoryListing) or previously listed and shared between
+ * sessions (DirectoryCache).
+ */
+public interface DirectoryEntries extends Closeable, Iterable<Path>
+{
+    /**
+     * @param entry a path returned by this listing's iterator
+     */
+    RsyncFileAttributes stat(Path entry) throws IOException;
+}
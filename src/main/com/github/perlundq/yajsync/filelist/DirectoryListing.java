@@ -0,0 +1,139 @@
+/*
+ * Directory listing with attribute reads relative to the directory
+ *
+ * Copyright (C) 2013, 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.filelist;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.SecureDirectoryStream;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Iterator;
+import java.util.Set;
+
+/**
+ * Lists the entries of a directory and stats them. If the platform supports
+ * SecureDirectoryStream attributes are read relative to the open directory
+ * handle (fstatat) whenever possible, saving the kernel from resolving the
+ * full path of every entry.
+ *
+ * Relative reads only provide what the posix view provides: file type,
+ * permission bits (no setuid, setgid or sticky bits), size and modification
+ * time. User and group are set to the JVM user and group. Entries are stat:ed
+ * using their path if they are not regular files, directories or symbolic
+ * links, if exact ownership is requested (the numeric ids are not available)
+ * or if exact permissions are requested and the entry is a directory or
+ * executable, i.e. may have any of the bits missing from the posix view.
+ */
+public final class DirectoryListing implements DirectoryEntries
+{
+    private final DirectoryStream<Path> _stream;
+    private final SecureDirectoryStream<Path> _secureStreamOrNull;
+    private final boolean _isExactPermissions;
+    private final boolean _isResolveNames;
+
+    @SuppressWarnings("unchecked")
+    private DirectoryListing(DirectoryStream<Path> stream,
+                             boolean isExactPermissions,
+                             boolean isExactOwnership,
+                             boolean isResolveNames)
+    {
+        _stream = stream;
+        _secureStreamOrNull =
+            !isExactOwnership && stream instanceof SecureDirectoryStream
+                ? (SecureDirectoryStream<Path>) stream
+                : null;
+        _isExactPermissions = isExactPermissions;
+        _isResolveNames = isResolveNames;
+    }
+
+    /**
+     * @param isExactPermissions if true the mode of an entry is always exact,
+     *        needed if permissions are preserved
+     * @param isExactOwnership if true attributes are always read using the
+     *        full path of the entry, as with RsyncFileAttributes.stat. Needed
+     *        if user or group are preserved
+     * @param isResolveNames passed on to RsyncFileAttributes.stat
+     */
+    public static DirectoryListing open(Path dir, boolean isExactPermissions,
+                                        boolean isExactOwnership,
+                                        boolean isResolveNames)
+        throws IOException
+    {
+        return new DirectoryListing(Files.newDirectoryStream(dir),
+                                    isExactPermissions, isExactOwnership,
+                                    isResolveNames);
+    }
+
+    @Override
+    public Iterator<Path> iterator()
+    {
+        return _stream.iterator();
+    }
+
+    @Override
+    public RsyncFileAttributes stat(Path entry) throws IOException
+    {
+        if (_secureStreamOrNull == null) {
+            return RsyncFileAttributes.stat(entry, _isResolveNames);
+        }
+        return statRelative(_secureStreamOrNull, entry);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        _stream.close();
+    }
+
+    private RsyncFileAttributes statRelative(
+        SecureDirectoryStream<Path> stream, Path entry)
+        throws IOException
+    {
+        PosixFileAttributeView view =
+            stream.getFileAttributeView(entry.getFileName(),
+                                        PosixFileAttributeView.class,
+                                        LinkOption.NOFOLLOW_LINKS);
+        if (view == null) {
+            return RsyncFileAttributes.stat(entry, false);
+        }
+        PosixFileAttributes attrs = view.readAttributes();
+        if (attrs.isOther() ||
+            _isExactPermissions && isSpecialBitsPossible(attrs)) {
+            return RsyncFileAttributes.stat(entry, false);
+        }
+        return RsyncFileAttributes.fromPermissions(attrs);
+    }
+
+    // setuid and setgid are only meaningful for executables and directories,
+    // the sticky bit only for directories
+    private static boolean isSpecialBitsPossible(PosixFileAttributes attrs)
+    {
+        if (attrs.isDirectory()) {
+            return true;
+        }
+        Set<PosixFilePermission> perms = attrs.permissions();
+        return perms.contains(PosixFilePermission.OWNER_EXECUTE) ||
+               perms.contains(PosixFilePermission.GROUP_EXECUTE) ||
+               perms.contains(PosixFilePermission.OTHERS_EXECUTE);
+    }
+}
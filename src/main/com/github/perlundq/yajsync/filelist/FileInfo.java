@@ -107,7 +107,7 @@ public class FileInfo implements Comparable<FileInfo>
     @Override
     public boolean equals(Object other)
     {
-        if (other != null && getClass() == other.getClass()) {
+        if (other instanceof FileInfo) {
             FileInfo otherFile = (FileInfo) other;
             if (_normalizedPath == null || otherFile._normalizedPath == null) {
                 return _normalizedPath == otherFile._normalizedPath;
@@ -140,6 +140,11 @@ public class FileInfo implements Comparable<FileInfo>
         return _path;
     }
 
+    Path normalizedPath()
+    {
+        return _normalizedPath;
+    }
+
     /**
      * WARNING: the result is undefined if the returned array is modified, it
      * should be considered immutable
@@ -0,0 +1,487 @@
+/*
+ * Temporary file storage of sorted file information
+ *
+ * Copyright (C) 2013, 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.filelist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Sorted file information stored in temporary files, used for segments too
+ * large to be kept in memory. Created by merging sorted runs previously
+ * spilled to temporary files with writeRun. The merge does not copy any
+ * entry, it only writes a temporary index file of the run and position of
+ * each entry in sorted order, which is what entries are read back by.
+ * Duplicates are pruned during the merge by leaving them out of the index.
+ * Paths are stored losslessly, i.e. also file names not decodable using the
+ * default file system encoding are read back unmodified. The transferred and
+ * pruned state of each entry is kept in memory and restored on every read.
+ */
+final class FileInfoSpool implements Closeable
+{
+    private static final Logger _log =
+        Logger.getLogger(FileInfoSpool.class.getName());
+    private static final String TMP_PREFIX = "yajsync-";
+    private static final int BUF_SIZE = 64 * 1024;
+    private static final int SIZE_OF_INDEX_ENTRY = 16;   // run, length, offset
+    private static final byte PATH_NULL = 0;
+    private static final byte PATH_NAME = 1;             // decodable path name
+    private static final byte PATH_URI = 2;              // percent encoded bytes
+    private static final byte PATH_RELATIVE_URI = 3;
+
+    private static class RunReader implements Comparable<RunReader>, Closeable
+    {
+        private final int _run;
+        private final DataInputStream _in;
+        private final FileSystem _fs;
+        private int _numRemaining;
+        private byte[] _buf = new byte[512];
+        private long _nextOffset;
+        private long _offset;
+        private int _length;
+        private FileInfo _current;
+
+        private RunReader(int run, Path path, int numEntries, FileSystem fs)
+            throws IOException
+        {
+            _run = run;
+            _in = new DataInputStream(new BufferedInputStream(
+                Files.newInputStream(path), BUF_SIZE));
+            _fs = fs;
+            _numRemaining = numEntries;
+        }
+
+        private boolean advance() throws IOException
+        {
+            if (_numRemaining == 0) {
+                _current = null;
+                return false;
+            }
+            _numRemaining--;
+            _length = _in.readInt();
+            _offset = _nextOffset + 4;
+            _nextOffset = _offset + _length;
+            if (_buf.length < _length) {
+                _buf = new byte[_length];
+            }
+            _in.readFully(_buf, 0, _length);
+            _current = readFileInfo(new DataInputStream(
+                new ByteArrayInputStream(_buf, 0, _length)), _fs);
+            return true;
+        }
+
+        @Override
+        public int compareTo(RunReader other)
+        {
+            return _current.compareTo(other._current);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            _in.close();
+        }
+    }
+
+    // a file read back from the spool, writing back any state changes
+    private final class SpooledFileInfo extends FileInfo
+    {
+        private final int _index;
+
+        // NOTE: must hold the spool lock
+        private SpooledFileInfo(int index, FileInfo f)
+        {
+            super(f.path(), f.normalizedPath(), f.pathNameBytes(), f.attrs());
+            _index = index;
+            if (_transferred.get(index)) {
+                super.setIsTransferred();
+            }
+            if (_pruned.get(index)) {
+                super.prune();
+            }
+        }
+
+        @Override
+        public void setIsTransferred()
+        {
+            super.setIsTransferred();
+            synchronized (FileInfoSpool.this) {
+                _transferred.set(_index);
+            }
+        }
+
+        @Override
+        public void prune()
+        {
+            super.prune();
+            synchronized (FileInfoSpool.this) {
+                _pruned.set(_index);
+            }
+        }
+    }
+
+    private final List<Path> _runs;
+    private final Path _indexPath;
+    private final FileChannel[] _runChannels;
+    private final FileChannel _indexChannel;
+    private final FileSystem _fs;
+    private final int _size;
+    private final long _totalFileSize;
+    private final BitSet _transferred = new BitSet();
+    private final BitSet _pruned = new BitSet();
+    private final ByteBuffer _indexBuf =
+        ByteBuffer.allocate(SIZE_OF_INDEX_ENTRY);
+    private ByteBuffer _buf = ByteBuffer.allocate(512);
+
+    private FileInfoSpool(List<Path> runs, Path indexPath, FileSystem fs,
+                          int size, long totalFileSize)
+        throws IOException
+    {
+        _runs = runs;
+        _indexPath = indexPath;
+        _fs = fs;
+        _size = size;
+        _totalFileSize = totalFileSize;
+        _runChannels = new FileChannel[runs.size()];
+        try {
+            for (int i = 0; i < runs.size(); i++) {
+                _runChannels[i] = FileChannel.open(runs.get(i),
+                                                   StandardOpenOption.READ);
+            }
+            _indexChannel = FileChannel.open(indexPath,
+                                             StandardOpenOption.READ);
+        } catch (IOException e) {
+            closeAll(_runChannels);
+            throw e;
+        }
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s (index=%s, runs=%d, size=%d)",
+                             getClass().getSimpleName(), _indexPath,
+                             _runs.size(), _size);
+    }
+
+    /**
+     * Writes the sorted files to a new temporary file, to later be passed to
+     * merge. Each entry is prefixed by its length.
+     */
+    static Path writeRun(List<FileInfo> sortedFiles) throws IOException
+    {
+        Path path = Files.createTempFile(TMP_PREFIX, ".run");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(512);
+        DataOutputStream entry = new DataOutputStream(bytes);
+        try (DataOutputStream out = new DataOutputStream(
+                 new BufferedOutputStream(Files.newOutputStream(path),
+                                          BUF_SIZE))) {
+            for (FileInfo f : sortedFiles) {
+                bytes.reset();
+                writeFileInfo(entry, f);
+                entry.flush();
+                out.writeInt(bytes.size());
+                bytes.writeTo(out);
+            }
+        } catch (IOException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+        return path;
+    }
+
+    /**
+     * Merges all runs into a new spool, which takes over the runs and deletes
+     * them when closed. The runs are deleted on failure. Run i contains
+     * runSizes[i] entries.
+     */
+    static FileInfoSpool merge(List<Path> runs, List<Integer> runSizes,
+                               FileSystem fs)
+        throws IOException
+    {
+        assert runs.size() == runSizes.size();
+
+        PriorityQueue<RunReader> queue = new PriorityQueue<>(
+            Math.max(1, runs.size()));
+        Path indexPath = null;
+        int size = 0;
+        long totalFileSize = 0;
+        boolean isOK = false;
+
+        try {
+            indexPath = Files.createTempFile(TMP_PREFIX, ".index");
+            for (int i = 0; i < runs.size(); i++) {
+                RunReader reader = new RunReader(i, runs.get(i),
+                                                 runSizes.get(i), fs);
+                if (reader.advance()) {
+                    queue.add(reader);
+                } else {
+                    reader.close();
+                }
+            }
+
+            FileInfo prev = null;
+            try (DataOutputStream index = new DataOutputStream(
+                     new BufferedOutputStream(Files.newOutputStream(indexPath),
+                                              BUF_SIZE))) {
+                while (!queue.isEmpty()) {
+                    RunReader reader = queue.poll();
+                    FileInfo f = reader._current;
+                    int run = reader._run;
+                    int length = reader._length;
+                    long offset = reader._offset;
+                    if (reader.advance()) {
+                        queue.add(reader);
+                    } else {
+                        reader.close();
+                    }
+                    if (f.equals(prev)) {
+                        if (_log.isLoggable(Level.WARNING)) {
+                            _log.warning(String.format(
+                                "pruning duplicate \"%s\" of \"%s\"",
+                                f, prev));
+                        }
+                        continue;
+                    }
+                    index.writeInt(run);
+                    index.writeInt(length);
+                    index.writeLong(offset);
+                    size++;
+                    if (f.attrs().isRegularFile() ||
+                        f.attrs().isSymbolicLink())
+                    {
+                        totalFileSize += f.attrs().size();
+                    }
+                    prev = f;
+                }
+            }
+            FileInfoSpool spool = new FileInfoSpool(new ArrayList<>(runs),
+                                                    indexPath, fs, size,
+                                                    totalFileSize);
+            isOK = true;
+            return spool;
+        } finally {
+            for (RunReader reader : queue) {
+                reader.close();
+            }
+            if (!isOK) {
+                for (Path run : runs) {
+                    Files.deleteIfExists(run);
+                }
+                if (indexPath != null) {
+                    Files.deleteIfExists(indexPath);
+                }
+            }
+        }
+    }
+
+    int size()
+    {
+        return _size;
+    }
+
+    long totalFileSize()
+    {
+        return _totalFileSize;
+    }
+
+    /**
+     * Returns a new instance on every call, any transferred or pruned state
+     * set on a previously returned instance of the same entry is retained.
+     *
+     * @throws IllegalStateException if the entry cannot be read back from the
+     *         temporary file
+     */
+    synchronized FileInfo get(int i)
+    {
+        assert i >= 0 && i < _size;
+        try {
+            _indexBuf.clear();
+            readFully(_indexChannel, _indexBuf, (long) i * SIZE_OF_INDEX_ENTRY);
+            int run = _indexBuf.getInt(0);
+            int length = _indexBuf.getInt(4);
+            long position = _indexBuf.getLong(8);
+            if (_buf.capacity() < length) {
+                _buf = ByteBuffer.allocate(length);
+            }
+            _buf.clear().limit(length);
+            readFully(_runChannels[run], _buf, position);
+            FileInfo f = readFileInfo(new DataInputStream(
+                new ByteArrayInputStream(_buf.array(), 0, length)), _fs);
+            return new SpooledFileInfo(i, f);
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format(
+                "failed to read entry %d of %s: %s",
+                i, this, e.getMessage()), e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try {
+            try {
+                closeAll(_runChannels);
+            } finally {
+                _indexChannel.close();
+            }
+        } finally {
+            try {
+                for (Path run : _runs) {
+                    Files.deleteIfExists(run);
+                }
+            } finally {
+                Files.deleteIfExists(_indexPath);
+            }
+        }
+    }
+
+    // NOTE: channels might contain nulls
+    private static void closeAll(FileChannel[] channels) throws IOException
+    {
+        IOException exception = null;
+        for (FileChannel channel : channels) {
+            try {
+                if (channel != null) {
+                    channel.close();
+                }
+            } catch (IOException e) {
+                exception = e;
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf,
+                                  long position)
+        throws IOException
+    {
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position + buf.position());
+            if (n < 0) {
+                throw new IOException("unexpected end of file");
+            }
+        }
+    }
+
+    private static void writeFileInfo(DataOutput out, FileInfo f)
+        throws IOException
+    {
+        RsyncFileAttributes attrs = f.attrs();
+        writePath(out, f.path());
+        writePath(out, f.normalizedPath());
+        byte[] pathNameBytes = f.pathNameBytes();
+        out.writeInt(pathNameBytes.length);
+        out.write(pathNameBytes);
+        out.writeInt(attrs.mode());
+        out.writeLong(attrs.size());
+        out.writeLong(attrs.lastModifiedTime());
+        out.writeUTF(attrs.user().name());
+        out.writeInt(attrs.user().id());
+        out.writeUTF(attrs.group().name());
+        out.writeInt(attrs.group().id());
+    }
+
+    private static FileInfo readFileInfo(DataInput in, FileSystem fs)
+        throws IOException
+    {
+        Path path = readPath(in, fs);
+        Path normalizedPath = readPath(in, fs);
+        byte[] pathNameBytes = new byte[in.readInt()];
+        in.readFully(pathNameBytes);
+        int mode = in.readInt();
+        long size = in.readLong();
+        long mtime = in.readLong();
+        User user = PrincipalCache.intern(new User(in.readUTF(),
+                                                    in.readInt()));
+        Group group = PrincipalCache.intern(new Group(in.readUTF(),
+                                                       in.readInt()));
+        RsyncFileAttributes attrs = new RsyncFileAttributes(mode, size, mtime,
+                                                            user, group);
+        return new FileInfo(path, normalizedPath, pathNameBytes, attrs);
+    }
+
+    // A path name is not necessarily the same as the file name bytes of the
+    // path, e.g. if it isn't decodable. The URI of a path contains its
+    // (percent encoded) bytes and is used in that case instead.
+    private static void writePath(DataOutput out, Path path) throws IOException
+    {
+        if (path == null) {
+            out.writeByte(PATH_NULL);
+            return;
+        }
+        String pathName = path.toString();
+        if (path.getFileSystem().getPath(pathName).equals(path)) {
+            out.writeByte(PATH_NAME);
+            out.writeUTF(pathName);
+        } else if (path.isAbsolute()) {
+            out.writeByte(PATH_URI);
+            out.writeUTF(path.toUri().toString());
+        } else {
+            out.writeByte(PATH_RELATIVE_URI);
+            out.writeUTF(rootOf(path.getFileSystem()).resolve(path).
+                         toUri().toString());
+        }
+    }
+
+    private static Path readPath(DataInput in, FileSystem fs) throws IOException
+    {
+        byte type = in.readByte();
+        switch (type) {
+        case PATH_NULL:
+            return null;
+        case PATH_NAME:
+            return fs.getPath(in.readUTF());
+        case PATH_URI:
+            return fs.provider().getPath(URI.create(in.readUTF()));
+        case PATH_RELATIVE_URI:
+            return rootOf(fs).relativize(
+                fs.provider().getPath(URI.create(in.readUTF())));
+        default:
+            throw new IOException("invalid path type " + type);
+        }
+    }
+
+    private static Path rootOf(FileSystem fs)
+    {
+        return fs.getRootDirectories().iterator().next();
+    }
+}
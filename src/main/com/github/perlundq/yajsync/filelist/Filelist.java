@@ -19,41 +19,74 @@
  */
 package com.github.perlundq.yajsync.filelist;
 
+import java.io.IOException;
+import java.nio.file.FileSystem;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
+import com.github.perlundq.yajsync.util.ArraySorter;
 import com.github.perlundq.yajsync.util.Environment;
-import com.github.perlundq.yajsync.util.SortedList;
 
 public class Filelist
 {
     public static class SegmentBuilder
     {
         private FileInfo _directory;
-        private SortedList<FileInfo> _files = new SortedList<>();
-        private SortedList<FileInfo> _directories = new SortedList<>();
+        // NOTE: files are appended unsorted and sorted once when needed,
+        // i.e. when queried or when the segment is created
+        private List<FileInfo> _files = new ArrayList<>();
+        private List<FileInfo> _directories = new ArrayList<>();
+        private boolean _isSorted = true;
+        private int _maxNumInMemory;
+        private final List<Path> _runs = new ArrayList<>();
+        private final List<Integer> _runSizes = new ArrayList<>();
+        private int _numSpilled;
+        private FileSystem _fs;
+        private Set<Path> _normalizedPaths;                                     // built when first queried
 
         public SegmentBuilder(FileInfo directory)
         {
             _directory = directory;
         }
 
+        /**
+         * A builder keeping at most maxNumInMemory files in memory, the rest
+         * is sorted and spilled to temporary files in runs of maxNumInMemory
+         * files and finally merged into a file backed segment. Contrary to a
+         * regular builder, duplicates are pruned and will not be allotted any
+         * file index. A maxNumInMemory of 0 means no limit.
+         */
+        public SegmentBuilder(FileInfo directory, int maxNumInMemory)
+        {
+            assert maxNumInMemory >= 0;
+            _directory = directory;
+            _maxNumInMemory = maxNumInMemory;
+        }
+
         @Override
         public String toString()
         {
             return String.format("%s (directory=%s, stubDirectories=%s, " +
-                                 "files=%s)%n",
+                                 "files=%s, spilled=%d)%n",
                                  getClass().getSimpleName(), _directory,
-                                 _directories, _files);
+                                 _directories, _files, _numSpilled);
         }
 
         /**
@@ -73,6 +106,8 @@ public class Filelist
                     _directory.path(), fileInfo.path()));
             }
             _files.add(fileInfo);
+            _isSorted = false;
+            _normalizedPaths = null;
             // NOTE: we store the directory in the builder regardless if we're
             // using recursive transfer or not
             // NOTE: we must also store DOT_DIR since this is what a native
@@ -80,6 +115,11 @@ public class Filelist
             if (fileInfo.attrs().isDirectory()) {
                 _directories.add(fileInfo);
             }
+            if (_maxNumInMemory > 0 && _files.size() >= _maxNumInMemory &&
+                fileInfo.path() != null)
+            {
+                spill(fileInfo.path().getFileSystem());
+            }
         }
 
         public void addAll(Iterable<FileInfo> fileset)
@@ -91,13 +131,153 @@ public class Filelist
 
         public int size()
         {
-            return _files.size();
+            return _files.size() + _numSpilled;
         }
 
-        // O(log n) by SortedList
+        // O(log n) once sorted, sorting is O(n log n) and done at most once
+        // per batch of added files
+        /**
+         * @throws IllegalStateException if files have been spilled
+         */
         public boolean contains(FileInfo fileInfo)
         {
-            return _files.containsElement(fileInfo);
+            if (isSpilled()) {
+                throw new IllegalStateException(
+                    "lookup of spilled files is not supported: " + this);
+            }
+            sort();
+            return Collections.binarySearch(_files, fileInfo) >= 0;
+        }
+
+        /**
+         * Looks up a file by its normalized relative path in a hash set,
+         * i.e. the same as contains but without having to stat the file.
+         *
+         * @throws IllegalStateException if files have been spilled
+         */
+        public boolean containsPath(Path normalizedPath)
+        {
+            if (isSpilled()) {
+                throw new IllegalStateException(
+                    "lookup of spilled files is not supported: " + this);
+            }
+            if (_normalizedPaths == null) {
+                _normalizedPaths = new HashSet<>(_files.size() * 2);
+                for (FileInfo f : _files) {
+                    _normalizedPaths.add(f.normalizedPath());
+                }
+            }
+            return _normalizedPaths.contains(normalizedPath);
+        }
+
+        private boolean isSpilled()
+        {
+            return !_runs.isEmpty();
+        }
+
+        private void sort()
+        {
+            if (!_isSorted) {
+                sort(_files);
+                sort(_directories);
+                if (_maxNumInMemory > 0) {
+                    pruneDuplicates(_files);
+                    pruneDuplicates(_directories);
+                }
+                _isSorted = true;
+            }
+        }
+
+        private static void sort(List<FileInfo> files)
+        {
+            FileInfo[] result = files.toArray(new FileInfo[files.size()]);
+            ArraySorter.sort(result);
+            for (int i = 0; i < result.length; i++) {
+                files.set(i, result[i]);
+            }
+        }
+
+        // NOTE: files must be sorted
+        private static void pruneDuplicates(List<FileInfo> files)
+        {
+            FileInfo prev = null;
+            for (Iterator<FileInfo> it = files.iterator(); it.hasNext(); ) {
+                FileInfo f = it.next();
+                if (f.equals(prev)) {
+                    if (_log.isLoggable(Level.WARNING)) {
+                        _log.warning(String.format(
+                            "pruning duplicate \"%s\" of \"%s\"", f, prev));
+                    }
+                    it.remove();
+                } else {
+                    prev = f;
+                }
+            }
+        }
+
+        private void spill(FileSystem fs)
+        {
+            sort();
+            try {
+                _runs.add(FileInfoSpool.writeRun(_files));
+            } catch (IOException e) {
+                if (_log.isLoggable(Level.WARNING)) {
+                    _log.warning(String.format(
+                        "failed to spill %d files of %s to temporary " +
+                        "storage, keeping all of them in memory instead: %s",
+                        _files.size(), _directory, e.getMessage()));
+                }
+                _maxNumInMemory = 0;
+                return;
+            }
+            _runSizes.add(_files.size());
+            _numSpilled += _files.size();
+            _fs = fs;
+            _files.clear();
+        }
+
+        /**
+         * @throws IllegalStateException on failure to merge spilled files
+         */
+        private FileInfoSpool mergeSpilled()
+        {
+            assert isSpilled();
+            sort();
+            try {
+                if (!_files.isEmpty()) {
+                    _runs.add(FileInfoSpool.writeRun(_files));
+                    _runSizes.add(_files.size());
+                }
+                return FileInfoSpool.merge(_runs, _runSizes, _fs);
+            } catch (IOException e) {
+                throw new IllegalStateException(String.format(
+                    "failed to merge spilled files of %s: %s",
+                    _directory, e.getMessage()), e);
+            }
+        }
+
+        public FileInfo directory()
+        {
+            return _directory;
+        }
+
+        /**
+         * Deletes any spilled files of a builder that will not be used for
+         * creating a segment.
+         */
+        public void discard()
+        {
+            for (Path run : _runs) {
+                try {
+                    Files.deleteIfExists(run);
+                } catch (IOException e) {
+                    if (_log.isLoggable(Level.WARNING)) {
+                        _log.warning(String.format("failed to delete %s: %s",
+                                                   run, e.getMessage()));
+                    }
+                }
+            }
+            clear();
         }
 
         private void clear()
@@ -105,30 +285,80 @@ public class Filelist
             _directory = null;
             _files = null;
             _directories = null;
+            _normalizedPaths = null;
+            _runs.clear();
+            _runSizes.clear();
         }
     }
 
+    /**
+     * Files of a segment are stored densely in an array offset by the
+     * directory index, i.e. file index dirIndex + 1 + i is stored at slot i.
+     * Whether a file is still active (not yet removed) is tracked in an
+     * atomic bitset, making removal and lookup safe to perform concurrently
+     * without locking. Segments built from spilled files are instead backed
+     * by a temporary file and only read into memory on demand.
+     */
     public static class Segment implements Comparable<Integer>
     {
+        private static final int WORD_SHIFT = 6;
+
         private final FileInfo _directory;
         private final int _dirIndex;
         private final int _endIndex;
-        private final Map<Integer, FileInfo> _files;
+        private final FileInfo[] _files;       // NOTE: null if _spool is used
+        private final FileInfoSpool _spool;
+        private final AtomicLongArray _active;
+        private final AtomicInteger _numActive = new AtomicInteger();
         private long _totalFileSize;
 
-        private Segment(FileInfo directory, int dirIndex, List<FileInfo> files,
-                        Map<Integer, FileInfo> map)
+        private abstract class ActiveIterator<T> implements Iterator<T>
+        {
+            private int _slot = nextActiveSlot(0);
+
+            protected abstract T valueOf(int slot, FileInfo f);
+
+            @Override
+            public boolean hasNext()
+            {
+                return _slot >= 0;
+            }
+
+            @Override
+            public T next()
+            {
+                if (_slot < 0) {
+                    throw new NoSuchElementException();
+                }
+                int slot = _slot;
+                FileInfo f = fileAt(slot);
+                _slot = nextActiveSlot(slot + 1);
+                // NOTE: f might have been removed concurrently, it is still
+                // returned as the iterator is only weakly consistent
+                return valueOf(slot, f);
+            }
+
+            @Override
+            public void remove()
+            {
+                throw new UnsupportedOperationException();
+            }
+        }
+
+        // NOTE: files must be sorted
+        private Segment(FileInfo directory, int dirIndex, List<FileInfo> files)
         {
             assert dirIndex >= -1;
             assert files != null;
-            assert map != null;
             _directory = directory;            // NOTE: might be null
             _dirIndex = dirIndex;
             _endIndex = dirIndex + files.size();
-            _files = map;
+            _files = new FileInfo[files.size()];
+            _spool = null;
+            _active = new AtomicLongArray(numWords(_files.length));
 
-            int index = dirIndex + 1;
-            Collections.sort(files);
+            int slot = 0;
+            int numActive = 0;
             FileInfo prev = null;
 
             for (FileInfo f : files) {
@@ -142,23 +372,48 @@ public class Filelist
                                                    prevPath));
                     }
                 } else {
-                    _files.put(index, f);
+                    _files[slot] = f;
+                    setActive(slot);
+                    numActive++;
                     if (f.attrs().isRegularFile() ||
                         f.attrs().isSymbolicLink())
                     {
                         _totalFileSize += f.attrs().size();
                     }
                 }
-                index++;
+                slot++;
                 prev = f;
             }
+            _numActive.set(numActive);
+        }
+
+        private Segment(FileInfo directory, int dirIndex, FileInfoSpool spool)
+        {
+            assert dirIndex >= -1;
+            assert spool != null;
+            _directory = directory;            // NOTE: might be null
+            _dirIndex = dirIndex;
+            _endIndex = dirIndex + spool.size();
+            _files = null;
+            _spool = spool;
+            _active = new AtomicLongArray(numWords(spool.size()));
+            for (int slot = 0; slot < spool.size(); slot++) {
+                setActive(slot);
+            }
+            _numActive.set(spool.size());
+            _totalFileSize = spool.totalFileSize();
+        }
+
+        private static int numWords(int numFiles)
+        {
+            return (numFiles + (1 << WORD_SHIFT) - 1) >>> WORD_SHIFT;
         }
 
         @Override
         public String toString()
         {
             StringBuilder sb = new StringBuilder();
-            int active = _files.values().size();
+            int active = _numActive.get();
             int size = _endIndex - _dirIndex;
             sb.append(String.format(
                 "%s [%s, dirIndex=%d, fileIndices=%d:%d, size=%d/%d]",
@@ -171,7 +426,7 @@ public class Filelist
                 size));
 
             if (_log.isLoggable(Level.FINEST)) {
-                for (Map.Entry<Integer, FileInfo> e : _files.entrySet()) {
+                for (Map.Entry<Integer, FileInfo> e : entrySet()) {
                     sb.append("   ").
                     append(e.getValue().path()).
                     append(", ").
@@ -205,57 +460,176 @@ public class Filelist
         // generator sender
         public Iterable<FileInfo> files()
         {
-            return _files.values();
+            return new Iterable<FileInfo>() {
+                @Override
+                public Iterator<FileInfo> iterator() {
+                    return new ActiveIterator<FileInfo>() {
+                        @Override
+                        protected FileInfo valueOf(int slot, FileInfo f) {
+                            return f;
+                        }
+                    };
+                }
+            };
         }
 
         // generator
-        // can be automatically generated or possible removed
         public Iterable<Entry<Integer, FileInfo>> entrySet()
         {
-            return _files.entrySet();
+            return new Iterable<Entry<Integer, FileInfo>>() {
+                @Override
+                public Iterator<Entry<Integer, FileInfo>> iterator() {
+                    return new ActiveIterator<Entry<Integer, FileInfo>>() {
+                        @Override
+                        protected Entry<Integer, FileInfo> valueOf(int slot,
+                                                                   FileInfo f) {
+                            return new AbstractMap.SimpleImmutableEntry<>(
+                                indexOf(slot), f);
+                        }
+                    };
+                }
+            };
         }
 
         // generator sender receiver
         public FileInfo getFileWithIndexOrNull(int index)
         {
             assert index >= 0;
-            return _files.get(index);
+            int slot = slotOf(index);
+            if (slot < 0 || !isActive(slot)) {
+                return null;
+            }
+            return fileAt(slot);
         }
 
         // sender generator
-        // use bitmap
         public FileInfo remove(int index)
         {
-            return _files.remove(index);
+            int slot = slotOf(index);
+            if (slot < 0 || !clearActive(slot)) {
+                return null;
+            }
+            _numActive.decrementAndGet();
+            return fileAt(slot);
         }
 
         // generator
-        // use bitmap
         public void removeAll()
         {
-            _files.clear();
+            int numRemoved = 0;
+            for (int i = 0; i < _active.length(); i++) {
+                numRemoved += Long.bitCount(_active.getAndSet(i, 0));
+            }
+            _numActive.addAndGet(-numRemoved);
         }
 
         // generator
-        // inefficient, can possibly be removed
         public void removeAll(Collection<Integer> toRemove)
         {
             for (int i : toRemove) {
-                _files.remove(i);
+                remove(i);
             }
         }
 
         // sender generator
-        // use bitmap
         public boolean isFinished()
         {
-            return _files.isEmpty();
+            return _numActive.get() == 0;
+        }
+
+        boolean contains(int index)
+        {
+            int slot = slotOf(index);
+            return slot >= 0 && isActive(slot);
+        }
+
+        // releases any temporary storage, a file backed segment is empty
+        // afterwards
+        void close()
+        {
+            if (_spool != null) {
+                removeAll();
+                try {
+                    _spool.close();
+                } catch (IOException e) {
+                    if (_log.isLoggable(Level.WARNING)) {
+                        _log.warning(String.format("failed to close %s: %s",
+                                                   _spool, e.getMessage()));
+                    }
+                }
+            }
+        }
+
+        private int size()
+        {
+            return _endIndex - _dirIndex;
         }
 
-        // use bitmap
-        private boolean contains(int index)
+        private FileInfo fileAt(int slot)
         {
-            return _files.containsKey(index);
+            return _spool == null ? _files[slot] : _spool.get(slot);
+        }
+
+        private int slotOf(int index)
+        {
+            int slot = index - _dirIndex - 1;
+            if (slot < 0 || slot >= size()) {
+                return -1;
+            }
+            return slot;
+        }
+
+        private int indexOf(int slot)
+        {
+            return _dirIndex + 1 + slot;
+        }
+
+        private boolean isActive(int slot)
+        {
+            return (_active.get(slot >>> WORD_SHIFT) & (1L << slot)) != 0;
+        }
+
+        // only used during construction
+        private void setActive(int slot)
+        {
+            int word = slot >>> WORD_SHIFT;
+            _active.lazySet(word, _active.get(word) | (1L << slot));
+        }
+
+        // returns true if slot was active before and this thread cleared it
+        private boolean clearActive(int slot)
+        {
+            int word = slot >>> WORD_SHIFT;
+            long mask = 1L << slot;
+            while (true) {
+                long current = _active.get(word);
+                if ((current & mask) == 0) {
+                    return false;
+                }
+                if (_active.compareAndSet(word, current, current & ~mask)) {
+                    return true;
+                }
+            }
+        }
+
+        // returns the first active slot >= fromSlot or -1 if none
+        private int nextActiveSlot(int fromSlot)
+        {
+            if (fromSlot >= size()) {
+                return -1;
+            }
+            int word = fromSlot >>> WORD_SHIFT;
+            long bits = _active.get(word) & (-1L << fromSlot);
+            while (true) {
+                if (bits != 0) {
+                    return (word << WORD_SHIFT) + Long.numberOfTrailingZeros(bits);
+                }
+                word++;
+                if (word >= _active.length()) {
+                    return -1;
+                }
+                bits = _active.get(word);
+            }
         }
     }
 
@@ -291,8 +665,7 @@ public class Filelist
         this(isRecursive, new ArrayList<Segment>());
     }
 
-    protected Segment newSegment(SegmentBuilder builder,
-                                 SortedMap<Integer, FileInfo> map)
+    public Segment newSegment(SegmentBuilder builder)
     {
         assert (builder._directory == null) ==
                    (_isRecursive && _nextDirIndex == 0 ||
@@ -302,32 +675,34 @@ public class Filelist
 
         if (_log.isLoggable(Level.FINER)) {
             _log.finer(String.format(
-                "creating new segment from builder=%s and map=%s",
-                builder, map));
+                "creating new segment from builder=%s", builder));
         }
 
+        FileInfoSpool spool = builder.isSpilled() ? builder.mergeSpilled()
+                                                  : null;
+        builder.sort();
         if (_isRecursive) {
             extractStubDirectories(builder._directories);
         }
-        Segment segment = new Segment(builder._directory,
-                                      _nextDirIndex,
-                                      builder._files,
-                                      map);
+        Segment segment = spool != null
+                              ? new Segment(builder._directory, _nextDirIndex,
+                                            spool)
+                              : new Segment(builder._directory, _nextDirIndex,
+                                            builder._files);
         builder.clear();
         _nextDirIndex = segment._endIndex + 1;
         _segments.add(segment);
         _totalFileSize += segment._totalFileSize;
-        _numFiles += segment._files.size();
+        _numFiles += segment._numActive.get();
         return segment;
     }
 
-    private void extractStubDirectories(SortedList<FileInfo> directories)
+    private void extractStubDirectories(List<FileInfo> directories)
     {
         if (_log.isLoggable(Level.FINER)) {
             _log.finer("extracting all stub directories from " + directories);
         }
 
-        // Collections.sort(directories);
         for (FileInfo f : directories) {
             assert f.attrs().isDirectory();
             if (!f.isDotDir()) {
@@ -343,11 +718,6 @@ public class Filelist
         }
     }
 
-    public Segment newSegment(SegmentBuilder builder)
-    {
-        return newSegment(builder, new TreeMap<Integer, FileInfo>());
-    }
-
     @Override
     public String toString()
     {
@@ -406,6 +776,15 @@ public class Filelist
         return _stubDirectories.remove(directoryIndex);
     }
 
+    // sender
+    public FileInfo peekStubDirectoryOrNull(int directoryIndex)
+    {
+        if (_stubDirectories == null) {
+            return null;
+        }
+        return _stubDirectories.get(directoryIndex);
+    }
+
     // sender receiver
     public boolean isExpandable()
     {
@@ -415,7 +794,19 @@ public class Filelist
     // sender receiver generator
     public Segment deleteFirstSegment()
     {
-        return _segments.remove(0);
+        Segment segment = _segments.remove(0);
+        segment.close();
+        return segment;
+    }
+
+    /**
+     * Releases any temporary storage held by the remaining segments.
+     */
+    public void close()
+    {
+        for (Segment segment : _segments) {
+            segment.close();
+        }
     }
 
     // sender receiver
@@ -20,6 +20,7 @@
 package com.github.perlundq.yajsync.filelist;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.regex.Pattern;
 
@@ -29,41 +30,185 @@ public class FilterRuleList {
 
 	public List<FilterRule> _rules = new ArrayList<FilterRule>();
 
+	// compiled lazily from _rules on first check, reset when rules are added
+	private volatile CompiledRules _compiled;
+
 	public enum Result {
 		EXCLUDED /* PROTECTED, HIDE */, INCLUDED /* RISK, SHOW */ , NEUTRAL
 	}
 
 	public FilterRuleList addList(FilterRuleList list) {
 		_rules.addAll(list._rules);
+		_compiled = null;
 		return this;
 	}
 
 	public void addRule(String rule) throws ArgumentParsingError {
 		_rules.add(new FilterRule(rule));
+		_compiled = null;
 	}
 
 	public Result check(String filename, boolean isDirectory) {
 
-		for (FilterRule rule : _rules) {
+		CompiledRules compiled = _compiled;
+		if (compiled == null || compiled._numRules != _rules.size()) {
+			compiled = new CompiledRules(_rules);
+			_compiled = compiled;
+		}
+
+		/*
+		 * first matching rule matters
+		 */
+		FilterRule rule = compiled.firstMatch(filename, isDirectory);
+		if (rule == null) {
+			return Result.NEUTRAL;
+		} else if (rule.isInclusion()) {
+			return Result.INCLUDED;
+		} else {
+			return Result.EXCLUDED;
+		}
+	}
+
+	/*
+	 * Character trie of literal rule paths. Each node holds the index of the
+	 * first rule (and the first directory only rule) whose path ends at the
+	 * node.
+	 */
+	private static class TrieNode {
 
-			if (!isDirectory && rule.isDirectoryOnly())
-				continue;
+		private static final int NO_RULE = Integer.MAX_VALUE;
+
+		private char[] _keys = new char[0];
+		private TrieNode[] _children = new TrieNode[0];
+		private int _ruleIndex = NO_RULE;
+		private int _dirRuleIndex = NO_RULE;
+
+		private TrieNode child(char c) {
+			for (int i = 0; i < _keys.length; i++) {
+				if (_keys[i] == c) {
+					return _children[i];
+				}
+			}
+			return null;
+		}
+
+		private TrieNode addChild(char c) {
+			TrieNode child = child(c);
+			if (child == null) {
+				child = new TrieNode();
+				_keys = Arrays.copyOf(_keys, _keys.length + 1);
+				_children = Arrays.copyOf(_children, _children.length + 1);
+				_keys[_keys.length - 1] = c;
+				_children[_children.length - 1] = child;
+			}
+			return child;
+		}
+
+		private void addRule(int index, boolean isDirectoryOnly) {
+			if (isDirectoryOnly) {
+				_dirRuleIndex = Math.min(_dirRuleIndex, index);
+			} else {
+				_ruleIndex = Math.min(_ruleIndex, index);
+			}
+		}
 
-			boolean matches = rule.matches(filename);
+		private int firstRule(boolean isDirectory) {
+			return isDirectory ? Math.min(_ruleIndex, _dirRuleIndex)
+					: _ruleIndex;
+		}
+	}
 
-			if (matches) {
-				/*
-				 * first matching rule matters
-				 */
-				if (rule.isInclusion()) {
-					return Result.INCLUDED;
+	/*
+	 * The rules compiled for lookup in time independent of the number of
+	 * rules: anchored literal rules are stored in a trie of their paths and
+	 * tail matched literal rules in a trie of their reversed paths, only
+	 * pattern and negated rules are tried one by one (in rule order and only
+	 * until the first literal match found).
+	 */
+	private static class CompiledRules {
+
+		private final int _numRules;
+		private final FilterRule[] _rules;
+		private final TrieNode _anchored = new TrieNode();
+		private final TrieNode _tails = new TrieNode();
+		private final int[] _fallbackIndices;
+
+		private CompiledRules(List<FilterRule> rules) {
+			_numRules = rules.size();
+			_rules = rules.toArray(new FilterRule[_numRules]);
+			int[] fallbackIndices = new int[_numRules];
+			int numFallbacks = 0;
+			for (int i = 0; i < _numRules; i++) {
+				FilterRule rule = _rules[i];
+				if (rule._patternMatching || rule._negateMatching) {
+					fallbackIndices[numFallbacks++] = i;
+				} else if (rule._absoluteMatching) {
+					TrieNode node = _anchored;
+					for (int j = 0; j < rule._matchPath.length(); j++) {
+						node = node.addChild(rule._matchPath.charAt(j));
+					}
+					node.addRule(i, rule._directoryOnly);
 				} else {
-					return Result.EXCLUDED;
+					TrieNode node = _tails;
+					for (int j = rule._matchPath.length() - 1; j >= 0; j--) {
+						node = node.addChild(rule._matchPath.charAt(j));
+					}
+					node.addRule(i, rule._directoryOnly);
+				}
+			}
+			_fallbackIndices = Arrays.copyOf(fallbackIndices, numFallbacks);
+		}
+
+		private FilterRule firstMatch(String filename, boolean isDirectory) {
+			int first = Math.min(firstAnchoredMatch(filename, isDirectory),
+					firstTailMatch(filename, isDirectory));
+			for (int index : _fallbackIndices) {
+				if (index >= first) {
+					break;
+				}
+				FilterRule rule = _rules[index];
+				if (!isDirectory && rule.isDirectoryOnly()) {
+					continue;
+				}
+				if (rule.matches(filename)) {
+					return rule;
 				}
 			}
+			return first == TrieNode.NO_RULE ? null : _rules[first];
 		}
 
-		return Result.NEUTRAL;
+		// path equals filename or is a prefix of it followed by a slash
+		private int firstAnchoredMatch(String filename, boolean isDirectory) {
+			int first = TrieNode.NO_RULE;
+			TrieNode node = _anchored;
+			int length = filename.length();
+			for (int i = 0; node != null; i++) {
+				if (i == length || filename.charAt(i) == '/') {
+					first = Math.min(first, node.firstRule(isDirectory));
+				}
+				if (i == length) {
+					break;
+				}
+				node = node.child(filename.charAt(i));
+			}
+			return first;
+		}
+
+		// path equals filename or is a suffix of it preceded by a slash
+		private int firstTailMatch(String filename, boolean isDirectory) {
+			int first = TrieNode.NO_RULE;
+			TrieNode node = _tails;
+			for (int i = filename.length(); node != null; i--) {
+				if (i == 0 || filename.charAt(i - 1) == '/') {
+					first = Math.min(first, node.firstRule(isDirectory));
+				}
+				if (i == 0) {
+					break;
+				}
+				node = node.child(filename.charAt(i - 1));
+			}
+			return first;
+		}
 	}
 
 	/*
@@ -79,6 +224,7 @@ public class FilterRuleList {
 		private final boolean _deletionRule;
 		private final boolean _hidingRule;
 		private String _path;
+		private final String _matchPath;  // _path with a trailing slash if directory only
 		private Pattern _pattern;
 
 		/*
@@ -147,6 +293,7 @@ public class FilterRuleList {
 			// _patternMatching = _path.contains("*") || _path.contains("?") ||
 			// _path.contains("[");
 			_patternMatching = _path.matches(".*[\\*\\?\\[].*");
+			_matchPath = _path + (_directoryOnly ? "/" : "");
 
 			if (_patternMatching) {
 
@@ -184,7 +331,7 @@ public class FilterRuleList {
 				_result = _pattern.matcher(filename).matches();
 			} else {
 
-				String path = _path + (_directoryOnly ? "/":"");
+				String path = _matchPath;
 
 				// string matching
 				if (_absoluteMatching) {
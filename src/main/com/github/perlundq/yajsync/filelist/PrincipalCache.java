@@ -0,0 +1,142 @@
+/*
+ * Process wide cache of user and group name lookups
+ *
+ * Copyright (C) 2013, 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.filelist;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.GroupPrincipal;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Interned User and Group instances keyed by id, shared by all sessions of
+ * this process. Names are looked up (getpwuid/getgrgid via the JDK) at most
+ * once per id, the first time a file owned by that id is stat:ed. Numeric
+ * instances (with an empty name) are interned separately.
+ *
+ * NOTE: a name is never looked up again once cached, a renamed user or group
+ * is not noticed until the process is restarted
+ */
+final class PrincipalCache
+{
+    private static final ConcurrentMap<Integer, User> _users =
+        new ConcurrentHashMap<>();
+    private static final ConcurrentMap<Integer, Group> _groups =
+        new ConcurrentHashMap<>();
+    private static final ConcurrentMap<Integer, User> _numericUsers =
+        new ConcurrentHashMap<>();
+    private static final ConcurrentMap<Integer, Group> _numericGroups =
+        new ConcurrentHashMap<>();
+
+    private PrincipalCache() {}
+
+    /**
+     * @return the interned user with id uid, if the name is not cached yet it
+     *         is looked up as the owner of path
+     */
+    static User userOf(Path path, int uid) throws IOException
+    {
+        User user = _users.get(uid);
+        if (user == null) {
+            Map<String, Object> attrs =
+                Files.readAttributes(path, "unix:uid,owner",
+                                     LinkOption.NOFOLLOW_LINKS);
+            int actualUid = (int) attrs.get("uid");
+            String name = ((UserPrincipal) attrs.get("owner")).getName();
+            intern(_users, new User(name, actualUid));
+            user = _users.get(uid);
+            if (user == null) {  // owner changed in between, avoid mixing up ids
+                user = numericUser(uid);
+            }
+        }
+        return user;
+    }
+
+    /**
+     * @return the interned group with id gid, if the name is not cached yet
+     *         it is looked up as the group of path
+     */
+    static Group groupOf(Path path, int gid) throws IOException
+    {
+        Group group = _groups.get(gid);
+        if (group == null) {
+            Map<String, Object> attrs =
+                Files.readAttributes(path, "unix:gid,group",
+                                     LinkOption.NOFOLLOW_LINKS);
+            int actualGid = (int) attrs.get("gid");
+            String name = ((GroupPrincipal) attrs.get("group")).getName();
+            intern(_groups, new Group(name, actualGid));
+            group = _groups.get(gid);
+            if (group == null) {
+                group = numericGroup(gid);
+            }
+        }
+        return group;
+    }
+
+    static User numericUser(int uid)
+    {
+        User user = _numericUsers.get(uid);
+        if (user == null) {
+            user = intern(_numericUsers, new User("", uid));
+        }
+        return user;
+    }
+
+    static Group numericGroup(int gid)
+    {
+        Group group = _numericGroups.get(gid);
+        if (group == null) {
+            group = intern(_numericGroups, new Group("", gid));
+        }
+        return group;
+    }
+
+    /**
+     * @return an interned instance equal to user, user itself if there is no
+     *         such instance
+     */
+    static User intern(User user)
+    {
+        ConcurrentMap<Integer, User> map = user.name().isEmpty() ? _numericUsers
+                                                                 : _users;
+        User cached = map.get(user.id());
+        return user.equals(cached) ? cached : user;
+    }
+
+    static Group intern(Group group)
+    {
+        ConcurrentMap<Integer, Group> map = group.name().isEmpty()
+                                                ? _numericGroups
+                                                : _groups;
+        Group cached = map.get(group.id());
+        return group.equals(cached) ? cached : group;
+    }
+
+    private static <T extends AbstractPrincipal> T intern(
+        ConcurrentMap<Integer, T> map, T principal)
+    {
+        T existing = map.putIfAbsent(principal.id(), principal);
+        return existing == null ? principal : existing;
+    }
+}
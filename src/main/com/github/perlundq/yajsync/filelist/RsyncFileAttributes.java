@@ -26,10 +26,8 @@ import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileTime;
-import java.nio.file.attribute.GroupPrincipal;
 import java.nio.file.attribute.PosixFileAttributes;
 import java.nio.file.attribute.PosixFilePermission;
-import java.nio.file.attribute.UserPrincipal;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -88,21 +86,49 @@ public class RsyncFileAttributes
              new Group(attrs.group().getName(), Group.whoami().id()));
     }
 
+    /**
+     * @return attributes with mode created from the file type and permission
+     *         bits of attrs only, user and group are set to the JVM user and
+     *         group
+     */
+    static RsyncFileAttributes fromPermissions(PosixFileAttributes attrs)
+    {
+        return new RsyncFileAttributes(RsyncFileAttributes.toMode(attrs),
+                                       attrs.size(),
+                                       attrs.lastModifiedTime().
+                                           to(TimeUnit.SECONDS),
+                                       User.whoami(),
+                                       Group.whoami());
+    }
+
     public static RsyncFileAttributes stat(Path path) throws IOException
+    {
+        return stat(path, true);
+    }
+
+    /**
+     * @param isResolveNames whether to look up the user and group names of
+     *        path, if false user and group only contain the numeric ids (with
+     *        an empty name). Names are cached process wide by id and the
+     *        returned User and Group instances are shared.
+     */
+    public static RsyncFileAttributes stat(Path path, boolean isResolveNames)
+        throws IOException
     {
         if (Environment.IS_UNIX_FS) {
             Map<String, Object> attrs =
-                Files.readAttributes(path, "unix:lastModifiedTime,mode,size,uid,owner,gid,group",
+                Files.readAttributes(path, "unix:lastModifiedTime,mode,size,uid,gid",
                                      LinkOption.NOFOLLOW_LINKS);
             long mtime = ((FileTime) attrs.get("lastModifiedTime")).to(TimeUnit.SECONDS);
             int mode = (int) attrs.get("mode");
             long size = (long) attrs.get("size");
-            String user = ((UserPrincipal) attrs.get("owner")).getName();
             int uid = (int) attrs.get("uid");
-            String group = ((GroupPrincipal) attrs.get("group")).getName();
             int gid = (int) attrs.get("gid");
-            return new RsyncFileAttributes(mode, size, mtime,
-                                           new User(user, uid), new Group(group, gid));
+            User user = isResolveNames ? PrincipalCache.userOf(path, uid)
+                                       : PrincipalCache.numericUser(uid);
+            Group group = isResolveNames ? PrincipalCache.groupOf(path, gid)
+                                         : PrincipalCache.numericGroup(gid);
+            return new RsyncFileAttributes(mode, size, mtime, user, group);
         } else if (Environment.IS_POSIX_FS) {
             PosixFileAttributes attrs =
                 Files.readAttributes(path, PosixFileAttributes.class,
@@ -117,18 +143,31 @@ public class RsyncFileAttributes
     }
 
     public static RsyncFileAttributes statOrNull(Path path)
+    {
+        return statOrNull(path, true);
+    }
+
+    public static RsyncFileAttributes statOrNull(Path path,
+                                                 boolean isResolveNames)
     {
         try {
-            return stat(path);
+            return stat(path, isResolveNames);
         } catch (IOException e) {
             return null;
         }
     }
 
     public static RsyncFileAttributes statIfExists(Path path) throws IOException
+    {
+        return statIfExists(path, true);
+    }
+
+    public static RsyncFileAttributes statIfExists(Path path,
+                                                   boolean isResolveNames)
+        throws IOException
     {
         try {
-            return stat(path);
+            return stat(path, isResolveNames);
         } catch (NoSuchFileException e) {
             return null;
         }
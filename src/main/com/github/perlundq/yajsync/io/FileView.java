@@ -39,6 +39,8 @@ public class FileView implements AutoCloseable
     private static final Logger _log =
         Logger.getLogger(FileView.class.getName());
     public final static int DEFAULT_BLOCK_SIZE = 8 * 1024;
+    public final static int DEFAULT_SMALL_FILE_THRESHOLD = 4 * 1024;
+    public final static int MAX_SMALL_FILE_THRESHOLD = 64 * 1024;
     private final InputStream _is;
     private final int _windowLength;  // size of sliding window (<= _buf.length)
     private final byte[] _buf;
@@ -83,6 +85,49 @@ public class FileView implements AutoCloseable
         }
     }
 
+    /**
+     * Reads the first length bytes of path into buf in one go, as an
+     * alternative to a sliding window for small files. As with a FileView,
+     * bytes which could not be read are filled with zeroes.
+     *
+     * @throws FileViewOpenFailed if path could not be opened
+     * @throws FileViewReadError if less than length bytes could be read, buf
+     *         is then filled with zeroes from where reading stopped
+     */
+    public static void readFully(Path path, byte[] buf, int length)
+        throws FileViewReadError
+    {
+        assert length >= 0 && length <= buf.length;
+        if (length == 0) {
+            return;
+        }
+        InputStream is;
+        try {
+            is = Files.newInputStream(path);
+        } catch (FileNotFoundException | NoSuchFileException e) {
+            throw new FileViewNotFound(e.getMessage());
+        } catch (IOException e) {
+            throw new FileViewOpenFailed(e.getMessage());
+        }
+
+        int offset = 0;
+        try (InputStream in = is) {
+            while (offset < length) {
+                int len = in.read(buf, offset, length - offset);
+                if (len <= 0) {
+                    throw new EOFException(String.format(
+                        "File ended prematurely (%d)", len));
+                }
+                offset += len;
+            }
+        } catch (ClosedByInterruptException e) {
+            throw new RuntimeInterruptException(e);
+        } catch (IOException e) {
+            Arrays.fill(buf, offset, length, (byte) 0);
+            throw new FileViewReadError(e);
+        }
+    }
+
     @Override
     public String toString()
     {
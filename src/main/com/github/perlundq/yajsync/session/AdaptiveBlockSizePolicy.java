@@ -0,0 +1,295 @@
+/*
+ * Block size policy learning from previous transfers
+ *
+ * Copyright (C) 2013, 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.github.perlundq.yajsync.text.Text;
+import com.github.perlundq.yajsync.util.FileOps;
+
+/**
+ * Picks, per file name extension, the block length which has minimised the
+ * number of bytes sent per byte of updated file in previous transfers.
+ *
+ * Candidate block lengths are the default square root block length (see
+ * BlockSizePolicy.newSquareRoot) shifted by at most MAX_SHIFT powers of
+ * two in either direction, but never beyond MIN_BLOCK_LENGTH or
+ * MAX_BLOCK_LENGTH, so that every block length used maps back to the
+ * shift it was chosen for when recorded. The bytes sent for every updated file are
+ * recorded as a moving average per extension and shift. The best shift so
+ * far is used, except for every EXPLORE_INTERVAL:th file of an extension
+ * which instead tries a neighbouring shift if it has too few samples (or
+ * every EXPLORE_INTERVAL^2:th file regardless), so the policy keeps
+ * adapting as the files change.
+ *
+ * The averages are kept in a small text file with one line per extension
+ * and shift, replaced as a whole by save.
+ */
+final class AdaptiveBlockSizePolicy extends BlockSizePolicy
+{
+    private static final class Entry
+    {
+        private final double[] _costRatio = new double[NUM_SHIFTS];             // moving average of bytes sent per updated byte
+        private final long[] _numSamples = new long[NUM_SHIFTS];
+        private long _numChoices;
+
+        // returns the index of the shift to use next, within minIndex and
+        // maxIndex
+        private synchronized int choose(int minIndex, int maxIndex)
+        {
+            assert minIndex <= MAX_SHIFT && MAX_SHIFT <= maxIndex;
+            int best = MAX_SHIFT;                                               // i.e. shift 0
+            for (int i = minIndex; i <= maxIndex; i++) {
+                if (_numSamples[i] > 0 &&
+                    (_numSamples[best] == 0 ||
+                     _costRatio[i] < _costRatio[best])) {
+                    best = i;
+                }
+            }
+            long n = _numChoices++;
+            if (n % EXPLORE_INTERVAL != EXPLORE_INTERVAL - 1) {
+                return best;
+            }
+            int neighbour = n / EXPLORE_INTERVAL % 2 == 0 ? best - 1
+                                                          : best + 1;
+            if (neighbour < minIndex || neighbour > maxIndex) {
+                return best;
+            }
+            boolean isRefresh =
+                n % (EXPLORE_INTERVAL * EXPLORE_INTERVAL) ==
+                EXPLORE_INTERVAL * EXPLORE_INTERVAL - 1;
+            if (_numSamples[neighbour] < MIN_SAMPLES || isRefresh) {
+                return neighbour;
+            }
+            return best;
+        }
+
+        private synchronized void add(int index, double costRatio)
+        {
+            if (_numSamples[index] == 0) {
+                _costRatio[index] = costRatio;
+            } else {
+                _costRatio[index] += SAMPLE_WEIGHT *
+                                     (costRatio - _costRatio[index]);
+            }
+            _numSamples[index]++;
+        }
+
+        private synchronized void set(int index, long numSamples,
+                                      double costRatio)
+        {
+            _numSamples[index] = numSamples;
+            _costRatio[index] = costRatio;
+            _numChoices += numSamples;                                          // carry on exploring where the last run left off
+        }
+
+        private synchronized void appendTo(List<String> lines, String key)
+        {
+            for (int i = 0; i < NUM_SHIFTS; i++) {
+                if (_numSamples[i] > 0) {
+                    lines.add(String.format(Locale.ROOT, "%s %d %d %s",
+                                            key, i - MAX_SHIFT,
+                                            _numSamples[i],
+                                            Double.toString(_costRatio[i])));
+                }
+            }
+        }
+    }
+
+    private static final Logger _log =
+        Logger.getLogger(AdaptiveBlockSizePolicy.class.getName());
+    private static final Charset CHARSET = Charset.forName(Text.UTF8_NAME);
+    private static final String HEADER = "# yajsync block size history: " +
+                                         ".extension shift samples " +
+                                         "bytes-sent-per-byte";
+    private static final int MAX_SHIFT = 3;
+    private static final int NUM_SHIFTS = 2 * MAX_SHIFT + 1;
+    private static final int EXPLORE_INTERVAL = 8;
+    private static final int MIN_SAMPLES = 4;
+    private static final double SAMPLE_WEIGHT = 0.2;
+    private static final int MAX_EXTENSION_LENGTH = 16;
+    private static final int MAX_NUM_ENTRIES = 4096;                            // keeps the history file small
+
+    private final Path _historyFile;
+    private final ConcurrentMap<String, Entry> _entries =
+        new ConcurrentHashMap<>();
+
+    private AdaptiveBlockSizePolicy(Path historyFile)
+    {
+        _historyFile = historyFile;
+    }
+
+    static AdaptiveBlockSizePolicy load(Path historyFile) throws IOException
+    {
+        AdaptiveBlockSizePolicy policy =
+            new AdaptiveBlockSizePolicy(historyFile);
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(historyFile, CHARSET);
+        } catch (NoSuchFileException e) {
+            return policy;
+        }
+        for (String line : lines) {
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            if (!policy.parse(line) && _log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format("ignoring malformed line in %s: " +
+                                           "%s", historyFile, line));
+            }
+        }
+        return policy;
+    }
+
+    private boolean parse(String line)
+    {
+        String[] fields = line.split(" ");
+        if (fields.length != 4 || !fields[0].startsWith(".")) {
+            return false;
+        }
+        try {
+            int shift = Integer.parseInt(fields[1]);
+            long numSamples = Long.parseLong(fields[2]);
+            double costRatio = Double.parseDouble(fields[3]);
+            if (Math.abs(shift) > MAX_SHIFT || numSamples <= 0 ||
+                !(costRatio >= 0)) {
+                return false;
+            }
+            Entry entry = entryOf(fields[0].substring(1));
+            if (entry != null) {
+                entry.set(shift + MAX_SHIFT, numSamples, costRatio);
+            }
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // returns null if there are too many entries already
+    private Entry entryOf(String extension)
+    {
+        Entry entry = _entries.get(extension);
+        if (entry == null) {
+            if (_entries.size() >= MAX_NUM_ENTRIES) {
+                return null;
+            }
+            Entry newEntry = new Entry();
+            entry = _entries.putIfAbsent(extension, newEntry);
+            if (entry == null) {
+                entry = newEntry;
+            }
+        }
+        return entry;
+    }
+
+    // lower case file name extension, or an empty string if it has none or
+    // if it is not suitable as key
+    private static String extensionOf(Path path)
+    {
+        Path fileName = path.getFileName();
+        if (fileName == null) {
+            return "";
+        }
+        String name = fileName.toString();
+        int dot = name.lastIndexOf('.');
+        if (dot <= 0 || name.length() - dot - 1 > MAX_EXTENSION_LENGTH) {
+            return "";
+        }
+        String extension = name.substring(dot + 1).toLowerCase(Locale.ROOT);
+        for (int i = 0; i < extension.length(); i++) {
+            if (Character.isWhitespace(extension.charAt(i))) {
+                return "";
+            }
+        }
+        return extension;
+    }
+
+    // number of powers of two between the block lengths from and to
+    private static int shiftOf(int from, int to)
+    {
+        return Integer.numberOfTrailingZeros(to) -
+               Integer.numberOfTrailingZeros(from);
+    }
+
+    @Override
+    public int blockLengthFor(Path path, long fileSize)
+    {
+        int blockLength = squareRootBlockLengthFor(fileSize);
+        Entry entry = entryOf(extensionOf(path));
+        if (entry == null) {
+            return blockLength;
+        }
+        int minIndex = Math.max(0, MAX_SHIFT + shiftOf(blockLength,
+                                                       MIN_BLOCK_LENGTH));
+        int maxIndex = Math.min(NUM_SHIFTS - 1,
+                                MAX_SHIFT + shiftOf(blockLength,
+                                                    MAX_BLOCK_LENGTH));
+        int shift = entry.choose(minIndex, maxIndex) - MAX_SHIFT;
+        return shift >= 0 ? blockLength << shift : blockLength >> -shift;
+    }
+
+    @Override
+    public void record(Path path, long fileSize, int blockLength,
+                       long numWireBytes, long numTargetBytes)
+    {
+        if (numTargetBytes <= 0 || Integer.bitCount(blockLength) != 1) {
+            return;
+        }
+        int shift = shiftOf(squareRootBlockLengthFor(fileSize), blockLength);   // the shift chosen by blockLengthFor, which never clamps
+        Entry entry = entryOf(extensionOf(path));
+        if (Math.abs(shift) > MAX_SHIFT || entry == null) {
+            return;
+        }
+        entry.add(shift + MAX_SHIFT, (double) numWireBytes / numTargetBytes);
+    }
+
+    @Override
+    public synchronized void save() throws IOException
+    {
+        List<String> lines = new ArrayList<>();
+        lines.add(HEADER);
+        for (Map.Entry<String, Entry> e : _entries.entrySet()) {
+            e.getValue().appendTo(lines, "." + e.getKey());
+        }
+        Path dir = _historyFile.toAbsolutePath().getParent();
+        Path tempFile = Files.createTempFile(dir, null, null);
+        try {
+            Files.write(tempFile, lines, CHARSET);
+            if (!FileOps.atomicMove(tempFile, _historyFile)) {
+                throw new IOException(String.format(
+                    "failed to move temporary file %s to %s",
+                    tempFile, _historyFile));
+            }
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+}
@@ -0,0 +1,310 @@
+/*
+ * Admission control of server connections
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Limits the number of concurrent connections, both in total and per module
+ * (rsyncd's "max connections"). The global limit is decided as soon as a
+ * connection is accepted, before any thread is assigned to it. A connection
+ * exceeding it may wait in a bounded queue for a bounded amount of time,
+ * without occupying a thread, and is handed over once a slot is released.
+ * The module limit is decided once the module is known and never waits.
+ * Rejected connections are still handed over, to let the client know that
+ * the server is busy. No method blocks.
+ */
+public final class AdmissionController
+{
+    /**
+     * Receives the admission of a connection once decided. Invoked by the
+     * thread calling admit or, for a connection that had to wait, the thread
+     * releasing a slot or rejecting expired connections. Must not block.
+     */
+    public interface Handler
+    {
+        void handle(Admission admission);
+    }
+
+    /**
+     * The admission of a connection, either holding a global slot or
+     * rejected.
+     */
+    public static final class Admission
+    {
+        private final AdmissionController _controller;
+        private final ServerBusyException _rejection;                          // null if admitted
+        private final AtomicBoolean _isReleased = new AtomicBoolean();
+        private ConnectionSlots _moduleSlots;
+
+        private Admission(AdmissionController controller,
+                          ServerBusyException rejection)
+        {
+            _controller = controller;
+            _rejection = rejection;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format("%s (rejected=%s, %s)",
+                                 getClass().getSimpleName(), isRejected(),
+                                 _controller);
+        }
+
+        public boolean isRejected()
+        {
+            return _rejection != null;
+        }
+
+        /**
+         * Admits the connection to module as well, without waiting.
+         * @throws ServerBusyException if the connection was rejected globally
+         *         or module already has the maximum number of connections
+         */
+        public void admitTo(Module module) throws ServerBusyException
+        {
+            if (_rejection != null) {
+                throw _rejection;
+            }
+            assert _moduleSlots == null;
+            _moduleSlots = _controller.acquireModuleSlot(module);               // throws ServerBusyException
+        }
+
+        /**
+         * Releases the slots held by this admission, subsequent invocations
+         * are ignored.
+         */
+        public void release()
+        {
+            if (_rejection == null && _isReleased.compareAndSet(false, true)) {
+                _controller.release(_moduleSlots);
+            }
+        }
+    }
+
+    private static class Waiting
+    {
+        private final Handler _handler;
+        private final long _deadline;
+
+        private Waiting(Handler handler, long deadline)
+        {
+            _handler = handler;
+            _deadline = deadline;
+        }
+    }
+
+    private final ConnectionSlots _globalSlots;
+    private final ConcurrentMap<String, ConnectionSlots> _moduleSlots =
+        new ConcurrentHashMap<>();
+    private final int _maxWaiting;
+    private final long _waitTimeoutNanos;
+    private final Queue<Waiting> _waiting = new ArrayDeque<>();                // guarded by _lock
+    private final Object _lock = new Object();                                  // never held while waiting or invoking a handler
+
+    /**
+     * @param maxConnections the maximum number of connections in total, 0 if
+     *        unlimited
+     * @param maxWaiting the maximum number of connections waiting for a slot
+     * @param waitTimeoutMillis the maximum time a connection waits for a slot
+     */
+    public AdmissionController(int maxConnections, int maxWaiting,
+                               long waitTimeoutMillis)
+    {
+        assert maxConnections >= 0;
+        assert maxWaiting >= 0;
+        assert waitTimeoutMillis >= 0;
+        _globalSlots = new ConnectionSlots(maxConnections);
+        _maxWaiting = maxWaiting;
+        _waitTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(waitTimeoutMillis);
+    }
+
+    public static AdmissionController newUnlimited()
+    {
+        return new AdmissionController(0, 0, 0);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s (global=%s, waiting=%d)",
+                             getClass().getSimpleName(), _globalSlots,
+                             numWaiting());
+    }
+
+    public ConnectionSlots globalSlots()
+    {
+        return _globalSlots;
+    }
+
+    /**
+     * @return the slots of the module named moduleName or null if no
+     *         connection to it has been admitted yet
+     */
+    public ConnectionSlots moduleSlots(String moduleName)
+    {
+        return _moduleSlots.get(moduleName);
+    }
+
+    public int numWaiting()
+    {
+        synchronized (_lock) {
+            return _waiting.size();
+        }
+    }
+
+    /**
+     * Decides the admission of a new connection without waiting, i.e. the
+     * returned admission is rejected if there is no global slot available.
+     */
+    public Admission tryAdmit()
+    {
+        synchronized (_lock) {
+            if (_waiting.isEmpty() && _globalSlots.tryAcquire()) {
+                return admitted();
+            }
+        }
+        return rejected();
+    }
+
+    /**
+     * Decides the admission of a new connection and hands it over to
+     * handler, either right away or, if there is no global slot available
+     * but room in the wait queue, once a slot is released or the wait times
+     * out.
+     */
+    public void admit(Handler handler)
+    {
+        Admission admission;
+        synchronized (_lock) {
+            if (_waiting.isEmpty() && _globalSlots.tryAcquire()) {
+                admission = admitted();
+            } else if (_waiting.size() < _maxWaiting) {
+                long deadline = System.nanoTime() + _waitTimeoutNanos;
+                _waiting.add(new Waiting(handler, deadline));
+                admission = null;
+            } else {
+                admission = rejected();
+            }
+        }
+        if (admission != null) {
+            handler.handle(admission);
+        }
+    }
+
+    /**
+     * Rejects all waiting connections whose wait timed out. Must be invoked
+     * periodically if there is a wait queue, as expired connections are
+     * otherwise only rejected when a slot is released.
+     */
+    public void rejectExpired()
+    {
+        List<Handler> expired = new ArrayList<>();
+        long now = System.nanoTime();
+        synchronized (_lock) {
+            while (!_waiting.isEmpty() &&
+                   _waiting.peek()._deadline - now <= 0)
+            {
+                expired.add(_waiting.remove()._handler);
+            }
+        }
+        for (Handler handler : expired) {
+            handler.handle(rejected());
+        }
+    }
+
+    private Admission admitted()
+    {
+        _globalSlots.countAdmitted();
+        return new Admission(this, null);
+    }
+
+    private Admission rejected()
+    {
+        _globalSlots.countRejected();
+        return new Admission(this, busy(_globalSlots));
+    }
+
+    private static ServerBusyException busy(ConnectionSlots slots)
+    {
+        return new ServerBusyException(String.format(
+            "max connections (%d) reached -- try again later", slots.limit()));
+    }
+
+    private ConnectionSlots acquireModuleSlot(Module module)
+        throws ServerBusyException
+    {
+        int limit = module instanceof LimitedModule
+                        ? ((LimitedModule) module).maxConnections()
+                        : 0;
+        ConnectionSlots moduleSlots = _moduleSlots.get(module.name());
+        if (moduleSlots == null) {
+            ConnectionSlots newSlots = new ConnectionSlots(limit);
+            moduleSlots = _moduleSlots.putIfAbsent(module.name(), newSlots);
+            if (moduleSlots == null) {
+                moduleSlots = newSlots;
+            }
+        }
+        moduleSlots.setLimit(limit);                                            // the module might have been reconfigured
+        if (!moduleSlots.tryAcquire()) {
+            moduleSlots.countRejected();
+            throw busy(moduleSlots);
+        }
+        moduleSlots.countAdmitted();
+        return moduleSlots;
+    }
+
+    // the global slot is passed on to the first waiting connection, if any
+    private void release(ConnectionSlots moduleSlots)
+    {
+        if (moduleSlots != null) {
+            moduleSlots.release();
+        }
+        List<Handler> expired = new ArrayList<>();
+        Handler next = null;
+        long now = System.nanoTime();
+        synchronized (_lock) {
+            while (next == null && !_waiting.isEmpty()) {
+                Waiting w = _waiting.remove();
+                if (w._deadline - now > 0) {
+                    next = w._handler;
+                } else {
+                    expired.add(w._handler);
+                }
+            }
+            if (next == null) {
+                _globalSlots.release();
+            }
+        }
+        for (Handler handler : expired) {
+            handler.handle(rejected());
+        }
+        if (next != null) {
+            next.handle(admitted());
+        }
+    }
+}
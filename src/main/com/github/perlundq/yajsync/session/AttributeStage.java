@@ -0,0 +1,243 @@
+/*
+ * Batched application of file attributes on a bounded worker pool
+ *
+ * Copyright (C) 2013, 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.github.perlundq.yajsync.filelist.RsyncFileAttributes;
+import com.github.perlundq.yajsync.util.RuntimeInterruptException;
+import com.github.perlundq.yajsync.util.SessionExecutors;
+
+/**
+ * Applies file attributes (mode, mtime and ownership) off the calling
+ * thread. Each update is a round trip to the file system, which is costly on
+ * network file systems, so updates are collected in batches which are run
+ * on a bounded pool of worker threads. At most a bounded number of batches
+ * are in flight, after which the caller waits for a batch to complete.
+ *
+ * Directory updates are deferred until finish, since their modification
+ * time changes whenever an entry is added or removed. finish first waits for
+ * all outstanding file updates and then applies the directory updates
+ * deepest first, one depth at a time, so a directory is never updated
+ * before any of its subdirectories (which may also remove write permission
+ * needed to update its children).
+ *
+ * Errors are counted and returned by finish. Not thread safe, all methods
+ * must be called by the same thread.
+ */
+final class AttributeStage
+{
+    interface Applier
+    {
+        void apply(Path path, RsyncFileAttributes curAttrs,
+                   RsyncFileAttributes targetAttrs) throws IOException;
+    }
+
+    private static class Update
+    {
+        private final Path _path;
+        private final RsyncFileAttributes _curAttrs;
+        private final RsyncFileAttributes _targetAttrs;
+
+        private Update(Path path, RsyncFileAttributes curAttrs,
+                       RsyncFileAttributes targetAttrs)
+        {
+            _path = path;
+            _curAttrs = curAttrs;
+            _targetAttrs = targetAttrs;
+        }
+    }
+
+    private static final Logger _log =
+        Logger.getLogger(AttributeStage.class.getName());
+    private static final int BATCH_SIZE = 64;
+    private static final Comparator<Update> DEEPEST_FIRST =
+        new Comparator<Update>() {
+            @Override
+            public int compare(Update a, Update b) {
+                return Integer.compare(b._path.getNameCount(),
+                                       a._path.getNameCount());
+            }
+        };
+
+    private final String _name;
+    private final Applier _applier;
+    private final int _numThreads;
+    private final int _maxBatchesInFlight;
+    private final Semaphore _batchesAvailable;
+    private final AtomicInteger _numErrors = new AtomicInteger();
+    private final List<Update> _directories = new ArrayList<>();
+    private List<Update> _batch = new ArrayList<>(BATCH_SIZE);
+    private ExecutorService _executor;                                          // created on first use
+
+    /**
+     * @param name used as prefix for log messages, e.g. "Generator"
+     */
+    AttributeStage(String name, int numThreads, Applier applier)
+    {
+        assert numThreads > 0;
+        _name = name;
+        _applier = applier;
+        _numThreads = numThreads;
+        _maxBatchesInFlight = 2 * numThreads;
+        _batchesAvailable = new Semaphore(_maxBatchesInFlight);
+    }
+
+    /**
+     * Queues an attribute update of a non directory path, which must not be
+     * modified by anyone else until finish.
+     *
+     * @throws RuntimeInterruptException if interrupted while waiting for a
+     *         batch to complete
+     */
+    void update(Path path, RsyncFileAttributes curAttrs,
+                RsyncFileAttributes targetAttrs)
+    {
+        _batch.add(new Update(path, curAttrs, targetAttrs));
+        if (_batch.size() == BATCH_SIZE) {
+            submitBatch();
+        }
+    }
+
+    /**
+     * Queues an attribute update of a directory, applied by finish.
+     */
+    void deferDirectory(Path path, RsyncFileAttributes curAttrs,
+                        RsyncFileAttributes targetAttrs)
+    {
+        _directories.add(new Update(path, curAttrs, targetAttrs));
+    }
+
+    /**
+     * Applies all queued updates, directories last and deepest first.
+     *
+     * @return the number of updates which failed
+     * @throws RuntimeInterruptException if interrupted while waiting
+     */
+    int finish()
+    {
+        submitBatch();
+        awaitBatches();
+        Collections.sort(_directories, DEEPEST_FIRST);                          // stable, keeps list order within a depth
+        int i = 0;
+        while (i < _directories.size()) {
+            int depth = _directories.get(i)._path.getNameCount();
+            for (; i < _directories.size() &&
+                   _directories.get(i)._path.getNameCount() == depth; i++) {
+                _batch.add(_directories.get(i));
+                if (_batch.size() == BATCH_SIZE) {
+                    submitBatch();
+                }
+            }
+            submitBatch();
+            awaitBatches();
+        }
+        _directories.clear();
+        return _numErrors.getAndSet(0);
+    }
+
+    /**
+     * Stops all workers, queued updates not yet applied are lost.
+     */
+    void close()
+    {
+        if (_executor != null) {
+            _executor.shutdownNow();
+        }
+    }
+
+    private void submitBatch()
+    {
+        if (_batch.isEmpty()) {
+            return;
+        }
+        final List<Update> batch = _batch;
+        _batch = new ArrayList<>(BATCH_SIZE);
+        if (_executor == null) {
+            _executor = SessionExecutors.newSessionTaskExecutor(_numThreads);
+        }
+        acquire(1);
+        try {
+            _executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (Update u : batch) {
+                            apply(u);
+                        }
+                    } finally {
+                        _batchesAvailable.release();
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            _batchesAvailable.release();
+            throw e;
+        }
+    }
+
+    private void apply(Update u)
+    {
+        try {
+            _applier.apply(u._path, u._curAttrs, u._targetAttrs);
+        } catch (IOException e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format(
+                    "(%s) received I/O error while applying attributes " +
+                    "on %s: %s", _name, u._path, e.getMessage()));
+            }
+            _numErrors.incrementAndGet();
+        } catch (RuntimeException e) {
+            // e.g. SecurityException or UnsupportedOperationException from a
+            // file attribute view, which would otherwise be lost on the
+            // worker thread and not be reflected in the return status
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.log(Level.WARNING, String.format(
+                    "(%s) failed to apply attributes on %s", _name, u._path),
+                    e);
+            }
+            _numErrors.incrementAndGet();
+        }
+    }
+
+    private void awaitBatches()
+    {
+        acquire(_maxBatchesInFlight);
+        _batchesAvailable.release(_maxBatchesInFlight);
+    }
+
+    private void acquire(int permits)
+    {
+        try {
+            _batchesAvailable.acquire(permits);
+        } catch (InterruptedException e) {
+            throw new RuntimeInterruptException(e);
+        }
+    }
+}
@@ -0,0 +1,427 @@
+/*
+ * Recording and replay of the data sent by a Sender
+ *
+ * Copyright (C) 2013, 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.github.perlundq.yajsync.filelist.FilterRuleList;
+import com.github.perlundq.yajsync.text.Text;
+import com.github.perlundq.yajsync.ui.FilterRuleConfiguration;
+import com.github.perlundq.yajsync.util.ArgumentParsingError;
+
+/**
+ * A batch file holds all data a Sender sent to a Receiver during one
+ * transfer (--write-batch), preceded by a header with the options the
+ * Receiver needs to parse it. Replaying the batch with a local Receiver
+ * (--read-batch) applies the same updates to any other destination in the
+ * same state as the original one, without a peer and without generating
+ * and matching checksums again.
+ *
+ * The data is recorded as is, i.e. multiplexed, from the end of the
+ * handshake. The header is MAGIC followed by the length in bytes of the
+ * key=value option lines following it.
+ */
+final class Batch
+{
+    private static final byte[] MAGIC = { 'Y', 'J', 'S', 'B', 'A', 'T', 1, 0 };
+    private static final Charset HEADER_CHARSET = Charset.forName(Text.UTF8_NAME);
+    private static final int MAX_HEADER_LENGTH = 1024 * 1024;
+    private static final String FILTER_RULE = "filter-rule";
+
+    private static final WritableByteChannel DISCARD =
+        new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src)
+            {
+                int count = src.remaining();
+                src.position(src.limit());
+                return count;
+            }
+
+            @Override
+            public boolean isOpen()
+            {
+                return true;
+            }
+
+            @Override
+            public void close() {}
+        };
+
+    private final Map<String, String> _options = new HashMap<>();
+    private final List<String> _filterRules = new ArrayList<>();
+
+    Batch() {}
+
+    Batch setCharset(Charset charset)
+    {
+        _options.put("charset", charset.name());
+        return this;
+    }
+
+    Batch setIsRecursive(boolean isRecursive)
+    {
+        return set("recursive", isRecursive);
+    }
+
+    Batch setIsPreservePermissions(boolean isPreservePermissions)
+    {
+        return set("perms", isPreservePermissions);
+    }
+
+    Batch setIsPreserveTimes(boolean isPreserveTimes)
+    {
+        return set("times", isPreserveTimes);
+    }
+
+    Batch setIsPreserveUser(boolean isPreserveUser)
+    {
+        return set("owner", isPreserveUser);
+    }
+
+    Batch setIsPreserveGroup(boolean isPreserveGroup)
+    {
+        return set("group", isPreserveGroup);
+    }
+
+    Batch setIsNumericIds(boolean isNumericIds)
+    {
+        return set("numeric-ids", isNumericIds);
+    }
+
+    Batch setIsIgnoreTimes(boolean isIgnoreTimes)
+    {
+        return set("ignore-times", isIgnoreTimes);
+    }
+
+    Batch setIsDelete(boolean isDelete)
+    {
+        return set("delete", isDelete);
+    }
+
+    Batch setIsDeleteExcluded(boolean isDeleteExcluded)
+    {
+        return set("delete-excluded", isDeleteExcluded);
+    }
+
+    Batch setIsDeleteAfter(boolean isDeleteAfter)
+    {
+        return set("delete-after", isDeleteAfter);
+    }
+
+    Batch setIsSafeFileList(boolean isSafeFileList)
+    {
+        return set("safe-file-list", isSafeFileList);
+    }
+
+    /**
+     * Whether the Sender was a server, in which case the recorded data ends
+     * with statistics and does not contain the filter rules, which instead
+     * are kept in the header.
+     */
+    Batch setIsServerSender(boolean isServerSender,
+                            FilterRuleConfiguration filterRuleConfiguration)
+    {
+        _filterRules.clear();
+        if (isServerSender) {
+            for (FilterRuleList.FilterRule rule :
+                 filterRuleConfiguration.getFilterRuleListForSending()._rules) {
+                _filterRules.add(rule.toString());
+            }
+        }
+        return set("server-sender", isServerSender);
+    }
+
+    Batch setIsExitEarlyIfEmptyList(boolean isExitEarlyIfEmptyList)
+    {
+        return set("exit-early-if-empty-list", isExitEarlyIfEmptyList);
+    }
+
+    Batch setIsExitAfterEOF(boolean isExitAfterEOF)
+    {
+        return set("exit-after-eof", isExitAfterEOF);
+    }
+
+    private Batch set(String key, boolean value)
+    {
+        _options.put(key, Boolean.toString(value));
+        return this;
+    }
+
+    /**
+     * @throws RsyncException if key is missing or has an illegal value
+     */
+    private boolean is(String key) throws RsyncException
+    {
+        String value = _options.get(key);
+        if ("true".equals(value)) {
+            return true;
+        } else if ("false".equals(value)) {
+            return false;
+        }
+        throw new RsyncException(String.format(
+            "missing or illegal value of batch option %s: %s", key, value));
+    }
+
+    /**
+     * @throws RsyncException if the charset is missing or not supported
+     */
+    private Charset charset() throws RsyncException
+    {
+        String name = _options.get("charset");
+        try {
+            if (name != null) {
+                return Charset.forName(name);
+            }
+        } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+            // fall through
+        }
+        throw new RsyncException("unsupported batch charset " + name);
+    }
+
+    /**
+     * Creates (or truncates) batchFile and writes the header to it.
+     */
+    FileChannel create(Path batchFile) throws IOException
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : _options.entrySet()) {
+            sb.append(e.getKey()).append('=').append(e.getValue()).append('\n');
+        }
+        for (String rule : _filterRules) {
+            sb.append(FILTER_RULE).append('=').append(rule).append('\n');
+        }
+        byte[] header = sb.toString().getBytes(HEADER_CHARSET);
+        ByteBuffer buf = ByteBuffer.allocate(MAGIC.length + 4 + header.length).
+            order(ByteOrder.LITTLE_ENDIAN);
+        buf.put(MAGIC).putInt(header.length).put(header);
+        buf.flip();
+
+        FileChannel out = FileChannel.open(batchFile,
+                                           StandardOpenOption.CREATE,
+                                           StandardOpenOption.TRUNCATE_EXISTING,
+                                           StandardOpenOption.WRITE);
+        try {
+            writeFully(out, buf);
+            return out;
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads the header of a batch, leaving in positioned at the start of
+     * the recorded data.
+     *
+     * @throws RsyncException if in is not a batch
+     */
+    static Batch read(ReadableByteChannel in) throws IOException,
+                                                     RsyncException
+    {
+        ByteBuffer prefix = ByteBuffer.allocate(MAGIC.length + 4).
+            order(ByteOrder.LITTLE_ENDIAN);
+        readFully(in, prefix);
+        byte[] magic = new byte[MAGIC.length];
+        prefix.get(magic);
+        int length = prefix.getInt();
+        if (!Arrays.equals(magic, MAGIC) || length < 0 ||
+            length > MAX_HEADER_LENGTH) {
+            throw new RsyncException("not a batch file");
+        }
+        ByteBuffer header = ByteBuffer.allocate(length);
+        readFully(in, header);
+
+        Batch batch = new Batch();
+        for (String line : new String(header.array(),
+                                      HEADER_CHARSET).split("\n")) {
+            int i = line.indexOf('=');
+            if (i <= 0) {
+                continue;
+            }
+            String key = line.substring(0, i);
+            String value = line.substring(i + 1);
+            if (key.equals(FILTER_RULE)) {
+                batch._filterRules.add(value);
+            } else {
+                batch._options.put(key, value);
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * @return a Generator which does not read any files for checksums and
+     *         discards what it sends, since there is no Sender
+     */
+    Generator newGenerator(PrintStream stdout) throws RsyncException
+    {
+        byte[] unusedChecksumSeed = new byte[4];
+        return Generator.newClientInstance(DISCARD, charset(),
+                                           unusedChecksumSeed, stdout).
+            setIsRecursive(is("recursive")).
+            setIsPreservePermissions(is("perms")).
+            setIsPreserveTimes(is("times")).
+            setIsPreserveUser(is("owner")).
+            setIsPreserveGroup(is("group")).
+            setIsNumericIds(is("numeric-ids")).
+            setIsIgnoreTimes(is("ignore-times")).
+            setIsGenerateChecksums(false);
+    }
+
+    /**
+     * @param in the batch, positioned at the start of the recorded data
+     */
+    Receiver newReceiver(Generator generator, ReadableByteChannel in,
+                         String targetPathName)
+        throws RsyncException
+    {
+        Receiver receiver =
+            new Receiver(generator, in, charset(), targetPathName).
+                setIsReceiveStatistics(is("server-sender")).
+                setIsExitEarlyIfEmptyList(is("exit-early-if-empty-list")).
+                setIsExitAfterEOF(is("exit-after-eof")).
+                setIsRecursive(is("recursive")).
+                setIsPreservePermissions(is("perms")).
+                setIsPreserveTimes(is("times")).
+                setIsPreserveUser(is("owner")).
+                setIsPreserveGroup(is("group")).
+                setIsNumericIds(is("numeric-ids")).
+                setIsDelete(is("delete")).
+                setIsDeleteExcluded(is("delete-excluded")).
+                setIsDeleteAfter(is("delete-after")).
+                setIsSafeFileList(is("safe-file-list")).
+                setIsSyncGenerator(true);
+        if (is("server-sender")) {
+            try {
+                receiver.setIsSendFilterRules(true).
+                    setFilterRuleConfiguration(
+                        new FilterRuleConfiguration(_filterRules));
+            } catch (ArgumentParsingError e) {
+                throw new RsyncException(e);
+            }
+        }
+        return receiver;
+    }
+
+    /**
+     * @return a channel reading from in, also writing everything read to
+     *         batch
+     */
+    static ReadableByteChannel recordReads(final ReadableByteChannel in,
+                                           final WritableByteChannel batch)
+    {
+        return new ReadableByteChannel() {
+            @Override
+            public int read(ByteBuffer dst) throws IOException
+            {
+                int position = dst.position();
+                int count = in.read(dst);
+                if (count > 0) {
+                    ByteBuffer copy = dst.duplicate();
+                    copy.limit(position + count);
+                    copy.position(position);
+                    writeFully(batch, copy);
+                }
+                return count;
+            }
+
+            @Override
+            public boolean isOpen()
+            {
+                return in.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                in.close();
+            }
+        };
+    }
+
+    /**
+     * @return a channel writing to out, also writing everything written to
+     *         batch
+     */
+    static WritableByteChannel recordWrites(final WritableByteChannel out,
+                                            final WritableByteChannel batch)
+    {
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException
+            {
+                ByteBuffer copy = src.duplicate();
+                int count = out.write(src);
+                if (count > 0) {
+                    copy.limit(copy.position() + count);
+                    writeFully(batch, copy);
+                }
+                return count;
+            }
+
+            @Override
+            public boolean isOpen()
+            {
+                return out.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException
+            {
+                out.close();
+            }
+        };
+    }
+
+    private static void writeFully(WritableByteChannel out, ByteBuffer buf)
+        throws IOException
+    {
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    private static void readFully(ReadableByteChannel in, ByteBuffer buf)
+        throws IOException, RsyncException
+    {
+        while (buf.hasRemaining()) {
+            if (in.read(buf) < 0) {
+                throw new RsyncException("truncated batch file header");
+            }
+        }
+        buf.flip();
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Choice of checksum block length of Generator
+ *
+ * Copyright (C) 2013, 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * Decides the checksum block length Generator uses for an existing file
+ * about to be updated. A shorter block length means more checksums to send
+ * but less literal data for a file with scattered modifications.
+ *
+ * Generator reports the number of bytes sent over the wire for every
+ * file by record, which a policy may use to learn from, and calls save
+ * when done. A policy may be shared by concurrent sessions.
+ */
+public abstract class BlockSizePolicy
+{
+    public static final int MIN_BLOCK_LENGTH = 512;
+    public static final int MAX_BLOCK_LENGTH = 1 << 17;                         // as accepted by native rsync
+
+    private static final BlockSizePolicy SQUARE_ROOT = new BlockSizePolicy() {
+        @Override
+        public int blockLengthFor(Path path, long fileSize)
+        {
+            return squareRootBlockLengthFor(fileSize);
+        }
+    };
+
+    /**
+     * @return the default policy, the square root of the file size as the
+     *         nearest lower power of two but at least MIN_BLOCK_LENGTH
+     */
+    public static BlockSizePolicy newSquareRoot()
+    {
+        return SQUARE_ROOT;
+    }
+
+    /**
+     * @return a policy always using blockLength (--block-size)
+     */
+    public static BlockSizePolicy newFixed(final int blockLength)
+    {
+        assert blockLength > 0 && blockLength <= MAX_BLOCK_LENGTH;
+        return new BlockSizePolicy() {
+            @Override
+            public int blockLengthFor(Path path, long fileSize)
+            {
+                return blockLength;
+            }
+        };
+    }
+
+    /**
+     * @return a policy learning the block lengths which minimise the number
+     *         of bytes sent, persisted in historyFile
+     * @throws IOException if historyFile exists but could not be read
+     */
+    public static BlockSizePolicy newAdaptive(Path historyFile)
+        throws IOException
+    {
+        return AdaptiveBlockSizePolicy.load(historyFile);
+    }
+
+    /**
+     * must be thread safe
+     *
+     * @param fileSize size of the existing file, greater than 0
+     */
+    public abstract int blockLengthFor(Path path, long fileSize);
+
+    /**
+     * must be thread safe
+     *
+     * @param fileSize size of the existing file the checksums were
+     *        generated for
+     * @param blockLength block length used, as returned by blockLengthFor
+     * @param numWireBytes number of checksum, token and literal data bytes
+     *        sent in both directions to update the file
+     * @param numTargetBytes size of the updated file
+     */
+    public void record(Path path, long fileSize, int blockLength,
+                       long numWireBytes, long numTargetBytes)
+    {
+    }
+
+    /**
+     * Persists anything learned so far, must be thread safe.
+     */
+    public void save() throws IOException
+    {
+    }
+
+    static int squareRootBlockLengthFor(long fileSize)
+    {
+        assert fileSize > 0;
+        int blockLength = (int) Math.min(pow2SquareRoot(fileSize),
+                                         MAX_BLOCK_LENGTH);
+        return Math.max(MIN_BLOCK_LENGTH, blockLength);
+    }
+
+    // return the square root of num as the nearest lower number in base 2
+    private static long pow2SquareRoot(long num)
+    {
+        // sqrt(2**n) == 2**(n/2)
+        int exponent = 63 - Long.numberOfLeadingZeros(num);
+        return 1L << exponent / 2;
+    }
+}
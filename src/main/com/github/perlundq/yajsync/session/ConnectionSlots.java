@@ -0,0 +1,124 @@
+/*
+ * Lock-free counter of connection slots
+ *
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the number of connections holding a slot, optionally limited. All
+ * methods are lock-free and safe to call from any thread, e.g. for exposing
+ * the counters as metrics.
+ */
+public final class ConnectionSlots
+{
+    private final AtomicInteger _numActive = new AtomicInteger();
+    private final AtomicLong _numAdmitted = new AtomicLong();
+    private final AtomicLong _numRejected = new AtomicLong();
+    private volatile int _limit;
+
+    /**
+     * @param limit the maximum number of slots or 0 if unlimited
+     */
+    public ConnectionSlots(int limit)
+    {
+        assert limit >= 0;
+        _limit = limit;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s (active=%d, limit=%d, admitted=%d, " +
+                             "rejected=%d)",
+                             getClass().getSimpleName(), numActive(), limit(),
+                             numAdmitted(), numRejected());
+    }
+
+    /**
+     * @return true if a slot was acquired, it must then later be released
+     */
+    public boolean tryAcquire()
+    {
+        while (true) {
+            int numActive = _numActive.get();
+            int limit = _limit;
+            if (limit > 0 && numActive >= limit) {
+                return false;
+            }
+            if (_numActive.compareAndSet(numActive, numActive + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public void release()
+    {
+        int numActive = _numActive.decrementAndGet();
+        assert numActive >= 0;
+    }
+
+    public int numActive()
+    {
+        return _numActive.get();
+    }
+
+    public int limit()
+    {
+        return _limit;
+    }
+
+    void setLimit(int limit)
+    {
+        assert limit >= 0;
+        _limit = limit;
+    }
+
+    public boolean isFull()
+    {
+        int limit = _limit;
+        return limit > 0 && _numActive.get() >= limit;
+    }
+
+    /**
+     * @return the total number of connections admitted
+     */
+    public long numAdmitted()
+    {
+        return _numAdmitted.get();
+    }
+
+    /**
+     * @return the total number of connections rejected due to the limit
+     */
+    public long numRejected()
+    {
+        return _numRejected.get();
+    }
+
+    void countAdmitted()
+    {
+        _numAdmitted.incrementAndGet();
+    }
+
+    void countRejected()
+    {
+        _numRejected.incrementAndGet();
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Updating of file attributes (mode, mtime and ownership) of a local file
+ *
+ * Copyright (C) 2013, 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.io.IOException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.github.perlundq.yajsync.filelist.RsyncFileAttributes;
+import com.github.perlundq.yajsync.util.FileOps;
+
+/**
+ * Updates the preserved attributes of a path which differ from the target
+ * attributes, used by Generator (through AttributeStage) and LocalTransfer.
+ * Thread safe once configured, apply does not modify any state.
+ */
+final class FileAttributeUpdater implements AttributeStage.Applier
+{
+    private static final Logger _log =
+        Logger.getLogger(FileAttributeUpdater.class.getName());
+    private final String _name;
+    private boolean _isPreservePermissions;
+    private boolean _isPreserveTimes;
+    private boolean _isPreserveUser;
+    private boolean _isPreserveGroup;
+    private boolean _isNumericIds;
+
+    /**
+     * @param name the name of the owner, used as prefix when logging
+     */
+    FileAttributeUpdater(String name)
+    {
+        _name = name;
+    }
+
+    FileAttributeUpdater setIsPreservePermissions(boolean isPreservePermissions)
+    {
+        _isPreservePermissions = isPreservePermissions;
+        return this;
+    }
+
+    FileAttributeUpdater setIsPreserveTimes(boolean isPreserveTimes)
+    {
+        _isPreserveTimes = isPreserveTimes;
+        return this;
+    }
+
+    FileAttributeUpdater setIsPreserveUser(boolean isPreserveUser)
+    {
+        _isPreserveUser = isPreserveUser;
+        return this;
+    }
+
+    FileAttributeUpdater setIsPreserveGroup(boolean isPreserveGroup)
+    {
+        _isPreserveGroup = isPreserveGroup;
+        return this;
+    }
+
+    FileAttributeUpdater setIsNumericIds(boolean isNumericIds)
+    {
+        _isNumericIds = isNumericIds;
+        return this;
+    }
+
+    boolean isPreservingAny()
+    {
+        return _isPreservePermissions || _isPreserveTimes ||
+               _isPreserveUser || _isPreserveGroup;
+    }
+
+    /**
+     * @param curAttrs the current attributes of path or null if unknown, in
+     *        which case all preserved attributes are updated
+     */
+    @Override
+    public void apply(Path path, RsyncFileAttributes curAttrs,
+                      RsyncFileAttributes targetAttrs)
+        throws IOException
+    {
+        if (_isPreservePermissions && (curAttrs == null ||
+                                       curAttrs.mode() != targetAttrs.mode())) {
+            if (_log.isLoggable(Level.FINE)) {
+                _log.fine(String.format(
+                    "(%s) updating file permissions %o -> %o on %s", _name,
+                    curAttrs == null ? 0 : curAttrs.mode(),
+                    targetAttrs.mode(), path));
+            }
+            FileOps.setFileMode(path, targetAttrs.mode(),
+                                LinkOption.NOFOLLOW_LINKS);
+        }
+        if (_isPreserveTimes &&
+            (curAttrs == null ||
+             curAttrs.lastModifiedTime() != targetAttrs.lastModifiedTime()))
+        {
+            if (_log.isLoggable(Level.FINE)) {
+                _log.fine(String.format(
+                    "(%s) updating mtime %d -> %d on %s", _name,
+                    curAttrs == null ? 0 : curAttrs.lastModifiedTime(),
+                    targetAttrs.lastModifiedTime(), path));
+            }
+            FileOps.setLastModifiedTime(path, targetAttrs.lastModifiedTime(),
+                                        LinkOption.NOFOLLOW_LINKS);
+        }
+        // NOTE: keep this one last in the method, in case we fail due to
+        //       insufficient permissions (the other ones are more likely to
+        //       succeed).
+        // NOTE: we cannot detect if we have the capabilities to change
+        //       ownership (knowing if UID 0 is not sufficient)
+        // NOTE: fall back to changing uid/gid if username/groupname unknown
+        if (_isPreserveUser) {
+            if (!_isNumericIds && !targetAttrs.user().name().isEmpty() &&
+                (curAttrs == null ||
+                 !curAttrs.user().name().equals(targetAttrs.user().name())))
+            {
+                if (_log.isLoggable(Level.FINE)) {
+                    _log.fine(String.format(
+                        "(%s) updating ownership %s -> %s on %s", _name,
+                        curAttrs == null ? "" : curAttrs.user(),
+                        targetAttrs.user(), path));
+                }
+                // NOTE: side effect of chown in Linux is that set user/group id bit
+                //       might be cleared.
+                FileOps.setOwner(path, targetAttrs.user(),
+                                 LinkOption.NOFOLLOW_LINKS);
+            } else if ((_isNumericIds || targetAttrs.user().name().isEmpty()) &&
+                (curAttrs == null ||
+                 curAttrs.user().id() != targetAttrs.user().id()))
+            {
+                if (_log.isLoggable(Level.FINE)) {
+                    _log.fine(String.format(
+                        "(%s) updating uid %s -> %d on %s", _name,
+                        curAttrs == null ? "" : curAttrs.user().id(),
+                        targetAttrs.user().id(), path));
+                }
+                // NOTE: side effect of chown in Linux is that set user/group id bit
+                //       might be cleared.
+                FileOps.setUserId(path, targetAttrs.user().id(),
+                                  LinkOption.NOFOLLOW_LINKS);
+            }
+        }
+
+        if (_isPreserveGroup) {
+            if (!_isNumericIds && !targetAttrs.group().name().isEmpty() &&
+                (curAttrs == null ||
+                 !curAttrs.group().name().equals(targetAttrs.group().name())))
+            {
+                if (_log.isLoggable(Level.FINE)) {
+                    _log.fine(String.format(
+                        "(%s) updating group %s -> %s on %s", _name,
+                        curAttrs == null ? "" : curAttrs.group(),
+                        targetAttrs.group(), path));
+                }
+                // NOTE: side effect of chown in Linux is that set user/group id bit
+                //       might be cleared.
+                FileOps.setGroup(path, targetAttrs.group(),
+                                 LinkOption.NOFOLLOW_LINKS);
+            } else if ((_isNumericIds || targetAttrs.group().name().isEmpty()) &&
+                (curAttrs == null ||
+                 curAttrs.group().id() != targetAttrs.group().id()))
+            {
+                if (_log.isLoggable(Level.FINE)) {
+                    _log.fine(String.format(
+                        "(%s) updating gid %s -> %d on %s", _name,
+                        curAttrs == null ? "" : curAttrs.group().id(),
+                        targetAttrs.group().id(), path));
+                }
+                // NOTE: side effect of chown in Linux is that set user/group id bit
+                //       might be cleared.
+                FileOps.setGroupId(path, targetAttrs.group().id(),
+                                   LinkOption.NOFOLLOW_LINKS);
+            }
+        }
+    }
+}
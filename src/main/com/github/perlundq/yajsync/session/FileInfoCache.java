@@ -29,6 +29,7 @@ class FileInfoCache
     private long _prevLastModified = 0;
     private User _prevUser;
     private Group _prevGroup;
+    private final byte[] _varLongBuf = new byte[IntegerCoder.MAX_NUM_BYTES];
 
     public FileInfoCache() {}
 
@@ -81,4 +82,13 @@ class FileInfoCache
     {
         _prevGroup = group;
     }
+
+    /**
+     * @return a scratch buffer to encode variable length integers into
+     *         using IntegerCoder, reused for every value
+     */
+    public byte[] varLongBuf()
+    {
+        return _varLongBuf;
+    }
 }
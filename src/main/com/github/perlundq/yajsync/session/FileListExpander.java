@@ -0,0 +1,385 @@
+/*
+ * Building of the file list of local source files
+ *
+ * Copyright (C) 2013, 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.github.perlundq.yajsync.filelist.DirectoryCache;
+import com.github.perlundq.yajsync.filelist.DirectoryEntries;
+import com.github.perlundq.yajsync.filelist.DirectoryListing;
+import com.github.perlundq.yajsync.filelist.FileInfo;
+import com.github.perlundq.yajsync.filelist.Filelist;
+import com.github.perlundq.yajsync.filelist.RsyncFileAttributes;
+import com.github.perlundq.yajsync.io.CustomFileSystem;
+import com.github.perlundq.yajsync.text.Text;
+import com.github.perlundq.yajsync.text.TextConversionException;
+import com.github.perlundq.yajsync.text.TextDecoder;
+import com.github.perlundq.yajsync.text.TextEncoder;
+import com.github.perlundq.yajsync.ui.FilterRuleConfiguration;
+import com.github.perlundq.yajsync.util.ArgumentParsingError;
+import com.github.perlundq.yajsync.util.PathOps;
+
+/**
+ * Lists and stats local source files into file list segments, filtered by
+ * the filter rules of each directory. Used by Sender and LocalTransfer.
+ */
+final class FileListExpander
+{
+    // receives the files of an expanded directory
+    interface FileInfoSink
+    {
+        void add(FileInfo fileInfo);
+    }
+
+    private static final Logger _log =
+        Logger.getLogger(FileListExpander.class.getName());
+    private final TextEncoder _characterEncoder;
+    private final TextDecoder _characterDecoder;
+    private boolean _isRecursive;
+    private boolean _isTransferDirs;
+    private boolean _isPreservePermissions;
+    private boolean _isPreserveUser;
+    private boolean _isPreserveGroup;
+    private boolean _isNumericIds;
+    private int _spillThreshold;
+    private DirectoryCache _directoryCache;
+
+    FileListExpander(TextEncoder characterEncoder,
+                     TextDecoder characterDecoder)
+    {
+        _characterEncoder = characterEncoder;
+        _characterDecoder = characterDecoder;
+    }
+
+    FileListExpander setIsRecursive(boolean isRecursive)
+    {
+        _isRecursive = isRecursive;
+        return this;
+    }
+
+    FileListExpander setIsTransferDirs(boolean isTransferDirs)
+    {
+        _isTransferDirs = isTransferDirs;
+        return this;
+    }
+
+    FileListExpander setIsPreservePermissions(boolean isPreservePermissions)
+    {
+        _isPreservePermissions = isPreservePermissions;
+        return this;
+    }
+
+    FileListExpander setIsPreserveUser(boolean isPreserveUser)
+    {
+        _isPreserveUser = isPreserveUser;
+        return this;
+    }
+
+    FileListExpander setIsPreserveGroup(boolean isPreserveGroup)
+    {
+        _isPreserveGroup = isPreserveGroup;
+        return this;
+    }
+
+    FileListExpander setIsNumericIds(boolean isNumericIds)
+    {
+        _isNumericIds = isNumericIds;
+        return this;
+    }
+
+    /**
+     * @param numFiles the spill threshold of the segment builder of the sink
+     *        passed to initialExpand, 0 if it keeps all entries in memory
+     */
+    FileListExpander setSpillThreshold(int numFiles)
+    {
+        assert numFiles >= 0;
+        _spillThreshold = numFiles;
+        return this;
+    }
+
+    FileListExpander setDirectoryCache(DirectoryCache directoryCache)
+    {
+        _directoryCache = directoryCache;
+        return this;
+    }
+
+    static FileInfoSink sinkOf(final Filelist.SegmentBuilder builder)
+    {
+        return new FileInfoSink() {
+            @Override
+            public void add(FileInfo fileInfo) {
+                builder.add(fileInfo);
+            }
+        };
+    }
+
+    static FileInfoSink sinkOf(final List<FileInfo> files)
+    {
+        return new FileInfoSink() {
+            @Override
+            public void add(FileInfo fileInfo) {
+                files.add(fileInfo);
+            }
+        };
+    }
+
+    /**
+     * user and group names are only needed when preserving ownership by name,
+     * otherwise numeric ids are enough and the name lookups can be skipped
+     */
+    private boolean isResolveNames()
+    {
+        return (_isPreserveUser || _isPreserveGroup) && !_isNumericIds;
+    }
+
+    // NOTE: doesn't do any check of the validity of files or normalization -
+    // it's up to the caller to do so, e.g. ServerSessionConfig.parseArguments
+    // NOTE: with a spill threshold the files of an expanded dot dir are added
+    // directly to sink and duplicates are pruned by its builder
+    boolean initialExpand(Iterable<Path> files,
+                          FilterRuleConfiguration parentFilterRuleConfiguration,
+                          FileInfoSink sink)
+    {
+        boolean isOK = true;
+        Set<FileInfo> fileset = new HashSet<>();
+
+        for (Path p : files) {
+            try {
+                if (_log.isLoggable(Level.FINE)) {
+                    _log.fine("expanding " + p);
+                }
+
+                RsyncFileAttributes attrs =
+                    RsyncFileAttributes.stat(p, isResolveNames());
+                byte[] nameBytes =
+                    _characterEncoder.encode(p.getFileName().toString());       // throws TextConversionException
+
+                FileInfo fileInfo = new FileInfo(p, p.getFileName(), nameBytes, attrs);          // throws IllegalArgumentException but that cannot happen
+                if (!_isRecursive && !_isTransferDirs &&
+                    fileInfo.attrs().isDirectory())
+                {
+                    if (_log.isLoggable(Level.INFO)) {
+                        _log.info("skipping directory " + fileInfo);
+                    }
+                } else {
+                    boolean isAdded = fileset.add(fileInfo);
+                    if (isAdded) {
+                        if (_log.isLoggable(Level.FINE)) {
+                            _log.fine(String.format("adding %s to segment",
+                                                    fileInfo));
+                        }
+                        if (fileInfo.isDotDir()) {
+                            if (_log.isLoggable(Level.FINE)) {
+                                _log.fine(String.format("expanding dot dir %s",
+                                                        fileInfo));
+                            }
+
+                            if (_spillThreshold > 0) {
+                                isOK = expand(fileInfo,
+                                              parentFilterRuleConfiguration,
+                                              sink,
+                                              _characterEncoder,
+                                              _characterDecoder) && isOK;
+                            } else {
+                                List<FileInfo> expanded = new ArrayList<>();
+                                isOK = expand(fileInfo,
+                                              parentFilterRuleConfiguration,
+                                              sinkOf(expanded),
+                                              _characterEncoder,
+                                              _characterDecoder) && isOK;
+                                for (FileInfo f2 : expanded) {
+                                    boolean isAdded2 = fileset.add(f2);
+                                    if (!isAdded2) {
+                                        if (_log.isLoggable(Level.WARNING)) {
+                                            _log.warning("pruning duplicate " + f2);
+                                        }
+                                        isOK = false;
+                                    }
+                                }
+                            }
+                        }
+                    } else {
+                        if (_log.isLoggable(Level.WARNING)) {
+                            _log.warning("pruning duplicate " + fileInfo);
+                        }
+                        isOK = false;  // should we possibly not treat this as an error? (if so also change print statement to debug)
+                    }
+                }
+            } catch (IOException e) {
+                if (_log.isLoggable(Level.WARNING)) {
+                    _log.warning(String.format(
+                        "Failed to add %s to initial file list: %s",
+                        p, e.getMessage()));
+                }
+                isOK = false;
+            } catch (TextConversionException e) {
+                if (_log.isLoggable(Level.WARNING)) {
+                    _log.warning(String.format("Failed to encode %s using %s",
+                                               p, _characterEncoder.charset()));
+                }
+                isOK = false;
+            }
+        }
+
+        for (FileInfo f : fileset) {
+            sink.add(f);
+        }
+        return isOK;
+    }
+
+    boolean expand(FileInfo directory,
+                   FilterRuleConfiguration parentFilterRuleConfiguration,
+                   FileInfoSink sink)
+    {
+        return expand(directory, parentFilterRuleConfiguration, sink,
+                      _characterEncoder, _characterDecoder);
+    }
+
+    // NOTE: thread safe as long as encoder and decoder are not shared
+    boolean expand(FileInfo directory,
+                   FilterRuleConfiguration parentFilterRuleConfiguration,
+                   FileInfoSink sink,
+                   TextEncoder encoder,
+                   TextDecoder decoder)
+    {
+        assert directory != null;
+
+        boolean isOK = true;
+        final Path splittedPath[] = splitLocalPathOf(directory, decoder);                       // throws RuntimeException if unable to get local path prefix of directory, but that should never happen
+
+        FilterRuleConfiguration localFilterRuleConfiguration;
+        try {
+            localFilterRuleConfiguration = FilterRuleConfiguration.forDirectory(parentFilterRuleConfiguration, directory.path());
+        } catch (ArgumentParsingError e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format("Got argument parsing error " +
+                                           "at %s: %s",
+                                           directory.path(), e.getMessage()));
+            }
+            isOK = false;
+            return isOK;
+        }
+        boolean filterByRules = localFilterRuleConfiguration.isFilterAvailable();
+
+        // the JVM adds a lot of overhead when doing mostly directory traversals
+        // and reading of file attributes
+        // exact attributes are only needed if the peer preserves them, else
+        // read the attributes relative to the directory if possible
+        boolean isExactOwnership = _isPreserveUser || _isPreserveGroup;
+        try (DirectoryEntries listing = listDirectory(directory.path(),
+                                                      isExactOwnership)) {
+
+            for (Path entry : listing) {
+
+                if (!PathOps.isPathPreservable(entry.getFileName())) {          // TODO: add option to continue anyway
+                    if (_log.isLoggable(Level.WARNING)) {
+                        _log.warning(String.format(
+                            "Skipping %s - unable to preserve file name",
+                            entry.getFileName()));
+                    }
+                    isOK = false;
+                    continue;
+                }
+
+                RsyncFileAttributes attrs;
+                try {
+                    attrs = listing.stat(entry);
+                } catch (IOException e) {
+                    if (_log.isLoggable(Level.WARNING)) {
+                        _log.warning(String.format("Failed to stat %s: %s",
+                                                   entry, e.getMessage()));
+                    }
+                    isOK = false;
+                    continue;
+                }
+
+                Path relativePath = splittedPath[0].relativize(entry);
+                String relativePathName =
+                    Text.withSlashAsPathSepator(relativePath.toString());
+                byte[] pathNameBytes =
+                    encoder.encodeOrNull(relativePathName);
+                if (pathNameBytes != null) {
+                    FileInfo f = new FileInfo(entry,
+                                              relativePath.normalize(),         // ./dir/file of a dot dir
+                                              pathNameBytes, attrs);    // throws IllegalArgumentException but that cannot happen
+
+                    // use filter
+                    if (filterByRules) {
+                        boolean isDirectory = attrs.isDirectory();
+                        if (localFilterRuleConfiguration.exclude(relativePathName, isDirectory)) {
+                            continue;
+                        }
+                        if (localFilterRuleConfiguration.hide(relativePathName, isDirectory)) {
+                            continue;
+                        }
+                    }
+
+                    sink.add(f);
+                } else {
+                    if (_log.isLoggable(Level.WARNING)) {
+                        _log.warning(String.format(
+                            "Failed to encode %s using %s",
+                            relativePathName, encoder.charset()));
+                    }
+                    isOK = false;
+                }
+            }
+        } catch (IOException e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format("Got I/O error during expansion " +
+                                           "of %s: %s",
+                                           directory.path(), e.getMessage()));
+            }
+            isOK = false;
+        }
+        return isOK;
+    }
+
+    private DirectoryEntries listDirectory(Path dir, boolean isExactOwnership)
+        throws IOException
+    {
+        if (_directoryCache == null) {
+            return DirectoryListing.open(dir, _isPreservePermissions,
+                                         isExactOwnership, isResolveNames());
+        }
+        return _directoryCache.list(dir, _isPreservePermissions,
+                                    isExactOwnership, isResolveNames());
+    }
+
+    private static Path[] splitLocalPathOf(FileInfo fileInfo,
+                                           TextDecoder decoder)
+    {
+        String pathName = decoder.decodeOrNull(fileInfo.pathNameBytes());
+        if (pathName == null) {
+            throw new RuntimeException(String.format(
+                "unable to decode path name of %s using %s",
+                fileInfo, decoder.charset()));
+        }
+        Path relativePath = CustomFileSystem.getPath(pathName);
+        return new Path[]{PathOps.subtractPath(fileInfo.path(), relativePath), relativePath};
+    }
+}
@@ -26,19 +26,16 @@ import java.nio.ByteBuffer;
 import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
-import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.attribute.FileTime;
 import java.security.MessageDigest;
 import java.text.SimpleDateFormat;
-import java.util.ArrayDeque;
 import java.util.Date;
-import java.util.Deque;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -49,7 +46,9 @@ import com.github.perlundq.yajsync.channels.MessageCode;
 import com.github.perlundq.yajsync.channels.RsyncOutChannel;
 import com.github.perlundq.yajsync.filelist.FileInfo;
 import com.github.perlundq.yajsync.filelist.Filelist;
+import com.github.perlundq.yajsync.filelist.Group;
 import com.github.perlundq.yajsync.filelist.RsyncFileAttributes;
+import com.github.perlundq.yajsync.filelist.User;
 import com.github.perlundq.yajsync.io.FileView;
 import com.github.perlundq.yajsync.io.FileViewOpenFailed;
 import com.github.perlundq.yajsync.io.FileViewReadError;
@@ -57,6 +56,7 @@ import com.github.perlundq.yajsync.text.TextConversionException;
 import com.github.perlundq.yajsync.text.TextDecoder;
 import com.github.perlundq.yajsync.text.TextEncoder;
 import com.github.perlundq.yajsync.util.FileOps;
+import com.github.perlundq.yajsync.util.HandoffRing;
 import com.github.perlundq.yajsync.util.MD5;
 import com.github.perlundq.yajsync.util.PathOps;
 import com.github.perlundq.yajsync.util.Rolling;
@@ -65,20 +65,78 @@ import com.github.perlundq.yajsync.util.Util;
 
 public class Generator implements RsyncTask
 {
-    private interface Job {
-        void process() throws ChannelException;
+    private enum JobType
+    {
+        GENERATE_SEGMENT, GENERATE_FILE, PURGE_FILE, SEND_SEGMENT_DONE,
+        SEND_BYTES, SEND_MESSAGE, SYNC, STOP
+    }
+
+    // a reusable description of a job, see _jobs
+    private static final class Job
+    {
+        private JobType _type;
+        private Filelist.Segment _segment;
+        private int _index;
+        private FileInfo _fileInfo;
+        private ByteBuffer _buf;
+        private Message _message;
+        private CountDownLatch _synced;
+
+        private void clear()
+        {
+            _segment = null;
+            _fileInfo = null;
+            _buf = null;
+            _message = null;
+            _synced = null;
+        }
+
+        @Override
+        public String toString()
+        {
+            switch (_type) {
+            case GENERATE_SEGMENT:
+                return String.format("generateSegment(%s)", _segment);
+            case GENERATE_FILE:
+                return String.format("generateFile (%s, %d, %s)",
+                                     _segment, _index, _fileInfo.path());
+            case PURGE_FILE:
+                return String.format("purgeFile(%s, %d)", _segment, _index);
+            case SEND_SEGMENT_DONE:
+                return "sendSegmentDone()";
+            case SEND_BYTES:
+                return String.format("sendBytes(%s)", _buf.duplicate());
+            case SEND_MESSAGE:
+                return String.format("sendMessage(%s)", _message);
+            case SYNC:
+                return "sync()";
+            default:
+                return "stop()";
+            }
+        }
     }
 
     private static final Logger _log =
         Logger.getLogger(Generator.class.getName());
     private static final int OUTPUT_CHANNEL_BUF_SIZE = 8 * 1024;
+    private static final int JOB_RING_SIZE = 1024;
+    private static final int NUM_ATTR_THREADS = 8;                              // I/O bound, mostly waiting for the file system
     private static final Checksum.Header ZERO_SUM;
-    private static final int MIN_BLOCK_SIZE = 512;                              // TODO: make block size configurable
     private final RsyncOutChannel _senderOutChannel;
     private final byte[] _checksumSeed;
 
-    private final LinkedBlockingQueue<Job> _jobs = new LinkedBlockingQueue<>();
-    private final Deque<Runnable> _deferredFileAttrUpdates = new ArrayDeque<>();
+    // Receiver is the only producer of jobs, and this the only consumer
+    private final HandoffRing<Job> _jobs =
+        new HandoffRing<>(JOB_RING_SIZE, new HandoffRing.Factory<Job>() {
+            @Override
+            public Job newInstance() {
+                return new Job();
+            }
+        });
+    private final FileAttributeUpdater _attrUpdater =
+        new FileAttributeUpdater("Generator");
+    private final AttributeStage _attrStage =
+        new AttributeStage("Generator", NUM_ATTR_THREADS, _attrUpdater);
     private final TextEncoder _characterEncoder;
     private final TextDecoder _characterDecoder;
     private final SimpleDateFormat _compatibleTimeFormatter =
@@ -94,6 +152,10 @@ public class Generator implements RsyncTask
     private boolean _isNumericIds;
     private boolean _isIgnoreTimes;
     private boolean _isListOnly;
+    private boolean _isGenerateChecksums = true;
+    private int _smallFileThreshold = FileView.DEFAULT_SMALL_FILE_THRESHOLD;
+    private byte[] _smallFileBuf;                                               // allocated on first use
+    private BlockSizePolicy _blockSizePolicy = BlockSizePolicy.newSquareRoot();
     private Filelist _fileList;  // effectively final
     private int _returnStatus ;
     private boolean _isRunning = true;
@@ -111,7 +173,8 @@ public class Generator implements RsyncTask
                      byte[] checksumSeed, PrintStream stdout)
     {
 
-        _senderOutChannel = new RsyncOutChannel(out, OUTPUT_CHANNEL_BUF_SIZE);
+        _senderOutChannel = new RsyncOutChannel(busyWhileWriting(out),
+                                                OUTPUT_CHANNEL_BUF_SIZE);
         _checksumSeed = checksumSeed;
         _characterDecoder = TextDecoder.newStrict(charset);
         _characterEncoder = TextEncoder.newStrict(charset);
@@ -148,30 +211,35 @@ public class Generator implements RsyncTask
     public Generator setIsPreservePermissions(boolean isPreservePermissions)
     {
         _isPreservePermissions = isPreservePermissions;
+        _attrUpdater.setIsPreservePermissions(isPreservePermissions);
         return this;
     }
 
     public Generator setIsPreserveTimes(boolean isPreserveTimes)
     {
         _isPreserveTimes = isPreserveTimes;
+        _attrUpdater.setIsPreserveTimes(isPreserveTimes);
         return this;
     }
 
     public Generator setIsPreserveUser(boolean isPreserveUser)
     {
         _isPreserveUser = isPreserveUser;
+        _attrUpdater.setIsPreserveUser(isPreserveUser);
         return this;
     }
 
     public Generator setIsPreserveGroup(boolean isPreserveGroup)
     {
         _isPreserveGroup = isPreserveGroup;
+        _attrUpdater.setIsPreserveGroup(isPreserveGroup);
         return this;
     }
 
     public Generator setIsNumericIds(boolean isNumericIds)
     {
         _isNumericIds = isNumericIds;
+        _attrUpdater.setIsNumericIds(isNumericIds);
         return this;
     }
 
@@ -187,6 +255,40 @@ public class Generator implements RsyncTask
         return this;
     }
 
+    /**
+     * Decide the checksum block length of existing files using
+     * blockSizePolicy, which is also told the outcome of every transfer
+     * and saved when done.
+     */
+    public Generator setBlockSizePolicy(BlockSizePolicy blockSizePolicy)
+    {
+        _blockSizePolicy = blockSizePolicy;
+        return this;
+    }
+
+    /**
+     * Send the checksum of existing files of at most numBytes bytes as a
+     * single chunk, see sendItemizeAndChecksum. 0 disables it.
+     */
+    public Generator setSmallFileThreshold(int numBytes)
+    {
+        assert numBytes >= 0 && numBytes <= FileView.MAX_SMALL_FILE_THRESHOLD;
+        _smallFileThreshold = numBytes;
+        return this;
+    }
+
+    /**
+     * If false the checksums of existing files are neither generated nor
+     * sent, only their itemize info, and a file failing verification is
+     * not generated again. Used when there is no Sender to use them, see
+     * Batch.
+     */
+    public Generator setIsGenerateChecksums(boolean isGenerateChecksums)
+    {
+        _isGenerateChecksums = isGenerateChecksums;
+        return this;
+    }
+
     public Generator setIsInterruptible(boolean isInterruptible)
     {
         _isInterruptible = isInterruptible;
@@ -216,6 +318,37 @@ public class Generator implements RsyncTask
         _fileList = fileList;
     }
 
+    /**
+     * Sender might not read anything we write until Receiver has read what
+     * Sender writes to it, Receiver must not wait for us while we're
+     * blocked writing to Sender. It still waits for us as long as a write
+     * completes within HandoffRing.STALL_NANOS.
+     */
+    private WritableByteChannel busyWhileWriting(final WritableByteChannel out)
+    {
+        return new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                _jobs.setIsConsumerWriting(true);
+                try {
+                    return out.write(src);
+                } finally {
+                    _jobs.setIsConsumerWriting(false);
+                }
+            }
+
+            @Override
+            public boolean isOpen() {
+                return out.isOpen();
+            }
+
+            @Override
+            public void close() throws IOException {
+                out.close();
+            }
+        };
+    }
+
     public void processJobQueueImmediate()
         throws ChannelException, InterruptedException
     {
@@ -224,13 +357,7 @@ public class Generator implements RsyncTask
                 _log.fine("(Generator) awaiting next job...");
             }
 
-            Job job = _jobs.take();
-
-            if (_log.isLoggable(Level.FINE)) {
-                _log.fine("(Generator) processing " + job);
-            }
-
-            job.process();
+            process(_jobs.take());
             _senderOutChannel.flush();
         }
     }
@@ -242,50 +369,79 @@ public class Generator implements RsyncTask
                 _log.fine("(Generator) awaiting next job...");
             }
 
-            Job job = _jobs.take();
-
-            if (_log.isLoggable(Level.FINE)) {
-                _log.fine("(Generator) processing " + job);
-            }
-
-            job.process();
+            process(_jobs.take());
             if (_jobs.isEmpty()) {
                 _senderOutChannel.flush();
             }
         }
     }
 
+    // a batch is every job up to and including the next one ending
+    // something Sender may be waiting for, the output is flushed once per
+    // batch
     public void processJobQueueBatched() throws ChannelException, InterruptedException
     {
-        List<Job> jobList = new LinkedList<>();
         while (_isRunning) {
             if (_log.isLoggable(Level.FINE)) {
                 _log.fine("(Generator) awaiting next jobs...");
             }
 
-            jobList.add(_jobs.take());
-            _jobs.drainTo(jobList);
+            int numJobs = 1;
+            while (!process(_jobs.take())) {
+                numJobs++;
+            }
 
             if (_log.isLoggable(Level.FINE)) {
-                _log.fine(String.format("(Generator) got %d job(s)",
-                                        jobList.size()));
+                _log.fine(String.format(
+                    "(Generator) processed %d job(s), flushing %d bytes",
+                    numJobs, _senderOutChannel.numBytesBuffered()));
             }
+            _senderOutChannel.flush();
+        }
+    }
 
-            for (Job job : jobList) {
-                if (_log.isLoggable(Level.FINE)) {
-                    _log.fine("(Generator) processing " + job);
-                }
-                job.process();
-            }
-            jobList.clear();
-            if (_jobs.isEmpty()) {
-                if (_log.isLoggable(Level.FINE)) {
-                    _log.fine(String.format(
-                        "(Generator) flushing %d bytes",
-                        _senderOutChannel.numBytesBuffered()));
-                }
-                _senderOutChannel.flush();
+    // processes and releases job, returns true if it is a boundary after
+    // which the output must be flushed: the end of a segment (including a
+    // purged file finishing one), a file generated again, the end of a
+    // phase, anything sent on behalf of Receiver, SYNC or STOP
+    private boolean process(Job job) throws ChannelException
+    {
+        if (_log.isLoggable(Level.FINE)) {
+            _log.fine("(Generator) processing " + job);
+        }
+        try {
+            switch (job._type) {
+            case GENERATE_SEGMENT:
+                processGenerateSegment(job._segment);
+                return true;
+            case GENERATE_FILE:
+                processGenerateFile(job._segment, job._index, job._fileInfo);
+                return true;
+            case PURGE_FILE:
+                return processPurgeFile(job._segment, job._index);
+            case SEND_SEGMENT_DONE:
+                _senderOutChannel.encodeIndex(Filelist.DONE);
+                return true;
+            case SEND_BYTES:
+                _senderOutChannel.put(job._buf);
+                return true;
+            case SEND_MESSAGE:
+                _senderOutChannel.putMessage(job._message);
+                return true;
+            case SYNC:
+                job._synced.countDown();
+                return true;
+            case STOP:
+                _returnStatus += _attrStage.finish();
+                saveBlockSizePolicy();
+                _isRunning = false;
+                return true;
+            default:
+                throw new IllegalStateException("unknown job " + job._type);
             }
+        } finally {
+            job.clear();
+            _jobs.release();
         }
     }
 
@@ -297,183 +453,169 @@ public class Generator implements RsyncTask
             return _returnStatus == 0;
         } catch (RuntimeInterruptException e) {
             throw new InterruptedException();
+        } finally {
+            _jobs.setIsConsumerBusy(true);                                      // for good, Receiver must never wait for us again
+            _attrStage.close();
         }
     }
 
-    public void purgeFile(final Filelist.Segment segment, final int index)
+    public void purgeFile(Filelist.Segment segment, int index)
         throws InterruptedException
     {
-        Job j = new Job() {
-            @Override
-            public void process() throws ChannelException {
-                if (segment != null) {
-                    segment.remove(index);
-                } else {
-                    Filelist.Segment tmpSegment = _fileList.getSegmentWith(index);
-                    if (tmpSegment == null) {
-                        throw new RsyncProtocolException(String.format(
-                            "invalid file index %d from peer", index));
-                    }
-                    tmpSegment.remove(index);
-                }
-                removeAllFinishedSegmentsAndNotifySender();
-            }
+        Job job = _jobs.claim();
+        job._type = JobType.PURGE_FILE;
+        job._segment = segment;
+        job._index = index;
+        _jobs.publish();
+    }
 
-            @Override
-            public String toString() {
-                return String.format("purgeFile(%s, %d)", segment, index);
+    // returns true if a finished segment was removed
+    private boolean processPurgeFile(Filelist.Segment segment, int index)
+        throws ChannelException
+    {
+        if (segment != null) {
+            segment.remove(index);
+        } else {
+            Filelist.Segment tmpSegment = _fileList.getSegmentWith(index);
+            if (tmpSegment == null) {
+                throw new RsyncProtocolException(String.format(
+                    "invalid file index %d from peer", index));
             }
-        };
-        appendJob(j);
+            tmpSegment.remove(index);
+        }
+        return removeAllFinishedSegmentsAndNotifySender();
+    }
+
+    /**
+     * Waits until all jobs published so far are processed.
+     */
+    public void sync() throws InterruptedException
+    {
+        CountDownLatch synced = new CountDownLatch(1);
+        Job job = _jobs.claim();
+        job._type = JobType.SYNC;
+        job._synced = synced;
+        _jobs.publish();
+        synced.await();
     }
 
     public void stop() throws InterruptedException
     {
-        Job j = new Job() {
-            @Override
-            public void process() throws ChannelException {
-                for (Runnable r : _deferredFileAttrUpdates) {
-                    r.run();
-                }
-                _isRunning = false;
-            }
-            @Override
-            public String toString() {
-                return "stop()";
-            }
-        };
-        appendJob(j);
+        Job job = _jobs.claim();
+        job._type = JobType.STOP;
+        _jobs.publish();
     }
 
     // used for sending empty filter rules only
-    public void sendBytes(final ByteBuffer buf) throws InterruptedException
+    public void sendBytes(ByteBuffer buf) throws InterruptedException
     {
-        Job j = new Job() {
-            @Override
-            public void process() throws ChannelException {
-                _senderOutChannel.put(buf);
-            }
-
-            @Override
-            public String toString() {
-                return String.format("sendBytes(%s)", buf.duplicate());
-            }
-        };
-        appendJob(j);
+        Job job = _jobs.claim();
+        job._type = JobType.SEND_BYTES;
+        job._buf = buf;
+        _jobs.publish();
     }
 
     /**
      * @throws TextConversionException
      */
-    public void sendMessage(final MessageCode code, final String text)
+    public void sendMessage(MessageCode code, String text)
         throws InterruptedException
     {
-        final ByteBuffer payload =
-            ByteBuffer.wrap(_characterEncoder.encode(text));
-        final Message message = new Message(code, payload);
-
-        Job j = new Job() {
-            @Override
-            public void process() throws ChannelException {
-                _senderOutChannel.putMessage(message);
-            }
-
-            @Override
-            public String toString() {
-                return String.format("sendMessage(%s, %s)", code, text);
-            }
-        };
-        appendJob(j);
+        ByteBuffer payload = ByteBuffer.wrap(_characterEncoder.encode(text));
+        Job job = _jobs.claim();
+        job._type = JobType.SEND_MESSAGE;
+        job._message = new Message(code, payload);
+        _jobs.publish();
     }
 
-    public void generateSegment(final Filelist.Segment segment)
+    public void generateSegment(Filelist.Segment segment)
         throws InterruptedException
     {
-        Job j = new Job() {
-            @Override
-            public void process() throws ChannelException {
-                if (_isListOnly) {
-                    if (!_isRecursive) {
-                        listFullSegment(segment);
-                    } else if (segment.directory() == null) {
-                        listInitialSegmentRecursive(segment);
-                    } else {
-                        listSegmentRecursive(segment);
-                    }
-                    segment.removeAll();
-                } else {
-                    sendChecksumForSegment(segment);
-                }
-                _generated.add(segment);
-                removeAllFinishedSegmentsAndNotifySender();
-            }
+        Job job = _jobs.claim();
+        job._type = JobType.GENERATE_SEGMENT;
+        job._segment = segment;
+        _jobs.publish();
+    }
 
-            @Override
-            public String toString() {
-                return String.format("generateSegment(%s)", segment);
+    private void processGenerateSegment(Filelist.Segment segment)
+        throws ChannelException
+    {
+        if (_isListOnly) {
+            if (!_isRecursive) {
+                listFullSegment(segment);
+            } else if (segment.directory() == null) {
+                listInitialSegmentRecursive(segment);
+            } else {
+                listSegmentRecursive(segment);
             }
-        };
-        appendJob(j);
+            segment.removeAll();
+        } else {
+            sendChecksumForSegment(segment);
+        }
+        _generated.add(segment);
+        removeAllFinishedSegmentsAndNotifySender();
     }
 
-    public void generateFile(final Filelist.Segment segment,
-                             final int fileIndex,
-                             final FileInfo fileInfo)
+    public void generateFile(Filelist.Segment segment, int fileIndex,
+                             FileInfo fileInfo)
         throws InterruptedException
     {
-        Job j = new Job() {
-            @Override
-            public void process() throws ChannelException {
-                try {
-                    boolean isTransfer =
-                        sendFileMetadata(fileIndex, fileInfo,
-                                          Checksum.MAX_DIGEST_LENGTH);
-                    if (!isTransfer) {
-                        segment.remove(fileIndex);
-                        removeAllFinishedSegmentsAndNotifySender();
-                    }
-                } catch (IOException e) { // sendFileMetadata
-                    if (_log.isLoggable(Level.WARNING)) {
-                        _log.warning(String.format(
-                            "(Generator) failed to generate file meta data " +
-                            "for %s (index %d): %s",
-                            fileInfo.path(), fileIndex, e.getMessage()));
-                    }
-                    _returnStatus++;
-                }
-            }
+        Job job = _jobs.claim();
+        job._type = JobType.GENERATE_FILE;
+        job._segment = segment;
+        job._index = fileIndex;
+        job._fileInfo = fileInfo;
+        _jobs.publish();
+    }
 
-            @Override
-            public String toString()
-            {
-                return String.format("generateFile (%s, %d, %s)",
-                                     segment, fileIndex, fileInfo.path());
+    private void processGenerateFile(Filelist.Segment segment, int fileIndex,
+                                     FileInfo fileInfo)
+        throws ChannelException
+    {
+        if (!_isGenerateChecksums) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format(
+                    "(Generator) %s (index %d) failed verification and " +
+                    "cannot be generated again", fileInfo.path(), fileIndex));
             }
-        };
-        appendJob(j);
+            _returnStatus++;
+            segment.remove(fileIndex);
+            removeAllFinishedSegmentsAndNotifySender();
+            return;
+        }
+        try {
+            boolean isTransfer =
+                sendFileMetadata(fileIndex, fileInfo,
+                                  Checksum.MAX_DIGEST_LENGTH);
+            if (!isTransfer) {
+                segment.remove(fileIndex);
+                removeAllFinishedSegmentsAndNotifySender();
+            }
+        } catch (IOException e) { // sendFileMetadata
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format(
+                    "(Generator) failed to generate file meta data " +
+                    "for %s (index %d): %s",
+                    fileInfo.path(), fileIndex, e.getMessage()));
+            }
+            _returnStatus++;
+        }
     }
 
     public void sendSegmentDone() throws InterruptedException
     {
-        Job j = new Job() {
-            @Override
-            public void process() throws ChannelException {
-                _senderOutChannel.encodeIndex(Filelist.DONE);
-            }
-
-            @Override
-            public String toString()
-            {
-                return "sendSegmentDone()";
-            }
-        };
-        appendJob(j);
+        Job job = _jobs.claim();
+        job._type = JobType.SEND_SEGMENT_DONE;
+        _jobs.publish();
     }
 
-    private void appendJob(Job job) throws InterruptedException
+    /**
+     * user and group names are only needed when preserving ownership by name,
+     * otherwise numeric ids are enough and the name lookups can be skipped
+     */
+    private boolean isResolveNames()
     {
-        assert job != null;
-        _jobs.put(job);
+        return (_isPreserveUser || _isPreserveGroup) && !_isNumericIds;
     }
 
     // NOTE: no error if dir already exists
@@ -482,7 +624,8 @@ public class Generator implements RsyncTask
         if (_log.isLoggable(Level.FINE)) {
             _log.fine("(Generator) creating directory " + dir.path());
         }
-        RsyncFileAttributes attrs = RsyncFileAttributes.statOrNull(dir.path());
+        RsyncFileAttributes attrs =
+            RsyncFileAttributes.statOrNull(dir.path(), isResolveNames());
         if (attrs == null) {
             Files.createDirectories(dir.path());
         }
@@ -654,7 +797,7 @@ public class Generator implements RsyncTask
         }
 
         RsyncFileAttributes existingAttrs =
-            RsyncFileAttributes.statIfExists(fileInfo.path());                  // value: null if file does not exist else non-null, throws IOException for other errors
+            RsyncFileAttributes.statIfExists(fileInfo.path(), isResolveNames());                  // value: null if file does not exist else non-null, throws IOException for other errors
         boolean isRemoved = removeExistingIfDifferentType(fileInfo, existingAttrs); // throws IOException if fails to remove existing
         if (isRemoved) {
             existingAttrs = null;
@@ -677,7 +820,7 @@ public class Generator implements RsyncTask
         }
 
         RsyncFileAttributes existingAttrs =
-            RsyncFileAttributes.statIfExists(fileInfo.path());              // value: null if file does not exist else non-null, throws IOException for other errors
+            RsyncFileAttributes.statIfExists(fileInfo.path(), isResolveNames());              // value: null if file does not exist else non-null, throws IOException for other errors
         boolean isRemoved = removeExistingIfDifferentType(fileInfo, existingAttrs); // throws IOException if fails to remove existing
         if (isRemoved) {
             if (_log.isLoggable(Level.FINE)) {
@@ -701,17 +844,52 @@ public class Generator implements RsyncTask
         Connection.sendChecksumHeader(_senderOutChannel, header);
     }
 
-    // could we possibly adaptively correlate block checksum size with checksum
-    // match ratio? or inversely correlate channel speed or a combination
-    private int getBlockLengthFor(long fileSize)
+    private int getBlockLengthFor(Path path, long fileSize)
     {
         assert fileSize >= 0;
         if (fileSize == 0) {
             return 0;
         }
-        int blockLength = pow2SquareRoot(fileSize);
-        assert fileSize / blockLength <= Integer.MAX_VALUE;
-        return Math.max(MIN_BLOCK_SIZE, blockLength);
+        return _blockSizePolicy.blockLengthFor(path, fileSize);
+    }
+
+    /**
+     * Tells the block size policy the outcome of a file transfer using
+     * checksums generated by us. Called by Receiver, thread safe.
+     */
+    void recordTransfer(FileInfo fileInfo, Checksum.Header header,
+                        long numMatched, long numLiteral)
+    {
+        if (header.chunkCount() == 0) {
+            return;
+        }
+        long fileSize = (long) (header.chunkCount() - 1) *
+                        header.blockLength() + header.smallestChunkSize();
+        if (fileSize <= _smallFileThreshold) {                                  // not decided by the policy, see sendItemizeAndChecksum
+            return;
+        }
+        long numChecksumBytes = (long) header.chunkCount() *
+                                (4 + header.digestLength());
+        long numMatchTokenBytes = 4 * ((numMatched + header.blockLength() - 1) /
+                                       header.blockLength());
+        _blockSizePolicy.record(fileInfo.path(), fileSize,
+                                header.blockLength(),
+                                numChecksumBytes + numMatchTokenBytes +
+                                numLiteral,
+                                numMatched + numLiteral);
+    }
+
+    private void saveBlockSizePolicy()
+    {
+        try {
+            _blockSizePolicy.save();
+        } catch (IOException e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format(
+                    "(Generator) failed to save block size history: %s",
+                    e.getMessage()));
+            }
+        }
     }
 
     // reduce protocol overhead when sending lots of checksums
@@ -723,6 +901,55 @@ public class Generator implements RsyncTask
         return Math.max(result, Checksum.MIN_DIGEST_LENGTH);
     }
 
+    // a small file is read whole in one go and sent as a single chunk of
+    // the same length as the file, which lets Sender match it without a
+    // chunk lookup table or sliding window (see Sender.isSmallFile). The
+    // trade-off is that a modified file is always sent whole
+    private void sendItemizeAndChecksum(int index,
+                                        FileInfo fileInfo,
+                                        RsyncFileAttributes curAttrs)
+        throws ChannelException
+    {
+        int length = (int) curAttrs.size();
+        if (_smallFileBuf == null) {
+            _smallFileBuf = new byte[_smallFileThreshold];
+        }
+        try {
+            FileView.readFully(fileInfo.path(), _smallFileBuf, length);
+        } catch (FileViewOpenFailed e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format(
+                    "(Generator) received I/O error during checksum " +
+                    "generation (%s)", e.getMessage()));
+            }
+            sendItemizeInfo(index, null, fileInfo.attrs(), Item.TRANSFER);
+            sendChecksumHeader(ZERO_SUM);
+            return;
+        } catch (FileViewReadError e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning("(Generator) Warning got I/O errors during " +
+                             "checksum generation. Errors ignored and data " +
+                             "filled with zeroes): " + e.getMessage());
+            }
+        }
+
+        Checksum.Header header =
+            new Checksum.Header(1, length, 0, Checksum.MAX_DIGEST_LENGTH);
+        if (_log.isLoggable(Level.FINE)) {
+            _log.fine(String.format("(Generator) generating small file %s, " +
+                                    "index %d, checksum %s",
+                                    fileInfo, index, header));
+        }
+        sendItemizeInfo(index, curAttrs, fileInfo.attrs(), Item.TRANSFER);
+        sendChecksumHeader(header);
+
+        _senderOutChannel.putInt(Rolling.compute(_smallFileBuf, 0, length));
+        MessageDigest md = MD5.newInstance();
+        md.update(_smallFileBuf, 0, length);
+        md.update(_checksumSeed);
+        _senderOutChannel.put(md.digest(), 0, header.digestLength());
+    }
+
     private void sendItemizeAndChecksums(int index,
                                          FileInfo fileInfo,
                                          RsyncFileAttributes curAttrs,
@@ -730,7 +957,16 @@ public class Generator implements RsyncTask
         throws ChannelException
     {
         long currentSize = curAttrs.size();
-        int blockLength = getBlockLengthFor(currentSize);
+        if (!_isGenerateChecksums) {
+            sendItemizeInfo(index, curAttrs, fileInfo.attrs(), Item.TRANSFER);
+            sendChecksumHeader(ZERO_SUM);
+            return;
+        }
+        if (currentSize > 0 && currentSize <= _smallFileThreshold) {
+            sendItemizeAndChecksum(index, fileInfo, curAttrs);
+            return;
+        }
+        int blockLength = getBlockLengthFor(fileInfo.path(), currentSize);
 //        int blockLength = getCompatibleBlockLengthFor(currentSize);
         int windowLength = blockLength;
         int digestLength = currentSize > 0
@@ -785,126 +1021,12 @@ public class Generator implements RsyncTask
         }
     }
 
-    private void updateAttrsIfDiffer(Path path, RsyncFileAttributes curAttrs,
-                                     RsyncFileAttributes targetAttrs)
-        throws IOException
+    // directory attributes are applied last, see AttributeStage
+    private void deferUpdateAttrsIfDiffer(Path path,
+                                          RsyncFileAttributes curAttrs,
+                                          RsyncFileAttributes targetAttrs)
     {
-        if (_isPreservePermissions && (curAttrs == null ||
-                                       curAttrs.mode() != targetAttrs.mode())) {
-            if (_log.isLoggable(Level.FINE)) {
-                _log.fine(String.format(
-                    "(Generator) updating file permissions %o -> %o on %s",
-                    curAttrs == null ? 0 : curAttrs.mode(),
-                    targetAttrs.mode(), path));
-            }
-            FileOps.setFileMode(path, targetAttrs.mode(),
-                                LinkOption.NOFOLLOW_LINKS);
-        }
-        if (_isPreserveTimes &&
-            (curAttrs == null ||
-             curAttrs.lastModifiedTime() != targetAttrs.lastModifiedTime()))
-        {
-            if (_log.isLoggable(Level.FINE)) {
-                _log.fine(String.format(
-                    "(Generator) updating mtime %d -> %d on %s",
-                    curAttrs == null ? 0 : curAttrs.lastModifiedTime(),
-                    targetAttrs.lastModifiedTime(), path));
-            }
-            FileOps.setLastModifiedTime(path, targetAttrs.lastModifiedTime(),
-                                        LinkOption.NOFOLLOW_LINKS);
-        }
-        // NOTE: keep this one last in the method, in case we fail due to
-        //       insufficient permissions (the other ones are more likely to
-        //       succeed).
-        // NOTE: we cannot detect if we have the capabilities to change
-        //       ownership (knowing if UID 0 is not sufficient)
-        // NOTE: fall back to changing uid/gid if username/groupname unknown
-        if (_isPreserveUser) {
-	        if (!_isNumericIds && !targetAttrs.user().name().isEmpty() &&
-	            (curAttrs == null ||
-	             !curAttrs.user().name().equals(targetAttrs.user().name())))
-	        {
-	            if (_log.isLoggable(Level.FINE)) {
-	                _log.fine(String.format(
-	                    "(Generator) updating ownership %s -> %s on %s",
-	                    curAttrs == null ? "" : curAttrs.user(),
-	                    targetAttrs.user(), path));
-	            }
-	            // NOTE: side effect of chown in Linux is that set user/group id bit
-	            //       might be cleared.
-	            FileOps.setOwner(path, targetAttrs.user(),
-	                             LinkOption.NOFOLLOW_LINKS);
-	        } else if ((_isNumericIds || targetAttrs.user().name().isEmpty()) &&
-	            (curAttrs == null ||
-	             curAttrs.user().id() != targetAttrs.user().id()))
-	        {
-	            if (_log.isLoggable(Level.FINE)) {
-	                _log.fine(String.format(
-	                    "(Generator) updating uid %s -> %d on %s",
-	                    curAttrs == null ? "" : curAttrs.user().id(),
-	                    targetAttrs.user().id(), path));
-	            }
-	            // NOTE: side effect of chown in Linux is that set user/group id bit
-	            //       might be cleared.
-	            FileOps.setUserId(path, targetAttrs.user().id(),
-	                              LinkOption.NOFOLLOW_LINKS);
-	        }
-        }
-
-        if (_isPreserveGroup) {
-        	if (!_isNumericIds && !targetAttrs.group().name().isEmpty() &&
-	                (curAttrs == null ||
-	                 !curAttrs.group().name().equals(targetAttrs.group().name())))
-	        {
-	            if (_log.isLoggable(Level.FINE)) {
-	                _log.fine(String.format(
-	                    "(Generator) updating group %s -> %s on %s",
-	                    curAttrs == null ? "" : curAttrs.group(),
-	                    targetAttrs.group(), path));
-	            }
-	            // NOTE: side effect of chown in Linux is that set user/group id bit
-	            //       might be cleared.
-	            FileOps.setGroup(path, targetAttrs.group(),
-	                             LinkOption.NOFOLLOW_LINKS);
-	        } else if ((_isNumericIds || targetAttrs.group().name().isEmpty()) &&
-	            (curAttrs == null ||
-	             curAttrs.group().id() != targetAttrs.group().id()))
-	        {
-	            if (_log.isLoggable(Level.FINE)) {
-	                _log.fine(String.format(
-	                    "(Generator) updating uid %s -> %d on %s",
-	                    curAttrs == null ? "" : curAttrs.group().id(),
-	                    targetAttrs.group().id(), path));
-	            }
-	            // NOTE: side effect of chown in Linux is that set user/group id bit
-	            //       might be cleared.
-	            FileOps.setGroupId(path, targetAttrs.group().id(),
-	                              LinkOption.NOFOLLOW_LINKS);
-	        }
-        }
-    }
-
-    private void deferUpdateAttrsIfDiffer(final Path path,
-                                          final RsyncFileAttributes curAttrs,
-                                          final RsyncFileAttributes targetAttrs)
-        throws IOException
-    {
-        Runnable j = new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    updateAttrsIfDiffer(path, curAttrs, targetAttrs);
-                } catch (IOException e) {
-                    if (_log.isLoggable(Level.WARNING)) {
-                        _log.warning(String.format(
-                            "(Generator) received I/O error while applying " +
-                            "attributes on %s: %s", path, e.getMessage()));
-                    }
-                    _returnStatus++;
-                }
-            }
-        };
-        _deferredFileAttrUpdates.addFirst(j);
+        _attrStage.deferDirectory(path, curAttrs, targetAttrs);
     }
 
     private boolean itemizeFile(int index,
@@ -930,19 +1052,27 @@ public class Generator implements RsyncTask
             sendItemizeInfo(index, curAttrs, fileInfo.attrs(), Item.NO_CHANGE);
         }
 
-        try {
-            updateAttrsIfDiffer(fileInfo.path(), curAttrs, fileInfo.attrs());
-        } catch (IOException e) {
-            if (_log.isLoggable(Level.WARNING)) {
-                _log.warning(String.format(
-                    "(Generator) received I/O error while applying " +
-                    "attributes on %s: %s", fileInfo.path(), e.getMessage()));
-            }
-            _returnStatus++;
-        }
+        _attrStage.update(fileInfo.path(), curAttrs, fileInfo.attrs());
         return false;
     }
 
+    // compare by name if known, else by id, consistent with FileAttributeUpdater
+    private boolean isUserDiffer(User curUser, User targetUser)
+    {
+        if (_isNumericIds || targetUser.name().isEmpty()) {
+            return curUser.id() != targetUser.id();
+        }
+        return !curUser.name().equals(targetUser.name());
+    }
+
+    private boolean isGroupDiffer(Group curGroup, Group targetGroup)
+    {
+        if (_isNumericIds || targetGroup.name().isEmpty()) {
+            return curGroup.id() != targetGroup.id();
+        }
+        return !curGroup.name().equals(targetGroup.name());
+    }
+
     private char itemizeFlags(RsyncFileAttributes curAttrs,
                               RsyncFileAttributes targetAttrs)
     {
@@ -959,10 +1089,14 @@ public class Generator implements RsyncTask
         {
             iFlags |= Item.REPORT_TIME;
         }
-        if (_isPreserveUser && !curAttrs.user().equals(targetAttrs.user())) {
+        if (_isPreserveUser &&
+            isUserDiffer(curAttrs.user(), targetAttrs.user()))
+        {
             iFlags |= Item.REPORT_OWNER;
         }
-        if (_isPreserveGroup && !curAttrs.group().equals(targetAttrs.group())) {
+        if (_isPreserveGroup &&
+            isGroupDiffer(curAttrs.group(), targetAttrs.group()))
+        {
             iFlags |= Item.REPORT_GROUP;
         }
         if (curAttrs.isRegularFile() && curAttrs.size() != targetAttrs.size()) {
@@ -1019,37 +1153,11 @@ public class Generator implements RsyncTask
         }
     }
 
-    // return the square root of num as the nearest lower number in base 2
-    /**
-     * @throws IllegalArgumentException if num is negative or result would
-     *         overflow an integer
-     */
-    private static int pow2SquareRoot(long num)
-    {
-        if (num < 0) {
-            throw new IllegalArgumentException(String.format(
-                "cannot compute square root of %d", num));
-        }
-
-        if (num == 0) {
-            return 0;
-        }
-        // sqrt(2**n) == 2**(n/2)
-        long nearestLowerBase2 = Long.highestOneBit(num);
-        int exponent = Long.numberOfTrailingZeros(nearestLowerBase2);
-        int sqrtExponent = exponent / 2;
-        long result = 1 << sqrtExponent;
-        if (result < 0 || result > Integer.MAX_VALUE) {
-            throw new IllegalArgumentException(String.format(
-                "square root of %d (%d) is either negative or larger than max" +
-                " int value (%d)", num, result, Integer.MAX_VALUE));
-        }
-        return (int) result;
-    }
-
-    private void removeAllFinishedSegmentsAndNotifySender()
+    // returns true if any segment was removed
+    private boolean removeAllFinishedSegmentsAndNotifySender()
         throws ChannelException
     {
+        boolean isRemoved = false;
         for (Iterator<Filelist.Segment> it = _generated.iterator(); it.hasNext(); ) {
             Filelist.Segment segment = it.next();
             if (!segment.isFinished()) {
@@ -1068,7 +1176,9 @@ public class Generator implements RsyncTask
             }
             it.remove(); // NOTE: remove before notifying peer
             _senderOutChannel.encodeIndex(Filelist.DONE);
+            isRemoved = true;
         }
+        return isRemoved;
     }
 
     public synchronized long numBytesWritten()
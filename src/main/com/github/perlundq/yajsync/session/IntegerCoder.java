@@ -21,6 +21,7 @@ package com.github.perlundq.yajsync.session;
 
 import java.nio.ByteBuffer;
 
+import com.github.perlundq.yajsync.channels.ChannelException;
 import com.github.perlundq.yajsync.channels.Readable;
 import com.github.perlundq.yajsync.util.BitOps;
 
@@ -33,6 +34,8 @@ final class IntegerCoder
         2, 2, 2, 2, 2, 2, 2, 2, 3, 3, 3, 3, 4, 4, 5, 6, /* (C0 - FF)/4 */
     };
 
+    public static final int MAX_NUM_BYTES = 9;
+
     private IntegerCoder() {}
 
     /**
@@ -50,14 +53,26 @@ final class IntegerCoder
      *
      */
     public static ByteBuffer encodeLong(long value, int minBytes)
+    {
+        byte[] buf = new byte[MAX_NUM_BYTES];
+        int length = encodeLong(value, minBytes, buf);
+        return ByteBuffer.wrap(buf, 0, length);
+    }
+
+    /**
+     * Encodes value into the first bytes of dst, which must be at least
+     * MAX_NUM_BYTES long and can be reused for any following values.
+     * @return the number of bytes of the encoded value
+     */
+    public static int encodeLong(long value, int minBytes, byte[] dst)
     {
         assert minBytes >= 1 && minBytes <= 8;
+        assert dst.length >= MAX_NUM_BYTES;
 
-        byte[] buf = new byte[9];
-        BitOps.putLongAsLittleEndian(buf, 1, value);
+        BitOps.putLongAsLittleEndian(dst, 1, value);
 
-        int count = buf.length - 1; // int lastNonZeroByteIndex = count;
-        while (count > minBytes && buf[count] == 0) {
+        int count = MAX_NUM_BYTES - 1; // int lastNonZeroByteIndex = count;
+        while (count > minBytes && dst[count] == 0) {
             count--;
         }
 
@@ -70,34 +85,41 @@ final class IntegerCoder
         // 1 << ( 7 - 0 ) == 128
         // firstByteValue is a power of 2 in range: 1 <= firstByteValue <= 128
 
-        if ((0xFF & buf[count]) >= firstByteValue) {
-            buf[0] = (byte) ~ (firstByteValue - 1);
+        if ((0xFF & dst[count]) >= firstByteValue) {
+            dst[0] = (byte) ~ (firstByteValue - 1);
             count++;
         } else if (count > minBytes) {
-            buf[0] = (byte) ((~ (firstByteValue * 2 - 1)) | buf[count]);
+            dst[0] = (byte) ((~ (firstByteValue * 2 - 1)) | dst[count]);
         } else {
-            buf[0] = buf[count];
+            dst[0] = dst[count];
         }
-
-        return ByteBuffer.wrap(buf, 0, count);
+        return count;
     }
 
-    public static long decodeLong(Readable src, int minBytes) throws Exception
+    // reads the value byte by byte in little endian order, the high bits of
+    // the first byte are the most significant ones (if they fit)
+    public static long decodeLong(Readable src, int minBytes)
+        throws ChannelException
     {
         assert minBytes >= 1 && minBytes <= 8;
 
-        byte[] buf = new byte[10];
-        src.get(buf, 0, minBytes);
-        int ch = 0xFF & buf[0];
+        int ch = 0xFF & src.getByte();
+        long value = 0;
+        int shift = 0;
+        for (int i = 1; i < minBytes; i++) {
+            value |= (0xFFL & src.getByte()) << shift;
+            shift += 8;
+        }
         int extra = _int_byte_extra[ch / 4];
-
-        if (extra > 0) {
-            src.get(buf, minBytes, extra);
+        for (int i = 0; i < extra; i++) {
+            value |= (0xFFL & src.getByte()) << shift;
+            shift += 8;
+        }
+        if (shift < 64) {
             int bit = 1 << (8 - extra); // 2**3, 2**4, ..., 2**7 (power of 2 between 8-128)
-            buf[minBytes + extra] = (byte) (ch & (bit - 1));
-        } else {
-            buf[minBytes + extra] = (byte) ch;
+            long high = extra > 0 ? ch & (bit - 1) : ch;
+            value |= high << shift;
         }
-        return BitOps.toBigEndianLong(buf, 1);
+        return value;
     }
 }
@@ -0,0 +1,560 @@
+/*
+ * In-process copying of files between two local directories
+ *
+ * Copyright (C) 2013, 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.github.perlundq.yajsync.filelist.FileInfo;
+import com.github.perlundq.yajsync.filelist.Filelist;
+import com.github.perlundq.yajsync.filelist.FilterRuleList;
+import com.github.perlundq.yajsync.filelist.RsyncFileAttributes;
+import com.github.perlundq.yajsync.io.CustomFileSystem;
+import com.github.perlundq.yajsync.text.TextDecoder;
+import com.github.perlundq.yajsync.text.TextEncoder;
+import com.github.perlundq.yajsync.ui.FilterRuleConfiguration;
+import com.github.perlundq.yajsync.util.ArgumentParsingError;
+import com.github.perlundq.yajsync.util.FileOps;
+import com.github.perlundq.yajsync.util.PathOps;
+
+/**
+ * Copies files between two local paths within a single thread, without
+ * going through Sender, Generator and Receiver and the wire protocol in
+ * between. The file list is built by FileListExpander as for Sender, target
+ * paths are resolved and unmatched files deleted with the same helpers as
+ * Receiver uses and attributes are updated by FileAttributeUpdater as for
+ * Generator. Changed files are copied whole
+ * using FileChannel.transferTo into a temporary file which is then moved in
+ * place. An existing target file of the same size is first compared range
+ * by range, if identical it is left as is and counted as matched data.
+ * Symbolic links and other special files are skipped, as Generator does.
+ */
+final class LocalTransfer
+{
+    private static final Logger _log =
+        Logger.getLogger(LocalTransfer.class.getName());
+    private static final int COMPARE_BUF_SIZE = 64 * 1024;
+
+    private final Iterable<Path> _sourceFiles;
+    private final String _targetPathName;
+    private final TextEncoder _characterEncoder;
+    private final TextDecoder _characterDecoder;
+    private final Statistics _stats = new Statistics();
+    private final Deque<Runnable> _deferredDirAttrUpdates = new ArrayDeque<>();
+    private final Map<FileInfo, Path> _targetDirs = new HashMap<>();
+    private boolean _isRecursive;
+    private boolean _isTransferDirs;
+    private boolean _isPreservePermissions;
+    private boolean _isPreserveTimes;
+    private boolean _isPreserveUser;
+    private boolean _isPreserveGroup;
+    private boolean _isNumericIds;
+    private boolean _isIgnoreTimes;
+    private boolean _isDelete;
+    private boolean _isDeleteExcluded;
+    private boolean _isDeleteAfter;
+    private UnmatchedFileDeleter _deleter;
+    private FileListExpander _expander;
+    private FileAttributeUpdater _attrUpdater;
+    private FilterRuleConfiguration _filterRuleConfiguration;
+    private FilterRuleConfiguration _deletionRuleConfiguration;
+    private Path _targetRoot;
+    private ByteBuffer _sourceBuf;
+    private ByteBuffer _targetBuf;
+    private int _ioError;
+
+    LocalTransfer(Iterable<Path> sourceFiles, Charset charset,
+                  String targetPathName)
+    {
+        _sourceFiles = sourceFiles;
+        _characterEncoder = TextEncoder.newStrict(charset);
+        _characterDecoder = TextDecoder.newStrict(charset);
+        _targetPathName = targetPathName;
+    }
+
+    LocalTransfer setIsRecursive(boolean isRecursive)
+    {
+        _isRecursive = isRecursive;
+        return this;
+    }
+
+    LocalTransfer setIsTransferDirs(boolean isTransferDirs)
+    {
+        _isTransferDirs = isTransferDirs;
+        return this;
+    }
+
+    LocalTransfer setIsPreservePermissions(boolean isPreservePermissions)
+    {
+        _isPreservePermissions = isPreservePermissions;
+        return this;
+    }
+
+    LocalTransfer setIsPreserveTimes(boolean isPreserveTimes)
+    {
+        _isPreserveTimes = isPreserveTimes;
+        return this;
+    }
+
+    LocalTransfer setIsPreserveUser(boolean isPreserveUser)
+    {
+        _isPreserveUser = isPreserveUser;
+        return this;
+    }
+
+    LocalTransfer setIsPreserveGroup(boolean isPreserveGroup)
+    {
+        _isPreserveGroup = isPreserveGroup;
+        return this;
+    }
+
+    LocalTransfer setIsNumericIds(boolean isNumericIds)
+    {
+        _isNumericIds = isNumericIds;
+        return this;
+    }
+
+    LocalTransfer setIsIgnoreTimes(boolean isIgnoreTimes)
+    {
+        _isIgnoreTimes = isIgnoreTimes;
+        return this;
+    }
+
+    LocalTransfer setIsDelete(boolean isDelete)
+    {
+        _isDelete = isDelete;
+        return this;
+    }
+
+    LocalTransfer setIsDeleteExcluded(boolean isDeleteExcluded)
+    {
+        _isDeleteExcluded = isDeleteExcluded;
+        return this;
+    }
+
+    LocalTransfer setIsDeleteAfter(boolean isDeleteAfter)
+    {
+        _isDeleteAfter = isDeleteAfter;
+        return this;
+    }
+
+    LocalTransfer setFilterRuleConfiguration(
+        FilterRuleConfiguration filterRuleConfiguration)
+    {
+        _filterRuleConfiguration = filterRuleConfiguration;
+        return this;
+    }
+
+    Statistics statistics()
+    {
+        return _stats;
+    }
+
+    boolean transfer() throws RsyncException, InterruptedException
+    {
+        Filelist fileList = new Filelist(_isRecursive);
+        try {
+            if (_filterRuleConfiguration == null) {
+                _filterRuleConfiguration = new FilterRuleConfiguration(
+                    Collections.<String>emptyList());
+            }
+            _deletionRuleConfiguration =
+                deletionRuleConfigurationOf(_filterRuleConfiguration);
+            _deleter = new UnmatchedFileDeleter(_characterEncoder, _isDelete,
+                                                _isDeleteExcluded,
+                                                _isDeleteAfter);
+            _expander = new FileListExpander(_characterEncoder,
+                                             _characterDecoder).
+                setIsRecursive(_isRecursive).
+                setIsTransferDirs(_isTransferDirs).
+                setIsPreservePermissions(_isPreservePermissions).
+                setIsPreserveUser(_isPreserveUser).
+                setIsPreserveGroup(_isPreserveGroup).
+                setIsNumericIds(_isNumericIds);
+            _attrUpdater = new FileAttributeUpdater("LocalTransfer").
+                setIsPreservePermissions(_isPreservePermissions).
+                setIsPreserveTimes(_isPreserveTimes).
+                setIsPreserveUser(_isPreserveUser).
+                setIsPreserveGroup(_isPreserveGroup).
+                setIsNumericIds(_isNumericIds);
+
+            List<FileInfo> initialFiles = new ArrayList<>();
+            boolean isInitialListOK = _expander.initialExpand(
+                _sourceFiles, _filterRuleConfiguration,
+                FileListExpander.sinkOf(initialFiles));
+            if (initialFiles.isEmpty()) {
+                if (_log.isLoggable(Level.FINE)) {
+                    _log.fine("empty file list - exiting early");
+                }
+                return isInitialListOK;
+            }
+
+            Path targetPath = PathOps.get(_targetPathName);                     // throws InvalidPathException
+            boolean isTargetFile = Receiver.isCopyToTargetFile(
+                targetPath, initialFiles, initialFiles.get(0).attrs());         // throws RsyncException
+            _targetRoot = targetPath;
+
+            Filelist.SegmentBuilder builder = new Filelist.SegmentBuilder(null);
+            builder.addAll(initialFiles);
+            if (!isTargetFile) {
+                deleteUnmatchedFiles(builder, targetPath);
+            }
+            Filelist.Segment segment = fileList.newSegment(builder);
+            for (FileInfo f : segment.files()) {
+                checkInterrupted();
+                Path target = isTargetFile
+                    ? targetPath
+                    : targetPath.resolve(f.path().getFileName()).normalize();
+                generateFile(f, target);
+            }
+            fileList.deleteFirstSegment();
+
+            int segmentIndex = 0;
+            while (fileList.isExpandable()) {
+                checkInterrupted();
+                FileInfo directory =
+                    fileList.peekStubDirectoryOrNull(segmentIndex);
+                if (directory != null) {
+                    fileList.getStubDirectoryOrNull(segmentIndex);
+                    expandAndGenerate(fileList, directory,
+                                      _targetDirs.remove(directory));
+                }
+                segmentIndex++;
+            }
+
+            _ioError |= _deleter.deletePending(_ioError);
+            for (Runnable r : _deferredDirAttrUpdates) {
+                r.run();
+            }
+            _stats.setNumFiles(fileList.numFiles());
+            _stats.setTotalFileSize(fileList.totalFileSize());
+
+            if (_log.isLoggable(Level.FINE)) {
+                _log.fine(String.format("LocalTransfer returned %d errors",
+                                        _ioError));
+            }
+            return isInitialListOK && _ioError == 0;
+        } catch (InvalidPathException e) {
+            throw new RsyncException(String.format(
+                "illegal target path name %s: %s", _targetPathName, e));
+        } catch (ArgumentParsingError e) {
+            throw new RsyncException(e);
+        } finally {
+            fileList.close();
+        }
+    }
+
+    private static void checkInterrupted() throws InterruptedException
+    {
+        if (Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+    }
+
+    private boolean isResolveNames()
+    {
+        return (_isPreserveUser || _isPreserveGroup) && !_isNumericIds;
+    }
+
+    // Receiver only gets the rules sent by Sender, and only if deleting
+    private FilterRuleConfiguration deletionRuleConfigurationOf(
+        FilterRuleConfiguration filterRuleConfiguration)
+        throws ArgumentParsingError
+    {
+        List<String> rules = new ArrayList<>();
+        if (_isDelete) {
+            for (FilterRuleList.FilterRule rule :
+                 filterRuleConfiguration.getFilterRuleListForSending()._rules)
+            {
+                rules.add(rule.toString());
+            }
+        }
+        return new FilterRuleConfiguration(rules);
+    }
+
+    private void expandAndGenerate(Filelist fileList, FileInfo directory,
+                                   Path targetDir)
+        throws InterruptedException
+    {
+        Filelist.SegmentBuilder builder =
+            new Filelist.SegmentBuilder(directory);
+        if (!_expander.expand(directory, _filterRuleConfiguration,
+                              FileListExpander.sinkOf(builder))) {
+            _ioError |= IoError.GENERAL;
+        }
+        deleteUnmatchedFiles(builder, targetDir);
+
+        try {
+            generateDirectory(directory, targetDir);
+        } catch (IOException e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format(
+                    "(LocalTransfer) failed to generate files below dir %s: " +
+                    "%s", targetDir, e.getMessage()));
+            }
+            _ioError |= IoError.GENERAL;
+            builder.discard();                                                  // none of its sub directories will be expanded
+            return;
+        }
+
+        Filelist.Segment segment = fileList.newSegment(builder);
+        for (FileInfo f : segment.files()) {
+            checkInterrupted();
+            generateFile(f, targetDir.resolve(f.path().getFileName()));
+        }
+        fileList.deleteFirstSegment();
+    }
+
+    private void generateFile(FileInfo fileInfo, Path target)
+    {
+        try {
+            if (fileInfo.attrs().isRegularFile()) {
+                copyIfModified(fileInfo, target);
+            } else if (fileInfo.attrs().isDirectory()) {
+                if (_isRecursive && !fileInfo.isDotDir()) {
+                    _targetDirs.put(fileInfo, target);                          // generated once expanded
+                } else {
+                    generateDirectory(fileInfo, target);
+                }
+            } else if (_log.isLoggable(Level.FINE)) {
+                _log.fine("(LocalTransfer) Skipping " + fileInfo.path());
+            }
+        } catch (IOException e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format(
+                    "(LocalTransfer) failed to generate file %s: %s",
+                    target, e.getMessage()));
+            }
+            _ioError |= IoError.GENERAL;
+        }
+    }
+
+    // NOTE: no error if dir already exists
+    private void generateDirectory(FileInfo dir, Path target)
+        throws IOException
+    {
+        RsyncFileAttributes curAttrs =
+            RsyncFileAttributes.statIfExists(target, isResolveNames());
+        if (removeExistingIfDifferentType(dir, target, curAttrs)) {
+            curAttrs = null;
+        }
+        if (curAttrs == null) {
+            if (_log.isLoggable(Level.FINE)) {
+                _log.fine("(LocalTransfer) creating directory " + target);
+            }
+            Files.createDirectories(target);
+        }
+        deferUpdateAttrsIfDiffer(target, curAttrs, dir.attrs());
+    }
+
+    private static boolean isDataModified(RsyncFileAttributes old,
+                                          RsyncFileAttributes current)
+    {
+        return current == null ||
+               old.size() != current.size() ||
+               old.lastModifiedTime() != current.lastModifiedTime();
+    }
+
+    private void copyIfModified(FileInfo fileInfo, Path target)
+        throws IOException
+    {
+        RsyncFileAttributes curAttrs =
+            RsyncFileAttributes.statIfExists(target, isResolveNames());
+        if (removeExistingIfDifferentType(fileInfo, target, curAttrs)) {
+            curAttrs = null;
+        }
+        if (!isDataModified(fileInfo.attrs(), curAttrs) && !_isIgnoreTimes) {
+            _attrUpdater.apply(target, curAttrs, fileInfo.attrs());
+            return;
+        }
+
+        if (_log.isLoggable(Level.INFO)) {
+            _log.info(target.toString());
+        }
+        _stats.setNumTransferredFiles(_stats.numTransferredFiles() + 1);
+        _stats.setTotalTransferredSize(_stats.totalTransferredSize() +
+                                       fileInfo.attrs().size());
+
+        long size = fileInfo.attrs().size();
+        long numMatched = curAttrs != null && curAttrs.size() == size
+                          ? numIdenticalBytes(fileInfo.path(), target, size)
+                          : 0;
+        _stats.setTotalMatchedSize(_stats.totalMatchedSize() + numMatched);
+        if (curAttrs != null && numMatched == size) {
+            if (_log.isLoggable(Level.FINE)) {
+                _log.fine(String.format("%s is identical to %s, keeping it",
+                                        target, fileInfo.path()));
+            }
+            _attrUpdater.apply(target, curAttrs, fileInfo.attrs());
+            return;
+        }
+        _stats.setTotalLiteralSize(_stats.totalLiteralSize() + size -
+                                   numMatched);
+
+        Path tempFile = Files.createTempFile(
+            CustomFileSystem.getTempPath(target.getParent().toString()),
+            null, null);
+        try {
+            long numCopied = copy(fileInfo.path(), tempFile, size);
+            if (numCopied != size) {
+                throw new IOException(String.format(
+                    "%s changed size during copy (%d -> %d)",
+                    fileInfo.path(), size, numCopied));
+            }
+            if (_attrUpdater.isPreservingAny()) {
+                _attrUpdater.apply(tempFile,
+                                    RsyncFileAttributes.stat(tempFile,
+                                                             isResolveNames()),
+                                    fileInfo.attrs());
+            }
+            if (!FileOps.atomicMove(tempFile, target)) {
+                throw new IOException(String.format(
+                    "failed to move temporary file %s to %s",
+                    tempFile, target));
+            }
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private static long copy(Path source, Path target, long size)
+        throws IOException
+    {
+        try (FileChannel in = FileChannel.open(source,
+                                               StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(target,
+                                                StandardOpenOption.WRITE)) {
+            long position = 0;
+            while (position < size) {
+                long n = in.transferTo(position, size - position, out);
+                if (n <= 0) {
+                    break;
+                }
+                position += n;
+            }
+            return position;
+        }
+    }
+
+    // returns the number of bytes from the start of source and target which
+    // are identical, compared in ranges of COMPARE_BUF_SIZE
+    private long numIdenticalBytes(Path source, Path target, long size)
+        throws IOException
+    {
+        if (_sourceBuf == null) {
+            _sourceBuf = ByteBuffer.allocate(COMPARE_BUF_SIZE);
+            _targetBuf = ByteBuffer.allocate(COMPARE_BUF_SIZE);
+        }
+        try (FileChannel in = FileChannel.open(source,
+                                               StandardOpenOption.READ);
+             FileChannel replica = FileChannel.open(target,
+                                                    StandardOpenOption.READ)) {
+            long position = 0;
+            while (position < size) {
+                int length = (int) Math.min(COMPARE_BUF_SIZE, size - position);
+                if (!readFully(in, _sourceBuf, position, length) ||
+                    !readFully(replica, _targetBuf, position, length) ||
+                    !_sourceBuf.equals(_targetBuf))
+                {
+                    return position;
+                }
+                position += length;
+            }
+            return position;
+        }
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer buf,
+                                     long position, int length)
+        throws IOException
+    {
+        buf.clear().limit(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                return false;
+            }
+        }
+        buf.flip();
+        return true;
+    }
+
+    private boolean removeExistingIfDifferentType(
+                                              FileInfo fileInfo,
+                                              Path target,
+                                              RsyncFileAttributes existingAttrs)
+        throws IOException
+    {
+        if (existingAttrs != null &&
+            existingAttrs.fileType() != fileInfo.attrs().fileType()) {
+            PathOps.deleteIfExists(target, PathOps.EMPTY);
+            return true;
+        }
+        return false;
+    }
+
+    // see Receiver.deleteUnmatchedFiles
+    private void deleteUnmatchedFiles(Filelist.SegmentBuilder builder,
+                                      Path basePath)
+    {
+        if (_deleter.isDeletable(basePath, _ioError)) {
+            _ioError |= _deleter.deleteUnmatched(
+                builder, basePath,
+                Receiver.relativePathOfDir(_targetRoot, basePath),
+                _deletionRuleConfiguration);
+        }
+    }
+
+    private void deferUpdateAttrsIfDiffer(final Path path,
+                                          final RsyncFileAttributes curAttrs,
+                                          final RsyncFileAttributes targetAttrs)
+    {
+        Runnable j = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    _attrUpdater.apply(path, curAttrs, targetAttrs);
+                } catch (IOException e) {
+                    if (_log.isLoggable(Level.WARNING)) {
+                        _log.warning(String.format(
+                            "(LocalTransfer) received I/O error while " +
+                            "applying attributes on %s: %s",
+                            path, e.getMessage()));
+                    }
+                    _ioError |= IoError.GENERAL;
+                }
+            }
+        };
+        _deferredDirAttrUpdates.addFirst(j);
+    }
+}
@@ -25,7 +25,6 @@ import java.nio.ByteOrder;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.charset.Charset;
-import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
 import java.nio.file.LinkOption;
@@ -71,13 +70,6 @@ import com.github.perlundq.yajsync.util.Util;
 
 public class Receiver implements RsyncTask,MessageHandler
 {
-    @SuppressWarnings("serial")
-    private class PathResolverException extends Exception {
-        public PathResolverException(String msg) {
-            super(msg);
-        }
-    }
-
     private static class FileInfoStub {
         private final String _pathName;
         private final byte[] _pathNameBytes;
@@ -120,7 +112,6 @@ public class Receiver implements RsyncTask,MessageHandler
     private static final Logger _log =
         Logger.getLogger(Receiver.class.getName());
 
-    private static final int INPUT_CHANNEL_BUF_SIZE = 8 * 1024;
     private final FileInfoCache _fileInfoCache = new FileInfoCache();
     private final Map<Integer, User> _uidUserMap = new HashMap<>();
     private final Map<Integer, Group> _gidGroupMap = new HashMap<>();
@@ -147,7 +138,9 @@ public class Receiver implements RsyncTask,MessageHandler
     private boolean _isSafeFileList = true;
     private boolean _isDelete;
     private boolean _isDeleteExcluded;
-    private final boolean _isDeleteBefore = true;	// default
+    private boolean _isDeleteAfter;
+    private boolean _isSyncGenerator;
+    private UnmatchedFileDeleter _deleter;
     private int _ioError;
     private PathResolver _pathResolver;
 
@@ -156,9 +149,7 @@ public class Receiver implements RsyncTask,MessageHandler
                     Charset charset,
                     String targetPathName)
     {
-        _senderInChannel = new RsyncInChannel(in,
-                                              this,
-                                              INPUT_CHANNEL_BUF_SIZE);
+        _senderInChannel = new RsyncInChannel(in, this);
         _characterDecoder = TextDecoder.newStrict(charset);
         _characterEncoder = TextEncoder.newStrict(charset);
         _generator = generator;
@@ -249,6 +240,12 @@ public class Receiver implements RsyncTask,MessageHandler
         return this;
     }
 
+    public Receiver setIsDeleteAfter(boolean isDeleteAfter)
+    {
+        _isDeleteAfter = isDeleteAfter;
+        return this;
+    }
+
     public Receiver setIsExitAfterEOF(boolean isExitAfterEOF)
     {
         _isExitAfterEOF = isExitAfterEOF;
@@ -284,6 +281,28 @@ public class Receiver implements RsyncTask,MessageHandler
         return this;
     }
 
+    /**
+     * If true, wait for Generator to catch up before acting on a file list
+     * DONE. Only needed when there is no Sender (see Batch), which would
+     * otherwise only send DONE after Generator has finished the segment.
+     */
+    public Receiver setIsSyncGenerator(boolean isSyncGenerator)
+    {
+        _isSyncGenerator = isSyncGenerator;
+        return this;
+    }
+
+    /**
+     * The receive buffer of the input from Sender starts out at numBytes
+     * bytes and is doubled, up to maxNumBytes bytes, whenever a single read
+     * fills it.
+     */
+    public Receiver setInputBufferSize(int numBytes, int maxNumBytes)
+    {
+        _senderInChannel.setBufferSize(numBytes, maxNumBytes);
+        return this;
+    }
+
     public Receiver setIsSafeFileList(boolean isSafeFileList)
     {
         _isSafeFileList = isSafeFileList;
@@ -311,14 +330,14 @@ public class Receiver implements RsyncTask,MessageHandler
                                         "isDeferredWrite=%s, " +
                                         "isListOnly=%s, isPreserveTimes=%s, " +
                                         "isDelete=%s, isDeleteExcluded=%s, " +
-                                        "isRecursive=%s, sendFilterRules=%s, " +
+                                        "isDeleteAfter=%s, isRecursive=%s, sendFilterRules=%s, " +
                                         /* "filterRules=%s, " + */
                                         "receiveStatistics=%s, " +
                                         "exitEarlyIfEmptyList=%s",
                                         _targetPathName, _isDeferredWrite,
                                         _isListOnly, _isPreserveTimes,
                                         _isDelete, _isDeleteExcluded,
-                                        _isRecursive, _isSendFilterRules,
+                                        _isDeleteAfter, _isRecursive, _isSendFilterRules,
                                         /* _filterRuleConfiguration.getFilterRuleList()._rules, */
                                         _isReceiveStatistics,
                                         _isExitEarlyIfEmptyList));
@@ -372,19 +391,21 @@ public class Receiver implements RsyncTask,MessageHandler
             }
 
             Path targetPath = PathOps.get(_targetPathName);                     // throws InvalidPathException
-            _pathResolver = getPathResolver(targetPath, stubs);                 // throws PathResolverException
+            _pathResolver = getPathResolver(targetPath, stubs);                 // throws RsyncException
             Filelist.SegmentBuilder builder = new Filelist.SegmentBuilder(null);
             _ioError |= extractFileMetadata(stubs, builder);
 
-            if (_isDeleteBefore) {
-            	_ioError |= deleteUnmatchedFiles(builder, targetPath);
-            }
+            _deleter = new UnmatchedFileDeleter(_characterEncoder, _isDelete,
+                                                _isDeleteExcluded,
+                                                _isDeleteAfter);
+            _ioError |= deleteUnmatchedFiles(builder, targetPath);
 
             Filelist fileList = new ConcurrentFilelist(_isRecursive);           // FIXME: move out
             _generator.setFileList(fileList);                                   // FIXME: move out
             Filelist.Segment segment = fileList.newSegment(builder);
             _generator.generateSegment(segment);
             receiveFiles(fileList, segment);
+            _ioError |= _deleter.deletePending(_ioError);                       // before generator applies directory attributes
             _stats.setNumFiles(fileList.numFiles());
             if (_isReceiveStatistics) {
                 receiveStatistics();
@@ -411,8 +432,6 @@ public class Receiver implements RsyncTask,MessageHandler
         } catch (InvalidPathException e) { // Paths.get
             throw new RsyncException(String.format(
                 "illegal target path name %s: %s", _targetPathName, e));
-        } catch (PathResolverException e) { // getPathResolver
-            throw new RsyncException(e);
         } finally {
             _generator.stop();
         }
@@ -527,12 +546,90 @@ public class Receiver implements RsyncTask,MessageHandler
      */
     private PathResolver getPathResolver(final Path targetPath,
                                          final List<FileInfoStub> stubs)
-        throws PathResolverException
+        throws RsyncException
     {
         assert stubs.size() > 0;
+        if (isCopyToTargetFile(targetPath, stubs, stubs.get(0)._attrs)) {      // -> targetPath
+            return new PathResolver() {
+                @Override public Path relativePathOf(String pathName) {
+                    return CustomFileSystem.getPath(stubs.get(0)._pathName);
+                }
+                @Override public Path relativePathOf(Path fullPath) {
+                    Path relativePath = targetPath.relativize(fullPath);
+                    if (!relativePath.equals(PathOps.EMPTY)) {
+                        return relativePath.normalize();
+                    }
+                    return relativePath;
+                }
+                @Override public Path fullPathOf(Path relativePath) {
+                    return targetPath;
+                }
+            };
+        }
+        return new PathResolver() {                                             // -> targetPath/*
+            @Override public Path relativePathOf(String pathName) {
+                Path relativePath = CustomFileSystem.getPath(pathName);                    // throws InvalidPathException
+                if (relativePath.isAbsolute()) {
+                    throw new RsyncSecurityException(relativePath +
+                        " is absolute");
+                }
+                Path normalizedRelativePath =
+                    PathOps.normalizeStrict(relativePath);
+                return normalizedRelativePath;
+            }
+            @Override public Path relativePathOf(Path fullPath) {
+                return relativePathOfDir(targetPath, fullPath);
+            }
+            @Override public Path fullPathOf(Path relativePath) {
+                Path fullPath =
+                    targetPath.resolve(relativePath).normalize();
+                if (!fullPath.startsWith(targetPath.normalize())) {
+                    throw new RsyncSecurityException(String.format(
+                        "%s is outside of receiver destination dir %s",
+                        fullPath, targetPath));
+                }
+                return fullPath;
+            }
+        };
+    }
+
+    /**
+     * @return the normalized path of fullPath relative to target directory
+     *         targetPath, also used by LocalTransfer
+     */
+    static Path relativePathOfDir(Path targetPath, Path fullPath)
+    {
+        try {
+            // targetPath ends with a dot if given with a trailing slash
+            Path relativePath =
+                targetPath.normalize().relativize(fullPath.normalize());
+            if (!relativePath.equals(PathOps.EMPTY)) {
+                return relativePath.normalize();
+            }
+            return relativePath;
+        } catch (Exception e) {
+            throw new RsyncSecurityException(targetPath + " vs. " + fullPath);
+        }
+    }
+
+    /**
+     * Decides how the initial sources are copied to targetPath, see
+     * getPathResolver. Also used by LocalTransfer.
+     *
+     * @param firstSourceAttrs the attributes of the first of sources
+     * @return true if the single source file is copied to targetPath itself,
+     *         false if the sources are copied into directory targetPath (which
+     *         is created if missing)
+     * @throws RsyncException if the sources cannot be copied to targetPath
+     */
+    static boolean isCopyToTargetFile(Path targetPath, List<?> sources,
+                                      RsyncFileAttributes firstSourceAttrs)
+        throws RsyncException
+    {
+        assert sources.size() > 0;
         try {
             RsyncFileAttributes attrs =
-                RsyncFileAttributes.statIfExists(targetPath);                   // throws IOException
+                RsyncFileAttributes.statIfExists(targetPath, false);            // throws IOException
 
             boolean isTargetExisting = attrs != null;
             boolean isTargetExistingDir =
@@ -540,91 +637,45 @@ public class Receiver implements RsyncTask,MessageHandler
             boolean isTargetExistingFile =
                 isTargetExisting && attrs.isRegularFile();
             boolean isSourceSingleFile =
-                stubs.size() == 1 && stubs.get(0)._attrs.isRegularFile();
+                sources.size() == 1 && firstSourceAttrs.isRegularFile();
             boolean isTargetNonExistingFile =
                 !isTargetExisting && !targetPath.endsWith(PathOps.DOT_DIR);
 
             if (isSourceSingleFile && isTargetNonExistingFile ||
                 isSourceSingleFile && isTargetExistingFile)
-            {                                                                       // -> targetPath
-                return new PathResolver() {
-                    @Override public Path relativePathOf(String pathName) {
-                        return CustomFileSystem.getPath(stubs.get(0)._pathName);
-                    }
-                    @Override public Path relativePathOf(Path fullPath) {
-                    	Path relativePath = targetPath.relativize(fullPath);
-                		if (!relativePath.equals(PathOps.EMPTY)) {
-                			return relativePath.normalize();
-                		}
-                		return relativePath;
-                    }
-                    @Override public Path fullPathOf(Path relativePath) {
-                        return targetPath;
-                    }
-                };
+            {
+                return true;
             }
-            if (isTargetExistingDir || !isTargetExisting) {                         // -> targetPath/*
+            if (isTargetExistingDir || !isTargetExisting) {
                 if (!isTargetExisting) {
                     Files.createDirectories(targetPath);
                 }
-                return new PathResolver() {
-                    @Override public Path relativePathOf(String pathName) {
-                        Path relativePath = CustomFileSystem.getPath(pathName);                    // throws InvalidPathException
-                        if (relativePath.isAbsolute()) {
-                            throw new RsyncSecurityException(relativePath +
-                                " is absolute");
-                        }
-                        Path normalizedRelativePath =
-                            PathOps.normalizeStrict(relativePath);
-                        return normalizedRelativePath;
-                    }
-                    @Override public Path relativePathOf(Path fullPath) {
-                    	try {
-                    		Path relativePath = targetPath.relativize(fullPath);
-                    		if (!relativePath.equals(PathOps.EMPTY)) {
-                    			return relativePath.normalize();
-                    		}
-                    		return relativePath;
-                    	} catch (Exception e) {
-                    		throw new RsyncSecurityException(targetPath + " vs. " + fullPath);
-                    	}
-                    }
-                    @Override public Path fullPathOf(Path relativePath) {
-                        Path fullPath =
-                            targetPath.resolve(relativePath).normalize();
-                        if (!fullPath.startsWith(targetPath.normalize())) {
-                            throw new RsyncSecurityException(String.format(
-                                "%s is outside of receiver destination dir %s",
-                                fullPath, targetPath));
-                        }
-                        return fullPath;
-                    }
-                };
+                return false;
             }
 
             if (isTargetExisting && !attrs.isDirectory() && !attrs.isRegularFile()) {
-                throw new PathResolverException(String.format(
+                throw new RsyncException(String.format(
                     "refusing to overwrite existing target path %s which is " +
                     "neither a file nor a directory (%s)", targetPath, attrs));
             }
-            if (isTargetExistingFile && stubs.size() >= 2) {
-                throw new PathResolverException(String.format(
+            if (isTargetExistingFile && sources.size() >= 2) {
+                throw new RsyncException(String.format(
                     "refusing to copy source files %s into file %s " +
-                    "(%s)", stubs, targetPath, attrs));
+                    "(%s)", sources, targetPath, attrs));
             }
-            if (isTargetExistingFile && stubs.size() == 1 &&
-                stubs.get(0)._attrs.isDirectory()) {
-                throw new PathResolverException(String.format(
+            if (isTargetExistingFile && sources.size() == 1 &&
+                firstSourceAttrs.isDirectory()) {
+                throw new RsyncException(String.format(
                     "refusing to recursively copy directory %s into " +
-                    "non-directory %s (%s)", stubs.get(0), targetPath, attrs));
+                    "non-directory %s (%s)", sources.get(0), targetPath, attrs));
             }
 
             throw new AssertionError(String.format(
-                "BUG: stubs=%s targetPath=%s attrs=%s",
-                stubs, targetPath, attrs));
+                "BUG: sources=%s targetPath=%s attrs=%s",
+                sources, targetPath, attrs));
 
         } catch (IOException e) {
-            throw new PathResolverException(String.format(
+            throw new RsyncException(String.format(
                 "unable to stat %s: %s", targetPath, e));
         }
     }
@@ -792,6 +843,9 @@ public class Receiver implements RsyncTask,MessageHandler
             }
 
             if (index == Filelist.DONE) {
+                if (_isSyncGenerator) {
+                    _generator.sync();
+                }
                 if (!_isRecursive && !fileList.isEmpty()) {
                     throw new IllegalStateException(
                         "received file list DONE when not recursive and file " +
@@ -860,9 +914,7 @@ public class Receiver implements RsyncTask,MessageHandler
                     new Filelist.SegmentBuilder(directory);
                 _ioError |= extractFileMetadata(stubs, builder);
 
-                if (_isDeleteBefore) {
-                	_ioError |= deleteUnmatchedFiles(builder, directory.path());
-                }
+                _ioError |= deleteUnmatchedFiles(builder, directory.path());
 
                 segment = fileList.newSegment(builder);
                 _generator.generateSegment(segment);
@@ -1012,10 +1064,20 @@ public class Receiver implements RsyncTask,MessageHandler
         }
     }
 
+    /**
+     * user and group names are only needed when preserving ownership by name,
+     * otherwise numeric ids are enough and the name lookups can be skipped
+     */
+    private boolean isResolveNames()
+    {
+        return (_isPreserveUser || _isPreserveGroup) && !_isNumericIds;
+    }
+
     private void updateAttrsIfDiffer(Path path, RsyncFileAttributes targetAttrs)
         throws IOException
     {
-        RsyncFileAttributes curAttrs = RsyncFileAttributes.stat(path);
+        RsyncFileAttributes curAttrs =
+            RsyncFileAttributes.stat(path, isResolveNames());
 
         if (_isPreservePermissions && curAttrs.mode() != targetAttrs.mode()) {
             if (_log.isLoggable(Level.FINE)) {
@@ -1096,10 +1158,15 @@ public class Receiver implements RsyncTask,MessageHandler
         throws ChannelException, InterruptedException
     {
         MessageDigest md = MD5.newInstance();
+        long numMatchedBefore = _stats.totalMatchedSize();
+        long numLiteralBefore = _stats.totalLiteralSize();
         Path resultFile = mergeDataFromPeerAndReplica(fileInfo,
                                                       tempFile,
                                                       checksumHeader,
                                                       md);
+        _generator.recordTransfer(fileInfo, checksumHeader,
+                                  _stats.totalMatchedSize() - numMatchedBefore,
+                                  _stats.totalLiteralSize() - numLiteralBefore);
         if (isRemoteAndLocalFileIdentical(resultFile, md, fileInfo)) {
             try {
                 if (_isPreservePermissions || _isPreserveTimes ||
@@ -1152,11 +1219,7 @@ public class Receiver implements RsyncTask,MessageHandler
 
     private long receiveAndDecodeLong(int minBytes) throws ChannelException
     {
-        try {
-            return IntegerCoder.decodeLong(_senderInChannel, minBytes);
-        } catch (Exception e) {
-            throw new ChannelException(e.getMessage());
-        }
+        return IntegerCoder.decodeLong(_senderInChannel, minBytes);
     }
 
     /**
@@ -1585,12 +1648,12 @@ public class Receiver implements RsyncTask,MessageHandler
             try (SeekableByteChannel replica =
             		Files.newByteChannel(fileInfo.path(), StandardOpenOption.READ)) {
                 RsyncFileAttributes attrs =
-                    RsyncFileAttributes.stat(fileInfo.path());
+                    RsyncFileAttributes.stat(fileInfo.path(), false);
                 if (attrs.isRegularFile()) {
                     boolean isIntact = combineDataToFile(replica, outFile,
                                                          checksumHeader, md);
                     if (isIntact) {
-                        if (!attrs.equals(RsyncFileAttributes.statOrNull(fileInfo.path()))) {
+                        if (!attrs.equals(RsyncFileAttributes.statOrNull(fileInfo.path(), false))) {
                             if (_log.isLoggable(Level.WARNING)) {
                                 _log.warning(String.format(
                                     "%s modified during verification",
@@ -1735,10 +1798,9 @@ public class Receiver implements RsyncTask,MessageHandler
         // TODO: possibly skip writing out to file if replica is not OK
         int bytesReceived = 0;
         while (bytesReceived < length) {
-            int chunkSize = Math.min(INPUT_CHANNEL_BUF_SIZE,
-                                     length - bytesReceived);
-            ByteBuffer literalData = _senderInChannel.get(chunkSize);
-            bytesReceived += chunkSize;
+            ByteBuffer literalData =
+                _senderInChannel.getDataSlice(length - bytesReceived);          // written and digested directly from the receive buffer
+            bytesReceived += literalData.remaining();
             if (outFile != null) {
                 literalData.mark();
                 writeOut(outFile, literalData);
@@ -1843,85 +1905,11 @@ public class Receiver implements RsyncTask,MessageHandler
     }
 
     public int deleteUnmatchedFiles(Filelist.SegmentBuilder builder, Path basePath) {
-
-    	int ioError = 0;
-
-    	if ((!_isDelete && !_isDeleteExcluded) || !Files.isDirectory(basePath) || !Files.exists(basePath)) {
-    		return ioError;
-    	}
-
-    	if (_log.isLoggable(Level.FINE)) {
-    		_log.fine(String.format("delete unmatched files in dir %s", basePath));
-    	}
-
-    	if (_ioError!=0 /* & IOERR_GENERAL && !ignore_errors */) {	// TODO
-//     		if (already_warned)
-//     			return;
-//     		rprintf(FINFO,
-//     			"IO error encountered -- skipping file deletion\n");
-//     		already_warned = 1;
-    		return ioError;
-    	}
-
-    	try {
-
-    		/* if (deleteUnmatchedFile(builder, path)) {
-    			return ioError;
-    		} */
-
-    		try (DirectoryStream<Path> stream = Files.newDirectoryStream(basePath)) {
-	        	for (Path entry : stream) {
-	        		deleteUnmatchedFile(builder, entry, basePath);
-	        	}
-	    	}
-
-    	} catch (IOException e) {
-        	if (_log.isLoggable(Level.WARNING)) {
-            	_log.warning(String.format("Got I/O error during deletion of unmatched files " +
-                                           "of %s: %s",
-                                           basePath, e.getMessage()));
-            }
-        	ioError = IoError.GENERAL;
-        }
-
-        return ioError;
-    }
-
-    private boolean deleteUnmatchedFile(Filelist.SegmentBuilder builder, Path entry, Path basePath) throws IOException {
-
-		Path relativePath = _pathResolver.relativePathOf(entry);
-		if (relativePath.equals(PathOps.EMPTY)) {
-			// don't delete the relative root directory
-			return false;
-		}
-
-        String relativePathName = Text.withSlashAsPathSepator(relativePath.toString());
-        byte[] pathNameBytes = _characterEncoder.encodeOrNull(relativePathName);
-        if (pathNameBytes != null) {
-            FileInfo fileInfo = new FileInfo(entry, relativePath,
-                                       pathNameBytes, RsyncFileAttributes.stat(entry));
-
-            boolean isDirectory = Files.isDirectory(entry);
-            String filename = "./"+relativePathName;
-
-            // detect protection
-            if (_filterRuleConfiguration.protect(filename, isDirectory)) {
-            	return false;
-            }
-
-            // detect exclusion, TODO: check path conversion
-            boolean isEntryExcluded = _filterRuleConfiguration.exclude(filename, isDirectory);
-
-            if (!isEntryExcluded && _isDelete && !builder.contains(fileInfo)) {
-            	PathOps.deleteIfExists(fileInfo.path(), basePath);
-            	return true;
-    		}
-    		else if (isEntryExcluded && _isDeleteExcluded) {
-    			PathOps.deleteIfExists(fileInfo.path(), basePath);
-    			return true;
-    		}
+        if (!_deleter.isDeletable(basePath, _ioError)) {
+            return 0;
         }
-
-        return false;
+        return _deleter.deleteUnmatched(builder, basePath,
+                                        _pathResolver.relativePathOf(basePath),
+                                        _filterRuleConfiguration);
     }
 }
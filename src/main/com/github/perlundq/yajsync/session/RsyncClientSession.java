@@ -19,7 +19,9 @@
  */
 package com.github.perlundq.yajsync.session;
 
+import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
@@ -28,10 +30,14 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 
+import com.github.perlundq.yajsync.channels.PrefetchedTaggedInputChannel;
+import com.github.perlundq.yajsync.channels.RateLimitedChannel;
 import com.github.perlundq.yajsync.io.CustomFileSystem;
+import com.github.perlundq.yajsync.io.FileView;
 import com.github.perlundq.yajsync.session.ClientSessionConfig.AuthProvider;
 import com.github.perlundq.yajsync.text.Text;
 import com.github.perlundq.yajsync.ui.FilterRuleConfiguration;
+import com.github.perlundq.yajsync.util.TokenBucket;
 
 public class RsyncClientSession
 {
@@ -50,8 +56,19 @@ public class RsyncClientSession
     private boolean _isNumericIds;
     private boolean _isDelete;
     private boolean _isDeleteExcluded;
+    private boolean _isDeleteAfter;
     private boolean _isIgnoreTimes;
     private boolean _isTransferDirs;
+    private int _spillThreshold;
+    private int _numPrefetchDirectories;
+    private int _smallFileThreshold = FileView.DEFAULT_SMALL_FILE_THRESHOLD;
+    private int _inputBufferSize = PrefetchedTaggedInputChannel.DEFAULT_BUF_SIZE;
+    private int _maxInputBufferSize =
+        PrefetchedTaggedInputChannel.DEFAULT_MAX_BUF_SIZE;
+    private int _blockSize;
+    private BlockSizePolicy _blockSizePolicy = BlockSizePolicy.newSquareRoot();
+    private int _bandwidthLimit;
+    private Path _batchFile;
 
     public RsyncClientSession() {}
 
@@ -133,6 +150,12 @@ public class RsyncClientSession
         return this;
     }
 
+    public RsyncClientSession setIsDeleteAfter(boolean isDeleteAfter)
+    {
+        _isDeleteAfter = isDeleteAfter;
+        return this;
+    }
+
     public RsyncClientSession setFilterRuleConfiguration(
     		FilterRuleConfiguration filterRuleConfiguration) {
     	_filterRuleConfiguration = filterRuleConfiguration;
@@ -145,6 +168,74 @@ public class RsyncClientSession
         return this;
     }
 
+    public RsyncClientSession setSpillThreshold(int spillThreshold)
+    {
+        _spillThreshold = spillThreshold;
+        return this;
+    }
+
+    public RsyncClientSession setNumPrefetchDirectories(int numPrefetchDirectories)
+    {
+        _numPrefetchDirectories = numPrefetchDirectories;
+        return this;
+    }
+
+    public RsyncClientSession setSmallFileThreshold(int smallFileThreshold)
+    {
+        _smallFileThreshold = smallFileThreshold;
+        return this;
+    }
+
+    public RsyncClientSession setInputBufferSize(int inputBufferSize)
+    {
+        _inputBufferSize = inputBufferSize;
+        return this;
+    }
+
+    public RsyncClientSession setMaxInputBufferSize(int maxInputBufferSize)
+    {
+        _maxInputBufferSize = maxInputBufferSize;
+        return this;
+    }
+
+    /**
+     * Use a checksum block length of blockSize for all files, on either
+     * side, instead of the block size policy. 0 (default) disables it.
+     */
+    public RsyncClientSession setBlockSize(int blockSize)
+    {
+        _blockSize = blockSize;
+        return this;
+    }
+
+    public RsyncClientSession setBlockSizePolicy(BlockSizePolicy blockSizePolicy)
+    {
+        _blockSizePolicy = blockSizePolicy;
+        return this;
+    }
+
+    /**
+     * Limit the rate of data sent by both this client and the server to
+     * kiloBytesPerSecond KiB per second, 0 (default) is unlimited.
+     */
+    public RsyncClientSession setBandwidthLimit(int kiloBytesPerSecond)
+    {
+        assert kiloBytesPerSecond >= 0;
+        _bandwidthLimit = kiloBytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Also record the data sent by the Sender, whether it is us or the
+     * server, to batchFile, which may then be replayed on other
+     * destinations in the same state as this one by RsyncLocal.replay.
+     */
+    public RsyncClientSession setBatchFile(Path batchFile)
+    {
+        _batchFile = batchFile;
+        return this;
+    }
+
     public Statistics statistics()
     {
         return _statistics;
@@ -204,6 +295,15 @@ public class RsyncClientSession
         if (_isDeleteExcluded) {
         	serverArgs.add("--delete-excluded");
         }
+        if (_isDeleteAfter) {
+            serverArgs.add("--delete-delay");                                   // what we actually do
+        }
+        if (_bandwidthLimit > 0) {
+            serverArgs.add("--bwlimit=" + _bandwidthLimit);
+        }
+        if (_blockSize > 0) {
+            serverArgs.add("--block-size=" + _blockSize);
+        }
 
         serverArgs.add("."); // arg delimiter
 
@@ -254,18 +354,99 @@ public class RsyncClientSession
             return true;
         }
 
+        WritableByteChannel peerOut = out;
+        if (_bandwidthLimit > 0) {
+            peerOut = new RateLimitedChannel(
+                out, 1, TokenBucket.newKiloBytesPerSecond(_bandwidthLimit));
+        }
+
+        FileChannel batchOut = null;
+        if (_batchFile != null) {
+            batchOut = createBatch(cfg);
+            if (_isSender) {
+                peerOut = Batch.recordWrites(peerOut, batchOut);
+            } else {
+                in = Batch.recordReads(in, batchOut);
+            }
+        }
+        try {
+            return transfer(executor, in, peerOut, cfg, srcArgs, dstArg,
+                            isChannelsInterruptible, stdout);
+        } finally {
+            if (batchOut != null) {
+                closeBatch(batchOut);
+            }
+        }
+    }
+
+    private FileChannel createBatch(ClientSessionConfig cfg)
+        throws RsyncException
+    {
+        try {
+            return new Batch().
+                setCharset(cfg.charset()).
+                setIsRecursive(_isRecursiveTransfer).
+                setIsPreservePermissions(_isPreservePermissions).
+                setIsPreserveTimes(_isPreserveTimes).
+                setIsPreserveUser(_isPreserveUser).
+                setIsPreserveGroup(_isPreserveGroup).
+                setIsNumericIds(_isNumericIds).
+                setIsIgnoreTimes(_isIgnoreTimes).
+                setIsDelete(_isDelete).
+                setIsDeleteExcluded(_isDeleteExcluded).
+                setIsDeleteAfter(_isDeleteAfter).
+                setIsSafeFileList(cfg.isSafeFileList()).
+                setIsServerSender(!_isSender, _filterRuleConfiguration).
+                setIsExitEarlyIfEmptyList(!_isSender).                          // as Receiver.newServerInstance if we are the Sender
+                setIsExitAfterEOF(!_isSender).
+                create(_batchFile);
+        } catch (IOException e) {
+            throw new RsyncException(String.format(
+                "failed to create batch file %s: %s", _batchFile, e));
+        }
+    }
+
+    private void closeBatch(FileChannel batchOut) throws RsyncException
+    {
+        try {
+            batchOut.close();
+        } catch (IOException e) {
+            throw new RsyncException(String.format(
+                "failed to write batch file %s: %s", _batchFile, e));
+        }
+    }
+
+    private boolean transfer(ExecutorService executor,
+                             ReadableByteChannel in,
+                             WritableByteChannel peerOut,
+                             ClientSessionConfig cfg,
+                             List<String> srcArgs,
+                             String dstArg,
+                             boolean isChannelsInterruptible,
+                             PrintStream stdout)
+        throws RsyncException, InterruptedException
+    {
         if (_isSender) {
             List<Path> srcPaths = toListOfPaths(srcArgs);
             Sender sender = Sender.newClientInstance(in,
-                                                     out,
+                                                     peerOut,
                                                      srcPaths,
                                                      _charset,
                                                      cfg.checksumSeed()).
                 setIsRecursive(_isRecursiveTransfer).
+                setIsPreservePermissions(_isPreservePermissions).
                 setIsPreserveUser(_isPreserveUser).
+                setIsPreserveGroup(_isPreserveGroup).
+                setIsNumericIds(_isNumericIds).
+                setIsDelete(_isDelete).                                         // the server Receiver expects our filter rules
+                setIsDeleteExcluded(_isDeleteExcluded).
                 setIsInterruptible(isChannelsInterruptible).
                 setIsSafeFileList(cfg.isSafeFileList()).
-                setFilterRuleConfiguration(_filterRuleConfiguration);
+                setFilterRuleConfiguration(_filterRuleConfiguration).
+                setSpillThreshold(_spillThreshold).
+                setNumPrefetchDirectories(_numPrefetchDirectories).
+                setSmallFileThreshold(_smallFileThreshold).
+                setInputBufferSize(_inputBufferSize, _maxInputBufferSize);
             boolean isTransferDirs = _isTransferDirs ||
                                      _isModuleListing && !_isRecursiveTransfer;
             sender.setIsTransferDirs(isTransferDirs);
@@ -274,7 +455,7 @@ public class RsyncClientSession
             return isOK;
         } else {
             Generator generator =
-                Generator.newClientInstance(out, cfg.charset(),
+                Generator.newClientInstance(peerOut, cfg.charset(),
                                             cfg.checksumSeed(),
                                             stdout).
                     setIsRecursive(_isRecursiveTransfer).
@@ -286,8 +467,13 @@ public class RsyncClientSession
                     setIsIgnoreTimes(_isIgnoreTimes).
                     setIsAlwaysItemize(_verbosity > 1).
                     setIsListOnly(_isModuleListing).
+                    setSmallFileThreshold(_smallFileThreshold).
+                    setBlockSizePolicy(_blockSize > 0
+                        ? BlockSizePolicy.newFixed(_blockSize)
+                        : _blockSizePolicy).
                     setIsInterruptible(isChannelsInterruptible);
             Receiver receiver = new Receiver(generator, in, _charset, dstArg).
+                setInputBufferSize(_inputBufferSize, _maxInputBufferSize).
                 setIsSendFilterRules(true).
                 setFilterRuleConfiguration(_filterRuleConfiguration).
                 setIsReceiveStatistics(true).
@@ -300,6 +486,7 @@ public class RsyncClientSession
                 setIsNumericIds(_isNumericIds).
                 setIsDelete(_isDelete).
                 setIsDeleteExcluded(_isDeleteExcluded).
+                setIsDeleteAfter(_isDeleteAfter).
                 setIsListOnly(_isModuleListing).
                 setIsDeferredWrite(_isDeferredWrite).
                 setIsInterruptible(isChannelsInterruptible).
@@ -20,11 +20,16 @@ package com.github.perlundq.yajsync.session;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.channels.FileChannel;
 import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.Charset;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.concurrent.ExecutorService;
 
+import com.github.perlundq.yajsync.channels.PrefetchedTaggedInputChannel;
+import com.github.perlundq.yajsync.io.FileView;
 import com.github.perlundq.yajsync.text.Text;
 import com.github.perlundq.yajsync.ui.FilterRuleConfiguration;
 import com.github.perlundq.yajsync.util.BitOps;
@@ -40,6 +45,7 @@ public class RsyncLocal
     private boolean _isNumericIds;
     private boolean _isDelete;
     private boolean _isDeleteExcluded;
+    private boolean _isDeleteAfter;
     private boolean _isIgnoreTimes;
     private boolean _isDeferredWrite;
     private FilterRuleConfiguration _filterRuleConfiguration;
@@ -47,6 +53,15 @@ public class RsyncLocal
     private Statistics _statistics = new Statistics();
     private boolean _isTransferDirs = false;
     private boolean _isModuleListing = false;
+    private int _spillThreshold;
+    private int _numPrefetchDirectories;
+    private int _smallFileThreshold = FileView.DEFAULT_SMALL_FILE_THRESHOLD;
+    private int _inputBufferSize = PrefetchedTaggedInputChannel.DEFAULT_BUF_SIZE;
+    private int _maxInputBufferSize =
+        PrefetchedTaggedInputChannel.DEFAULT_MAX_BUF_SIZE;
+    private BlockSizePolicy _blockSizePolicy = BlockSizePolicy.newSquareRoot();
+    private boolean _isWholeFile;
+    private Path _batchFile;
 
     public RsyncLocal() {}
 
@@ -105,6 +120,11 @@ public class RsyncLocal
     	_isDeleteExcluded = isDeleteExcluded;
     }
 
+    public void setIsDeleteAfter(boolean isDeleteAfter)
+    {
+        _isDeleteAfter = isDeleteAfter;
+    }
+
     public void setIsIgnoreTimes(boolean isIgnoreTimes)
     {
         _isIgnoreTimes = isIgnoreTimes;
@@ -120,6 +140,59 @@ public class RsyncLocal
         _isTransferDirs = isTransferDirs;
     }
 
+    public void setSpillThreshold(int spillThreshold)
+    {
+        _spillThreshold = spillThreshold;
+    }
+
+    public void setNumPrefetchDirectories(int numPrefetchDirectories)
+    {
+        _numPrefetchDirectories = numPrefetchDirectories;
+    }
+
+    public void setSmallFileThreshold(int smallFileThreshold)
+    {
+        _smallFileThreshold = smallFileThreshold;
+    }
+
+    public void setInputBufferSize(int inputBufferSize)
+    {
+        _inputBufferSize = inputBufferSize;
+    }
+
+    public void setMaxInputBufferSize(int maxInputBufferSize)
+    {
+        _maxInputBufferSize = maxInputBufferSize;
+    }
+
+    public void setBlockSizePolicy(BlockSizePolicy blockSizePolicy)
+    {
+        _blockSizePolicy = blockSizePolicy;
+    }
+
+    /**
+     * If true files are copied whole and in-process by LocalTransfer,
+     * otherwise (default) using the delta transfer algorithm of a Sender,
+     * Generator and Receiver connected through pipes. File listings and
+     * itemized output always use the latter. The deferred write, spill
+     * threshold, prefetch, small file threshold and block size settings are
+     * only used by the delta transfer algorithm.
+     */
+    public void setIsWholeFile(boolean isWholeFile)
+    {
+        _isWholeFile = isWholeFile;
+    }
+
+    /**
+     * Also record the data sent by the Sender to batchFile, which may then
+     * be replayed on other destinations in the same state as this one by
+     * replay. Implies the delta transfer algorithm (see setIsWholeFile).
+     */
+    public void setBatchFile(Path batchFile)
+    {
+        _batchFile = batchFile;
+    }
+
     public void setFilterRuleConfiguration(
     		FilterRuleConfiguration filterRuleConfiguration) {
 		_filterRuleConfiguration = filterRuleConfiguration;
@@ -141,6 +214,29 @@ public class RsyncLocal
                             String destinationPathName)
         throws RsyncException, InterruptedException
     {
+        if (_isWholeFile && _batchFile == null && !_isModuleListing &&
+            _verbosity <= 1) {
+            LocalTransfer localTransfer =
+                new LocalTransfer(srcPaths, _charset, destinationPathName).
+                    setIsRecursive(_isRecursiveTransfer).
+                    setIsTransferDirs(_isTransferDirs).
+                    setIsPreservePermissions(_isPreservePermissions).
+                    setIsPreserveTimes(_isPreserveTimes).
+                    setIsPreserveUser(_isPreserveUser).
+                    setIsPreserveGroup(_isPreserveGroup).
+                    setIsNumericIds(_isNumericIds).
+                    setIsIgnoreTimes(_isIgnoreTimes).
+                    setIsDelete(_isDelete).
+                    setIsDeleteExcluded(_isDeleteExcluded).
+                    setIsDeleteAfter(_isDeleteAfter).
+                    setFilterRuleConfiguration(_filterRuleConfiguration);
+            try {
+                return localTransfer.transfer();
+            } finally {
+                _statistics = localTransfer.statistics();
+            }
+        }
+
         byte[] checksumSeed =
             BitOps.toLittleEndianBuf((int) System.currentTimeMillis());
         Pipe[] pipePair = pipePair();
@@ -154,6 +250,7 @@ public class RsyncLocal
                                    srcPaths,
                                    _charset,
                                    checksumSeed).
+            setIsPreservePermissions(_isPreservePermissions).
             setIsPreserveUser(_isPreserveUser).
             setIsPreserveGroup(_isPreserveGroup).
             setIsNumericIds(_isNumericIds).
@@ -162,7 +259,11 @@ public class RsyncLocal
             setIsExitEarlyIfEmptyList(true).
             setIsRecursive(_isRecursiveTransfer).
             setFilterRuleConfiguration(_filterRuleConfiguration).
-            setIsTransferDirs(isTransferDirs);
+            setIsTransferDirs(isTransferDirs).
+            setSpillThreshold(_spillThreshold).
+            setNumPrefetchDirectories(_numPrefetchDirectories).
+            setSmallFileThreshold(_smallFileThreshold).
+            setInputBufferSize(_inputBufferSize, _maxInputBufferSize);
         Generator generator = new Generator(toSender.sink(), _charset,
                                             checksumSeed, out).
             setIsRecursive(_isRecursiveTransfer).
@@ -173,9 +274,17 @@ public class RsyncLocal
             setIsNumericIds(_isNumericIds).
             setIsIgnoreTimes(_isIgnoreTimes).
             setIsListOnly(_isModuleListing).
-            setIsAlwaysItemize(_verbosity > 1);
+            setIsAlwaysItemize(_verbosity > 1).
+            setSmallFileThreshold(_smallFileThreshold).
+            setBlockSizePolicy(_blockSizePolicy);
+        FileChannel batchOut = null;
+        ReadableByteChannel receiverIn = toReceiver.source();
+        if (_batchFile != null) {
+            batchOut = createBatch();
+            receiverIn = Batch.recordReads(receiverIn, batchOut);
+        }
         Receiver receiver = new Receiver(generator,
-                                         toReceiver.source(),
+                                         receiverIn,
                                          _charset,
                                          destinationPathName).
             setIsExitEarlyIfEmptyList(true).
@@ -187,13 +296,91 @@ public class RsyncLocal
             setIsNumericIds(_isNumericIds).
             setIsDelete(_isDelete).
             setIsDeleteExcluded(_isDeleteExcluded).
+            setIsDeleteAfter(_isDeleteAfter).
             setIsListOnly(_isModuleListing).
-            setIsDeferredWrite(_isDeferredWrite);
+            setIsDeferredWrite(_isDeferredWrite).
+            setInputBufferSize(_inputBufferSize, _maxInputBufferSize);
+
+        try {
+            boolean isOK = RsyncTaskExecutor.exec(executor, sender,
+                                                  generator, receiver);
+            _statistics = receiver.statistics();
+            return isOK;
+        } finally {
+            if (batchOut != null) {
+                closeBatch(batchOut);
+            }
+        }
+    }
+
+    /**
+     * Applies the updates recorded in batchFile by a previous transfer (see
+     * setBatchFile and RsyncClientSession.setBatchFile) to
+     * destinationPathName, using the options of that transfer.
+     */
+    public boolean replay(ExecutorService executor,
+                          PrintStream out,
+                          Path batchFile,
+                          String destinationPathName)
+        throws RsyncException, InterruptedException
+    {
+        try (FileChannel in = FileChannel.open(batchFile,
+                                               StandardOpenOption.READ)) {
+            Batch batch = Batch.read(in);
+            Generator generator = batch.newGenerator(out).
+                setIsAlwaysItemize(_verbosity > 1);
+            Receiver receiver = batch.newReceiver(generator, in,
+                                                  destinationPathName).
+                setIsDeferredWrite(_isDeferredWrite).
+                setInputBufferSize(_inputBufferSize, _maxInputBufferSize);
+            boolean isOK = RsyncTaskExecutor.exec(executor, generator,
+                                                  receiver);
+            _statistics = receiver.statistics();
+            return isOK;
+        } catch (IOException e) {
+            throw new RsyncException(String.format(
+                "failed to read batch file %s: %s", batchFile, e));
+        } catch (RsyncProtocolException | IllegalStateException e) {           // from Receiver when it disagrees with Generator about what to update
+            throw new RsyncException(String.format(
+                "%s is not in the state %s was written for: %s",
+                destinationPathName, batchFile, e.getMessage()));
+        }
+    }
+
+    private FileChannel createBatch() throws RsyncException
+    {
+        try {
+            return new Batch().
+                setCharset(_charset).
+                setIsRecursive(_isRecursiveTransfer).
+                setIsPreservePermissions(_isPreservePermissions).
+                setIsPreserveTimes(_isPreserveTimes).
+                setIsPreserveUser(_isPreserveUser).
+                setIsPreserveGroup(_isPreserveGroup).
+                setIsNumericIds(_isNumericIds).
+                setIsIgnoreTimes(_isIgnoreTimes).
+                setIsDelete(_isDelete).
+                setIsDeleteExcluded(_isDeleteExcluded).
+                setIsDeleteAfter(_isDeleteAfter).
+                setIsSafeFileList(true).
+                setIsServerSender(false, _filterRuleConfiguration).
+                setIsExitEarlyIfEmptyList(true).
+                setIsExitAfterEOF(false).
+                create(_batchFile);
+        } catch (IOException e) {
+            throw new RsyncException(String.format(
+                "failed to create batch file %s: %s", _batchFile, e));
+        }
+    }
 
-        boolean isOK = RsyncTaskExecutor.exec(executor, sender,
-                                                     generator, receiver);
-        _statistics = receiver.statistics();
-        return isOK;
+    private void closeBatch(FileChannel batchOut) throws RsyncException
+    {
+        try {
+            batchOut.close();
+        } catch (IOException e) {
+            throw new RsyncException(String.format(
+                "failed to write batch file %s: %s", _batchFile, e));
+        }
     }
 
     public Statistics statistics()
@@ -22,14 +22,30 @@ package com.github.perlundq.yajsync.session;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.concurrent.ExecutorService;
 
+import com.github.perlundq.yajsync.channels.PrefetchedTaggedInputChannel;
+import com.github.perlundq.yajsync.channels.RateLimitedChannel;
+import com.github.perlundq.yajsync.filelist.DirectoryCache;
+import com.github.perlundq.yajsync.io.FileView;
 import com.github.perlundq.yajsync.text.Text;
+import com.github.perlundq.yajsync.util.TokenBucket;
 
 public class RsyncServerSession
 {
     private Charset _charset = Charset.forName(Text.UTF8_NAME);
     private boolean _isDeferredWrite;
+    private int _spillThreshold;
+    private int _numPrefetchDirectories;
+    private int _smallFileThreshold = FileView.DEFAULT_SMALL_FILE_THRESHOLD;
+    private int _inputBufferSize = PrefetchedTaggedInputChannel.DEFAULT_BUF_SIZE;
+    private int _maxInputBufferSize =
+        PrefetchedTaggedInputChannel.DEFAULT_MAX_BUF_SIZE;
+    private BlockSizePolicy _blockSizePolicy = BlockSizePolicy.newSquareRoot();
+    private AdmissionController.Admission _admission;
+    private TokenBucket _bandwidthLimit;
 
     public RsyncServerSession() {}
 
@@ -43,6 +59,58 @@ public class RsyncServerSession
         _isDeferredWrite = isDeferredWrite;
     }
 
+    public void setSpillThreshold(int spillThreshold)
+    {
+        _spillThreshold = spillThreshold;
+    }
+
+    public void setNumPrefetchDirectories(int numPrefetchDirectories)
+    {
+        _numPrefetchDirectories = numPrefetchDirectories;
+    }
+
+    public void setSmallFileThreshold(int smallFileThreshold)
+    {
+        _smallFileThreshold = smallFileThreshold;
+    }
+
+    public void setInputBufferSize(int inputBufferSize)
+    {
+        _inputBufferSize = inputBufferSize;
+    }
+
+    public void setMaxInputBufferSize(int maxInputBufferSize)
+    {
+        _maxInputBufferSize = maxInputBufferSize;
+    }
+
+    /**
+     * blockSizePolicy is shared by all sessions, unless the client requests
+     * a specific block size.
+     */
+    public void setBlockSizePolicy(BlockSizePolicy blockSizePolicy)
+    {
+        _blockSizePolicy = blockSizePolicy;
+    }
+
+    /**
+     * @param admission the admission of this connection, decided when it was
+     *        accepted, or null (default) if unlimited
+     */
+    public void setAdmission(AdmissionController.Admission admission)
+    {
+        _admission = admission;
+    }
+
+    /**
+     * @param bandwidthLimit a bucket shared by all sessions or null
+     *        (default) if unlimited
+     */
+    public void setBandwidthLimit(TokenBucket bandwidthLimit)
+    {
+        _bandwidthLimit = bandwidthLimit;
+    }
+
     public boolean transfer(ExecutorService executor,
                             ReadableByteChannel in,
                             WritableByteChannel out,
@@ -50,10 +118,14 @@ public class RsyncServerSession
                             boolean isChannelsInterruptible)
         throws RsyncException, InterruptedException
     {
+        AdmissionController.Admission admission =
+            _admission != null ? _admission
+                               : AdmissionController.newUnlimited().tryAdmit();
         ServerSessionConfig cfg = ServerSessionConfig.handshake(_charset,       // throws IllegalArgumentException if _charset is not supported
                                                                 in,
                                                                 out,
-                                                                modules);
+                                                                modules,
+                                                                admission);
 
         if (cfg.status() == SessionStatus.ERROR) {
             return false;
@@ -61,6 +133,22 @@ public class RsyncServerSession
             return true;
         }
 
+        try {
+            return transfer(executor, in, rateLimited(out, cfg), cfg,
+                            isChannelsInterruptible);
+        } finally {
+            cfg.releaseAdmission();
+        }
+    }
+
+    private boolean transfer(ExecutorService executor,
+                             ReadableByteChannel in,
+                             WritableByteChannel out,
+                             ServerSessionConfig cfg,
+                             boolean isChannelsInterruptible)
+        throws RsyncException, InterruptedException
+    {
+
         if (cfg.isSender()) {
             Sender sender = Sender.newServerInstance(in,
                                                      out,
@@ -68,6 +156,7 @@ public class RsyncServerSession
                                                      cfg.charset(),
                                                      cfg.checksumSeed()).
                 setIsRecursive(cfg.isRecursive()).
+                setIsPreservePermissions(cfg.isPreservePermissions()).
                 setIsPreserveUser(cfg.isPreserveUser()).
                 setIsPreserveGroup(cfg.isPreserveGroup()).
                 setIsNumericIds(cfg.isNumericIds()).
@@ -75,7 +164,12 @@ public class RsyncServerSession
                 setIsDeleteExcluded(cfg.isDeleteExcluded()).
                 setIsInterruptible(isChannelsInterruptible).
                 setIsSafeFileList(cfg.isSafeFileList()).
-                setIsTransferDirs(cfg.isTransferDirs());
+                setIsTransferDirs(cfg.isTransferDirs()).
+                setSpillThreshold(_spillThreshold).
+                setNumPrefetchDirectories(_numPrefetchDirectories).
+                setSmallFileThreshold(_smallFileThreshold).
+                setInputBufferSize(_inputBufferSize, _maxInputBufferSize).
+                setDirectoryCache(directoryCacheOf(cfg.getModule()));
             return RsyncTaskExecutor.exec(executor, cfg.getModule(), sender);
         } else {
             Generator generator =
@@ -89,6 +183,10 @@ public class RsyncServerSession
                     setIsNumericIds(cfg.isNumericIds()).
                     setIsIgnoreTimes(cfg.isIgnoreTimes()).
                     setIsAlwaysItemize(cfg.verbosity() > 1).
+                    setSmallFileThreshold(_smallFileThreshold).
+                    setBlockSizePolicy(cfg.blockSize() > 0
+                        ? BlockSizePolicy.newFixed(cfg.blockSize())
+                        : _blockSizePolicy).
                     setIsInterruptible(isChannelsInterruptible);
             Receiver receiver =
                 Receiver.newServerInstance(generator, in, cfg.charset(),
@@ -101,12 +199,50 @@ public class RsyncServerSession
                     setIsNumericIds(cfg.isNumericIds()).
                     setIsDelete(cfg.isDelete()).
                     setIsDeleteExcluded(cfg.isDeleteExcluded()).
+                    setIsDeleteAfter(cfg.isDeleteAfter()).
                     setIsDeferredWrite(_isDeferredWrite).
                     setIsInterruptible(isChannelsInterruptible).
-                    setIsSafeFileList(cfg.isSafeFileList());
+                    setIsSafeFileList(cfg.isSafeFileList()).
+                    setInputBufferSize(_inputBufferSize, _maxInputBufferSize);
 
             return RsyncTaskExecutor.exec(executor, cfg.getModule(), generator,
                                                     receiver);
         }
     }
+
+    private static DirectoryCache directoryCacheOf(Module module)
+    {
+        if (module instanceof CachingModule) {
+            return ((CachingModule) module).directoryCacheOrNull();
+        }
+        return null;
+    }
+
+    // the limit requested by the peer is applied in addition to the limits
+    // of the module and the server
+    private WritableByteChannel rateLimited(WritableByteChannel out,
+                                            ServerSessionConfig cfg)
+    {
+        List<TokenBucket> buckets = new LinkedList<>();
+        if (cfg.bandwidthLimit() > 0) {
+            buckets.add(TokenBucket.newKiloBytesPerSecond(
+                cfg.bandwidthLimit()));
+        }
+        int weight = 1;
+        if (cfg.getModule() instanceof ThrottledModule) {
+            ThrottledModule module = (ThrottledModule) cfg.getModule();
+            if (module.bandwidthLimitOrNull() != null) {
+                buckets.add(module.bandwidthLimitOrNull());
+            }
+            weight = module.bandwidthWeight();
+        }
+        if (_bandwidthLimit != null) {
+            buckets.add(_bandwidthLimit);
+        }
+        if (buckets.isEmpty()) {
+            return out;
+        }
+        return new RateLimitedChannel(out, weight,
+                                      buckets.toArray(new TokenBucket[0]));
+    }
 }
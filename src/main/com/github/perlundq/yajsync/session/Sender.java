@@ -20,22 +20,25 @@
  */
 package com.github.perlundq.yajsync.session;
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
-import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.MessageDigest;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
+import java.util.HashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -47,13 +50,13 @@ import com.github.perlundq.yajsync.channels.MessageCode;
 import com.github.perlundq.yajsync.channels.MessageHandler;
 import com.github.perlundq.yajsync.channels.RsyncInChannel;
 import com.github.perlundq.yajsync.channels.RsyncOutChannel;
+import com.github.perlundq.yajsync.filelist.DirectoryCache;
 import com.github.perlundq.yajsync.filelist.FileInfo;
 import com.github.perlundq.yajsync.filelist.Filelist;
 import com.github.perlundq.yajsync.filelist.FilterRuleList;
 import com.github.perlundq.yajsync.filelist.Group;
 import com.github.perlundq.yajsync.filelist.RsyncFileAttributes;
 import com.github.perlundq.yajsync.filelist.User;
-import com.github.perlundq.yajsync.io.CustomFileSystem;
 import com.github.perlundq.yajsync.io.FileView;
 import com.github.perlundq.yajsync.io.FileViewNotFound;
 import com.github.perlundq.yajsync.io.FileViewOpenFailed;
@@ -65,7 +68,6 @@ import com.github.perlundq.yajsync.text.TextEncoder;
 import com.github.perlundq.yajsync.ui.FilterRuleConfiguration;
 import com.github.perlundq.yajsync.util.ArgumentParsingError;
 import com.github.perlundq.yajsync.util.MD5;
-import com.github.perlundq.yajsync.util.PathOps;
 import com.github.perlundq.yajsync.util.Rolling;
 import com.github.perlundq.yajsync.util.RuntimeInterruptException;
 import com.github.perlundq.yajsync.util.StatusResult;
@@ -75,12 +77,12 @@ public class Sender implements RsyncTask,MessageHandler
     private static final Logger _log =
         Logger.getLogger(Sender.class.getName());
 
-    private static final int INPUT_CHANNEL_BUF_SIZE = 8 * 1024;
     private static final int OUTPUT_CHANNEL_BUF_SIZE = 8 * 1024;
     private static final int PARTIAL_FILE_LIST_SIZE = 500;
     private static final int CHUNK_SIZE = 8 * 1024;
     private final byte[] _checksumSeed;
     private final FileInfoCache _fileInfoCache = new FileInfoCache();
+    private final RsyncInChannel _inChannel;
     private final AutoFlushableRsyncDuplexChannel _duplexChannel;
     private final Iterable<Path> _sourceFiles;
     private final TextDecoder _characterDecoder;
@@ -91,6 +93,7 @@ public class Sender implements RsyncTask,MessageHandler
     private boolean _isSendStatistics;
     private boolean _isExitEarlyIfEmptyList;
     private boolean _isRecursive;
+    private boolean _isPreservePermissions;
     private boolean _isPreserveUser;
     private boolean _isPreserveGroup;
     private boolean _isNumericIds;
@@ -104,6 +107,17 @@ public class Sender implements RsyncTask,MessageHandler
     private boolean _isExitAfterEOF = false;
     private boolean _isTransferDirs = false;
     private int _ioError;
+    private int _spillThreshold = 0;
+    private int _numPrefetchDirectories = 0;
+    private int _smallFileThreshold = FileView.DEFAULT_SMALL_FILE_THRESHOLD;
+    private byte[] _smallFileBuf;                                               // allocated on first use
+    private ByteBuffer[] _chunkBuffers = new ByteBuffer[0];                     // token headers and data of sendDataFrom, grown as needed
+    private ByteBuffer[] _chunkHeaders = new ByteBuffer[0];
+    private ForkJoinPool _prefetchPool;
+    private DirectoryCache _directoryCache;
+    private FileListExpander _expander;                                         // effectively final once started
+    private final Map<Integer, Future<StatusResult<Filelist.SegmentBuilder>>>
+        _prefetched = new HashMap<>();
 
     public Sender(ReadableByteChannel in,
                   WritableByteChannel out,
@@ -111,10 +125,9 @@ public class Sender implements RsyncTask,MessageHandler
                   Charset charset,
                   byte[] checksumSeed)
     {
+        _inChannel = new RsyncInChannel(in, this);
         _duplexChannel = new AutoFlushableRsyncDuplexChannel(
-                             new RsyncInChannel(in,
-                                                this,
-                                                INPUT_CHANNEL_BUF_SIZE),
+                             _inChannel,
                              new RsyncOutChannel(out,
                                                  OUTPUT_CHANNEL_BUF_SIZE));
         _sourceFiles = sourceFiles;
@@ -155,6 +168,12 @@ public class Sender implements RsyncTask,MessageHandler
         return this;
     }
 
+    public Sender setIsPreservePermissions(boolean isPreservePermissions)
+    {
+        _isPreservePermissions = isPreservePermissions;
+        return this;
+    }
+
     public Sender setIsPreserveUser(boolean isPreserveUser)
     {
         _isPreserveUser = isPreserveUser;
@@ -230,6 +249,63 @@ public class Sender implements RsyncTask,MessageHandler
         return this;
     }
 
+    /**
+     * Expand directories with more than numFiles entries by spilling sorted
+     * runs of numFiles entries to temporary files, keeping memory usage
+     * bounded regardless of directory size. 0 (default) keeps all entries in
+     * memory.
+     */
+    public Sender setSpillThreshold(int numFiles)
+    {
+        assert numFiles >= 0;
+        _spillThreshold = numFiles;
+        return this;
+    }
+
+    /**
+     * Expand (list and stat) up to numDirectories upcoming directories in
+     * parallel in the background, ahead of them being sent. 0 (default)
+     * expands each directory serially when it is about to be sent.
+     */
+    public Sender setNumPrefetchDirectories(int numDirectories)
+    {
+        assert numDirectories >= 0;
+        _numPrefetchDirectories = numDirectories;
+        return this;
+    }
+
+    /**
+     * Send files of at most numBytes bytes by reading them whole in one go,
+     * see sendSmallFile. 0 disables it.
+     */
+    public Sender setSmallFileThreshold(int numBytes)
+    {
+        assert numBytes >= 0 && numBytes <= FileView.MAX_SMALL_FILE_THRESHOLD;
+        _smallFileThreshold = numBytes;
+        return this;
+    }
+
+    /**
+     * List directories using the possibly shared directoryCache instead of
+     * the file system, null (default) lists every directory when expanded.
+     */
+    /**
+     * The receive buffer of the input from the peer (Generator) starts out at
+     * numBytes bytes and is doubled, up to maxNumBytes bytes, whenever a
+     * single read fills it.
+     */
+    public Sender setInputBufferSize(int numBytes, int maxNumBytes)
+    {
+        _inChannel.setBufferSize(numBytes, maxNumBytes);
+        return this;
+    }
+
+    public Sender setDirectoryCache(DirectoryCache directoryCache)
+    {
+        _directoryCache = directoryCache;
+        return this;
+    }
+
     @Override
     public boolean isInterruptible()
     {
@@ -267,16 +343,30 @@ public class Sender implements RsyncTask,MessageHandler
 
             long t1 = System.currentTimeMillis();
 
-            StatusResult<Set<FileInfo>> expandResult = initialExpand(_sourceFiles, filterRuleConfiguration);
-            boolean isInitialListOK = expandResult.isOK();
-            Filelist.SegmentBuilder builder = new Filelist.SegmentBuilder(null);
-            builder.addAll(expandResult.value());
+            Filelist.SegmentBuilder builder =
+                new Filelist.SegmentBuilder(null, _spillThreshold);
+            _expander = new FileListExpander(_characterEncoder,
+                                             _characterDecoder).
+                setIsRecursive(_isRecursive).
+                setIsTransferDirs(_isTransferDirs).
+                setIsPreservePermissions(_isPreservePermissions).
+                setIsPreserveUser(_isPreserveUser).
+                setIsPreserveGroup(_isPreserveGroup).
+                setIsNumericIds(_isNumericIds).
+                setSpillThreshold(_spillThreshold).
+                setDirectoryCache(_directoryCache);
+            boolean isInitialListOK =
+                _expander.initialExpand(_sourceFiles, filterRuleConfiguration,
+                                        FileListExpander.sinkOf(builder));
 
             Filelist.Segment initialSegment = fileList.newSegment(builder);
 
             long numBytesWritten = _duplexChannel.numBytesWritten();
             for (FileInfo f : initialSegment.files()) {
                 sendFileMetaData(f);
+                if (f.isDotDir()) {
+                    _nextSegmentIndex++; // we have to add it to be compliant with native, but don't try expanding it again later
+                }
             }
             long t2 = System.currentTimeMillis();
             if (_log.isLoggable(Level.FINE)) {
@@ -289,11 +379,11 @@ public class Sender implements RsyncTask,MessageHandler
             }
             long t3 = System.currentTimeMillis();
 
-            if (_isPreserveUser && !_isRecursive) {
+            if (_isPreserveUser && !_isRecursive && !_isNumericIds) {
                 sendUserList();
             }
 
-            if (_isPreserveGroup && !_isRecursive) {
+            if (_isPreserveGroup && !_isRecursive && !_isNumericIds) {
             	sendGroupList();
             }
 
@@ -349,6 +439,8 @@ public class Sender implements RsyncTask,MessageHandler
             _stats.setTotalRead(_duplexChannel.numBytesRead());
             _stats.setTotalWritten(_duplexChannel.numBytesWritten());
             _stats.setNumFiles(fileList.numFiles());
+            stopPrefetching();
+            fileList.close();
         }
     }
 
@@ -656,28 +748,16 @@ public class Sender implements RsyncTask,MessageHandler
                     if (_log.isLoggable(Level.FINE)) {
                         _log.fine("received peer checksum " + header);
                     }
-                    Checksum checksum = receiveChecksumsFor(header);
-
-                    boolean isNew = header.blockLength() == 0;
-                    int blockSize = isNew ? FileView.DEFAULT_BLOCK_SIZE
-                                          : header.blockLength();
-                    int blockFactor = isNew ? 1 : 10;
                     long fileSize = fileInfo.attrs().size();
 
-                    byte[] fileMD5sum = null;
-                    try (FileView fv = new FileView(fileInfo.path(),
-                                                    fileInfo.attrs().size(),
-                                                    blockSize,
-                                                    blockSize * blockFactor)) {
-
-                        sendIndexAndIflags(index, iFlags);
-                        sendChecksumHeader(header);
-
-                        if (isNew) {
-                            fileMD5sum = skipMatchSendData(fv, fileSize);
+                    byte[] fileMD5sum;
+                    try {
+                        if (isSmallFile(header, fileSize)) {
+                            fileMD5sum = sendSmallFile(index, iFlags, fileInfo,
+                                                       header);
                         } else {
-                            fileMD5sum = sendMatchesAndData(fv, checksum,
-                                                            fileSize);
+                            fileMD5sum = sendFile(index, iFlags, fileInfo,
+                                                  header);
                         }
                     } catch (FileViewOpenFailed e) { // on FileView.open()
                         if (_log.isLoggable(Level.WARNING)) {
@@ -698,13 +778,6 @@ public class Sender implements RsyncTask,MessageHandler
                         }
                         sendIntMessage(MessageCode.NO_SEND, index);
                         continue;
-                    } catch (FileViewReadError e) {  // on FileView.close()
-                        if (_log.isLoggable(Level.WARNING)) {
-                            _log.warning(String.format(
-                                "Error: general I/O error on %s (ignored and" +
-                                " skipped): %s", fileInfo, e.getMessage()));
-                        }
-                        fileMD5sum[0]++; // is only null for FileViewOpenFailed - not FileViewReadError which is caused by FileView.close()
                     }
 
                     if (_log.isLoggable(Level.FINE)) {
@@ -742,179 +815,99 @@ public class Sender implements RsyncTask,MessageHandler
         return ioError;
     }
 
-    // NOTE: doesn't do any check of the validity of files or normalization -
-    // it's up to the caller to do so, e.g. ServerSessionConfig.parseArguments
-    private StatusResult<Set<FileInfo>> initialExpand(Iterable<Path> files,
-    		FilterRuleConfiguration parentFilterRuleConfiguration)
+    private StatusResult<Filelist.SegmentBuilder> expandSegment(
+        FileInfo directory,
+        FilterRuleConfiguration parentFilterRuleConfiguration,
+        TextEncoder encoder,
+        TextDecoder decoder)
     {
-        boolean isOK = true;
-        Set<FileInfo> fileset = new HashSet<>();
-
-        for (Path p : files) {
-            try {
-                if (_log.isLoggable(Level.FINE)) {
-                    _log.fine("expanding " + p);
-                }
-
-                RsyncFileAttributes attrs = RsyncFileAttributes.stat(p);
-                byte[] nameBytes =
-                    _characterEncoder.encode(p.getFileName().toString());       // throws TextConversionException
+        Filelist.SegmentBuilder builder =
+            new Filelist.SegmentBuilder(directory, _spillThreshold);
+        boolean isOK = _expander.expand(directory,
+                                        parentFilterRuleConfiguration,
+                                        FileListExpander.sinkOf(builder),
+                                        encoder, decoder);
+        return new StatusResult<>(isOK, builder);
+    }
 
-                FileInfo fileInfo = new FileInfo(p, p.getFileName(), nameBytes, attrs);          // throws IllegalArgumentException but that cannot happen
-                if (!_isRecursive && !_isTransferDirs &&
-                    fileInfo.attrs().isDirectory())
-                {
-                    if (_log.isLoggable(Level.INFO)) {
-                        _log.info("skipping directory " + fileInfo);
+    // expands the directory with segment index _nextSegmentIndex, possibly
+    // already expanded in the background, and starts expanding up to
+    // _numPrefetchDirectories of the following (already known) stub
+    // directories
+    private StatusResult<Filelist.SegmentBuilder> expandOrGetPrefetched(
+        Filelist fileList,
+        FileInfo directory,
+        final FilterRuleConfiguration parentFilterRuleConfiguration)
+    {
+        if (_numPrefetchDirectories > 0) {
+            if (_prefetchPool == null) {
+                _prefetchPool = new ForkJoinPool(_numPrefetchDirectories);
+            }
+            for (int i = _nextSegmentIndex + 1;
+                 i <= _nextSegmentIndex + _numPrefetchDirectories; i++) {
+                final FileInfo stub = fileList.peekStubDirectoryOrNull(i);
+                if (stub != null && !_prefetched.containsKey(i)) {
+                    if (_log.isLoggable(Level.FINER)) {
+                        _log.finer(String.format(
+                            "prefetching segment index %d (%s)", i, stub));
                     }
-                } else {
-                    boolean isAdded = fileset.add(fileInfo);
-                    if (isAdded) {
-                        if (_log.isLoggable(Level.FINE)) {
-                            _log.fine(String.format("adding %s to segment",
-                                                    fileInfo));
-                        }
-                        if (fileInfo.isDotDir()) {
-                            if (_log.isLoggable(Level.FINE)) {
-                                _log.fine(String.format("expanding dot dir %s",
-                                                        fileInfo));
+                    final Charset charset = _characterEncoder.charset();
+                    _prefetched.put(i, _prefetchPool.submit(
+                        new Callable<StatusResult<Filelist.SegmentBuilder>>() {
+                            @Override
+                            public StatusResult<Filelist.SegmentBuilder> call() {
+                                return expandSegment(
+                                    stub, parentFilterRuleConfiguration,
+                                    TextEncoder.newStrict(charset),
+                                    TextDecoder.newStrict(charset));
                             }
-
-                            StatusResult<List<FileInfo>> expandResult =
-                                    expand(fileInfo, parentFilterRuleConfiguration);
-                            isOK = isOK && expandResult.isOK();
-                            for (FileInfo f2 : expandResult.value()) {
-                                boolean isAdded2 = fileset.add(f2);
-                                if (!isAdded2) {
-                                    if (_log.isLoggable(Level.WARNING)) {
-                                        _log.warning("pruning duplicate " + f2);
-                                    }
-                                    isOK = false;
-                                }
-                            }
-                            _nextSegmentIndex++; // we have to add it to be compliant with native, but don't try expanding it again later
-                        }
-                    } else {
-                        if (_log.isLoggable(Level.WARNING)) {
-                            _log.warning("pruning duplicate " + fileInfo);
-                        }
-                        isOK = false;  // should we possibly not treat this as an error? (if so also change print statement to debug)
-                    }
+                        }));
                 }
-            } catch (IOException e) {
-                if (_log.isLoggable(Level.WARNING)) {
-                    _log.warning(String.format(
-                        "Failed to add %s to initial file list: %s",
-                        p, e.getMessage()));
-                }
-                isOK = false;
-            } catch (TextConversionException e) {
-                if (_log.isLoggable(Level.WARNING)) {
-                    _log.warning(String.format("Failed to encode %s using %s",
-                                               p, _characterEncoder.charset()));
-                }
-                isOK = false;
             }
         }
 
-        return new StatusResult<Set<FileInfo>>(isOK, fileset);
+        Future<StatusResult<Filelist.SegmentBuilder>> prefetched =
+            _prefetched.remove(_nextSegmentIndex);
+        if (prefetched == null) {
+            return expandSegment(directory, parentFilterRuleConfiguration,
+                                 _characterEncoder, _characterDecoder);
+        }
+        try {
+            StatusResult<Filelist.SegmentBuilder> result = prefetched.get();
+            assert result.value().directory() == directory;
+            return result;
+        } catch (InterruptedException e) {
+            throw new RuntimeInterruptException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
     }
 
-    private StatusResult<List<FileInfo>> expand(FileInfo directory, FilterRuleConfiguration parentFilterRuleConfiguration)
+    private void stopPrefetching()
     {
-        assert directory != null;
-
-        List<FileInfo> fileset = new ArrayList<>();
-        boolean isOK = true;
-        final Path splittedPath[] = splitLocalPathOf(directory);                       // throws RuntimeException if unable to get local path prefix of directory, but that should never happen
-
-        FilterRuleConfiguration localFilterRuleConfiguration;
-		try {
-			localFilterRuleConfiguration = new FilterRuleConfiguration(parentFilterRuleConfiguration, directory.path());
-		} catch (ArgumentParsingError e) {
-            if (_log.isLoggable(Level.WARNING)) {
-                _log.warning(String.format("Got argument parsing error " +
-                                           "at %s: %s",
-                                           directory.path(), e.getMessage()));
-            }
-            isOK = false;
-            return new StatusResult<List<FileInfo>>(isOK, fileset);
-		}
-		boolean filterByRules = localFilterRuleConfiguration.isFilterAvailable();
-
-		// the JVM adds a lot of overhead when doing mostly directory traversals
-        // and reading of file attributes
-        try (DirectoryStream<Path> stream =
-                Files.newDirectoryStream(directory.path())) {
-
-            for (Path entry : stream) {
-
-            	if (!PathOps.isPathPreservable(entry.getFileName())) {          // TODO: add option to continue anyway
-                    if (_log.isLoggable(Level.WARNING)) {
-                        _log.warning(String.format(
-                            "Skipping %s - unable to preserve file name",
-                            entry.getFileName()));
-                    }
-                    isOK = false;
-                    continue;
-                }
-
-                RsyncFileAttributes attrs;
+        if (_prefetchPool == null) {
+            return;
+        }
+        _prefetchPool.shutdownNow();
+        for (Future<StatusResult<Filelist.SegmentBuilder>> f :
+                 _prefetched.values()) {
+            if (!f.cancel(true)) {
                 try {
-                    attrs = RsyncFileAttributes.stat(entry);
-                } catch (IOException e) {
-                    if (_log.isLoggable(Level.WARNING)) {
-                        _log.warning(String.format("Failed to stat %s: %s",
-                                                   entry, e.getMessage()));
-                    }
-                    isOK = false;
-                    continue;
+                    f.get().value().discard();
+                } catch (InterruptedException | ExecutionException |
+                         CancellationException e) {
+                    // ignored, nothing to release
                 }
-
-                Path relativePath = splittedPath[0].relativize(entry);
-                String relativePathName =
-                    Text.withSlashAsPathSepator(relativePath.toString());
-                byte[] pathNameBytes =
-                    _characterEncoder.encodeOrNull(relativePathName);
-                if (pathNameBytes != null) {
-                    FileInfo f = new FileInfo(entry, relativePath,
-                                              pathNameBytes, attrs);    // throws IllegalArgumentException but that cannot happen
-
-                    // use filter
-                    if (filterByRules) {
-                    	boolean isDirectory = attrs.isDirectory();
-                    	if (localFilterRuleConfiguration.exclude(relativePathName, isDirectory)) {
-                    		continue;
-                    	}
-                    	if (localFilterRuleConfiguration.hide(relativePathName, isDirectory)) {
-                    		continue;
-                    	}
-                    }
-
-                    fileset.add(f);
-                } else {
-                    if (_log.isLoggable(Level.WARNING)) {
-                        _log.warning(String.format(
-                            "Failed to encode %s using %s",
-                            relativePathName, _characterEncoder.charset()));
-                    }
-                    isOK = false;
-                }
-            }
-        } catch (IOException e) {
-            if (_log.isLoggable(Level.WARNING)) {
-                _log.warning(String.format("Got I/O error during expansion " +
-                                           "of %s: %s",
-                                           directory.path(), e.getMessage()));
             }
-            isOK = false;
         }
-        return new StatusResult<List<FileInfo>>(isOK, fileset);
+        _prefetched.clear();
     }
 
-    // TODO: FEATURE: (if possible in native) implement suspend/resume such that
-    // we don't have to send/hold a full segment in memory at once (directories
-    // can be very large).
+    // NOTE: directories can be very large, use a spill threshold to not have
+    // to hold a full segment in memory at once
     private boolean expandAndSendSegments(Filelist fileList, FilterRuleConfiguration parentFilterRuleConfiguration)
         throws ChannelException
     {
@@ -945,16 +938,15 @@ public class Sender implements RsyncTask,MessageHandler
                 continue;
             }
 
-            StatusResult<List<FileInfo>> expandResult = expand(directory, parentFilterRuleConfiguration);
+            StatusResult<Filelist.SegmentBuilder> expandResult =
+                expandOrGetPrefetched(fileList, directory,
+                                      parentFilterRuleConfiguration);
             boolean isExpandOK = expandResult.isOK();
             if (!isExpandOK && _log.isLoggable(Level.WARNING)) {
                 _log.warning("initial file list expansion returned an error");
             }
 
-            Filelist.SegmentBuilder builder =
-                new Filelist.SegmentBuilder(directory);
-            builder.addAll(expandResult.value());
-            Filelist.Segment segment = fileList.newSegment(builder);
+            Filelist.Segment segment = fileList.newSegment(expandResult.value());
 
             if (_log.isLoggable(Level.FINE)) {
                 _log.fine(String.format("expanded segment with segment index" +
@@ -1018,7 +1010,7 @@ public class Sender implements RsyncTask,MessageHandler
             !user.equals(_fileInfoCache.getPrevUserOrNull()))
         {
             _fileInfoCache.setPrevUser(user);
-            if (!user.equals(User.root())) {
+            if (!_isNumericIds && !user.equals(User.root())) {
                 if (_isRecursive && !_transferredUserNames.contains(user)) {
                     xflags |= TransmitFlags.USER_NAME_FOLLOWS;
                 } // else send in batch later
@@ -1033,7 +1025,7 @@ public class Sender implements RsyncTask,MessageHandler
         		!group.equals(_fileInfoCache.getPrevGroupOrNull()))
         {
             _fileInfoCache.setPrevGroup(group);
-            if (!group.equals(Group.root())) {
+            if (!_isNumericIds && !group.equals(Group.root())) {
                 if (_isRecursive && !_transferredGroupNames.contains(group)) {
                     xflags |= TransmitFlags.GROUP_NAME_FOLLOWS;
                 } // else send in batch later
@@ -1051,17 +1043,11 @@ public class Sender implements RsyncTask,MessageHandler
         }
 
         byte[] fileNameBytes = fileInfo.pathNameBytes();
-        int commonPrefixLength =
-            lengthOfLargestCommonPrefix(_fileInfoCache.getPrevFileNameBytes(),
-                                        fileNameBytes);
-        byte[] prefixBytes = Arrays.copyOfRange(fileNameBytes,
-                                                0,
-                                                commonPrefixLength);
-        byte[] suffixBytes = Arrays.copyOfRange(fileNameBytes,
-                                                commonPrefixLength,
-                                                fileNameBytes.length);
-        int numSuffixBytes = suffixBytes.length;
-        int numPrefixBytes = Math.min(prefixBytes.length, 255);
+        int numPrefixBytes =
+            Math.min(lengthOfLargestCommonPrefix(
+                         _fileInfoCache.getPrevFileNameBytes(), fileNameBytes),
+                     255);
+        int numSuffixBytes = fileNameBytes.length - numPrefixBytes;
         if (numPrefixBytes > 0) {
             xflags |= TransmitFlags.SAME_NAME;
         }
@@ -1092,7 +1078,7 @@ public class Sender implements RsyncTask,MessageHandler
         } else {
             _duplexChannel.putByte((byte) numSuffixBytes);
         }
-        _duplexChannel.put(ByteBuffer.wrap(suffixBytes));
+        _duplexChannel.put(fileNameBytes, numPrefixBytes, numSuffixBytes);
 
         sendEncodedLong(attrs.size(), 3);
 
@@ -1193,6 +1179,127 @@ public class Sender implements RsyncTask,MessageHandler
         return checksum;
     }
 
+    // read errors are logged and reported to peer by a corrupt file checksum
+    private byte[] sendFile(int index, char iFlags, FileInfo fileInfo,
+                            Checksum.Header header)
+        throws ChannelException, FileViewOpenFailed
+    {
+        Checksum checksum = receiveChecksumsFor(header);
+
+        boolean isNew = header.blockLength() == 0;
+        int blockSize = isNew ? FileView.DEFAULT_BLOCK_SIZE
+                              : header.blockLength();
+        int blockFactor = isNew ? 1 : 10;
+        long fileSize = fileInfo.attrs().size();
+
+        byte[] fileMD5sum = null;
+        try (FileView fv = new FileView(fileInfo.path(),
+                                        fileSize,
+                                        blockSize,
+                                        blockSize * blockFactor)) {
+
+            sendIndexAndIflags(index, iFlags);
+            sendChecksumHeader(header);
+
+            if (isNew) {
+                fileMD5sum = skipMatchSendData(fv, fileSize);
+            } else {
+                fileMD5sum = sendMatchesAndData(fv, checksum, fileSize);
+            }
+        } catch (FileViewOpenFailed e) { // on FileView.open()
+            throw e;
+        } catch (FileViewReadError e) {  // on FileView.close()
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format(
+                    "Error: general I/O error on %s (ignored and" +
+                    " skipped): %s", fileInfo, e.getMessage()));
+            }
+            fileMD5sum[0]++; // is only null for FileViewOpenFailed - not FileViewReadError which is caused by FileView.close()
+        }
+        return fileMD5sum;
+    }
+
+    /**
+     * A small file may be matched at most once, as a whole, against the
+     * checksums of the peer, i.e. if there are no checksums at all (new
+     * file) or a single one of the same length as the file (see
+     * Generator.sendItemizeAndChecksum).
+     */
+    private boolean isSmallFile(Checksum.Header header, long fileSize)
+    {
+        return fileSize <= _smallFileThreshold &&
+               (header.chunkCount() == 0 ||
+                header.chunkCount() == 1 &&
+                header.smallestChunkSize() == fileSize);
+    }
+
+    // reads the whole file into a reused buffer in one go and sends it
+    // either as a single matching chunk or as literal data, without the
+    // chunk lookup table and sliding window of sendMatchesAndData. Read
+    // errors are handled as by sendFile
+    private byte[] sendSmallFile(int index, char iFlags, FileInfo fileInfo,
+                                 Checksum.Header header)
+        throws ChannelException, FileViewOpenFailed
+    {
+        int peerRolling = 0;
+        byte[] peerMd5sum = null;
+        if (header.chunkCount() == 1) {
+            peerRolling = _duplexChannel.getInt();
+            peerMd5sum = new byte[header.digestLength()];
+            _duplexChannel.get(peerMd5sum, 0, peerMd5sum.length);
+        }
+
+        int fileSize = (int) fileInfo.attrs().size();
+        if (_smallFileBuf == null) {
+            _smallFileBuf = new byte[_smallFileThreshold];
+        }
+        boolean isReadError = false;
+        try {
+            FileView.readFully(fileInfo.path(), _smallFileBuf, fileSize);
+        } catch (FileViewOpenFailed e) {
+            throw e;
+        } catch (FileViewReadError e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format(
+                    "Error: general I/O error on %s (ignored and" +
+                    " skipped): %s", fileInfo, e.getMessage()));
+            }
+            isReadError = true;
+        }
+
+        sendIndexAndIflags(index, iFlags);
+        sendChecksumHeader(header);
+
+        MessageDigest fileDigest = MD5.newInstance();
+        fileDigest.update(_smallFileBuf, 0, fileSize);
+        boolean isMatch = peerMd5sum != null &&
+            Rolling.compute(_smallFileBuf, 0, fileSize) == peerRolling &&
+            Arrays.equals(peerMd5sum, chunkMd5sum(fileSize,
+                                                  peerMd5sum.length));
+        if (isMatch) {
+            _duplexChannel.putInt(-1);                                          // chunk index 0
+            _stats.setTotalMatchedSize(_stats.totalMatchedSize() + fileSize);
+        } else {
+            sendDataFrom(_smallFileBuf, 0, fileSize);
+            _stats.setTotalLiteralSize(_stats.totalLiteralSize() + fileSize);
+        }
+        _duplexChannel.putInt(0);
+
+        byte[] fileMD5sum = fileDigest.digest();
+        if (isReadError) {
+            fileMD5sum[0]++;
+        }
+        return fileMD5sum;
+    }
+
+    private byte[] chunkMd5sum(int length, int digestLength)
+    {
+        MessageDigest chunkDigest = MD5.newInstance();
+        chunkDigest.update(_smallFileBuf, 0, length);
+        chunkDigest.update(_checksumSeed);
+        return Arrays.copyOf(chunkDigest.digest(), digestLength);
+    }
+
     private byte[] skipMatchSendData(FileView view, long fileSize)
         throws ChannelException
     {
@@ -1341,15 +1448,29 @@ public class Sender implements RsyncTask,MessageHandler
         assert length >= 0;
         assert startOffset + length <= buf.length;
 
-        int endOffset = startOffset + length - 1;
-        int currentOffset = startOffset;
-        while (currentOffset <= endOffset) {
-            int len = Math.min(CHUNK_SIZE, endOffset - currentOffset + 1);
-            assert len > 0;
-            _duplexChannel.putInt(len);
-            _duplexChannel.put(buf, currentOffset, len);
-            currentOffset += len;
+        // the token header and data of every chunk of the region are handed
+        // to the channel in a single put, which writes them with as few
+        // gathering writes as possible instead of copying them
+        int numChunks = (length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        if (_chunkHeaders.length < numChunks) {
+            _chunkBuffers = new ByteBuffer[2 * numChunks];
+            _chunkHeaders = new ByteBuffer[numChunks];
+            for (int i = 0; i < numChunks; i++) {
+                _chunkHeaders[i] = ByteBuffer.allocate(4).
+                    order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+        for (int i = 0; i < numChunks; i++) {
+            int offset = startOffset + i * CHUNK_SIZE;
+            int len = Math.min(CHUNK_SIZE, startOffset + length - offset);
+            ByteBuffer header = _chunkHeaders[i];
+            header.clear();
+            header.putInt(0, len);
+            _chunkBuffers[2 * i] = header;
+            _chunkBuffers[2 * i + 1] = ByteBuffer.wrap(buf, offset, len);
         }
+        _duplexChannel.put(_chunkBuffers, 0, 2 * numChunks);
+        Arrays.fill(_chunkBuffers, 0, 2 * numChunks, null);                     // don't keep references to file data
     }
 
     private void sendIntMessage(MessageCode code, int value)
@@ -1368,8 +1489,9 @@ public class Sender implements RsyncTask,MessageHandler
 
     private void sendEncodedLong(long l, int minBytes) throws ChannelException
     {
-        ByteBuffer b = IntegerCoder.encodeLong(l, minBytes);
-        _duplexChannel.put(b);
+        byte[] buf = _fileInfoCache.varLongBuf();
+        int length = IntegerCoder.encodeLong(l, minBytes, buf);
+        _duplexChannel.put(buf, 0, length);
     }
 
     private void sendStatistics(Statistics stats) throws ChannelException
@@ -1381,18 +1503,6 @@ public class Sender implements RsyncTask,MessageHandler
         sendEncodedLong(stats.fileListTransferTime(), 3);
     }
 
-    private Path[] splitLocalPathOf(FileInfo fileInfo)
-    {
-        String pathName = _characterDecoder.decodeOrNull(fileInfo.pathNameBytes());
-        if (pathName == null) {
-            throw new RuntimeException(String.format(
-                "unable to decode path name of %s using %s",
-                fileInfo, _characterDecoder.charset()));
-        }
-        Path relativePath = CustomFileSystem.getPath(pathName);
-        return new Path[]{PathOps.subtractPath(fileInfo.path(), relativePath), relativePath};
-    }
-
     // FIXME: code duplication with Receiver, move to Connection?
     public void readAllMessagesUntilEOF() throws ChannelException
     {
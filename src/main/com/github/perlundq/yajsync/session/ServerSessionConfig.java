@@ -63,11 +63,15 @@ public class ServerSessionConfig extends SessionConfig
     private boolean _isNumericIds = false;
     private boolean _isDelete = false;
     private boolean _isDeleteExcluded = false;
+    private boolean _isDeleteAfter = false;
     private boolean _isIgnoreTimes = false;
     private Module _module;
+    private AdmissionController.Admission _admission;
     private int _verbosity = 0;
     private boolean _isSafeFileList;
     private boolean _isTransferDirs = false;
+    private int _bandwidthLimit = 0;
+    private int _blockSize = 0;
 
 
     /**
@@ -87,20 +91,26 @@ public class ServerSessionConfig extends SessionConfig
      *         correctly
      * @throws RsyncProtocolException if failed to parse arguments sent by peer
      *         correctly
+     * NOTE: if status is OK the connection still holds admission which must
+     *       be released using releaseAdmission, otherwise it is released
      */
     public static ServerSessionConfig handshake(Charset charset,
                                                 ReadableByteChannel in,
                                                 WritableByteChannel out,
-                                                Modules modules)
+                                                Modules modules,
+                                                AdmissionController.Admission admission)
         throws ChannelException
     {
         assert charset != null;
         assert in != null;
         assert out != null;
         assert modules != null;
+        assert admission != null;
 
         ServerSessionConfig instance = new ServerSessionConfig(in, out,
                                                                charset);
+        instance._admission = admission;
+        boolean isComplete = false;
         try {
             instance.exchangeProtocolVersion();
             String moduleName = instance.receiveModule();
@@ -120,6 +130,7 @@ public class ServerSessionConfig extends SessionConfig
                 RestrictedModule restrictedModule = (RestrictedModule) module;
                 module = instance.unlockModule(restrictedModule);               // throws ModuleSecurityException
             }
+            admission.admitTo(module);                                          // throws ServerBusyException
             instance.setModule(module);
             instance.sendStatus(SessionStatus.OK);
             instance._status = SessionStatus.OK;
@@ -131,9 +142,18 @@ public class ServerSessionConfig extends SessionConfig
             instance.parseArguments(args);
             instance.sendCompatibilities();
             instance.sendChecksumSeed();
+            isComplete = true;
             return instance;
         } catch (ArgumentParsingError | TextConversionException e) {
             throw new RsyncProtocolException(e);
+        } catch (ServerBusyException e) {
+            if (_log.isLoggable(Level.INFO)) {
+                _log.info(String.format("rejecting connection: %s (%s)",
+                                        e.getMessage(), admission));
+            }
+            instance.sendErrorStatus(e.getMessage());
+            instance._status = SessionStatus.ERROR;
+            return instance;
         } catch (ModuleException e) {
             if (_log.isLoggable(Level.WARNING)) {
                 _log.warning(e.getMessage());
@@ -142,10 +162,18 @@ public class ServerSessionConfig extends SessionConfig
             instance._status = SessionStatus.ERROR;
             return instance;
         } finally {
+            if (!isComplete) {
+                instance.releaseAdmission();
+            }
             instance.flush();
         }
     }
 
+    public void releaseAdmission()
+    {
+        _admission.release();
+    }
+
     private Module unlockModule(RestrictedModule restrictedModule)
         throws ModuleSecurityException, ChannelException
     {
@@ -375,6 +403,19 @@ public class ServerSessionConfig extends SessionConfig
                 	   setIsDelete(); // implicit option
                 }}));
 
+        // deletions are computed during the transfer and done after it,
+        // i.e. --delete-after is treated as --delete-delay
+        for (String name : new String[] { "delete-after", "delete-delay" }) {
+            argsParser.add(Option.newWithoutArgument(
+                    Option.Policy.OPTIONAL,
+                    name, "", "",
+                    new Option.ContinuingHandler() {
+                       @Override public void handleAndContinue(Option option) {
+                           setIsDeleteAfter();
+                           setIsDelete(); // implicit option
+                    }}));
+        }
+
         argsParser.add(Option.newWithoutArgument(
                 Option.Policy.OPTIONAL,
                 "stats", "", "",
@@ -383,6 +424,35 @@ public class ServerSessionConfig extends SessionConfig
                 	   ; // TODO FS
                 }}));
 
+        argsParser.add(Option.newIntegerOption(
+                Option.Policy.OPTIONAL,
+                "bwlimit", "", "",
+                new Option.ContinuingHandler() {
+                   @Override public void handleAndContinue(Option option)
+                       throws ArgumentParsingError {
+                       int kbps = (int) option.getValue();
+                       if (kbps < 0) {
+                           throw new ArgumentParsingError(
+                               "bandwidth limit must not be negative: " + kbps);
+                       }
+                       _bandwidthLimit = kbps;
+                }}));
+
+        argsParser.add(Option.newIntegerOption(
+                Option.Policy.OPTIONAL,
+                "block-size", "B", "",
+                new Option.ContinuingHandler() {
+                   @Override public void handleAndContinue(Option option)
+                       throws ArgumentParsingError {
+                       int blockSize = (int) option.getValue();
+                       if (blockSize < 0 ||
+                           blockSize > BlockSizePolicy.MAX_BLOCK_LENGTH) {
+                           throw new ArgumentParsingError(
+                               "invalid block size: " + blockSize);
+                       }
+                       _blockSize = blockSize;
+                }}));
+
         // FIXME: let ModuleProvider mutate this argsParser instance before
         // calling parse (e.g. adding specific options or removing options)
 
@@ -538,6 +608,11 @@ public class ServerSessionConfig extends SessionConfig
         _isDeleteExcluded = true;
     }
 
+    private void setIsDeleteAfter()
+    {
+        _isDeleteAfter = true;
+    }
+
     private void setIsIgnoreTimes()
     {
         _isIgnoreTimes = true;
@@ -591,6 +666,11 @@ public class ServerSessionConfig extends SessionConfig
     	return _isDeleteExcluded;
     }
 
+    public boolean isDeleteAfter()
+    {
+        return _isDeleteAfter;
+    }
+
     public boolean isIgnoreTimes()
     {
         return _isIgnoreTimes;
@@ -621,4 +701,22 @@ public class ServerSessionConfig extends SessionConfig
     {
         return _isTransferDirs;
     }
+
+    /**
+     * @return the bandwidth limit in KiB per second requested by the peer or
+     *         0 if unlimited
+     */
+    public int bandwidthLimit()
+    {
+        return _bandwidthLimit;
+    }
+
+    /**
+     * @return the checksum block length requested by the client (--block-size)
+     *         or 0 if none
+     */
+    public int blockSize()
+    {
+        return _blockSize;
+    }
 }
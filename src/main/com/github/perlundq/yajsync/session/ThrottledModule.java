@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import com.github.perlundq.yajsync.util.TokenBucket;
+
+/**
+ * A Module limiting the rate of bytes sent by its sessions.
+ */
+public interface ThrottledModule extends Module
+{
+    /**
+     * @return the bucket shared by all sessions of this module or null if
+     *         unlimited
+     */
+    TokenBucket bandwidthLimitOrNull();
+
+    /**
+     * @return the weight, at least 1, of the sessions of this module when
+     *         sharing a bandwidth limit with other sessions
+     */
+    int bandwidthWeight();
+}
@@ -0,0 +1,209 @@
+/*
+ * Deletion of target files missing from the file list
+ *
+ * Copyright (C) 2013, 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.github.perlundq.yajsync.filelist.DirectoryListing;
+import com.github.perlundq.yajsync.filelist.Filelist;
+import com.github.perlundq.yajsync.text.Text;
+import com.github.perlundq.yajsync.text.TextEncoder;
+import com.github.perlundq.yajsync.ui.FilterRuleConfiguration;
+import com.github.perlundq.yajsync.util.PathOps;
+import com.github.perlundq.yajsync.util.SessionExecutors;
+
+/**
+ * Deletes the entries of a target directory which are missing from the file
+ * list segment of the directory (--delete), or which are excluded
+ * (--delete-excluded). Entries are looked up by relative path in a hash set
+ * of the segment and are only stat:ed if there are filter rules which need
+ * to know whether they are directories.
+ *
+ * Entries are either removed immediately or, if deferred (--delete-after),
+ * collected and removed in parallel by deletePending once all files have
+ * been received. The receiving side never touches an unmatched entry, so
+ * neither of them has to wait for the other. deletePending must be called
+ * before directory attributes are applied since removing entries changes
+ * the modification time of their directory.
+ */
+final class UnmatchedFileDeleter
+{
+    private static final Logger _log =
+        Logger.getLogger(UnmatchedFileDeleter.class.getName());
+
+    private final TextEncoder _characterEncoder;
+    private final boolean _isDelete;
+    private final boolean _isDeleteExcluded;
+    private final boolean _isDeferred;
+    private final List<Path> _pending = new ArrayList<>();
+
+    UnmatchedFileDeleter(TextEncoder characterEncoder, boolean isDelete,
+                         boolean isDeleteExcluded, boolean isDeferred)
+    {
+        _characterEncoder = characterEncoder;
+        _isDelete = isDelete;
+        _isDeleteExcluded = isDeleteExcluded;
+        _isDeferred = isDeferred;
+    }
+
+    boolean isEnabled()
+    {
+        return _isDelete || _isDeleteExcluded;
+    }
+
+    /**
+     * @return true if deletion is enabled and there are no previous I/O
+     *         errors (any of which might have caused files to be missing from
+     *         the file list) and dir is an existing directory
+     */
+    boolean isDeletable(Path dir, int ioError)
+    {
+        return isEnabled() && ioError == 0 && Files.isDirectory(dir);          // TODO: --ignore-errors
+    }
+
+    /**
+     * @param relativeDir the normalized path of dir relative to the target
+     *        root
+     * @return IoError.GENERAL on failure to list or remove entries of dir, 0
+     *         otherwise
+     */
+    int deleteUnmatched(Filelist.SegmentBuilder builder, Path dir,
+                        Path relativeDir, FilterRuleConfiguration rules)
+    {
+        if (_log.isLoggable(Level.FINE)) {
+            _log.fine(String.format("delete unmatched files in dir %s", dir));
+        }
+        boolean isFiltered = rules.isFilterAvailable();
+        // only the file type is needed, read it relative to the directory if
+        // possible
+        try (DirectoryListing listing = DirectoryListing.open(dir, false,
+                                                              false, false)) {
+            for (Path entry : listing) {
+                Path relativePath = relativeDir.resolve(entry.getFileName());
+                if (!isUnmatched(builder, listing, entry, relativePath,
+                                 rules, isFiltered)) {
+                    continue;
+                }
+                if (_isDeferred) {
+                    _pending.add(entry);
+                } else {
+                    PathOps.deleteIfExists(entry, dir);
+                }
+            }
+            return 0;
+        } catch (IOException e) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format("Got I/O error during deletion of " +
+                                           "unmatched files of %s: %s",
+                                           dir, e.getMessage()));
+            }
+            return IoError.GENERAL;
+        }
+    }
+
+    private boolean isUnmatched(Filelist.SegmentBuilder builder,
+                                DirectoryListing listing, Path entry,
+                                Path relativePath,
+                                FilterRuleConfiguration rules,
+                                boolean isFiltered)
+        throws IOException
+    {
+        String relativePathName =
+            Text.withSlashAsPathSepator(relativePath.toString());
+        if (_characterEncoder.encodeOrNull(relativePathName) == null) {
+            return false;                                                       // we can't tell, leave it as is
+        }
+        if (isFiltered) {
+            boolean isDirectory = listing.stat(entry).isDirectory();
+            String filename = "./" + relativePathName;
+            if (rules.protect(filename, isDirectory)) {
+                return false;
+            }
+            if (rules.exclude(filename, isDirectory)) {
+                return _isDeleteExcluded;
+            }
+        }
+        return _isDelete && !builder.containsPath(relativePath);
+    }
+
+    /**
+     * Removes all deferred entries in parallel, unless there has been an I/O
+     * error (ioError != 0) in which case they are all left as is.
+     *
+     * @return IoError.GENERAL if any entry could not be removed, 0 otherwise
+     */
+    int deletePending(int ioError) throws InterruptedException
+    {
+        if (_pending.isEmpty()) {
+            return 0;
+        }
+        if (ioError != 0) {
+            if (_log.isLoggable(Level.WARNING)) {
+                _log.warning(String.format("I/O error encountered - skipping " +
+                                           "deletion of %d files",
+                                           _pending.size()));
+            }
+            _pending.clear();
+            return 0;
+        }
+
+        int numThreads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor =
+            SessionExecutors.newSessionTaskExecutor(numThreads);
+        try {
+            List<Future<Void>> futures = new ArrayList<>(_pending.size());
+            for (final Path entry : _pending) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        PathOps.deleteIfExists(entry, entry.getParent());
+                        return null;
+                    }
+                }));
+            }
+            int result = 0;
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get();
+                } catch (ExecutionException e) {
+                    if (_log.isLoggable(Level.WARNING)) {
+                        _log.warning(String.format(
+                            "Got I/O error during deletion of %s: %s",
+                            _pending.get(i), e.getCause().getMessage()));
+                    }
+                    result = IoError.GENERAL;
+                }
+            }
+            return result;
+        } finally {
+            _pending.clear();
+            executor.shutdownNow();
+        }
+    }
+}
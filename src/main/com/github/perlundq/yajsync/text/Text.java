@@ -20,6 +20,7 @@ package com.github.perlundq.yajsync.text;
 
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
+import java.nio.charset.Charset;
 import java.nio.file.InvalidPathException;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -49,6 +50,20 @@ public final class Text
 
     private Text() {}
 
+    // true if charset encodes every ASCII character as the single byte of
+    // the same value
+    static boolean isAsciiCompatible(Charset charset)
+    {
+        String name = charset.name();
+        return name.equals(ASCII_NAME) || name.equals(UTF8_NAME) ||
+               name.equals("ISO-8859-1");
+    }
+
+    static boolean isUtf8(Charset charset)
+    {
+        return charset.name().equals(UTF8_NAME);
+    }
+
     public static String stripLast(String str)
     {
         assert str != null;
@@ -33,11 +33,17 @@ import com.github.perlundq.yajsync.util.Util;
 
 public class TextDecoder
 {
+    private static final int MAX_FAST_LENGTH = 64 * 1024;
     private final CharsetDecoder _decoder;
+    private final boolean _isAsciiCompatible;
+    private final boolean _isUtf8;
+    private char[] _scratch = new char[256];
 
     private TextDecoder(CharsetDecoder decoder)
     {
         _decoder = decoder;
+        _isAsciiCompatible = Text.isAsciiCompatible(decoder.charset());
+        _isUtf8 = Text.isUtf8(decoder.charset());
     }
 
     public static TextDecoder newStrict(Charset charset)
@@ -65,6 +71,10 @@ public class TextDecoder
 
     public String decodeOrNull(ByteBuffer input)
     {
+        String result = decodeFastOrNull(input);
+        if (result != null) {
+            return result;
+        }
         return _decode(input, ErrorPolicy.RETURN_NULL, MemoryPolicy.IGNORE);
     }
 
@@ -73,6 +83,10 @@ public class TextDecoder
      */
     public String decode(ByteBuffer input)
     {
+        String result = decodeFastOrNull(input);
+        if (result != null) {
+            return result;
+        }
         return _decode(input, ErrorPolicy.THROW, MemoryPolicy.IGNORE);
     }
 
@@ -84,6 +98,99 @@ public class TextDecoder
         return _decode(input, ErrorPolicy.THROW, MemoryPolicy.ZERO);
     }
 
+    private String decodeFastOrNull(ByteBuffer input)
+    {
+        if (!input.hasArray()) {
+            return null;
+        }
+        String result = decodeFastOrNull(input.array(),
+                                         input.arrayOffset() + input.position(),
+                                         input.remaining());
+        if (result != null) {
+            input.position(input.limit());
+        }
+        return result;
+    }
+
+    /**
+     * Decodes bytes in a single pass into a reused scratch buffer. Only
+     * handles ASCII, or well-formed input if the charset is UTF-8, and rejects
+     * exactly what the strict UTF-8 CharsetDecoder rejects: overlong forms,
+     * surrogates and code points above U+10FFFF.
+     *
+     * @return the decoded string or null if bytes must be decoded using the
+     *         CharsetDecoder (which also reports any errors)
+     */
+    private String decodeFastOrNull(byte[] bytes, int offset, int length)
+    {
+        if (!_isAsciiCompatible || length > MAX_FAST_LENGTH) {
+            return null;
+        }
+        if (_scratch.length < length) {                                         // never more chars than bytes
+            _scratch = new char[Math.max(length, _scratch.length * 2)];
+        }
+        char[] buf = _scratch;
+        int n = 0;
+        int i = offset;
+        int end = offset + length;
+        while (i < end) {
+            int b = bytes[i];
+            if (b >= 0) {
+                buf[n++] = (char) b;
+                i++;
+                continue;
+            }
+            if (!_isUtf8) {
+                return null;
+            }
+            b &= 0xFF;
+            if (b >= 0xC2 && b <= 0xDF) {
+                if (!isContinuation(bytes, i + 1, end)) {
+                    return null;
+                }
+                buf[n++] = (char) ((b & 0x1F) << 6 | bytes[i + 1] & 0x3F);
+                i += 2;
+            } else if (b >= 0xE0 && b <= 0xEF) {
+                if (!isContinuation(bytes, i + 1, end) ||
+                    !isContinuation(bytes, i + 2, end)) {
+                    return null;
+                }
+                char c = (char) ((b & 0x0F) << 12 |
+                                 (bytes[i + 1] & 0x3F) << 6 |
+                                 bytes[i + 2] & 0x3F);
+                if (c < 0x800 || Character.isSurrogate(c)) {
+                    return null;
+                }
+                buf[n++] = c;
+                i += 3;
+            } else if (b >= 0xF0 && b <= 0xF4) {
+                if (!isContinuation(bytes, i + 1, end) ||
+                    !isContinuation(bytes, i + 2, end) ||
+                    !isContinuation(bytes, i + 3, end)) {
+                    return null;
+                }
+                int codePoint = (b & 0x07) << 18 |
+                                (bytes[i + 1] & 0x3F) << 12 |
+                                (bytes[i + 2] & 0x3F) << 6 |
+                                bytes[i + 3] & 0x3F;
+                if (codePoint < 0x10000 || codePoint > 0x10FFFF) {
+                    return null;
+                }
+                buf[n++] = Character.highSurrogate(codePoint);
+                buf[n++] = Character.lowSurrogate(codePoint);
+                i += 4;
+            } else {
+                return null;
+            }
+        }
+        return new String(buf, 0, n);
+    }
+
+    private static boolean isContinuation(byte[] bytes, int index, int end)
+    {
+        return index < end && (bytes[index] & 0xC0) == 0x80;
+    }
+
     /**
      *  @throws TextConversionException
      */
@@ -144,6 +251,10 @@ public class TextDecoder
 
     public String decodeOrNull(byte[] bytes)
     {
+        String result = decodeFastOrNull(bytes, 0, bytes.length);
+        if (result != null) {
+            return result;
+        }
         ByteBuffer input = ByteBuffer.wrap(bytes);
         return decodeOrNull(input);
     }
@@ -34,11 +34,17 @@ import com.github.perlundq.yajsync.util.Util;
 
 public class TextEncoder
 {
+    private static final int MAX_FAST_LENGTH = 64 * 1024;
     private final CharsetEncoder _encoder;
+    private final boolean _isAsciiCompatible;
+    private final boolean _isUtf8;
+    private byte[] _scratch = new byte[256];
 
     private TextEncoder(CharsetEncoder encoder)
     {
         _encoder = encoder;
+        _isAsciiCompatible = Text.isAsciiCompatible(encoder.charset());
+        _isUtf8 = Text.isUtf8(encoder.charset());
     }
 
     public static TextEncoder newStrict(Charset charset)
@@ -124,6 +130,53 @@ public class TextEncoder
         }
     }
 
+    /**
+     * Encodes string in a single pass into a reused scratch buffer. Only
+     * handles ASCII, or any well-formed string if the charset is UTF-8, which
+     * covers almost every file name.
+     *
+     * @return the encoded bytes of string or null if string must be encoded
+     *         using the CharsetEncoder (which also reports any errors)
+     */
+    private byte[] encodeFastOrNull(String string)
+    {
+        int length = string.length();
+        if (!_isAsciiCompatible || length > MAX_FAST_LENGTH) {
+            return null;
+        }
+        int maxNumBytes = _isUtf8 ? length * 3 : length;
+        if (_scratch.length < maxNumBytes) {
+            _scratch = new byte[Math.max(maxNumBytes, _scratch.length * 2)];
+        }
+        byte[] buf = _scratch;
+        int n = 0;
+        for (int i = 0; i < length; i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                buf[n++] = (byte) c;
+            } else if (!_isUtf8) {
+                return null;
+            } else if (c < 0x800) {
+                buf[n++] = (byte) (0xC0 | c >> 6);
+                buf[n++] = (byte) (0x80 | c & 0x3F);
+            } else if (!Character.isSurrogate(c)) {
+                buf[n++] = (byte) (0xE0 | c >> 12);
+                buf[n++] = (byte) (0x80 | c >> 6 & 0x3F);
+                buf[n++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < length &&
+                       Character.isLowSurrogate(string.charAt(i + 1))) {
+                int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                buf[n++] = (byte) (0xF0 | codePoint >> 18);
+                buf[n++] = (byte) (0x80 | codePoint >> 12 & 0x3F);
+                buf[n++] = (byte) (0x80 | codePoint >> 6 & 0x3F);
+                buf[n++] = (byte) (0x80 | codePoint & 0x3F);
+            } else {
+                return null;                                                    // unpaired surrogate
+            }
+        }
+        return Arrays.copyOf(buf, n);
+    }
+
     public byte[] secureEncodeOrNull(char[] inputChars)
     {
         CharBuffer input = CharBuffer.wrap(inputChars);
@@ -134,6 +187,10 @@ public class TextEncoder
 
     public byte[] encodeOrNull(String string)
     {
+        byte[] result = encodeFastOrNull(string);
+        if (result != null) {
+            return result;
+        }
         char[] inputChars = string.toCharArray();
         CharBuffer input = CharBuffer.wrap(inputChars);
         return encode(input,
@@ -146,6 +203,10 @@ public class TextEncoder
      */
     public byte[] encode(String string)
     {
+        byte[] result = encodeFastOrNull(string);
+        if (result != null) {
+            return result;
+        }
         char[] inputChars = string.toCharArray();
         CharBuffer input = CharBuffer.wrap(inputChars);
         return encode(input, ErrorPolicy.THROW, MemoryPolicy.IGNORE);
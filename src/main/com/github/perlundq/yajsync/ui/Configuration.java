@@ -25,28 +25,38 @@ import java.net.InetAddress;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.security.Principal;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.TreeMap;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import com.github.perlundq.yajsync.filelist.DirectoryCache;
 import com.github.perlundq.yajsync.io.CustomFileSystem;
+import com.github.perlundq.yajsync.session.CachingModule;
+import com.github.perlundq.yajsync.session.LimitedModule;
 import com.github.perlundq.yajsync.session.Module;
 import com.github.perlundq.yajsync.session.ModuleException;
 import com.github.perlundq.yajsync.session.ModuleNotFoundException;
 import com.github.perlundq.yajsync.session.ModuleProvider;
 import com.github.perlundq.yajsync.session.Modules;
 import com.github.perlundq.yajsync.session.RestrictedPath;
+import com.github.perlundq.yajsync.session.ThrottledModule;
 import com.github.perlundq.yajsync.text.Text;
 import com.github.perlundq.yajsync.util.Environment;
 import com.github.perlundq.yajsync.util.Option;
+import com.github.perlundq.yajsync.util.TokenBucket;
 
 public class Configuration implements Modules
 {
@@ -55,6 +65,29 @@ public class Configuration implements Modules
 
     public static class Reader extends ModuleProvider {
 
+        // parsed modules of a configuration file as of the time it had the
+        // given modification time and size
+        private static final class Snapshot {
+            private final Path _path;
+            private final FileTime _lastModifiedTime;
+            private final long _size;
+            private final Map<String, Module> _modules;
+
+            private Snapshot(Path path, BasicFileAttributes attrs,
+                             Map<String, Module> modules) {
+                _path = path;
+                _lastModifiedTime = attrs.lastModifiedTime();
+                _size = attrs.size();
+                _modules = Collections.unmodifiableMap(modules);
+            }
+
+            private boolean isCurrent(Path path, BasicFileAttributes attrs) {
+                return _path.equals(path) &&
+                       _lastModifiedTime.equals(attrs.lastModifiedTime()) &&
+                       _size == attrs.size();
+            }
+        }
+
         private static final Logger _log =
             Logger.getLogger(Reader.class.getName());
         private static final Pattern keyValuePattern =
@@ -67,9 +100,14 @@ public class Configuration implements Modules
         private static final String MODULE_KEY_PATH = "path";
         private static final String MODULE_KEY_IS_READABLE = "is_readable";
         private static final String MODULE_KEY_IS_WRITABLE = "is_writable";
+        private static final String MODULE_KEY_MAX_CONNECTIONS = "max connections";
+        private static final String MODULE_KEY_FILE_LIST_CACHE = "file list cache";  // seconds to keep directory listings, 0 disables
+        private static final String MODULE_KEY_BWLIMIT = "bwlimit";                  // KiB/s shared by all sessions, 0 is unlimited
+        private static final String MODULE_KEY_BWLIMIT_WEIGHT = "bwlimit weight";
 
         private String _cfgFileName =
             Environment.getServerConfig(DEFAULT_CONFIGURATION_FILE_NAME);
+        private volatile Snapshot _snapshot;
 
         public Reader() {}
 
@@ -85,11 +123,81 @@ public class Configuration implements Modules
         public Configuration newAnonymous(InetAddress address)
             throws ModuleException
         {
-            Map<String, Module> modules = getModules(_cfgFileName);
-            Configuration cfg = new Configuration(modules);
+            Configuration cfg = new Configuration(currentModules());
             return cfg;
         }
 
+        /**
+         * @return the modules of the configuration file, only parsed again if
+         *         the modification time or size of the file has changed. The
+         *         returned map is never modified, a reload replaces it.
+         */
+        private Map<String, Module> currentModules() throws ModuleException
+        {
+            Path path = CustomFileSystem.getConfigPath(_cfgFileName);
+            Snapshot snapshot = _snapshot;
+            if (snapshot == null ||
+                !snapshot.isCurrent(path, readAttributes(path))) {
+                snapshot = reload(path);
+            }
+            return snapshot._modules;
+        }
+
+        private synchronized Snapshot reload(Path path) throws ModuleException
+        {
+            BasicFileAttributes attrs = readAttributes(path);                  // before reading, a concurrent change is then picked up by the next connection
+            Snapshot snapshot = _snapshot;
+            if (snapshot != null && snapshot.isCurrent(path, attrs)) {          // already reloaded by another connection
+                return snapshot;
+            }
+            Map<String, Module> modules = getModules(path);
+            if (snapshot != null) {
+                carryOver(snapshot._modules, modules);
+            }
+            snapshot = new Snapshot(path, attrs, modules);
+            _snapshot = snapshot;
+            if (_log.isLoggable(Level.INFO)) {
+                _log.info(String.format("loaded %d modules from %s",
+                                        snapshot._modules.size(), path));
+            }
+            return snapshot;
+        }
+
+        // reuses the directory cache and bandwidth limit of each previously
+        // loaded module with unchanged settings, a reload would otherwise
+        // drop all cached listings and give every session in progress a
+        // bandwidth limit of its own
+        private static void carryOver(Map<String, Module> previous,
+                                      Map<String, Module> modules)
+        {
+            for (Module module : modules.values()) {
+                Module prev = previous.get(module.name());
+                if (!(module instanceof SimpleModule) ||
+                    !(prev instanceof SimpleModule)) {
+                    continue;
+                }
+                SimpleModule m = (SimpleModule) module;
+                SimpleModule p = (SimpleModule) prev;
+                if (m._restrictedPath.equals(p._restrictedPath) &&
+                    m._fileListCacheSeconds == p._fileListCacheSeconds) {
+                    m._directoryCache = p._directoryCache;
+                }
+                if (m._bandwidthLimitKiloBytes == p._bandwidthLimitKiloBytes) {
+                    m._bandwidthLimit = p._bandwidthLimit;
+                }
+            }
+        }
+
+        private static BasicFileAttributes readAttributes(Path path)
+            throws ModuleException
+        {
+            try {
+                return Files.readAttributes(path, BasicFileAttributes.class);
+            } catch (IOException e) {
+                throw new ModuleException(e);
+            }
+        }
+
         @Override
         public Collection<Option> options()
         {
@@ -116,12 +224,12 @@ public class Configuration implements Modules
             // NOP
         }
 
-        private static Map<String, Module> getModules(String fileName)
+        private static Map<String, Module> getModules(Path path)
             throws ModuleException
         {
             Map<String, Map<String, String>> modules;
             try (BufferedReader reader = Files.newBufferedReader(
-                                                   CustomFileSystem.getConfigPath(fileName),
+                                                   path,
                                                    Charset.defaultCharset())) {
                 modules = parse(reader);
             } catch (IOException e) {
@@ -129,6 +237,19 @@ public class Configuration implements Modules
             }
 
             Map<String, Module> result = new TreeMap<>();
+            int defaultMaxConnections = 0;
+            try {
+                String value = modules.get("").get(MODULE_KEY_MAX_CONNECTIONS);  // global default, as with rsyncd
+                if (value != null) {
+                    defaultMaxConnections = toNonNegativeInteger(value);
+                }
+            } catch (IllegalValueException e) {
+                if (_log.isLoggable(Level.WARNING)) {
+                    _log.warning(String.format("ignoring illegal global " +
+                                               "value of %s",
+                                               MODULE_KEY_MAX_CONNECTIONS));
+                }
+            }
 
             for (Map.Entry<String, Map<String, String>> keyVal : modules.entrySet()) {
 
@@ -166,6 +287,37 @@ public class Configuration implements Modules
                         boolean isWritable = toBoolean(moduleContent.get(MODULE_KEY_IS_WRITABLE));
                         m._isWritable = isWritable;
                     }
+                    m._maxConnections = defaultMaxConnections;
+                    if (moduleContent.containsKey(MODULE_KEY_MAX_CONNECTIONS)) {
+                        m._maxConnections = toNonNegativeInteger(
+                            moduleContent.get(MODULE_KEY_MAX_CONNECTIONS));
+                    }
+                    if (moduleContent.containsKey(MODULE_KEY_FILE_LIST_CACHE)) {
+                        int ttl = toNonNegativeInteger(
+                            moduleContent.get(MODULE_KEY_FILE_LIST_CACHE));
+                        m._fileListCacheSeconds = ttl;
+                        if (ttl > 0) {
+                            m._directoryCache = new DirectoryCache(
+                                TimeUnit.SECONDS.toMillis(ttl),
+                                DirectoryCache.DEFAULT_MAX_ENTRIES);
+                        }
+                    }
+                    if (moduleContent.containsKey(MODULE_KEY_BWLIMIT)) {
+                        int kbps = toNonNegativeInteger(
+                            moduleContent.get(MODULE_KEY_BWLIMIT));
+                        m._bandwidthLimitKiloBytes = kbps;
+                        if (kbps > 0) {
+                            m._bandwidthLimit =
+                                TokenBucket.newKiloBytesPerSecond(kbps);
+                        }
+                    }
+                    if (moduleContent.containsKey(MODULE_KEY_BWLIMIT_WEIGHT)) {
+                        m._bandwidthWeight = toNonNegativeInteger(
+                            moduleContent.get(MODULE_KEY_BWLIMIT_WEIGHT));
+                        if (m._bandwidthWeight == 0) {
+                            throw new IllegalValueException();
+                        }
+                    }
                     result.put(moduleName, m);
                 } catch (InvalidPathException | IllegalValueException e) {
                     if (_log.isLoggable(Level.WARNING)) {
@@ -245,14 +397,35 @@ public class Configuration implements Modules
             }
             throw new IllegalValueException();
         }
+
+        private static int toNonNegativeInteger(String val)
+            throws IllegalValueException
+        {
+            try {
+                int n = Integer.parseInt(val);
+                if (n >= 0) {
+                    return n;
+                }
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+            throw new IllegalValueException();
+        }
     }
 
-    private static class SimpleModule implements Module {
+    private static class SimpleModule implements LimitedModule, CachingModule,
+                                               ThrottledModule {
         private final String _name;
         private final RestrictedPath _restrictedPath;
         private boolean _isReadable = true;
         private boolean _isWritable = false;
         private String _comment = "";
+        private int _maxConnections = 0;
+        private int _fileListCacheSeconds = 0;
+        private DirectoryCache _directoryCache = null;
+        private int _bandwidthLimitKiloBytes = 0;
+        private TokenBucket _bandwidthLimit = null;
+        private int _bandwidthWeight = 1;
 
         public SimpleModule(String name, RestrictedPath restrictedPath) {
             assert name != null;
@@ -286,6 +459,26 @@ public class Configuration implements Modules
             return _isWritable;
         }
 
+        @Override
+        public int maxConnections() {
+            return _maxConnections;
+        }
+
+        @Override
+        public DirectoryCache directoryCacheOrNull() {
+            return _directoryCache;
+        }
+
+        @Override
+        public TokenBucket bandwidthLimitOrNull() {
+            return _bandwidthLimit;
+        }
+
+        @Override
+        public int bandwidthWeight() {
+            return _bandwidthWeight;
+        }
+
 		@Override
 		public void postProcessing(boolean isOK) {
 		}
@@ -24,9 +24,14 @@ import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import com.github.perlundq.yajsync.filelist.FilterRuleList;
 import com.github.perlundq.yajsync.filelist.FilterRuleList.Result;
@@ -34,13 +39,23 @@ import com.github.perlundq.yajsync.util.ArgumentParsingError;
 
 public class FilterRuleConfiguration {
 
+	private static final int MAX_CACHED_MERGE_FILES = 1024;
+
+	// configurations of directories with a dir-merge file, shared by all
+	// instances
+	private static final ConcurrentMap<MergeFileKey, FilterRuleConfiguration> _mergeFileCache =
+			new ConcurrentHashMap<>();
+
 	private FilterRuleConfiguration _parentRuleConfiguration = null;
 	private FilterRuleList _localRuleList = new FilterRuleList();
-	private final FilterRuleList _deletionRuleList = new FilterRuleList();
-	private final FilterRuleList _hidingRuleList = new FilterRuleList();
+	private FilterRuleList _deletionRuleList = new FilterRuleList();
+	private FilterRuleList _hidingRuleList = new FilterRuleList();
 	private boolean _inheritance = true;
 	private String _dirMergeFilename = null;
 	private String _dirname = null;
+	// shared by all sub directories without a dir-merge file if rules are
+	// not inherited
+	private volatile FilterRuleConfiguration _emptyChild = null;
 
 	// FSTODO: CustomFileSystem.getConfigPath( ... )
 
@@ -72,6 +87,122 @@ public class FilterRuleConfiguration {
 		}
 	}
 
+	// a copy of template inheriting parent instead of template's parent
+	private FilterRuleConfiguration(FilterRuleConfiguration template,
+			FilterRuleConfiguration parent) {
+		_parentRuleConfiguration = template._parentRuleConfiguration == null ? null
+				: parent; // a list-clearing rule removes the parent
+		_localRuleList = template._localRuleList;
+		_deletionRuleList = template._deletionRuleList;
+		_hidingRuleList = template._hidingRuleList;
+		_inheritance = template._inheritance;
+		_dirMergeFilename = template._dirMergeFilename;
+		_dirname = template._dirname;
+	}
+
+	/**
+	 * Returns the configuration of directory inheriting parent, equivalent to
+	 * new FilterRuleConfiguration(parent, directory) but cached: directories
+	 * without a dir-merge file share parent (or, if parent's rules are not
+	 * inherited, an empty configuration shared by all its sub directories)
+	 * and parsed dir-merge files are memoized by path, modification time and
+	 * size. Files merged from within a dir-merge file are not checked for
+	 * modifications. The returned configuration must not be modified.
+	 */
+	public static FilterRuleConfiguration forDirectory(
+			FilterRuleConfiguration parent, Path directory)
+			throws ArgumentParsingError {
+
+		if (parent == null) {
+			return new FilterRuleConfiguration(null, directory);
+		}
+
+		String dirMergeFilename = parent.getDirMergeFilename();
+		if (dirMergeFilename != null) {
+			Path mergeFile = directory.resolve(dirMergeFilename);
+			BasicFileAttributes attrs;
+			try {
+				attrs = Files.readAttributes(mergeFile, BasicFileAttributes.class);
+			} catch (IOException e) {
+				attrs = null; // no merge file
+			}
+			if (attrs != null) {
+				return withMergeFile(parent, directory, mergeFile, attrs);
+			}
+		}
+
+		if (parent.isInheritance()) {
+			return parent;
+		}
+		FilterRuleConfiguration emptyChild = parent._emptyChild;
+		if (emptyChild == null) {
+			emptyChild = new FilterRuleConfiguration(parent, directory);
+			parent._emptyChild = emptyChild;
+		}
+		return emptyChild;
+	}
+
+	private static FilterRuleConfiguration withMergeFile(
+			FilterRuleConfiguration parent, Path directory, Path mergeFile,
+			BasicFileAttributes attrs) throws ArgumentParsingError {
+
+		MergeFileKey key = new MergeFileKey(mergeFile, attrs, parent);
+		FilterRuleConfiguration template = _mergeFileCache.get(key);
+		if (template == null) {
+			template = new FilterRuleConfiguration(parent, directory);
+			if (_mergeFileCache.size() >= MAX_CACHED_MERGE_FILES) {
+				_mergeFileCache.clear();
+			}
+			_mergeFileCache.put(key, template);
+			return template;
+		} else if (template._parentRuleConfiguration == parent) {
+			return template;
+		}
+		return new FilterRuleConfiguration(template, parent);
+	}
+
+	/*
+	 * the parsed result of a dir-merge file depends on the file itself and on
+	 * the inheritance and dir-merge file name of the parent
+	 */
+	private static class MergeFileKey {
+
+		private final Path _path;
+		private final long _lastModified;
+		private final long _size;
+		private final boolean _isParentInheritance;
+		private final String _parentDirMergeFilename;
+
+		private MergeFileKey(Path path, BasicFileAttributes attrs,
+				FilterRuleConfiguration parent) {
+			_path = path;
+			_lastModified = attrs.lastModifiedTime().toMillis();
+			_size = attrs.size();
+			_isParentInheritance = parent.isInheritance();
+			_parentDirMergeFilename = parent.getDirMergeFilename();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (obj != null && getClass() == obj.getClass()) {
+				MergeFileKey other = (MergeFileKey) obj;
+				return _lastModified == other._lastModified
+						&& _size == other._size
+						&& _isParentInheritance == other._isParentInheritance
+						&& _path.equals(other._path)
+						&& Objects.equals(_parentDirMergeFilename,
+								other._parentDirMergeFilename);
+			}
+			return false;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(_path, _lastModified, _size,
+					_isParentInheritance, _parentDirMergeFilename);
+		}
+	}
+
 	public void readRule(String plainRule) throws ArgumentParsingError {
 
 		String[] splittedRule = plainRule.split("\\s+");
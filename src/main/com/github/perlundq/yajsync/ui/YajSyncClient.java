@@ -30,7 +30,9 @@ import java.nio.channels.UnresolvedAddressException;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
 import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
@@ -42,12 +44,15 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import com.github.perlundq.yajsync.channels.ChannelException;
+import com.github.perlundq.yajsync.channels.PrefetchedTaggedInputChannel;
 import com.github.perlundq.yajsync.channels.net.ChannelFactory;
 import com.github.perlundq.yajsync.channels.net.DuplexByteChannel;
 import com.github.perlundq.yajsync.channels.net.SSLChannelFactory;
 import com.github.perlundq.yajsync.channels.net.StandardChannelFactory;
 import com.github.perlundq.yajsync.filelist.RsyncFileAttributes;
 import com.github.perlundq.yajsync.io.CustomFileSystem;
+import com.github.perlundq.yajsync.io.FileView;
+import com.github.perlundq.yajsync.session.BlockSizePolicy;
 import com.github.perlundq.yajsync.session.ClientSessionConfig;
 import com.github.perlundq.yajsync.session.RsyncClientSession;
 import com.github.perlundq.yajsync.session.RsyncException;
@@ -238,6 +243,7 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
         Logger.getLogger(YajSyncClient.class.getName());
 
     private boolean _isDeferredWrite;
+    private boolean _isWholeFile;
     private boolean _isModuleListing;
     private boolean _isPreservePermissions;
     private boolean _isPreserveTimes;
@@ -248,12 +254,25 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
     private boolean _isRecursiveTransfer;
     private boolean _isDelete;
     private boolean _isDeleteExcluded;
+    private boolean _isDeleteAfter;
     private boolean _isRemote;
     private boolean _isSender;
     private boolean _isShowStatistics;
+    private int _spillThreshold;
+    private int _numPrefetchDirectories;
+    private int _smallFileThreshold = FileView.DEFAULT_SMALL_FILE_THRESHOLD;
+    private int _inputBufferSize = PrefetchedTaggedInputChannel.DEFAULT_BUF_SIZE;
+    private int _maxInputBufferSize =
+        PrefetchedTaggedInputChannel.DEFAULT_MAX_BUF_SIZE;
+    private int _blockSize;
+    private BlockSizePolicy _blockSizePolicy = BlockSizePolicy.newSquareRoot();
+    private int _bandwidthLimit;
+    private Path _writeBatchFile;
+    private Path _readBatchFile;
     private int _remotePort = Consts.DEFAULT_LISTEN_PORT;
     private int _verbosity = 0;
     private final List<String> _inputFilterRules = new LinkedList<>();
+    private final List<String> _deltaTransferOptions = new LinkedList<>();      // not used by --whole-file
     private FilterRuleConfiguration _filterRuleConfiguration;
     private final List<String> _srcArgs = new LinkedList<>();
     private Statistics _statistics;
@@ -476,6 +495,27 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
                         _isDelete = true; // implicit option
                     }}));
 
+        options.add(
+                Option.newWithoutArgument(Option.Policy.OPTIONAL,
+                                          "delete-after", "",
+                                          String.format("delete extraneous files from dest dirs after the transfer, " +
+                                                        "in parallel"),
+                new Option.ContinuingHandler() {
+                    @Override public void handleAndContinue(Option option) {
+                        _isDeleteAfter = true;
+                        _isDelete = true; // implicit option
+                    }}));
+
+        options.add(
+                Option.newWithoutArgument(Option.Policy.OPTIONAL,
+                                          "delete-delay", "",
+                                          String.format("same as --delete-after"),
+                new Option.ContinuingHandler() {
+                    @Override public void handleAndContinue(Option option) {
+                        _isDeleteAfter = true;
+                        _isDelete = true; // implicit option
+                    }}));
+
         options.add(
             Option.newWithoutArgument(Option.Policy.OPTIONAL,
                                       "stats", "",
@@ -505,6 +545,26 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
                     _remotePort = (int) option.getValue();
                 }}));
 
+        options.add(
+            Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                    "bwlimit", "",
+                                    String.format("limit the rate of data " +
+                                                  "sent by both sides of a " +
+                                                  "remote transfer to N KiB " +
+                                                  "per second (default %d - " +
+                                                  "unlimited)",
+                                                  _bandwidthLimit),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    int n = (int) option.getValue();
+                    if (n < 0) {
+                        throw new ArgumentParsingError(
+                            "bandwidth limit must not be negative: " + n);
+                    }
+                    _bandwidthLimit = n;
+                }}));
+
         options.add(
             Option.newWithoutArgument(Option.Policy.OPTIONAL,
                                       "stdin", "",
@@ -514,6 +574,166 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
                     _readStdin = true;
                 }}));
 
+        options.add(
+            Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                    "spill-threshold", "",
+                                    String.format("(sender only) sort and " +
+                                                  "spill the file list entries " +
+                                                  "of a directory to temporary " +
+                                                  "files for every N entries " +
+                                                  "read (default %d - disabled)",
+                                                  _spillThreshold),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    int n = (int) option.getValue();
+                    if (n < 0) {
+                        throw new ArgumentParsingError(
+                            "spill threshold must not be negative: " + n);
+                    }
+                    _spillThreshold = n;
+                    _deltaTransferOptions.add("--spill-threshold");
+                }}));
+
+        options.add(
+            Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                    "prefetch-dirs", "",
+                                    String.format("(sender only) number of " +
+                                                  "upcoming directories to list " +
+                                                  "in parallel ahead of sending " +
+                                                  "them (default %d - disabled)",
+                                                  _numPrefetchDirectories),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    int n = (int) option.getValue();
+                    if (n < 0) {
+                        throw new ArgumentParsingError(
+                            "number of prefetched directories must not be " +
+                            "negative: " + n);
+                    }
+                    _numPrefetchDirectories = n;
+                    _deltaTransferOptions.add("--prefetch-dirs");
+                }}));
+
+        options.add(
+            Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                    "small-file-threshold", "",
+                                    String.format("read files of at most N " +
+                                                  "bytes whole and match them " +
+                                                  "as a single block, a " +
+                                                  "modified one is always sent " +
+                                                  "whole (default %d, 0 - " +
+                                                  "disabled)",
+                                                  _smallFileThreshold),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    int n = (int) option.getValue();
+                    if (n < 0 || n > FileView.MAX_SMALL_FILE_THRESHOLD) {
+                        throw new ArgumentParsingError(String.format(
+                            "small file threshold must be within 0 and %d: %d",
+                            FileView.MAX_SMALL_FILE_THRESHOLD, n));
+                    }
+                    _smallFileThreshold = n;
+                    _deltaTransferOptions.add("--small-file-threshold");
+                }}));
+
+        options.add(
+            Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                    "input-buffer-size", "",
+                                    String.format("initial size in bytes of " +
+                                                  "the buffer of data received " +
+                                                  "from the peer, doubled " +
+                                                  "whenever a single read " +
+                                                  "fills it (default %d)",
+                                                  _inputBufferSize),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _inputBufferSize = toInputBufferSize(option);
+                    _deltaTransferOptions.add("--input-buffer-size");
+                }}));
+
+        options.add(
+            Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                    "max-input-buffer-size", "",
+                                    String.format("maximum size in bytes of " +
+                                                  "the buffer of data received " +
+                                                  "from the peer (default %d)",
+                                                  _maxInputBufferSize),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _maxInputBufferSize = toInputBufferSize(option);
+                    _deltaTransferOptions.add("--max-input-buffer-size");
+                }}));
+
+        options.add(
+            Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                    "block-size", "B",
+                                    "force a fixed checksum block length " +
+                                    "(default 0 - decided per file)",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    int n = (int) option.getValue();
+                    if (n < 0 || n > BlockSizePolicy.MAX_BLOCK_LENGTH) {
+                        throw new ArgumentParsingError(String.format(
+                            "block size must be within 0 and %d: %d",
+                            BlockSizePolicy.MAX_BLOCK_LENGTH, n));
+                    }
+                    _blockSize = n;
+                    _deltaTransferOptions.add("--block-size");
+                }}));
+
+        options.add(
+            Option.newStringOption(Option.Policy.OPTIONAL,
+                                   "block-size-history", "",
+                                   "(receiver only) learn which checksum " +
+                                   "block lengths minimise the data sent for " +
+                                   "each file name extension and keep them " +
+                                   "in FILE for later runs",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    String fileName = (String) option.getValue();
+                    try {
+                        _blockSizePolicy =
+                            BlockSizePolicy.newAdaptive(Paths.get(fileName));
+                        _deltaTransferOptions.add("--block-size-history");
+                    } catch (IOException | InvalidPathException e) {
+                        throw new ArgumentParsingError(String.format(
+                            "failed to read block size history %s: %s",
+                            fileName, e.getMessage()));
+                    }
+                }}));
+
+        options.add(
+            Option.newStringOption(Option.Policy.OPTIONAL,
+                                   "write-batch", "",
+                                   "also record the updates sent to the " +
+                                   "receiver in FILE, for --read-batch",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _writeBatchFile = toBatchPath(option);
+                }}));
+
+        options.add(
+            Option.newStringOption(Option.Policy.OPTIONAL,
+                                   "read-batch", "",
+                                   "apply the updates recorded in FILE by " +
+                                   "--write-batch to the destination, which " +
+                                   "must be in the same state as the " +
+                                   "original destination. The options of " +
+                                   "the recorded transfer are used",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _readBatchFile = toBatchPath(option);
+                }}));
+
         String deferredWriteHelp = String.format(
             "(receiver only) receiver defers writing into target tempfile as long as possible" +
             " to possibly eliminate all I/O writes for identical files. This " +
@@ -527,6 +747,32 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
             new Option.ContinuingHandler() {
                 @Override public void handleAndContinue(Option option) {
                     _isDeferredWrite = true;
+                    _deltaTransferOptions.add("--defer-write");
+                }}));
+
+        options.add(
+            Option.newWithoutArgument(Option.Policy.OPTIONAL,
+                                      "whole-file", "W",
+                                      String.format("(local transfers only) " +
+                                                    "copy whole files " +
+                                                    "in-process instead of " +
+                                                    "using the delta transfer " +
+                                                    "algorithm (default %s)",
+                                                    _isWholeFile),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) {
+                    _isWholeFile = true;
+                }}));
+
+        options.add(
+            Option.newWithoutArgument(Option.Policy.OPTIONAL,
+                                      "no-whole-file", "",
+                                      "(local transfers only) use the delta " +
+                                      "transfer algorithm, the opposite of " +
+                                      "--whole-file",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) {
+                    _isWholeFile = false;
                 }}));
 
         options.add(Option.newWithoutArgument(Option.Policy.OPTIONAL,
@@ -538,12 +784,6 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
             new Option.ContinuingHandler() {
             @Override public void handleAndContinue(Option option) {
                 _isTLS = true;
-                // SSLChannel.read and SSLChannel.write depends on
-                // ByteBuffer.array and ByteBuffer.arrayOffset. Disable direct
-                // allocation if the resulting ByteBuffer won't have an array.
-                if (!Environment.hasAllocateDirectArray()) {
-                    Environment.setAllocateDirect(false);
-                }
             }
         }));
 
@@ -590,6 +830,53 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
         return options;
     }
 
+    private static int toInputBufferSize(Option option)
+        throws ArgumentParsingError
+    {
+        int n = (int) option.getValue();
+        if (n < PrefetchedTaggedInputChannel.MIN_BUF_SIZE ||
+            n > PrefetchedTaggedInputChannel.MAX_BUF_SIZE) {
+            throw new ArgumentParsingError(String.format(
+                "%s must be within %d and %d: %d", option.name(),
+                PrefetchedTaggedInputChannel.MIN_BUF_SIZE,
+                PrefetchedTaggedInputChannel.MAX_BUF_SIZE, n));
+        }
+        return n;
+    }
+
+    // NOTE: an empty file name would otherwise resolve to the current
+    //       directory
+    private static Path toBatchPath(Option option) throws ArgumentParsingError
+    {
+        String fileName = (String) option.getValue();
+        if (fileName.isEmpty()) {
+            throw new ArgumentParsingError(String.format(
+                "%s requires a file name", option.name()));
+        }
+        try {
+            return Paths.get(fileName);
+        } catch (InvalidPathException e) {
+            throw new ArgumentParsingError(String.format(
+                "illegal batch file name %s: %s", fileName, e.getMessage()));
+        }
+    }
+
+    private void parseReadBatchArgs(List<String> unnamed)
+        throws ArgumentParsingError
+    {
+        if (unnamed.size() != 1) {
+            throw new ArgumentParsingError(
+                "Please specify exactly 1 non-option argument for the " +
+                "destination when using --read-batch");
+        }
+        Argument dstArg = Argument.parse(unnamed.get(0));
+        if (dstArg.type() == ArgType.REMOTE) {
+            throw new ArgumentParsingError(String.format(
+                "--read-batch requires a local destination: %s", dstArg));
+        }
+        _dstArg = dstArg._pathName;
+    }
+
     private void parseUnnamedArgs(List<String> unnamed)
         throws ArgumentParsingError
     {
@@ -701,7 +988,14 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
             if (rc != ArgumentParser.Status.CONTINUE) {
                 return rc == ArgumentParser.Status.EXIT_OK ? 0 : 1;
             }
-            if (_readStdin) {
+            if (_readBatchFile != null) {
+                if (_writeBatchFile != null) {
+                    throw new ArgumentParsingError(
+                        "--read-batch and --write-batch are mutually " +
+                        "exclusive");
+                }
+                parseReadBatchArgs(argsParser.getUnnamedArguments());
+            } else if (_readStdin) {
                 List<String> srcArgs = new LinkedList<>();
                 try (BufferedReader br = new BufferedReader(new InputStreamReader(System.in))) {
                     while (true) {
@@ -720,6 +1014,18 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
 
             _filterRuleConfiguration = new FilterRuleConfiguration(_inputFilterRules);
 
+            if (_writeBatchFile != null && _isModuleListing) {
+                throw new ArgumentParsingError(
+                    "--write-batch requires a destination argument");
+            }
+
+            if (_isWholeFile && !_isRemote && _readBatchFile == null &&
+                !_deltaTransferOptions.isEmpty()) {
+                throw new ArgumentParsingError(String.format(
+                    "%s cannot be used with --whole-file (-W)",
+                    _deltaTransferOptions.get(0)));
+            }
+
             if (!(_isTransferDirs || _isRecursiveTransfer) && _isDelete) {
             	throw new ArgumentParsingError(
             		"--delete does not work without --recursive (-r) or --dirs (-d).");
@@ -741,7 +1047,9 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
 
         try {
             boolean isOK;
-            if (_isRemote ) {
+            if (_readBatchFile != null) {
+                isOK = startBatchReplay(executor);
+            } else if (_isRemote ) {
                 isOK = startRemoteSession(executor);
             } else {
                 isOK = startLocalSession(executor);
@@ -777,9 +1085,19 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
         session.setIsRecursiveTransfer(_isRecursiveTransfer);
         session.setIsDelete(_isDelete);
         session.setIsDeleteExcluded(_isDeleteExcluded);
+        session.setIsDeleteAfter(_isDeleteAfter);
         session.setFilterRuleConfiguration(_filterRuleConfiguration);
         session.setIsSender(_isSender);
         session.setIsTransferDirs(_isTransferDirs);
+        session.setSpillThreshold(_spillThreshold);
+        session.setNumPrefetchDirectories(_numPrefetchDirectories);
+        session.setSmallFileThreshold(_smallFileThreshold);
+        session.setInputBufferSize(_inputBufferSize);
+        session.setMaxInputBufferSize(_maxInputBufferSize);
+        session.setBlockSize(_blockSize);
+        session.setBlockSizePolicy(_blockSizePolicy);
+        session.setBandwidthLimit(_bandwidthLimit);
+        session.setBatchFile(_writeBatchFile);
 
         ChannelFactory socketFactory = _isTLS ? new SSLChannelFactory()
                                               : new StandardChannelFactory();
@@ -833,10 +1151,10 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
     private boolean startLocalSession(ExecutorService executor)
     {
         if (_log.isLoggable(Level.FINE)) {
-            _log.fine("starting local transfer (using rsync's delta " +
-                      "transfer algorithm - i.e. will not run with a " +
-                      "--whole-file option, so performance is most " +
-                      "probably lower than rsync)");
+            _log.fine(_isWholeFile ? "starting local transfer (copying " +
+                                     "whole files)"
+                                   : "starting local transfer (using " +
+                                     "rsync's delta transfer algorithm)");
         }
 
         RsyncLocal localTransfer = new RsyncLocal();
@@ -851,9 +1169,20 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
         localTransfer.setIsNumericIds(_isNumericIds);
         localTransfer.setIsDelete(_isDelete);
         localTransfer.setIsDeleteExcluded(_isDeleteExcluded);
+        localTransfer.setIsDeleteAfter(_isDeleteAfter);
         localTransfer.setIsIgnoreTimes(_isIgnoreTimes);
         localTransfer.setIsDeferredWrite(_isDeferredWrite);
+        localTransfer.setIsWholeFile(_isWholeFile);
         localTransfer.setIsTransferDirs(_isTransferDirs);
+        localTransfer.setSpillThreshold(_spillThreshold);
+        localTransfer.setNumPrefetchDirectories(_numPrefetchDirectories);
+        localTransfer.setSmallFileThreshold(_smallFileThreshold);
+        localTransfer.setInputBufferSize(_inputBufferSize);
+        localTransfer.setMaxInputBufferSize(_maxInputBufferSize);
+        localTransfer.setBlockSizePolicy(_blockSize > 0
+            ? BlockSizePolicy.newFixed(_blockSize)
+            : _blockSizePolicy);
+        localTransfer.setBatchFile(_writeBatchFile);
         localTransfer.setFilterRuleConfiguration(_filterRuleConfiguration);
         List<Path> srcPaths = new LinkedList<>();
         for (String pathName : _srcArgs) {
@@ -881,6 +1210,37 @@ public class YajSyncClient implements SyncClient, ClientSessionConfig.AuthProvid
         return false;
     }
 
+    private boolean startBatchReplay(ExecutorService executor)
+    {
+        if (_log.isLoggable(Level.FINE)) {
+            _log.fine("replaying batch " + _readBatchFile);
+        }
+
+        RsyncLocal localTransfer = new RsyncLocal();
+        localTransfer.setVerbosity(_verbosity);
+        localTransfer.setIsDeferredWrite(_isDeferredWrite);
+        try {
+            return localTransfer.replay(executor, _out, _readBatchFile,
+                                        _dstArg);
+        } catch (ChannelException e) {
+            if (_log.isLoggable(Level.SEVERE)) {
+                _log.severe(String.format("Error: failed to read batch %s: %s",
+                                          _readBatchFile, e.getMessage()));
+            }
+        } catch (RsyncException e) {
+            if (_log.isLoggable(Level.SEVERE)) {
+                _log.severe(e.getMessage());
+            }
+        } catch (InterruptedException e) {                                      // should not happen
+            if (_log.isLoggable(Level.SEVERE)) {
+                _log.log(Level.SEVERE, "", e);
+            }
+        } finally {
+            _statistics = localTransfer.statistics();
+        }
+        return false;
+    }
+
     public static void main(String[] args)
     {
         System.err.println("Warning: this software is still unstable and " +
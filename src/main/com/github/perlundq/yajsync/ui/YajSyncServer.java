@@ -20,7 +20,11 @@
 package com.github.perlundq.yajsync.ui;
 
 import com.github.perlundq.yajsync.channels.ChannelException;
+import com.github.perlundq.yajsync.channels.PrefetchedTaggedInputChannel;
 import com.github.perlundq.yajsync.channels.net.*;
+import com.github.perlundq.yajsync.io.FileView;
+import com.github.perlundq.yajsync.session.AdmissionController;
+import com.github.perlundq.yajsync.session.BlockSizePolicy;
 import com.github.perlundq.yajsync.session.ModuleException;
 import com.github.perlundq.yajsync.session.ModuleProvider;
 import com.github.perlundq.yajsync.session.Modules;
@@ -35,6 +39,8 @@ import java.net.UnknownHostException;
 import java.nio.charset.Charset;
 import java.nio.charset.IllegalCharsetNameException;
 import java.nio.charset.UnsupportedCharsetException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
@@ -42,7 +48,9 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -51,9 +59,27 @@ public class YajSyncServer
     private static final Logger _log =
         Logger.getLogger(YajSyncServer.class.getName());
     private static final int THREAD_FACTOR = 4;
+    private static final int NUM_REJECTION_THREADS = 2;
+    private static final int MAX_NUM_REJECTING = 64;
+    private static final int MAX_TASKS_PER_SESSION = 2;                        // generator and receiver
 
     private boolean _isDeferredWrite;
+    private int _spillThreshold;
+    private int _numPrefetchDirectories;
+    private int _smallFileThreshold = FileView.DEFAULT_SMALL_FILE_THRESHOLD;
+    private int _inputBufferSize = PrefetchedTaggedInputChannel.DEFAULT_BUF_SIZE;
+    private int _maxInputBufferSize =
+        PrefetchedTaggedInputChannel.DEFAULT_MAX_BUF_SIZE;
+    private BlockSizePolicy _blockSizePolicy = BlockSizePolicy.newSquareRoot();
     private boolean _isTLS;
+    private boolean _isPerSessionThreads;
+    private int _maxConnections;
+    private int _maxWaiting;
+    private int _waitTimeout = 30;
+    private AdmissionController _admissionController;
+    private final AtomicInteger _numRejecting = new AtomicInteger();            // rejected connections being told that the server is busy
+    private int _bandwidthLimit;
+    private TokenBucket _bandwidthLimitBucket;
     private Charset _charset = Charset.forName(Text.UTF8_NAME);
     private int _numThreads = Runtime.getRuntime().availableProcessors() *
                               THREAD_FACTOR;
@@ -62,6 +88,7 @@ public class YajSyncServer
     private InetAddress _address = InetAddress.getLoopbackAddress();
     private ModuleProvider _moduleProvider = ModuleProvider.getDefault();
     private ExecutorService _executor;
+    private ExecutorService _rejectionExecutor;                                 // tells rejected connections the server is busy, not delayed by running sessions
     private CountDownLatch _isListeningLatch;
     private PrintStream _out = System.out;
     private PrintStream _err = System.err;
@@ -164,6 +191,79 @@ public class YajSyncServer
                     _numThreads = (int) option.getValue();
                 }}));
 
+        options.add(Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                            "max-connections", "",
+                                            String.format("maximum number of " +
+                                                          "concurrent " +
+                                                          "connections, further " +
+                                                          "connections wait or " +
+                                                          "are rejected as busy " +
+                                                          "(default %d - " +
+                                                          "unlimited)",
+                                                          _maxConnections),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) throws ArgumentParsingError {
+                    int n = (int) option.getValue();
+                    if (n < 0) {
+                        throw new ArgumentParsingError(
+                            "maximum number of connections must not be " +
+                            "negative: " + n);
+                    }
+                    _maxConnections = n;
+                }}));
+
+        options.add(Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                            "max-waiting", "",
+                                            String.format("maximum number of " +
+                                                          "connections waiting " +
+                                                          "for a connection " +
+                                                          "slot (default %d)",
+                                                          _maxWaiting),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) throws ArgumentParsingError {
+                    int n = (int) option.getValue();
+                    if (n < 0) {
+                        throw new ArgumentParsingError(
+                            "maximum number of waiting connections must not " +
+                            "be negative: " + n);
+                    }
+                    _maxWaiting = n;
+                }}));
+
+        options.add(Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                            "wait-timeout", "",
+                                            String.format("maximum number of " +
+                                                          "seconds to wait for " +
+                                                          "a connection slot " +
+                                                          "(default %d)",
+                                                          _waitTimeout),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) throws ArgumentParsingError {
+                    int n = (int) option.getValue();
+                    if (n < 0) {
+                        throw new ArgumentParsingError(
+                            "wait timeout must not be negative: " + n);
+                    }
+                    _waitTimeout = n;
+                }}));
+
+        options.add(Option.newWithoutArgument(Option.Policy.OPTIONAL,
+                                              "per-session-threads", "",
+                                              String.format("run every session " +
+                                                            "and its tasks on " +
+                                                            "threads of its own " +
+                                                            "instead of the " +
+                                                            "shared thread pool, " +
+                                                            "using virtual " +
+                                                            "threads if " +
+                                                            "supported by the " +
+                                                            "JVM (default %s)",
+                                                            _isPerSessionThreads),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) {
+                    _isPerSessionThreads = true;
+                }}));
+
         String deferredWriteHelp = String.format(
             "receiver defers writing into target tempfile as long as " +
             "possible to reduce I/O, at the cost of highly increased risk of the " +
@@ -178,6 +278,135 @@ public class YajSyncServer
                     _isDeferredWrite = true;
                 }}));
 
+        options.add(Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                            "spill-threshold", "",
+                                            String.format("sort and spill the " +
+                                                          "file list entries of a " +
+                                                          "directory to temporary " +
+                                                          "files for every N " +
+                                                          "entries read (default " +
+                                                          "%d - disabled)",
+                                                          _spillThreshold),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) throws ArgumentParsingError {
+                    int n = (int) option.getValue();
+                    if (n < 0) {
+                        throw new ArgumentParsingError(
+                            "spill threshold must not be negative: " + n);
+                    }
+                    _spillThreshold = n;
+                }}));
+
+        options.add(Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                            "prefetch-dirs", "",
+                                            String.format("number of upcoming " +
+                                                          "directories to list " +
+                                                          "in parallel ahead of " +
+                                                          "sending them (default " +
+                                                          "%d - disabled)",
+                                                          _numPrefetchDirectories),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) throws ArgumentParsingError {
+                    int n = (int) option.getValue();
+                    if (n < 0) {
+                        throw new ArgumentParsingError(
+                            "number of prefetched directories must not be " +
+                            "negative: " + n);
+                    }
+                    _numPrefetchDirectories = n;
+                }}));
+
+        options.add(Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                            "small-file-threshold", "",
+                                            String.format("read files of at " +
+                                                          "most N bytes whole " +
+                                                          "and match them as a " +
+                                                          "single block, a " +
+                                                          "modified one is " +
+                                                          "always sent whole " +
+                                                          "(default %d, 0 - " +
+                                                          "disabled)",
+                                                          _smallFileThreshold),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) throws ArgumentParsingError {
+                    int n = (int) option.getValue();
+                    if (n < 0 || n > FileView.MAX_SMALL_FILE_THRESHOLD) {
+                        throw new ArgumentParsingError(String.format(
+                            "small file threshold must be within 0 and %d: %d",
+                            FileView.MAX_SMALL_FILE_THRESHOLD, n));
+                    }
+                    _smallFileThreshold = n;
+                }}));
+
+        options.add(
+            Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                    "input-buffer-size", "",
+                                    String.format("initial size in bytes of " +
+                                                  "the buffer of data received " +
+                                                  "from the peer, doubled " +
+                                                  "whenever a single read " +
+                                                  "fills it (default %d)",
+                                                  _inputBufferSize),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _inputBufferSize = toInputBufferSize(option);
+                }}));
+
+        options.add(
+            Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                    "max-input-buffer-size", "",
+                                    String.format("maximum size in bytes of " +
+                                                  "the buffer of data received " +
+                                                  "from the peer (default %d)",
+                                                  _maxInputBufferSize),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option)
+                    throws ArgumentParsingError {
+                    _maxInputBufferSize = toInputBufferSize(option);
+                }}));
+
+        options.add(Option.newStringOption(Option.Policy.OPTIONAL,
+                                           "block-size-history", "",
+                                           "learn which checksum block " +
+                                           "lengths minimise the data " +
+                                           "received for each file name " +
+                                           "extension and keep them in FILE, " +
+                                           "shared by all sessions",
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) throws ArgumentParsingError {
+                    String fileName = (String) option.getValue();
+                    try {
+                        _blockSizePolicy =
+                            BlockSizePolicy.newAdaptive(Paths.get(fileName));
+                    } catch (IOException | InvalidPathException e) {
+                        throw new ArgumentParsingError(String.format(
+                            "failed to read block size history %s: %s",
+                            fileName, e.getMessage()));
+                    }
+                }}));
+
+        options.add(Option.newIntegerOption(Option.Policy.OPTIONAL,
+                                            "bwlimit", "",
+                                            String.format("limit the total " +
+                                                          "rate of data sent " +
+                                                          "by all sessions to " +
+                                                          "N KiB per second, " +
+                                                          "shared fairly " +
+                                                          "between sessions " +
+                                                          "(default %d - " +
+                                                          "unlimited)",
+                                                          _bandwidthLimit),
+            new Option.ContinuingHandler() {
+                @Override public void handleAndContinue(Option option) throws ArgumentParsingError {
+                    int n = (int) option.getValue();
+                    if (n < 0) {
+                        throw new ArgumentParsingError(
+                            "bandwidth limit must not be negative: " + n);
+                    }
+                    _bandwidthLimit = n;
+                }}));
+
         options.add(Option.newWithoutArgument(Option.Policy.OPTIONAL,
                                               "tls", "",
                                               String.format("tunnel all data " +
@@ -187,25 +416,75 @@ public class YajSyncServer
             new Option.ContinuingHandler() {
                 @Override public void handleAndContinue(Option option) {
                     _isTLS = true;
-                    // SSLChannel.read and SSLChannel.write depends on
-                    // ByteBuffer.array and ByteBuffer.arrayOffset. Disable
-                    // direct allocation if the resulting ByteBuffer won't have
-                    // an array.
-                    if (!Environment.hasAllocateDirectArray()) {
-                        Environment.setAllocateDirect(false);
-                    }
                 }}));
 
         return options;
     }
 
-    private Callable<Boolean> createCallable(final DuplexByteChannel sock,
-                                             final boolean isInterruptible)
+    // hands a connection over to an executor once its admission is decided,
+    // a rejected connection is only told that the server is busy - unless
+    // there already are too many of them, it is then closed right away
+    private static int toInputBufferSize(Option option)
+        throws ArgumentParsingError
+    {
+        int n = (int) option.getValue();
+        if (n < PrefetchedTaggedInputChannel.MIN_BUF_SIZE ||
+            n > PrefetchedTaggedInputChannel.MAX_BUF_SIZE) {
+            throw new ArgumentParsingError(String.format(
+                "%s must be within %d and %d: %d", option.name(),
+                PrefetchedTaggedInputChannel.MIN_BUF_SIZE,
+                PrefetchedTaggedInputChannel.MAX_BUF_SIZE, n));
+        }
+        return n;
+    }
+
+    private void dispatch(DuplexByteChannel sock,
+                          AdmissionController.Admission admission,
+                          boolean isInterruptible)
+    {
+        if (!admission.isRejected()) {
+            _executor.submit(createCallable(sock, admission,                    // NOTE: result discarded
+                                            isInterruptible));
+        } else if (_numRejecting.incrementAndGet() <= MAX_NUM_REJECTING) {
+            _rejectionExecutor.submit(createCallable(sock, admission,
+                                                     isInterruptible));
+        } else {
+            _numRejecting.decrementAndGet();
+            if (_log.isLoggable(Level.INFO)) {
+                _log.info(String.format("closing connection from %s: %s",
+                                        sock.peerAddress(), admission));
+            }
+            close(sock);
+        }
+    }
+
+    private void close(DuplexByteChannel sock)
+    {
+        try {
+            sock.close();
+        } catch (IOException e) {
+            if (_log.isLoggable(Level.SEVERE)) {
+                _log.severe(String.format(
+                    "Got error during close of socket %s: %s",
+                    sock, e.getMessage()));
+            }
+        }
+    }
+
+    private Callable<Boolean> createCallable(
+        final DuplexByteChannel sock,
+        final AdmissionController.Admission admission,
+        final boolean isInterruptible)
     {
         return new Callable<Boolean>() {
             @Override
             public Boolean call() {
                 boolean isOK = false;
+                ExecutorService taskExecutor =
+                    _isPerSessionThreads && !admission.isRejected()
+                        ? SessionExecutors.newSessionTaskExecutor(
+                                                    MAX_TASKS_PER_SESSION)
+                        : _executor;
                 try {
                     Modules modules;
                     if (sock.isPeerAuthenticated()) {
@@ -228,7 +507,15 @@ public class YajSyncServer
                     RsyncServerSession session = new RsyncServerSession();
                     session.setCharset(_charset);
                     session.setIsDeferredWrite(_isDeferredWrite);
-                    isOK = session.transfer(_executor,
+                    session.setSpillThreshold(_spillThreshold);
+                    session.setNumPrefetchDirectories(_numPrefetchDirectories);
+                    session.setSmallFileThreshold(_smallFileThreshold);
+                    session.setInputBufferSize(_inputBufferSize);
+                    session.setMaxInputBufferSize(_maxInputBufferSize);
+                    session.setBlockSizePolicy(_blockSizePolicy);
+                    session.setAdmission(admission);
+                    session.setBandwidthLimit(_bandwidthLimitBucket);
+                    isOK = session.transfer(taskExecutor,
                                                 sock,    // in
                                                 sock,    // out
                                                 modules,
@@ -251,15 +538,14 @@ public class YajSyncServer
                         _log.log(Level.SEVERE, "", t);
                     }
                 } finally {
-                    try {
-                        sock.close();
-                    } catch (IOException e) {
-                        if (_log.isLoggable(Level.SEVERE)) {
-                            _log.severe(String.format(
-                                "Got error during close of socket %s: %s",
-                                sock, e.getMessage()));
-                        }
+                    admission.release();
+                    if (admission.isRejected()) {
+                        _numRejecting.decrementAndGet();
                     }
+                    if (taskExecutor != _executor) {
+                        taskExecutor.shutdown();
+                    }
+                    close(sock);
                 }
 
                 if (_log.isLoggable(Level.FINE)) {
@@ -302,22 +588,60 @@ public class YajSyncServer
         //socketFactory.setSocketTimeout(60);
         socketFactory.setReuseAddress(true);
         //socketFactory.setKeepAlive(true);
-        boolean isInterruptible = !_isTLS;
-        _executor = Executors.newFixedThreadPool(_numThreads);
+        final boolean isInterruptible = !_isTLS;
+        _admissionController =
+            new AdmissionController(_maxConnections, _maxWaiting,
+                                    TimeUnit.SECONDS.toMillis(_waitTimeout));
+        if (_bandwidthLimit > 0) {
+            _bandwidthLimitBucket =
+                TokenBucket.newKiloBytesPerSecond(_bandwidthLimit);
+        }
+        if (_isPerSessionThreads) {
+            _executor = SessionExecutors.newThreadPerTaskExecutor();
+            if (_log.isLoggable(Level.INFO)) {
+                _log.info(String.format("running sessions on per session %s " +
+                                        "threads",
+                                        SessionExecutors.isVirtualThreadsAvailable()
+                                            ? "virtual" : "platform"));
+            }
+        } else {
+            _executor = Executors.newFixedThreadPool(_numThreads);
+        }
+        _rejectionExecutor =
+            Executors.newFixedThreadPool(NUM_REJECTION_THREADS);
+
+        ScheduledExecutorService expiryTimer = null;
+        if (_maxConnections > 0 && _maxWaiting > 0) {
+            expiryTimer = Executors.newSingleThreadScheduledExecutor();
+            expiryTimer.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    _admissionController.rejectExpired();
+                }
+            }, 1, 1, TimeUnit.SECONDS);
+        }
 
         try (ServerChannel listenSock = socketFactory.open(_address, _port)) {  // throws IOException
             if (_isListeningLatch != null) {
                 _isListeningLatch.countDown();
             }
             while (true) {
-                DuplexByteChannel sock = listenSock.accept();                   // throws IOException
-                Callable<Boolean> c = createCallable(sock, isInterruptible);
-                _executor.submit(c);                                            // NOTE: result discarded
+                final DuplexByteChannel sock = listenSock.accept();             // throws IOException
+                _admissionController.admit(new AdmissionController.Handler() {  // never blocks, the connection might be dispatched later
+                    @Override
+                    public void handle(AdmissionController.Admission admission) {
+                        dispatch(sock, admission, isInterruptible);
+                    }
+                });
             }
         } finally {
             if (_log.isLoggable(Level.INFO)) {
                 _log.info("shutting down...");
             }
+            if (expiryTimer != null) {
+                expiryTimer.shutdownNow();
+            }
+            _rejectionExecutor.shutdown();
             _executor.shutdown();
             _moduleProvider.close();
             while (!_executor.awaitTermination(5, TimeUnit.MINUTES)) {
@@ -0,0 +1,105 @@
+/*
+ * Fork/join merge sort of object arrays
+ *
+ * Copyright (C) 2013, 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.util;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Stable sort of object arrays in natural order. Arrays shorter than
+ * PARALLEL_THRESHOLD are sorted sequentially using Arrays.sort, larger ones
+ * are split and merged in a shared fork/join pool.
+ */
+public final class ArraySorter
+{
+    public static final int PARALLEL_THRESHOLD = 1 << 14;
+    private static final int MIN_CHUNK_SIZE = 1 << 12;
+
+    private static class SortTask<T extends Comparable<? super T>>
+        extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+        private final T[] _a;
+        private final T[] _tmp;
+        private final int _from;
+        private final int _to;
+
+        private SortTask(T[] a, T[] tmp, int from, int to)
+        {
+            _a = a;
+            _tmp = tmp;
+            _from = from;
+            _to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (_to - _from <= MIN_CHUNK_SIZE) {
+                Arrays.sort(_a, _from, _to);
+                return;
+            }
+            int mid = (_from + _to) >>> 1;
+            invokeAll(new SortTask<>(_a, _tmp, _from, mid),
+                      new SortTask<>(_a, _tmp, mid, _to));
+            merge(mid);
+        }
+
+        private void merge(int mid)
+        {
+            if (_a[mid - 1].compareTo(_a[mid]) <= 0) {
+                return;
+            }
+            System.arraycopy(_a, _from, _tmp, _from, mid - _from);
+            int i = _from;
+            int j = mid;
+            int k = _from;
+            while (i < mid && j < _to) {
+                // NOTE: <= keeps the sort stable
+                if (_tmp[i].compareTo(_a[j]) <= 0) {
+                    _a[k++] = _tmp[i++];
+                } else {
+                    _a[k++] = _a[j++];
+                }
+            }
+            while (i < mid) {
+                _a[k++] = _tmp[i++];
+            }
+        }
+    }
+
+    private static class PoolHolder
+    {
+        private static final ForkJoinPool POOL = new ForkJoinPool();
+    }
+
+    private ArraySorter() {}
+
+    public static <T extends Comparable<? super T>> void sort(T[] a)
+    {
+        if (a.length < PARALLEL_THRESHOLD ||
+            Runtime.getRuntime().availableProcessors() < 2) {
+            Arrays.sort(a);
+            return;
+        }
+        T[] tmp = Arrays.copyOf(a, a.length);
+        PoolHolder.POOL.invoke(new SortTask<>(a, tmp, 0, a.length));
+    }
+}
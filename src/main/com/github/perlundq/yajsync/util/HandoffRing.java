@@ -0,0 +1,253 @@
+/*
+ * Bounded single producer single consumer ring of reusable elements
+ *
+ * Copyright (C) 2013, 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.util;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Hands elements over from exactly one producer thread to exactly one
+ * consumer thread without locking. The elements are allocated up front and
+ * reused: the producer claims the next free element, fills it in and
+ * publishes it, the consumer takes it, processes it and releases it.
+ * Waiting threads are parked and unparked by the other side.
+ *
+ * The producer waits for the consumer when the ring is full, unless the
+ * consumer has declared itself busy (setIsConsumerBusy) or has been writing
+ * (setIsConsumerWriting) for at least STALL_NANOS, i.e. it is probably
+ * blocked on something that in turn may be waiting for the producer. Elements
+ * are then allocated and queued in an overflow queue instead, which is always
+ * consumed after the ring so the order is kept. The producer also waits for
+ * the overflow to be consumed before using the ring again, so the overflow
+ * only grows while the consumer is stalled.
+ */
+public final class HandoffRing<T>
+{
+    public interface Factory<T>
+    {
+        T newInstance();
+    }
+
+    static final long STALL_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final Object[] _elements;
+    private final int _mask;
+    private final Factory<T> _factory;
+    private final AtomicLong _head = new AtomicLong();                          // next element to take, written by consumer only
+    private final AtomicLong _tail = new AtomicLong();                          // next element to publish, written by producer only
+    private final Queue<T> _overflow = new ConcurrentLinkedQueue<>();
+    private volatile boolean _isConsumerBusy;
+    private volatile boolean _isConsumerWriting;
+    private volatile long _writeStartNanos;
+    private volatile boolean _isProducerWaiting;
+    private volatile boolean _isConsumerWaiting;
+    private volatile Thread _producer;
+    private volatile Thread _consumer;
+    private T _claimed;                                                         // producer only
+    private boolean _isClaimedOverflow;                                         // producer only
+    private boolean _isTakenOverflow;                                           // consumer only
+
+    /**
+     * @param capacity number of elements of the ring, must be a power of two
+     */
+    public HandoffRing(int capacity, Factory<T> factory)
+    {
+        assert capacity > 0 && (capacity & capacity - 1) == 0 : capacity;
+        _elements = new Object[capacity];
+        for (int i = 0; i < capacity; i++) {
+            _elements[i] = factory.newInstance();
+        }
+        _mask = capacity - 1;
+        _factory = factory;
+    }
+
+    @SuppressWarnings("unchecked")
+    private T elementAt(long index)
+    {
+        return (T) _elements[(int) (index & _mask)];
+    }
+
+    private boolean isFull()
+    {
+        return _tail.get() - _head.get() == _elements.length;
+    }
+
+    // the ring cannot be used until the consumer has caught up
+    private boolean isBlocked()
+    {
+        return isFull() || !_overflow.isEmpty();
+    }
+
+    private boolean isConsumerStalled()
+    {
+        return _isConsumerBusy ||
+               _isConsumerWriting &&
+               System.nanoTime() - _writeStartNanos >= STALL_NANOS;
+    }
+
+    /**
+     * Producer only. Returns the element to be filled in and published next,
+     * waiting for a free element if the ring is full or the overflow not
+     * empty, unless the consumer is stalled.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public T claim() throws InterruptedException
+    {
+        assert _claimed == null;
+        while (isBlocked()) {
+            if (isConsumerStalled()) {
+                _isClaimedOverflow = true;
+                _claimed = _factory.newInstance();
+                return _claimed;
+            }
+            _producer = Thread.currentThread();
+            _isProducerWaiting = true;
+            if (isBlocked() && !_isConsumerBusy) {
+                if (_isConsumerWriting) {
+                    LockSupport.parkNanos(this, _writeStartNanos +
+                                                STALL_NANOS -
+                                                System.nanoTime());
+                } else {
+                    LockSupport.park(this);
+                }
+            }
+            _isProducerWaiting = false;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        _isClaimedOverflow = false;
+        _claimed = elementAt(_tail.get());
+        return _claimed;
+    }
+
+    /**
+     * Producer only. Makes the last claimed element available to the
+     * consumer.
+     */
+    public void publish()
+    {
+        assert _claimed != null;
+        if (_isClaimedOverflow) {
+            _overflow.add(_claimed);
+        } else {
+            _tail.set(_tail.get() + 1);
+        }
+        _claimed = null;
+        if (_isConsumerWaiting) {
+            LockSupport.unpark(_consumer);
+        }
+    }
+
+    /**
+     * Consumer only. The returned element must be released before polling
+     * or taking the next one.
+     *
+     * @return the next published element or null if there is none
+     */
+    public T poll()
+    {
+        long head = _head.get();
+        if (head != _tail.get()) {
+            _isTakenOverflow = false;
+            return elementAt(head);
+        }
+        T element = _overflow.poll();
+        _isTakenOverflow = element != null;
+        return element;
+    }
+
+    /**
+     * Consumer only. Same as poll but waits for an element to be published.
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public T take() throws InterruptedException
+    {
+        T element;
+        while ((element = poll()) == null) {
+            _consumer = Thread.currentThread();
+            _isConsumerWaiting = true;
+            if (isEmpty()) {
+                LockSupport.park(this);
+            }
+            _isConsumerWaiting = false;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        return element;
+    }
+
+    /**
+     * Consumer only. Hands the element returned by the last poll or take
+     * back to the producer.
+     */
+    public void release()
+    {
+        if (_isTakenOverflow) {
+            _isTakenOverflow = false;
+        } else {
+            _head.set(_head.get() + 1);
+        }
+        if (_isProducerWaiting) {
+            LockSupport.unpark(_producer);
+        }
+    }
+
+    /**
+     * Consumer only, as seen by the consumer.
+     */
+    public boolean isEmpty()
+    {
+        return _head.get() == _tail.get() && _overflow.isEmpty();
+    }
+
+    /**
+     * While the consumer is busy the producer never waits for it, it must
+     * be set when the consumer stops consuming.
+     */
+    public void setIsConsumerBusy(boolean isBusy)
+    {
+        _isConsumerBusy = isBusy;
+        if (isBusy && _isProducerWaiting) {
+            LockSupport.unpark(_producer);
+        }
+    }
+
+    /**
+     * Must be set while the consumer is blocked on anything that may depend
+     * on the producer making progress, the producer stops waiting for it
+     * once it has been set for STALL_NANOS.
+     */
+    public void setIsConsumerWriting(boolean isWriting)
+    {
+        if (isWriting) {
+            _writeStartNanos = System.nanoTime();
+        }
+        _isConsumerWriting = isWriting;
+        if (isWriting && _isProducerWaiting) {
+            LockSupport.unpark(_producer);
+        }
+    }
+}
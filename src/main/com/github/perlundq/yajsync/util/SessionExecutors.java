@@ -0,0 +1,114 @@
+/*
+ * Executors for running sessions on threads of their own
+ *
+ * Copyright (C) 2013, 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.util;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executors which never make one session wait for threads occupied by
+ * another session. Virtual threads are used if the JVM supports them (Java
+ * 21 and later), platform threads otherwise.
+ */
+public final class SessionExecutors
+{
+    private static final long IDLE_TIMEOUT_SECONDS = 60;
+    private static final Method _newVirtualThreadPerTaskExecutor =
+        lookupVirtualThreadPerTaskExecutor();
+    private static final AtomicInteger _threadCount = new AtomicInteger();
+
+    private SessionExecutors() {}
+
+    public static boolean isVirtualThreadsAvailable()
+    {
+        return _newVirtualThreadPerTaskExecutor != null;
+    }
+
+    /**
+     * @return an executor running every task on a new virtual thread if
+     *         available, otherwise on a platform thread which is reused for
+     *         later tasks unless idle for too long
+     */
+    public static ExecutorService newThreadPerTaskExecutor()
+    {
+        if (isVirtualThreadsAvailable()) {
+            return newVirtualThreadPerTaskExecutor();
+        }
+        return Executors.newCachedThreadPool(threadFactory());
+    }
+
+    /**
+     * @return an executor for the tasks of a single session, running every
+     *         task on a new virtual thread if available, otherwise on a pool
+     *         of at most maxThreads platform threads which terminate when
+     *         idle
+     */
+    public static ExecutorService newSessionTaskExecutor(int maxThreads)
+    {
+        assert maxThreads > 0;
+        if (isVirtualThreadsAvailable()) {
+            return newVirtualThreadPerTaskExecutor();
+        }
+        ThreadPoolExecutor executor =
+            new ThreadPoolExecutor(maxThreads, maxThreads,
+                                   IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS,
+                                   new LinkedBlockingQueue<Runnable>(),
+                                   threadFactory());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    private static Method lookupVirtualThreadPerTaskExecutor()
+    {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor()
+    {
+        try {
+            return (ExecutorService) _newVirtualThreadPerTaskExecutor.invoke(null);
+        } catch (IllegalAccessException | InvocationTargetException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static ThreadFactory threadFactory()
+    {
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "session-" +
+                                              _threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+}
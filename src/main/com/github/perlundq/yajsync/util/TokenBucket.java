@@ -0,0 +1,108 @@
+/*
+ * Lock-free token bucket rate limiter
+ *
+ * Copyright (C) 2013, 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket limiting the rate of bytes, shared by any number of threads
+ * without locking. Implemented as a generic cell rate algorithm: the bucket
+ * only keeps the theoretical time at which all bytes reserved so far have
+ * been sent, updated with a compare-and-set.
+ *
+ * Bytes are reserved ahead of being sent and the caller then waits for the
+ * returned time, so concurrent callers are served in the order of their
+ * reservations. Callers reserving bytes in bounded chunks thus get an equal
+ * share of the rate, or a share proportional to the chunk size.
+ */
+public final class TokenBucket
+{
+    private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+    private static final long BURST_DIVISOR = 10;                               // allow bursts of 1/10 of a second
+
+    private final long _bytesPerSecond;
+    private final long _burstNanos;
+    private final AtomicLong _theoreticalArrivalTime;
+
+    /**
+     * @param bytesPerSecond the sustained rate
+     * @param burstBytes the number of bytes which may be sent at once after
+     *        the bucket has been idle
+     */
+    public TokenBucket(long bytesPerSecond, long burstBytes)
+    {
+        assert bytesPerSecond > 0;
+        assert burstBytes >= 0;
+        _bytesPerSecond = bytesPerSecond;
+        _burstNanos = toNanos(burstBytes, bytesPerSecond);
+        _theoreticalArrivalTime = new AtomicLong(System.nanoTime());
+    }
+
+    /**
+     * @return a bucket with a rate of kiloBytesPerSecond * 1024 bytes per
+     *         second and a burst of a tenth of that
+     */
+    public static TokenBucket newKiloBytesPerSecond(int kiloBytesPerSecond)
+    {
+        assert kiloBytesPerSecond > 0;
+        long bytesPerSecond = kiloBytesPerSecond * 1024L;
+        return new TokenBucket(bytesPerSecond, bytesPerSecond / BURST_DIVISOR);
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format("%s (rate=%d bytes/s)",
+                             getClass().getSimpleName(), _bytesPerSecond);
+    }
+
+    public long bytesPerSecond()
+    {
+        return _bytesPerSecond;
+    }
+
+    /**
+     * Reserves numBytes from the bucket.
+     *
+     * @return the number of nanoseconds to wait before sending the bytes,
+     *         0 if they may be sent immediately
+     */
+    public long reserve(long numBytes)
+    {
+        assert numBytes >= 0;
+        long cost = toNanos(numBytes, _bytesPerSecond);
+        while (true) {
+            long now = System.nanoTime();
+            long tat = _theoreticalArrivalTime.get();
+            long newTat = Math.max(tat - now, 0) + now + cost;                  // tat - now, nanoTime may overflow
+            if (_theoreticalArrivalTime.compareAndSet(tat, newTat)) {
+                return Math.max(newTat - now - _burstNanos, 0);
+            }
+        }
+    }
+
+    private static long toNanos(long numBytes, long bytesPerSecond)
+    {
+        if (numBytes > Long.MAX_VALUE / NANOS_PER_SECOND) {
+            return Long.MAX_VALUE / 2;
+        }
+        return numBytes * NANOS_PER_SECOND / bytesPerSecond;
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.channels;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class PrefetchedTaggedInputChannelTest {
+
+    // returns at most a random number of bytes for every read
+    private static class TricklingSource implements ReadableByteChannel
+    {
+        private final ByteBuffer _src;
+        private final Random _rnd;
+
+        private TricklingSource(byte[] src, Random rnd)
+        {
+            _src = ByteBuffer.wrap(src);
+            _rnd = rnd;
+        }
+
+        @Override
+        public int read(ByteBuffer dst)
+        {
+            if (!_src.hasRemaining()) {
+                return -1;
+            }
+            int length = Math.min(Math.min(dst.remaining(), _src.remaining()),
+                                  1 + _rnd.nextInt(3000));
+            ByteBuffer slice = _src.duplicate();
+            slice.limit(slice.position() + length);
+            dst.put(slice);
+            _src.position(_src.position() + length);
+            return length;
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    private static class MessageCounter implements MessageHandler
+    {
+        private int _count;
+
+        @Override
+        public void handleMessage(Message message)
+        {
+            assertEquals(MessageCode.INFO, message.header().messageType());
+            _count++;
+        }
+    }
+
+    private static int writeRandom(TaggedOutputChannel channel, byte[] data,
+                                   Random rnd)
+        throws ChannelException
+    {
+        int numMessages = 0;
+        int offset = 0;
+        while (offset < data.length) {
+            if (rnd.nextInt(4) == 0) {
+                ByteBuffer payload = ByteBuffer.allocate(rnd.nextInt(20));
+                channel.putMessage(new Message(MessageCode.INFO, payload));
+                numMessages++;
+            }
+            int length = Math.min(data.length - offset, rnd.nextInt(5000));
+            channel.put(data, offset, length);
+            offset += length;
+            if (rnd.nextInt(3) == 0) {
+                channel.flush();
+            }
+        }
+        channel.flush();
+        return numMessages;
+    }
+
+    // reads a random tagged stream through a ring of 16 bytes growing up to
+    // 4 KiB, set either at construction or afterwards by setBufferSize
+    private static void assertRandomReads(boolean isResized)
+        throws ChannelException
+    {
+        for (long seed = 0; seed < 20; seed++) {
+            Random rnd = new Random(seed);
+            byte[] data = new byte[200000];
+            rnd.nextBytes(data);
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int numMessages = writeRandom(
+                new TaggedOutputChannel(Channels.newChannel(out), 8 * 1024),
+                data, rnd);
+            byte[] raw = out.toByteArray();
+
+            MessageCounter counter = new MessageCounter();
+            PrefetchedTaggedInputChannel in;
+            if (isResized) {
+                in = new PrefetchedTaggedInputChannel(
+                    new TricklingSource(raw, rnd), counter);
+                in.setBufferSize(16, 4 * 1024);
+            } else {
+                in = new PrefetchedTaggedInputChannel(
+                    new TricklingSource(raw, rnd), counter, 16, 4 * 1024);
+            }
+            ByteBuffer expected = ByteBuffer.wrap(data).
+                order(ByteOrder.LITTLE_ENDIAN);
+            while (expected.remaining() >= 100) {
+                switch (rnd.nextInt(6)) {
+                case 0:
+                    assertEquals(expected.get(), in.getByte());
+                    break;
+                case 1:
+                    assertEquals(expected.getChar(), in.getChar());
+                    break;
+                case 2:
+                    assertEquals(expected.getInt(), in.getInt());
+                    break;
+                case 3:
+                    int skip = rnd.nextInt(100);
+                    in.skip(skip);
+                    expected.position(expected.position() + skip);
+                    break;
+                case 4:
+                    ByteBuffer slice = in.getDataSlice(1 + rnd.nextInt(100));
+                    assertTrue(slice.isReadOnly());
+                    byte[] sliceBytes = new byte[slice.remaining()];
+                    slice.get(sliceBytes);
+                    byte[] expectedBytes = new byte[sliceBytes.length];
+                    expected.get(expectedBytes);
+                    assertArrayEquals(expectedBytes, sliceBytes);
+                    break;
+                default:
+                    byte[] bytes = new byte[rnd.nextInt(100)];
+                    ByteBuffer buf = in.get(bytes.length);
+                    assertEquals(bytes.length, buf.remaining());
+                    buf.get(bytes);
+                    byte[] expectedRange = new byte[bytes.length];
+                    expected.get(expectedRange);
+                    assertArrayEquals(expectedRange, bytes);
+                }
+            }
+            in.skip(expected.remaining());
+            assertEquals(0, in.numBytesAvailable());
+            assertEquals(raw.length, in.numBytesRead());
+            assertEquals(numMessages, counter._count);
+        }
+    }
+
+    @Test
+    public void testRandomReadsOfTaggedStream() throws ChannelException
+    {
+        assertRandomReads(false);
+    }
+
+    @Test
+    public void testRandomReadsAfterSetBufferSize() throws ChannelException
+    {
+        assertRandomReads(true);
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.channels;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TaggedOutputChannelTest {
+
+    private static class GatheringSink implements GatheringByteChannel
+    {
+        private final WritableByteChannel _out;
+
+        private GatheringSink(ByteArrayOutputStream out)
+        {
+            _out = Channels.newChannel(out);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException
+        {
+            return _out.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length)
+            throws IOException
+        {
+            long count = 0;
+            for (int i = offset; i < offset + length; i++) {
+                count += _out.write(srcs[i]);
+            }
+            return count;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs) throws IOException
+        {
+            return write(srcs, 0, srcs.length);
+        }
+
+        @Override
+        public boolean isOpen()
+        {
+            return true;
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    private static void writeRandom(TaggedOutputChannel channel, long seed)
+        throws ChannelException
+    {
+        Random rnd = new Random(seed);
+        byte[] data = new byte[100000];
+        rnd.nextBytes(data);
+        for (int i = 0; i < 200; i++) {
+            switch (rnd.nextInt(6)) {
+            case 0:
+                channel.putInt(rnd.nextInt());
+                break;
+            case 1:
+                channel.putByte((byte) rnd.nextInt());
+                break;
+            case 2:
+                ByteBuffer payload = ByteBuffer.allocate(4);
+                payload.putInt(0, rnd.nextInt());
+                channel.putMessage(new Message(MessageCode.INFO, payload));
+                break;
+            case 3:
+                channel.flush();
+                break;
+            case 4:
+                int numSrcs = rnd.nextInt(3) == 0 ? 200                         // many frames, gathered in several writes
+                                                  : 2 + rnd.nextInt(20);
+                ByteBuffer[] srcs = new ByteBuffer[numSrcs];
+                for (int j = 0; j < srcs.length; j++) {
+                    int len = rnd.nextInt(4) == 0 ? 4 : rnd.nextInt(9000);
+                    srcs[j] = ByteBuffer.wrap(data, rnd.nextInt(
+                        data.length - len), len);
+                }
+                int first = rnd.nextInt(2);
+                channel.put(srcs, first, srcs.length - first);
+                break;
+            default:
+                int length = rnd.nextInt(3) == 0 ? rnd.nextInt(50000)
+                                                 : rnd.nextInt(9000);
+                int offset = rnd.nextInt(data.length - length);
+                channel.put(data, offset, length);
+            }
+        }
+        channel.flush();
+    }
+
+    @Test
+    public void testGatheredFramesEqualBufferedFrames() throws ChannelException
+    {
+        for (long seed = 0; seed < 20; seed++) {
+            ByteArrayOutputStream buffered = new ByteArrayOutputStream();
+            writeRandom(new TaggedOutputChannel(Channels.newChannel(buffered),
+                                                8 * 1024), seed);
+            ByteArrayOutputStream gathered = new ByteArrayOutputStream();
+            writeRandom(new TaggedOutputChannel(new GatheringSink(gathered),
+                                                8 * 1024), seed);
+            assertArrayEquals(buffered.toByteArray(), gathered.toByteArray());
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.channels.net;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.KeyStore;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManagerFactory;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SSLChannelTest
+{
+    private static final String PASSWORD = "changeit";
+    private static final int NUM_BYTES = 4 * 1024 * 1024;
+    private static final int WRITE_SIZE = 64 * 1024;
+
+    @Rule
+    public final TemporaryFolder _tempDir = new TemporaryFolder();
+
+    // a context trusting its own self-signed certificate, created by keytool
+    private SSLContext newContext() throws Exception
+    {
+        Path keyStoreFile = _tempDir.getRoot().toPath().resolve("test.jks");
+        Path keytool = Paths.get(System.getProperty("java.home"), "bin",
+                                 "keytool");
+        Process process = new ProcessBuilder(
+            keytool.toString(), "-genkeypair", "-alias", "test",
+            "-keyalg", "RSA", "-keysize", "2048", "-dname", "CN=localhost",
+            "-validity", "1", "-keystore", keyStoreFile.toString(),
+            "-storepass", PASSWORD, "-keypass", PASSWORD).
+            redirectErrorStream(true).
+            redirectOutput(_tempDir.newFile("keytool.log")).
+            start();
+        assertEquals(0, process.waitFor());
+
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        try (InputStream in = Files.newInputStream(keyStoreFile)) {
+            keyStore.load(in, PASSWORD.toCharArray());
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(
+            KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, PASSWORD.toCharArray());
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(
+            TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keyStore);
+        SSLContext context = SSLContext.getInstance("TLSv1.2");
+        context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        return context;
+    }
+
+    private static SSLEngine newEngine(SSLContext context, boolean isClient)
+    {
+        SSLEngine engine = context.createSSLEngine();
+        engine.setUseClientMode(isClient);
+        engine.setEnabledProtocols(new String[] { "TLSv1.2" });                 // renegotiation, not a TLSv1.3 key update
+        return engine;
+    }
+
+    private static byte byteAt(long i)
+    {
+        return (byte) (i % 251);
+    }
+
+    // writes NUM_BYTES, starting a new handshake after every
+    // renegotiateInterval bytes
+    private static Thread newWriter(final SSLChannel channel,
+                                    final SSLEngine engine,
+                                    final int renegotiateInterval,
+                                    final AtomicReference<Throwable> error)
+    {
+        return new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ByteBuffer buf = ByteBuffer.allocate(WRITE_SIZE);
+                    for (long i = 0; i < NUM_BYTES; ) {
+                        buf.clear();
+                        while (buf.hasRemaining()) {
+                            buf.put(byteAt(i++));
+                        }
+                        buf.flip();
+                        while (buf.hasRemaining()) {
+                            channel.write(buf);
+                        }
+                        if (i % renegotiateInterval == 0) {
+                            engine.beginHandshake();
+                        }
+                    }
+                } catch (Throwable t) {
+                    error.compareAndSet(null, t);
+                }
+            }
+        };
+    }
+
+    // reads and verifies NUM_BYTES, using buffers both smaller and larger
+    // than the application buffer size
+    private static Thread newReader(final SSLChannel channel,
+                                    final AtomicReference<Throwable> error)
+    {
+        return new Thread() {
+            @Override
+            public void run() {
+                try {
+                    ByteBuffer small = ByteBuffer.allocate(1000);
+                    ByteBuffer large = ByteBuffer.allocate(WRITE_SIZE);
+                    long i = 0;
+                    for (int n = 0; i < NUM_BYTES; n++) {
+                        ByteBuffer buf = n % 2 == 0 ? small : large;
+                        buf.clear();
+                        if (channel.read(buf) == -1) {
+                            throw new AssertionError("EOF after " + i);
+                        }
+                        buf.flip();
+                        while (buf.hasRemaining()) {
+                            assertEquals(byteAt(i++), buf.get());
+                        }
+                    }
+                } catch (Throwable t) {
+                    error.compareAndSet(null, t);
+                }
+            }
+        };
+    }
+
+    @Test(timeout=60000)
+    public void testRenegotiationWhileReadingAndWriting() throws Exception
+    {
+        SSLContext context = newContext();
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(
+                InetAddress.getLoopbackAddress(), 0));
+            SSLEngine clientEngine = newEngine(context, true);
+            SSLEngine serverEngine = newEngine(context, false);
+            SSLChannel client = new SSLChannel(
+                SocketChannel.open(listener.getLocalAddress()), clientEngine);
+            SSLChannel server = new SSLChannel(listener.accept(),
+                                               serverEngine);
+            AtomicReference<Throwable> error = new AtomicReference<>();
+            Thread[] threads = {
+                newWriter(client, clientEngine, NUM_BYTES / 4, error),
+                newReader(client, error),
+                newWriter(server, serverEngine, NUM_BYTES / 2, error),
+                newReader(server, error) };
+            try {
+                for (Thread t : threads) {
+                    t.start();
+                }
+                for (Thread t : threads) {
+                    t.join();
+                }
+            } finally {
+                client.close();
+                server.close();
+            }
+            assertNull(error.get());
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.filelist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DirectoryCacheTest {
+
+    @Rule
+    public final TemporaryFolder _tempDir = new TemporaryFolder();
+
+    // modification times of a newly modified directory are racy and not cached
+    private static void setOldModificationTime(Path dir, long secondsAgo)
+        throws IOException
+    {
+        Files.setLastModifiedTime(dir, FileTime.fromMillis(
+            System.currentTimeMillis() - secondsAgo * 1000));
+    }
+
+    private static Set<Path> namesOf(DirectoryEntries entries)
+        throws IOException
+    {
+        Set<Path> names = new HashSet<>();
+        for (Path entry : entries) {
+            entries.stat(entry);
+            names.add(entry.getFileName());
+        }
+        return names;
+    }
+
+    @Test
+    public void testUnchangedDirectoryIsListedOnce() throws IOException
+    {
+        Path dir = _tempDir.newFolder().toPath();
+        Files.write(dir.resolve("a"), new byte[] { 1, 2, 3 });
+        setOldModificationTime(dir, 60);
+        DirectoryCache cache = new DirectoryCache(60000, 100);
+
+        DirectoryEntries first = cache.list(dir, false, false, false);
+        DirectoryEntries second = cache.list(dir, false, false, false);
+        assertSame(first, second);
+        assertEquals(3, second.stat(dir.resolve("a")).size());
+        assertEquals(1, cache.numHits());
+        assertEquals(1, cache.numMisses());
+        assertEquals(2, cache.numEntries());                                    // the entry and the directory itself
+
+        cache.list(dir, false, true, false);                                    // different attributes, listed separately
+        assertEquals(2, cache.numMisses());
+        assertEquals(4, cache.numEntries());
+    }
+
+    @Test
+    public void testModifiedDirectoryIsListedAgain() throws IOException
+    {
+        Path dir = _tempDir.newFolder().toPath();
+        Files.createFile(dir.resolve("a"));
+        setOldModificationTime(dir, 60);
+        DirectoryCache cache = new DirectoryCache(60000, 100);
+        assertEquals(1, namesOf(cache.list(dir, false, false, false)).size());
+
+        Files.createFile(dir.resolve("b"));
+        setOldModificationTime(dir, 30);
+        assertEquals(2, namesOf(cache.list(dir, false, false, false)).size());
+        assertEquals(0, cache.numHits());
+        assertEquals(3, cache.numEntries());
+    }
+
+    @Test
+    public void testRacyAndTooLargeListingsAreNotRetained() throws IOException
+    {
+        Path dir = _tempDir.newFolder().toPath();
+        Files.createFile(dir.resolve("a"));
+        Files.createFile(dir.resolve("b"));
+        DirectoryCache cache = new DirectoryCache(60000, 1);
+
+        cache.list(dir, false, false, false);
+        setOldModificationTime(dir, 60);
+        cache.list(dir, false, false, false);
+        assertEquals(2, namesOf(cache.list(dir, false, false, false)).size());
+        assertEquals(0, cache.numHits());
+        assertEquals(0, cache.numEntries());
+        assertEquals(0, cache.numDirectories());
+    }
+
+    @Test
+    public void testEmptyDirectoriesAreCharged() throws IOException
+    {
+        DirectoryCache cache = new DirectoryCache(60000, 3);
+        for (int i = 0; i < 10; i++) {
+            Path dir = _tempDir.newFolder().toPath();
+            setOldModificationTime(dir, 60);
+            cache.list(dir, false, false, false);
+            cache.list(_tempDir.newFolder().toPath(), false, false, false);     // racy
+        }
+        assertEquals(3, cache.numEntries());
+        assertEquals(3, cache.numDirectories());
+    }
+
+    @Test
+    public void testExpiredSnapshotsAreEvicted() throws Exception
+    {
+        DirectoryCache cache = new DirectoryCache(50, 100);
+        Path first = _tempDir.newFolder().toPath();
+        setOldModificationTime(first, 60);
+        cache.list(first, false, false, false);
+        assertEquals(1, cache.numDirectories());
+
+        Thread.sleep(100);
+        Path second = _tempDir.newFolder().toPath();
+        setOldModificationTime(second, 60);
+        cache.list(second, false, false, false);                                // far below maxEntries
+        assertEquals(1, cache.numDirectories());
+        assertEquals(1, cache.numEntries());
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.filelist;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.perlundq.yajsync.util.Environment;
+import com.github.perlundq.yajsync.util.FileOps;
+
+public class DirectoryListingTest
+{
+    @Rule
+    public final TemporaryFolder _tempDir = new TemporaryFolder();
+
+    private static int modeOf(Path dir, Path entry, boolean isExactPermissions)
+        throws IOException
+    {
+        try (DirectoryListing listing = DirectoryListing.open(
+                 dir, isExactPermissions, false, false)) {
+            return listing.stat(entry).mode();
+        }
+    }
+
+    @Test
+    public void testExactPermissionsKeepSpecialBits() throws IOException
+    {
+        if (!Environment.IS_UNIX_FS) {
+            return;
+        }
+        Path dir = _tempDir.newFolder().toPath();
+        Path executable = Files.createFile(dir.resolve("executable"));
+        Path subDir = Files.createDirectory(dir.resolve("dir"));
+        Path file = Files.createFile(dir.resolve("file"));
+        FileOps.setFileMode(executable, FileOps.S_ISUID | 0755,
+                            LinkOption.NOFOLLOW_LINKS);
+        FileOps.setFileMode(subDir, FileOps.S_ISGID | 0755,
+                            LinkOption.NOFOLLOW_LINKS);
+        FileOps.setFileMode(file, 0640, LinkOption.NOFOLLOW_LINKS);
+
+        for (Path p : new Path[] { executable, subDir, file }) {
+            assertEquals(p.toString(), RsyncFileAttributes.stat(p).mode(),
+                         modeOf(dir, p, true));
+        }
+        assertEquals(RsyncFileAttributes.stat(file).mode(),                    // read relative, no special bits to miss
+                     modeOf(dir, file, false));
+    }
+}
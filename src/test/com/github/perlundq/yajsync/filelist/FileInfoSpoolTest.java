@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.filelist;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.github.perlundq.yajsync.util.FileOps;
+
+public class FileInfoSpoolTest {
+
+    private static final Path ROOT = Paths.get("/");
+    private static final Path DIR = Paths.get("/spool");
+
+    RsyncFileAttributes _fileAttrs =
+        new RsyncFileAttributes(FileOps.S_IFREG | 0644, 1, 0, User.whoami(), Group.whoami());
+    RsyncFileAttributes _dirAttrs =
+        new RsyncFileAttributes(FileOps.S_IFDIR | 0755, 0, 0, User.whoami(), Group.whoami());
+
+    private FileInfo newFile(Path path, byte[] pathNameBytes,
+                             RsyncFileAttributes attrs)
+    {
+        return new FileInfo(path, ROOT.relativize(path), pathNameBytes, attrs);
+    }
+
+    private FileInfo newFile(String name)
+    {
+        return newFile(DIR.resolve(name),
+                       ("spool/" + name).getBytes(StandardCharsets.UTF_8),
+                       _fileAttrs);
+    }
+
+    // a file name which is not valid UTF-8
+    private FileInfo newRawFile(byte... name)
+    {
+        StringBuilder sb = new StringBuilder("file:///spool/");
+        byte[] pathNameBytes = Arrays.copyOf("spool/".getBytes(),
+                                            6 + name.length);
+        for (int i = 0; i < name.length; i++) {
+            sb.append(String.format("%%%02X", name[i] & 0xff));
+            pathNameBytes[6 + i] = name[i];
+        }
+        return newFile(Paths.get(URI.create(sb.toString())), pathNameBytes,
+                       _fileAttrs);
+    }
+
+    @SafeVarargs
+    private static FileInfoSpool newSpool(List<FileInfo>... runs)
+        throws Exception
+    {
+        List<Path> paths = new ArrayList<>();
+        List<Integer> sizes = new ArrayList<>();
+        for (List<FileInfo> run : runs) {
+            Collections.sort(run);
+            paths.add(FileInfoSpool.writeRun(run));
+            sizes.add(run.size());
+        }
+        return FileInfoSpool.merge(paths, sizes, FileSystems.getDefault());
+    }
+
+    private static long usedMemory()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void assertSameFile(FileInfo expected, FileInfo actual)
+    {
+        assertEquals(expected, actual);
+        assertEquals(expected.path(), actual.path());
+        assertEquals(expected.normalizedPath(), actual.normalizedPath());
+        assertArrayEquals(expected.pathNameBytes(), actual.pathNameBytes());
+        assertEquals(expected.attrs(), actual.attrs());
+    }
+
+    @Test
+    public void testMergeOrderPrunesDuplicates() throws Exception
+    {
+        List<FileInfo> run1 = new ArrayList<>(Arrays.asList(
+            newFile("e"), newFile("a"), newFile("c")));
+        List<FileInfo> run2 = new ArrayList<>(Arrays.asList(
+            newFile("b"), newFile("c"), newFile("f")));
+        List<FileInfo> run3 = new ArrayList<>(Arrays.asList(newFile("d")));
+        try (FileInfoSpool spool = newSpool(run1, run2, run3)) {
+            assertEquals(6, spool.size());
+            assertEquals(6, spool.totalFileSize());
+            for (int i = 0; i < spool.size(); i++) {
+                assertSameFile(newFile(String.valueOf((char) ('a' + i))),
+                               spool.get(i));
+            }
+            assertSameFile(newFile("c"), spool.get(2));                         // random access
+        }
+    }
+
+    @Test
+    public void testReadBackNonAsciiAndNonUtf8Names() throws Exception
+    {
+        List<FileInfo> files = Arrays.asList(
+            newFile("räksmörgås"),
+            newFile("日本語"),
+            newRawFile((byte) 'a', (byte) 0xff, (byte) 0xfe),
+            newRawFile((byte) 0xe9, (byte) 't', (byte) 0xe9));
+        List<FileInfo> expected = new ArrayList<>(files);
+        Collections.sort(expected);
+        try (FileInfoSpool spool = newSpool(new ArrayList<>(files))) {
+            assertEquals(expected.size(), spool.size());
+            for (int i = 0; i < spool.size(); i++) {
+                assertSameFile(expected.get(i), spool.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testStateIsRetained() throws Exception
+    {
+        FileInfo dir = newFile(DIR.resolve("d"), "spool/d".getBytes(),
+                               _dirAttrs);
+        List<FileInfo> run = new ArrayList<>(Arrays.asList(
+            newFile("a"), dir, newFile("e")));
+        try (FileInfoSpool spool = newSpool(run)) {
+            assertFalse(spool.get(0).isTransferred());
+            spool.get(0).setIsTransferred();
+            spool.get(1).prune();
+            assertTrue(spool.get(0).isTransferred());
+            assertTrue(spool.get(1).isPruned());
+            assertFalse(spool.get(2).isTransferred());
+        }
+    }
+
+    @Test
+    public void testSpilledSegment()
+    {
+        Filelist fileList = new Filelist(false);
+        Filelist.SegmentBuilder builder = new Filelist.SegmentBuilder(null, 3);
+        for (int i = 9; i >= 0; i--) {
+            builder.add(newFile(String.format("f%d", i)));
+        }
+        builder.add(newFile("f4"));
+        builder.add(newRawFile((byte) 'g', (byte) 0xff));
+        Filelist.Segment segment = fileList.newSegment(builder);
+        int first = segment.directoryIndex() + 1;
+        for (int i = 0; i < 10; i++) {
+            assertSameFile(newFile(String.format("f%d", i)),
+                           segment.getFileWithIndexOrNull(first + i));
+        }
+        assertSameFile(newRawFile((byte) 'g', (byte) 0xff),
+                       segment.getFileWithIndexOrNull(first + 10));
+        assertNull(segment.getFileWithIndexOrNull(first + 11));
+        assertEquals(11, fileList.numFiles());
+        segment.getFileWithIndexOrNull(first).setIsTransferred();
+        assertTrue(segment.remove(first).isTransferred());
+        fileList.close();
+    }
+
+    @Test
+    public void testLargeSpilledSegmentIsNotKeptInMemory()
+    {
+        final int numFiles = 200000;
+        final int maxBytesPerFile = 32;                                         // a FileInfo alone is several times larger
+        long before = usedMemory();
+        Filelist fileList = new Filelist(false);
+        Filelist.SegmentBuilder builder =
+            new Filelist.SegmentBuilder(null, 1000);
+        for (int i = numFiles - 1; i >= 0; i--) {
+            builder.add(newFile(String.format("a-rather-long-file-name-%06d",
+                                              i)));
+        }
+        Filelist.Segment segment = fileList.newSegment(builder);
+        int i = 0;
+        for (FileInfo f : segment.files()) {
+            assertEquals(DIR.resolve(String.format(
+                "a-rather-long-file-name-%06d", i)), f.path());
+            i++;
+        }
+        assertEquals(numFiles, i);
+        long retained = usedMemory() - before;
+        assertTrue(String.format("%d bytes retained", retained),
+                   retained < (long) numFiles * maxBytesPerFile);
+        assertEquals(numFiles, fileList.numFiles());
+        fileList.close();
+    }
+}
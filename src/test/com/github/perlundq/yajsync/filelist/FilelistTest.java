@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.filelist;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.github.perlundq.yajsync.util.FileOps;
+
+public class FilelistTest {
+
+    RsyncFileAttributes _fileAttrs =
+        new RsyncFileAttributes(FileOps.S_IFREG | 0644, 1, 0, User.whoami(), Group.whoami());
+
+    private FileInfo newFile(String name)
+    {
+        Path p = Paths.get(name);
+        return new FileInfo(Paths.get("/").resolve(p), p,
+                            p.toString().getBytes(), _fileAttrs);
+    }
+
+    private Filelist.Segment newSegment(Filelist fileList, int numFiles)
+    {
+        Filelist.SegmentBuilder builder = new Filelist.SegmentBuilder(null);
+        for (int i = numFiles - 1; i >= 0; i--) {
+            builder.add(newFile(String.format("f%05d", i)));
+        }
+        return fileList.newSegment(builder);
+    }
+
+    @Test
+    public void testSegmentIsSortedAndIndexed()
+    {
+        Filelist fileList = new Filelist(false);
+        Filelist.Segment segment = newSegment(fileList, 200);
+        int expected = segment.directoryIndex() + 1;
+        FileInfo prev = null;
+        for (Map.Entry<Integer, FileInfo> e : segment.entrySet()) {
+            assertEquals(expected++, (int) e.getKey());
+            assertTrue(prev == null || prev.compareTo(e.getValue()) < 0);
+            prev = e.getValue();
+        }
+        assertEquals(200, fileList.numFiles());
+        assertEquals(200, fileList.totalFileSize());
+    }
+
+    @Test
+    public void testSegmentRemove()
+    {
+        Filelist fileList = new ConcurrentFilelist(false);
+        Filelist.Segment segment = newSegment(fileList, 130);
+        int first = segment.directoryIndex() + 1;
+        for (int i = first; i < first + 130; i += 2) {
+            assertTrue(segment.remove(i) != null);
+            assertNull(segment.remove(i));
+            assertNull(segment.getFileWithIndexOrNull(i));
+        }
+        int n = 0;
+        for (FileInfo f : segment.files()) {
+            n++;
+        }
+        assertEquals(65, n);
+        assertSame(segment, fileList.getSegmentWith(first + 1));
+        assertNull(fileList.getSegmentWith(first));
+        assertFalse(segment.isFinished());
+        segment.removeAll();
+        assertTrue(segment.isFinished());
+        assertSame(segment, fileList.deleteFirstSegment());
+        assertNull(fileList.getSegmentWith(first + 1));
+    }
+
+    @Test
+    public void testSegmentSkipsDuplicates()
+    {
+        Filelist fileList = new Filelist(false);
+        Filelist.SegmentBuilder builder = new Filelist.SegmentBuilder(null);
+        builder.add(newFile("b"));
+        builder.add(newFile("a"));
+        builder.add(newFile("b"));
+        assertTrue(builder.contains(newFile("a")));
+        Filelist.Segment segment = fileList.newSegment(builder);
+        int first = segment.directoryIndex() + 1;
+        assertEquals(newFile("a"), segment.getFileWithIndexOrNull(first));
+        assertEquals(newFile("b"), segment.getFileWithIndexOrNull(first + 1));
+        assertNull(segment.getFileWithIndexOrNull(first + 2));
+        assertEquals(2, fileList.numFiles());
+    }
+
+    @Test
+    public void testBuilderAddAfterContains()
+    {
+        Filelist fileList = new Filelist(false);
+        Filelist.SegmentBuilder builder = new Filelist.SegmentBuilder(null);
+        builder.add(newFile("c"));
+        builder.add(newFile("a"));
+        assertTrue(builder.contains(newFile("c")));                             // sorts the builder
+        builder.add(newFile("b"));
+        builder.addAll(Arrays.asList(newFile("e"), newFile("d")));
+        assertTrue(builder.contains(newFile("b")));
+        assertFalse(builder.contains(newFile("f")));
+        Filelist.Segment segment = fileList.newSegment(builder);
+        int first = segment.directoryIndex() + 1;
+        for (int i = 0; i < 5; i++) {
+            assertEquals(newFile(String.valueOf((char) ('a' + i))),
+                         segment.getFileWithIndexOrNull(first + i));
+        }
+        assertEquals(5, fileList.numFiles());
+    }
+
+    @Test
+    public void testBuilderContainsPath()
+    {
+        Filelist.SegmentBuilder builder = new Filelist.SegmentBuilder(null);
+        builder.add(newFile("d/a"));
+        assertTrue(builder.containsPath(Paths.get("d/a")));
+        assertFalse(builder.containsPath(Paths.get("d/b")));
+        builder.add(newFile("d/b"));                                            // invalidates the lookup set
+        assertTrue(builder.containsPath(Paths.get("d/b")));
+        assertFalse(builder.containsPath(Paths.get("a")));
+    }
+}
@@ -149,4 +149,39 @@ public class FilterRuleListTest {
 		assertEquals(Result.EXCLUDED, list.check(".", false));
 		assertEquals(Result.EXCLUDED, list.check(".", true));
 	}
+
+	@Test
+	public void testFirstMatchWinsAcrossRuleKinds() throws ArgumentParsingError {
+
+		FilterRuleList list = new FilterRuleList();
+		list.addRule("- file1");
+		list.addRule("+ /dir1/dir2/");
+		list.addRule("- !/dir1/file3");
+		list.addRule("+ dir2/file1");
+		list.addRule("- /dir1");
+
+		assertEquals(Result.EXCLUDED, list.check("./dir1/dir2/file1", false));
+		assertEquals(Result.INCLUDED, list.check("./dir1/dir2/", true));
+		assertEquals(Result.EXCLUDED, list.check("./dir1/dir2/", false));
+		assertEquals(Result.EXCLUDED, list.check("./dir1/file3", false));
+		assertEquals(Result.EXCLUDED, list.check("./dir1/file31", false));
+	}
+
+	@Test
+	public void testLiteralBoundaries() throws ArgumentParsingError {
+
+		FilterRuleList list = new FilterRuleList();
+		list.addRule("- /dir1");
+		list.addRule("+ file2");
+
+		assertEquals(Result.EXCLUDED, list.check("./dir1", true));
+		assertEquals(Result.EXCLUDED, list.check("./dir1/file1", false));
+		assertEquals(Result.NEUTRAL, list.check("./dir10/file1", false));
+		assertEquals(Result.INCLUDED, list.check("./dir2/file2", false));
+		assertEquals(Result.INCLUDED, list.check("file2", false));
+		assertEquals(Result.NEUTRAL, list.check("./dir2/xfile2", false));
+
+		list.addRule("- /dir10");
+		assertEquals(Result.EXCLUDED, list.check("./dir10/file1", false));
+	}
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+public class AdaptiveBlockSizePolicyTest
+{
+    private static final long FILE_SIZE = 1 << 20;                              // square root block length 1024
+    private static final int BEST_BLOCK_LENGTH = 4096;
+
+    // bytes sent per byte, the further from BEST_BLOCK_LENGTH the more
+    private static long numWireBytesFor(int blockLength)
+    {
+        int distance = Math.abs(Integer.numberOfTrailingZeros(blockLength) -
+                                Integer.numberOfTrailingZeros(
+                                    BEST_BLOCK_LENGTH));
+        return 1000 * (1 + distance);
+    }
+
+    @Test
+    public void testLearnsAndPersistsBestBlockLength() throws Exception
+    {
+        Path historyFile = Files.createTempFile(null, null);
+        Files.delete(historyFile);
+        try {
+            BlockSizePolicy policy = BlockSizePolicy.newAdaptive(historyFile);
+            Path path = Paths.get("/t/data.LOG");
+            assertEquals(1024, policy.blockLengthFor(path, FILE_SIZE));
+            int numBest = 0;
+            for (int i = 0; i < 200; i++) {
+                int blockLength = policy.blockLengthFor(path, FILE_SIZE);
+                policy.record(path, FILE_SIZE, blockLength,
+                              numWireBytesFor(blockLength), 1000);
+                if (i >= 100 && blockLength == BEST_BLOCK_LENGTH) {
+                    numBest++;
+                }
+            }
+            assertTrue(numBest >= 80);
+            assertEquals(1024, policy.blockLengthFor(Paths.get("/t/data.bin"),
+                                                     FILE_SIZE));
+            policy.save();
+
+            BlockSizePolicy loaded = BlockSizePolicy.newAdaptive(historyFile);
+            assertEquals(BEST_BLOCK_LENGTH,
+                         loaded.blockLengthFor(Paths.get("/u/other.log"),
+                                               FILE_SIZE));
+        } finally {
+            Files.deleteIfExists(historyFile);
+        }
+    }
+
+    // the number of samples recorded per shift in historyFile for extension
+    private static Map<Integer, Long> samplesOf(Path historyFile,
+                                                String extension)
+        throws Exception
+    {
+        Map<Integer, Long> result = new HashMap<>();
+        for (String line : Files.readAllLines(historyFile,
+                                              StandardCharsets.UTF_8)) {
+            String[] fields = line.split(" ");
+            if (fields[0].equals(extension)) {
+                result.put(Integer.parseInt(fields[1]),
+                           Long.parseLong(fields[2]));
+            }
+        }
+        return result;
+    }
+
+    @Test
+    public void testChosenBlockLengthIsNotClamped() throws Exception
+    {
+        Path historyFile = Files.createTempFile(null, null);
+        Files.delete(historyFile);
+        try {
+            BlockSizePolicy policy = BlockSizePolicy.newAdaptive(historyFile);
+            Path small = Paths.get("/t/small.dat");
+            Path large = Paths.get("/t/large.img");
+            long largeSize = 1L << 40;                                          // square root block length MAX_BLOCK_LENGTH
+            Map<Integer, Long> expectedSmall = new HashMap<>();
+            Map<Integer, Long> expectedLarge = new HashMap<>();
+            for (int i = 0; i < 200; i++) {
+                int blockLength = policy.blockLengthFor(small, 1000);           // square root block length MIN_BLOCK_LENGTH
+                assertTrue(blockLength >= BlockSizePolicy.MIN_BLOCK_LENGTH);
+                policy.record(small, 1000, blockLength, 1000, 1000);            // every length equally good, keeps exploring
+                int shift = Integer.numberOfTrailingZeros(blockLength) -
+                            Integer.numberOfTrailingZeros(
+                                BlockSizePolicy.MIN_BLOCK_LENGTH);
+                Long n = expectedSmall.get(shift);
+                expectedSmall.put(shift, n == null ? 1 : n + 1);
+
+                blockLength = policy.blockLengthFor(large, largeSize);
+                assertTrue(blockLength <= BlockSizePolicy.MAX_BLOCK_LENGTH);
+                policy.record(large, largeSize, blockLength, 1000, 1000);
+                shift = Integer.numberOfTrailingZeros(blockLength) -
+                        Integer.numberOfTrailingZeros(
+                            BlockSizePolicy.MAX_BLOCK_LENGTH);
+                n = expectedLarge.get(shift);
+                expectedLarge.put(shift, n == null ? 1 : n + 1);
+            }
+            policy.save();
+            assertTrue(expectedSmall.size() > 1);                               // some larger block lengths were explored
+            assertTrue(expectedLarge.size() > 1);
+            assertEquals(expectedSmall, samplesOf(historyFile, ".dat"));
+            assertEquals(expectedLarge, samplesOf(historyFile, ".img"));
+        } finally {
+            Files.deleteIfExists(historyFile);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class AdmissionControllerTest
+{
+    private static class TestModule implements LimitedModule
+    {
+        private final String _name;
+        private final int _maxConnections;
+
+        TestModule(String name, int maxConnections)
+        {
+            _name = name;
+            _maxConnections = maxConnections;
+        }
+
+        @Override
+        public String name()
+        {
+            return _name;
+        }
+
+        @Override
+        public String comment()
+        {
+            return "";
+        }
+
+        @Override
+        public RestrictedPath restrictedPath()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isReadable()
+        {
+            return true;
+        }
+
+        @Override
+        public boolean isWritable()
+        {
+            return false;
+        }
+
+        @Override
+        public int maxConnections()
+        {
+            return _maxConnections;
+        }
+
+        @Override
+        public void postProcessing(boolean isOK) {}
+
+        @Override
+        public void registerFutures(List<Future<Boolean>> futures) {}
+    }
+
+    // records the admissions handed over
+    private static class Recorder implements AdmissionController.Handler
+    {
+        private final List<AdmissionController.Admission> _admissions =
+            new ArrayList<>();
+
+        @Override
+        public void handle(AdmissionController.Admission admission)
+        {
+            _admissions.add(admission);
+        }
+
+        AdmissionController.Admission single()
+        {
+            assertEquals(1, _admissions.size());
+            return _admissions.get(0);
+        }
+    }
+
+    private static void assertBusy(AdmissionController.Admission admission,
+                                   Module module)
+    {
+        try {
+            admission.admitTo(module);
+            fail("expected " + module.name() + " to be busy");
+        } catch (ServerBusyException e) {
+            // expected
+        }
+    }
+
+    private static AdmissionController.Admission admit(
+        AdmissionController controller, Module module)
+        throws ServerBusyException
+    {
+        AdmissionController.Admission admission = controller.tryAdmit();
+        admission.admitTo(module);
+        return admission;
+    }
+
+    @Test
+    public void testModuleAndGlobalLimits() throws ServerBusyException
+    {
+        AdmissionController controller = new AdmissionController(3, 0, 0);
+        Module a = new TestModule("a", 1);
+        Module b = new TestModule("b", 0);
+
+        AdmissionController.Admission first = admit(controller, a);
+        AdmissionController.Admission second = controller.tryAdmit();
+        assertBusy(second, a);
+        second.release();                                                       // the module rejection releases the global slot
+        admit(controller, b);
+        admit(controller, b);
+        AdmissionController.Admission fourth = controller.tryAdmit();
+        assertTrue(fourth.isRejected());
+        assertBusy(fourth, b);
+        assertEquals(3, controller.globalSlots().numActive());
+        assertEquals(1, controller.globalSlots().numRejected());
+        assertEquals(1, controller.moduleSlots("a").numRejected());
+
+        first.release();
+        first.release();
+        assertEquals(2, controller.globalSlots().numActive());
+        assertEquals(0, controller.moduleSlots("a").numActive());
+        admit(controller, a);
+        assertEquals(5, controller.globalSlots().numAdmitted());
+    }
+
+    @Test
+    public void testWaitingIsAdmittedOnRelease() throws ServerBusyException
+    {
+        AdmissionController controller = new AdmissionController(1, 1, 60000);
+        Module module = new TestModule("m", 0);
+        Recorder first = new Recorder();
+        Recorder waiting = new Recorder();
+        Recorder rejected = new Recorder();
+
+        controller.admit(first);
+        controller.admit(waiting);
+        assertEquals(1, controller.numWaiting());
+        assertTrue(waiting._admissions.isEmpty());
+        controller.admit(rejected);                                             // wait queue is full
+        assertTrue(rejected.single().isRejected());
+
+        first.single().admitTo(module);
+        first.single().release();
+        assertEquals(0, controller.numWaiting());
+        AdmissionController.Admission admission = waiting.single();
+        assertFalse(admission.isRejected());
+        assertEquals(1, controller.globalSlots().numActive());                 // the slot was passed on
+        admission.admitTo(module);
+        admission.release();
+        assertEquals(0, controller.globalSlots().numActive());
+        assertEquals(0, controller.moduleSlots("m").numActive());
+    }
+
+    @Test
+    public void testWaitTimesOut() throws InterruptedException
+    {
+        AdmissionController controller = new AdmissionController(1, 2, 10);
+        Recorder first = new Recorder();
+        Recorder expired = new Recorder();
+        controller.admit(first);
+        controller.admit(expired);
+        controller.rejectExpired();
+        assertTrue(expired._admissions.isEmpty() ||
+                   expired.single().isRejected());
+        Thread.sleep(20);
+        controller.rejectExpired();
+        assertTrue(expired.single().isRejected());
+        assertEquals(0, controller.numWaiting());
+
+        Recorder late = new Recorder();
+        controller.admit(late);
+        Thread.sleep(20);
+        first.single().release();                                               // an expired connection is not admitted
+        assertTrue(late.single().isRejected());
+        assertEquals(0, controller.globalSlots().numActive());
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.github.perlundq.yajsync.filelist.RsyncFileAttributes;
+
+public class AttributeStageTest
+{
+    @Test(timeout=20000)
+    public void testDirectoriesLastAndDeepestFirst()
+    {
+        final List<Path> applied =
+            Collections.synchronizedList(new ArrayList<Path>());
+        AttributeStage stage = new AttributeStage("test", 4,
+                                                  new AttributeStage.Applier() {
+            @Override
+            public void apply(Path path, RsyncFileAttributes curAttrs,
+                              RsyncFileAttributes targetAttrs)
+                throws IOException
+            {
+                if (path.getFileName().toString().startsWith("fail")) {
+                    throw new IOException(path.toString());
+                }
+                applied.add(path);
+            }
+        });
+        try {
+            stage.deferDirectory(Paths.get("/t/a"), null, null);
+            stage.deferDirectory(Paths.get("/t/a/b/c"), null, null);
+            stage.deferDirectory(Paths.get("/t/a/b"), null, null);
+            int numFiles = 1000;
+            for (int i = 0; i < numFiles; i++) {
+                stage.update(Paths.get("/t/a/b/c/f" + i), null, null);
+            }
+            stage.update(Paths.get("/t/a/fail"), null, null);
+
+            assertEquals(1, stage.finish());
+            assertEquals(numFiles + 3, applied.size());
+            for (int i = 0; i < numFiles; i++) {
+                assertTrue(applied.get(i).getFileName().toString().
+                           startsWith("f"));
+            }
+            assertEquals(Paths.get("/t/a/b/c"), applied.get(numFiles));
+            assertEquals(Paths.get("/t/a/b"), applied.get(numFiles + 1));
+            assertEquals(Paths.get("/t/a"), applied.get(numFiles + 2));
+            assertEquals(0, stage.finish());
+        } finally {
+            stage.close();
+        }
+    }
+
+    @Test(timeout=20000)
+    public void testRuntimeExceptionIsCounted()
+    {
+        AttributeStage stage = new AttributeStage("test", 2,
+                                                  new AttributeStage.Applier() {
+            @Override
+            public void apply(Path path, RsyncFileAttributes curAttrs,
+                              RsyncFileAttributes targetAttrs)
+            {
+                throw new UnsupportedOperationException(path.toString());
+            }
+        });
+        try {
+            stage.update(Paths.get("/t/f"), null, null);
+            stage.deferDirectory(Paths.get("/t"), null, null);
+            assertEquals(2, stage.finish());
+        } finally {
+            stage.close();
+        }
+    }
+}
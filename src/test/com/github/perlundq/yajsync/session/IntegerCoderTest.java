@@ -133,4 +133,17 @@ public class IntegerCoderTest
         long decoded = IntegerCoder.decodeLong(rbb, _minBytes);
         assertEquals(_input, decoded);
     }
+
+    @Test
+    public void testEncodingIntoReusedBuffer() throws Exception
+    {
+        byte[] buf = new byte[IntegerCoder.MAX_NUM_BYTES];
+        Arrays.fill(buf, (byte) -1);
+        IntegerCoder.encodeLong(Long.MIN_VALUE, _minBytes, buf);
+        int length = IntegerCoder.encodeLong(_input, _minBytes, buf);
+        assertEquals(_expected, ByteBuffer.wrap(buf, 0, length));
+        ReadableByteBuffer rbb =
+            new ReadableByteBuffer(ByteBuffer.wrap(buf, 0, length));
+        assertEquals(_input, IntegerCoder.decodeLong(rbb, _minBytes));
+    }
 }
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.session;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LocalTransferTest
+{
+    private static final FileTime MTIME = FileTime.fromMillis(1000000000000L);
+
+    @Rule
+    public final TemporaryFolder _tempDir = new TemporaryFolder();
+    private Path _src;
+    private Path _dst;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        _src = _tempDir.newFolder("src").toPath();
+        _dst = _tempDir.getRoot().toPath().resolve("dst");
+        Files.createDirectories(_src.resolve("a/b"));
+        write(_src.resolve("file1"), new byte[100000]);
+        write(_src.resolve("a/file2"), "file2".getBytes(StandardCharsets.UTF_8));
+        write(_src.resolve("a/b/file3"), new byte[0]);
+    }
+
+    private static void write(Path path, byte[] content) throws Exception
+    {
+        Files.write(path, content);
+        Files.setLastModifiedTime(path, MTIME);
+    }
+
+    private Statistics transfer(Path src, String target, boolean isDelete)
+        throws Exception
+    {
+        LocalTransfer t = new LocalTransfer(Arrays.asList(src),
+                                            StandardCharsets.UTF_8, target).
+            setIsRecursive(true).
+            setIsPreserveTimes(true).
+            setIsDelete(isDelete);
+        assertTrue(t.transfer());
+        return t.statistics();
+    }
+
+    private void assertCopied(Path file) throws Exception
+    {
+        Path copy = _dst.resolve("src").resolve(_src.relativize(file));
+        assertArrayEquals(Files.readAllBytes(file), Files.readAllBytes(copy));
+        assertEquals(Files.getLastModifiedTime(file),
+                     Files.getLastModifiedTime(copy));
+    }
+
+    @Test
+    public void testCopyAndSkipUnchanged() throws Exception
+    {
+        Statistics stats = transfer(_src, _dst.toString(), false);
+        assertEquals(3, stats.numTransferredFiles());
+        assertEquals(100005, stats.totalLiteralSize());
+        assertEquals(6, stats.numFiles());                                      // including the directories
+        assertCopied(_src.resolve("file1"));
+        assertCopied(_src.resolve("a/file2"));
+        assertCopied(_src.resolve("a/b/file3"));
+
+        stats = transfer(_src, _dst.toString(), false);
+        assertEquals(0, stats.numTransferredFiles());
+        assertEquals(0, stats.totalLiteralSize());
+    }
+
+    @Test
+    public void testIdenticalFileIsMatched() throws Exception
+    {
+        transfer(_src, _dst.toString(), false);
+        Path copy = _dst.resolve("src/file1");
+        Files.setLastModifiedTime(copy, FileTime.fromMillis(0));
+
+        Statistics stats = transfer(_src, _dst.toString(), false);
+        assertEquals(1, stats.numTransferredFiles());
+        assertEquals(100000, stats.totalMatchedSize());
+        assertEquals(0, stats.totalLiteralSize());
+        assertCopied(_src.resolve("file1"));
+    }
+
+    @Test
+    public void testChangedFileIsReplaced() throws Exception
+    {
+        transfer(_src, _dst.toString(), false);
+        byte[] content = new byte[100000];
+        content[99999] = 1;                                                     // same size, differs in the last range
+        write(_src.resolve("file1"), content);
+        Files.setLastModifiedTime(_src.resolve("file1"),
+                                  FileTime.fromMillis(MTIME.toMillis() + 1000));
+
+        Statistics stats = transfer(_src, _dst.toString(), false);
+        assertEquals(1, stats.numTransferredFiles());
+        assertTrue(stats.totalMatchedSize() > 0);
+        assertTrue(stats.totalLiteralSize() > 0);
+        assertEquals(100000, stats.totalMatchedSize() +
+                             stats.totalLiteralSize());
+        assertCopied(_src.resolve("file1"));
+    }
+
+    @Test
+    public void testDeleteUnmatched() throws Exception
+    {
+        transfer(_src, _dst.toString(), false);
+        Path extraneousFile = _dst.resolve("src/a/extraneous");
+        Path extraneousDir = _dst.resolve("src/a/b/extraneous");
+        write(extraneousFile, new byte[1]);
+        Files.createDirectories(extraneousDir.resolve("sub"));
+
+        transfer(_src, _dst.toString(), false);
+        assertTrue(Files.exists(extraneousFile));
+        transfer(_src, _dst.toString(), true);
+        assertFalse(Files.exists(extraneousFile));
+        assertFalse(Files.exists(extraneousDir));
+        assertCopied(_src.resolve("a/file2"));
+    }
+
+    @Test
+    public void testTrailingSlashCopiesContent() throws Exception
+    {
+        transfer(_src.resolve("."), _dst.toString() + "/", false);
+        assertArrayEquals(Files.readAllBytes(_src.resolve("a/file2")),
+                          Files.readAllBytes(_dst.resolve("a/file2")));
+        assertTrue(Files.isDirectory(_dst.resolve("a/b")));
+    }
+
+    @Test
+    public void testTrailingSlashDeleteKeepsMatched() throws Exception
+    {
+        transfer(_src.resolve("."), _dst.toString() + "/", true);
+        Statistics stats = transfer(_src.resolve("."), _dst.toString() + "/",
+                                    true);
+        assertEquals(0, stats.numTransferredFiles());                           // a/ is matched, not deleted and copied again
+        assertTrue(Files.isRegularFile(_dst.resolve("a/b/file3")));
+    }
+
+    @Test
+    public void testSingleFileToTargetFile() throws Exception
+    {
+        Path target = _tempDir.getRoot().toPath().resolve("copy");
+        transfer(_src.resolve("a/file2"), target.toString(), false);
+        assertTrue(Files.isRegularFile(target));
+        assertArrayEquals(Files.readAllBytes(_src.resolve("a/file2")),
+                          Files.readAllBytes(target));
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.test;
+
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.github.perlundq.yajsync.filelist.RsyncFileAttributes;
+import com.github.perlundq.yajsync.util.FileOps;
+
+public class FileUtil
+{
+    public static byte[] generateBytes(int content, int num)
+    {
+        byte[] res = new byte[num];
+        for (int i = 0; i < num; i++) {
+            res[i] = (byte) content;
+        }
+        return res;
+    }
+
+    public static void writeToFiles(byte[] content, Path ...path)
+        throws IOException
+    {
+        for (Path p : path) {
+            try (FileOutputStream out = new FileOutputStream(p.toFile())) {
+                out.write(content);
+            }
+        }
+    }
+
+    public static void writeToFiles(int content, Path ...path)
+        throws IOException
+    {
+        for (Path p : path) {
+            try (FileOutputStream out = new FileOutputStream(p.toFile())) {
+                out.write(content);
+            }
+        }
+    }
+
+    public static boolean isContentIdentical(Path leftPath, Path rightPath)
+        throws IOException
+    {
+        try (InputStream left_is = Files.newInputStream(leftPath);
+             InputStream right_is = Files.newInputStream(rightPath)) {
+            while (true) {
+                int left_byte = left_is.read();
+                int right_byte = right_is.read();
+                if (left_byte != right_byte) {
+                    return false;
+                }
+                boolean isEOF = left_byte == -1; // && right_byte == -1;
+                if (isEOF) {
+                    return true;
+                }
+            }
+        }
+    }
+
+    private static boolean isFileSameTypeAndSize(RsyncFileAttributes leftAttrs,
+                                                 RsyncFileAttributes rightAttrs)
+    {
+        int leftType = FileOps.fileType(leftAttrs.mode());
+        int rightType = FileOps.fileType(rightAttrs.mode());
+        return leftType == rightType && (!FileOps.isRegularFile(leftType) ||
+                                         leftAttrs.size() == rightAttrs.size());
+    }
+
+    public static boolean isFileSameOwnerAndGroup(RsyncFileAttributes leftAttrs,
+            RsyncFileAttributes rightAttrs)
+	{
+    	return leftAttrs.user().equals(rightAttrs.user()) && leftAttrs.group().equals(rightAttrs.group());
+	}
+
+    private static SortedMap<Path, Path> listDir(Path path) throws IOException
+    {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
+            SortedMap<Path, Path> files = new TreeMap<>();
+            for (Path p : stream) {
+                files.put(p.getFileName(), p);
+            }
+            return files;
+        }
+    }
+
+    public static boolean isDirectoriesIdentical(Path leftDir, Path rightDir)
+        throws IOException
+    {
+        SortedMap<Path, Path> leftFiles = FileUtil.listDir(leftDir);
+        SortedMap<Path, Path> rightFiles = FileUtil.listDir(rightDir);
+
+        if (!leftFiles.keySet().equals(rightFiles.keySet())) {
+            return false;
+        }
+
+        for (Map.Entry<Path, Path> entrySet : leftFiles.entrySet()) {
+            Path name = entrySet.getKey();
+            Path leftPath = entrySet.getValue();
+            Path rightPath = rightFiles.get(name);
+
+            RsyncFileAttributes leftAttrs = RsyncFileAttributes.stat(leftPath);
+            RsyncFileAttributes rightAttrs =
+                RsyncFileAttributes.stat(rightPath);
+            if (!FileUtil.isFileSameTypeAndSize(leftAttrs, rightAttrs)) {
+                return false;
+            } else if (leftAttrs.isRegularFile()) {
+                boolean isIdentical = FileUtil.isContentIdentical(leftPath,
+                                                                  rightPath);
+                if (!isIdentical) {
+                    return false;
+                }
+            } else if (leftAttrs.isDirectory()) {
+                boolean isIdentical =
+                    FileUtil.isDirectoriesIdentical(leftPath, rightPath);
+                if (!isIdentical) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    public static boolean isDirectory(Path path)
+    {
+        return Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
+    }
+
+    public static boolean isFile(Path path)
+    {
+        return Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS);
+    }
+
+    public static boolean exists(Path path)
+    {
+        return Files.exists(path, LinkOption.NOFOLLOW_LINKS);
+    }
+
+    public static long du(Path... srcFiles) throws IOException
+    {
+        long size = 0;
+        for (Path p : srcFiles) {
+            size += Files.size(p);
+        }
+        return size;
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.github.perlundq.yajsync.session.Statistics;
+import com.github.perlundq.yajsync.ui.YajSyncClient;
+
+/**
+ * Transfers of files at and around --small-file-threshold through Sender,
+ * Generator and Receiver. Files of at most the threshold are matched as a
+ * whole, i.e. either all matched or all literal data.
+ */
+public class SmallFileSystemTest
+{
+    private static final int THRESHOLD = 1000;
+
+    private final PrintStream _nullOut =
+        new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) throws IOException { /* nop */};
+        }
+    );
+
+    @Rule
+    public final TemporaryFolder _tempDir = new TemporaryFolder();
+
+    private static byte[] contentOf(int size)
+    {
+        byte[] content = new byte[size];
+        for (int i = 0; i < size; i++) {
+            content[i] = (byte) (i * 31);
+        }
+        return content;
+    }
+
+    private static byte[] modifiedLast(byte[] content)
+    {
+        byte[] modified = content.clone();
+        modified[modified.length - 1]++;
+        return modified;
+    }
+
+    // copies a single file with the content current to a target which has a
+    // stale copy with the content old, or none if old is null
+    private Statistics copy(int threshold, byte[] old, byte[] current)
+        throws IOException
+    {
+        Path src = _tempDir.newFolder().toPath();
+        Path dst = _tempDir.newFolder().toPath();
+        FileUtil.writeToFiles(current, src.resolve("file"));
+        if (old != null) {
+            Path copyOfSrc = dst.resolve(src.getFileName());
+            Files.createDirectory(copyOfSrc);
+            FileUtil.writeToFiles(old, copyOfSrc.resolve("file"));
+            Files.setLastModifiedTime(copyOfSrc.resolve("file"),
+                                      FileTime.fromMillis(0));                 // not skipped by the quick check
+        }
+
+        YajSyncClient client = new YajSyncClient().
+            setStandardOut(_nullOut).
+            setStandardErr(_nullOut);
+        int rc = client.start(new String[] {
+            "--recursive", "--small-file-threshold=" + threshold,
+            src.toString(), dst.toString() });
+        assertEquals(0, rc);
+        assertTrue(FileUtil.isDirectoriesIdentical(
+            src, dst.resolve(src.getFileName())));
+        Statistics stats = client.statistics();
+        assertEquals(1, stats.numTransferredFiles());
+        assertEquals(current.length, stats.totalMatchedSize() +
+                                     stats.totalLiteralSize());
+        return stats;
+    }
+
+    @Test
+    public void testNewSmallFileIsSentAsLiteral() throws IOException
+    {
+        Statistics stats = copy(THRESHOLD, null, contentOf(THRESHOLD));
+        assertEquals(THRESHOLD, stats.totalLiteralSize());
+    }
+
+    @Test
+    public void testIdenticalSmallFileIsMatched() throws IOException
+    {
+        for (int size : new int[] { 1, THRESHOLD - 1, THRESHOLD }) {
+            byte[] content = contentOf(size);
+            Statistics stats = copy(THRESHOLD, content, content);
+            assertEquals(size, stats.totalMatchedSize());
+        }
+    }
+
+    @Test
+    public void testChangedSmallFileIsSentWhole() throws IOException
+    {
+        for (int size : new int[] { THRESHOLD - 1, THRESHOLD }) {
+            byte[] content = contentOf(size);
+            Statistics stats = copy(THRESHOLD, content, modifiedLast(content));
+            assertEquals(0, stats.totalMatchedSize());
+            assertEquals(size, stats.totalLiteralSize());
+        }
+    }
+
+    @Test
+    public void testChangedFileAboveThresholdIsPartlyMatched()
+        throws IOException
+    {
+        byte[] content = contentOf(THRESHOLD + 1);
+        Statistics stats = copy(THRESHOLD, content, modifiedLast(content));
+        assertTrue(stats.totalMatchedSize() > 0);
+        assertTrue(stats.totalLiteralSize() > 0);
+    }
+
+    @Test
+    public void testZeroThresholdDisablesSmallFiles() throws IOException
+    {
+        byte[] content = contentOf(THRESHOLD);
+        Statistics stats = copy(0, content, modifiedLast(content));
+        assertTrue(stats.totalMatchedSize() > 0);                               // matched in blocks
+        assertTrue(stats.totalLiteralSize() > 0);
+
+        stats = copy(0, content, content);
+        assertEquals(THRESHOLD, stats.totalMatchedSize());
+    }
+
+    @Test
+    public void testSmallFileChangedSize() throws IOException
+    {
+        byte[] content = contentOf(THRESHOLD);
+        byte[] shorter = new byte[THRESHOLD / 2];
+        System.arraycopy(content, 0, shorter, 0, shorter.length);
+        Statistics stats = copy(THRESHOLD, content, shorter);
+        assertEquals(shorter.length, stats.totalLiteralSize());
+
+        byte[] longer = contentOf(THRESHOLD * 2);                               // basis small, file not
+        stats = copy(THRESHOLD, content, longer);
+        assertEquals(THRESHOLD, stats.totalMatchedSize());                      // matched as the single chunk
+    }
+}
@@ -22,15 +22,11 @@ import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.InetAddress;
-import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
-import java.nio.file.LinkOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.FileTime;
@@ -43,8 +39,6 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedMap;
-import java.util.TreeMap;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
@@ -76,144 +70,6 @@ import com.github.perlundq.yajsync.util.Option;
 
 
 
-class FileUtil
-{
-    public static byte[] generateBytes(int content, int num)
-    {
-        byte[] res = new byte[num];
-        for (int i = 0; i < num; i++) {
-            res[i] = (byte) content;
-        }
-        return res;
-    }
-
-    public static void writeToFiles(byte[] content, Path ...path)
-        throws IOException
-    {
-        for (Path p : path) {
-            try (FileOutputStream out = new FileOutputStream(p.toFile())) {
-                out.write(content);
-            }
-        }
-    }
-
-    public static void writeToFiles(int content, Path ...path)
-        throws IOException
-    {
-        for (Path p : path) {
-            try (FileOutputStream out = new FileOutputStream(p.toFile())) {
-                out.write(content);
-            }
-        }
-    }
-
-    public static boolean isContentIdentical(Path leftPath, Path rightPath)
-        throws IOException
-    {
-        try (InputStream left_is = Files.newInputStream(leftPath);
-             InputStream right_is = Files.newInputStream(rightPath)) {
-            while (true) {
-                int left_byte = left_is.read();
-                int right_byte = right_is.read();
-                if (left_byte != right_byte) {
-                    return false;
-                }
-                boolean isEOF = left_byte == -1; // && right_byte == -1;
-                if (isEOF) {
-                    return true;
-                }
-            }
-        }
-    }
-
-    private static boolean isFileSameTypeAndSize(RsyncFileAttributes leftAttrs,
-                                                 RsyncFileAttributes rightAttrs)
-    {
-        int leftType = FileOps.fileType(leftAttrs.mode());
-        int rightType = FileOps.fileType(rightAttrs.mode());
-        return leftType == rightType && (!FileOps.isRegularFile(leftType) ||
-                                         leftAttrs.size() == rightAttrs.size());
-    }
-
-    public static boolean isFileSameOwnerAndGroup(RsyncFileAttributes leftAttrs,
-            RsyncFileAttributes rightAttrs)
-	{
-    	return leftAttrs.user().equals(rightAttrs.user()) && leftAttrs.group().equals(rightAttrs.group());
-	}
-
-    private static SortedMap<Path, Path> listDir(Path path) throws IOException
-    {
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(path)) {
-            SortedMap<Path, Path> files = new TreeMap<>();
-            for (Path p : stream) {
-                files.put(p.getFileName(), p);
-            }
-            return files;
-        }
-    }
-
-    public static boolean isDirectoriesIdentical(Path leftDir, Path rightDir)
-        throws IOException
-    {
-        SortedMap<Path, Path> leftFiles = FileUtil.listDir(leftDir);
-        SortedMap<Path, Path> rightFiles = FileUtil.listDir(rightDir);
-
-        if (!leftFiles.keySet().equals(rightFiles.keySet())) {
-            return false;
-        }
-
-        for (Map.Entry<Path, Path> entrySet : leftFiles.entrySet()) {
-            Path name = entrySet.getKey();
-            Path leftPath = entrySet.getValue();
-            Path rightPath = rightFiles.get(name);
-
-            RsyncFileAttributes leftAttrs = RsyncFileAttributes.stat(leftPath);
-            RsyncFileAttributes rightAttrs =
-                RsyncFileAttributes.stat(rightPath);
-            if (!FileUtil.isFileSameTypeAndSize(leftAttrs, rightAttrs)) {
-                return false;
-            } else if (leftAttrs.isRegularFile()) {
-                boolean isIdentical = FileUtil.isContentIdentical(leftPath,
-                                                                  rightPath);
-                if (!isIdentical) {
-                    return false;
-                }
-            } else if (leftAttrs.isDirectory()) {
-                boolean isIdentical =
-                    FileUtil.isDirectoriesIdentical(leftPath, rightPath);
-                if (!isIdentical) {
-                    return false;
-                }
-            }
-        }
-        return true;
-    }
-
-    public static boolean isDirectory(Path path)
-    {
-        return Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS);
-    }
-
-    public static boolean isFile(Path path)
-    {
-        return Files.isRegularFile(path, LinkOption.NOFOLLOW_LINKS);
-    }
-
-    public static boolean exists(Path path)
-    {
-        return Files.exists(path, LinkOption.NOFOLLOW_LINKS);
-    }
-
-    public static long du(Path... srcFiles) throws IOException
-    {
-        long size = 0;
-        for (Path p : srcFiles) {
-            size += Files.size(p);
-        }
-        return size;
-    }
-}
-
 class SimpleRestrictedModule extends RestrictedModule
 {
     private final String _authToken;
@@ -646,6 +502,75 @@ public abstract class SystemTest
         assertTrue(status.stats.totalMatchedSize() == 0);
     }
 
+    @Test
+    public void testClientDirCopyDeleteAfterIsDeferred() throws IOException
+    {
+        Path src = _tempDir.newFolder().toPath();
+        Path dst = Paths.get(src.toString() + ".dst");
+        Path srcDir = src.resolve("dir");
+        Files.createDirectory(srcDir);
+        FileUtil.writeToFiles(7, src.resolve("file1"));
+        FileUtil.writeToFiles(8, srcDir.resolve("file2"));
+        Path rules = srcDir.resolve(".rules");
+        Files.write(rules, "invalid rule\n".getBytes());                      // fails expansion of dir, i.e. after its parent
+
+        Path copyOfSrc = dst.resolve(src.getFileName());
+        Path extraneous = copyOfSrc.resolve("extraneous");
+        Files.createDirectories(copyOfSrc);
+        FileUtil.writeToFiles(9, extraneous);
+
+        for (String deleteArg : new String[] { "--delete-after",
+                                               "--delete-delay" }) {
+            ReturnStatus status = fileCopy(src, dst, "--recursive", deleteArg,
+                                           "--filter=dir-merge .rules");
+            assertTrue(status.rc != 0);
+            assertTrue(FileUtil.exists(extraneous));                            // not removed until the end, then skipped due to the error
+            assertTrue(FileUtil.isFile(copyOfSrc.resolve("file1")));
+        }
+
+        ReturnStatus status = fileCopy(src, dst, "--recursive", "--delete",
+                                       "--filter=dir-merge .rules");
+        assertTrue(status.rc != 0);
+        assertFalse(FileUtil.exists(extraneous));                               // removed before the error
+
+        FileUtil.writeToFiles(9, extraneous);
+        Files.createDirectories(copyOfSrc.resolve("dir"));
+        FileUtil.writeToFiles(8, copyOfSrc.resolve("dir/file2"));               // never transferred, dir failed to expand above
+        Files.delete(rules);
+        status = fileCopy(src, dst, "--recursive", "--delete-after",
+                          "--exclude=file2");
+        assertTrue(status.rc == 0);
+        assertFalse(FileUtil.exists(extraneous));
+        assertTrue(FileUtil.isFile(copyOfSrc.resolve("dir/file2")));            // excluded, not deleted
+    }
+
+    @Test
+    public void testClientDirCopyDeleteTrailingSlashKeepsMatched()
+        throws IOException
+    {
+        Path src = _tempDir.newFolder().toPath();
+        Path dst = _tempDir.newFolder().toPath();
+        Path srcDir = src.resolve("dir");
+        Files.createDirectories(srcDir.resolve("sub"));
+        FileUtil.writeToFiles(7, srcDir.resolve("file1"));
+        FileUtil.writeToFiles(8, srcDir.resolve("sub/file2"));
+        Path extraneous = dst.resolve("dir/extraneous");
+
+        String[] args = { "--recursive", "--times", "--delete",
+                          src.toString() + "/",
+                          dst.toString() + "/" };
+        SyncClient client = newClient();
+        assertTrue(client.start(args) == 0);
+        assertTrue(FileUtil.isDirectoriesIdentical(src, dst));
+
+        FileUtil.writeToFiles(9, extraneous);
+        client = newClient();
+        assertTrue(client.start(args) == 0);
+        assertFalse(FileUtil.exists(extraneous));
+        assertTrue(FileUtil.isDirectoriesIdentical(src, dst));
+        assertTrue(client.statistics().numTransferredFiles() == 0);            // matched directories are neither deleted nor transferred again
+    }
+
     @Test
     public void testClientDirCopyExcluded() throws IOException
     {
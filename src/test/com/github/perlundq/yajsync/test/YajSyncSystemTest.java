@@ -16,8 +16,21 @@
  */
 package com.github.perlundq.yajsync.test;
 
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
 
+import com.github.perlundq.yajsync.session.Module;
 import com.github.perlundq.yajsync.ui.SyncClient;
 import com.github.perlundq.yajsync.ui.YajSyncClient;
 
@@ -49,4 +62,147 @@ public class YajSyncSystemTest extends SystemTest {
         int rc = client.start(nargs);
         return new ReturnStatus(rc, client.statistics());
     }
+
+    // writes file1 and file2 to src, and an older file1 and a file3 to be
+    // deleted to each of the copies
+    private static void writeSourceAndOldCopies(Path src, Path... copies)
+        throws IOException
+    {
+        byte[] content = FileUtil.generateBytes(0x18, 20000);
+        FileUtil.writeToFiles(content, src.resolve("file1"));
+        FileUtil.writeToFiles(7, src.resolve("file2"));
+        content[15000] = 0x19;
+        for (Path p : copies) {
+            Files.createDirectories(p);
+            FileUtil.writeToFiles(content, p.resolve("file1"));
+            Files.setLastModifiedTime(p.resolve("file1"), FileTime.fromMillis(0));
+            FileUtil.writeToFiles(8, p.resolve("file3"));
+        }
+    }
+
+    // replays batch to mirror and checks it made the same updates as the
+    // transfer that wrote it
+    private void assertReplayed(Path batch, Path mirror, ReturnStatus status)
+    {
+        SyncClient client = newClient();
+        int rc = client.start(new String[] { "--read-batch=" + batch,
+                                             mirror.toString() });
+        assertTrue(rc == 0);
+        assertTrue(client.statistics().numTransferredFiles() ==
+                   status.stats.numTransferredFiles());
+        assertTrue(client.statistics().totalMatchedSize() > 0);
+    }
+
+    // starts a daemon serving module on a free port and returns the port
+    private int startDaemon(final Module module)
+        throws IOException, InterruptedException
+    {
+        final int port;
+        try (ServerSocket socket = new ServerSocket(0)) {
+            port = socket.getLocalPort();
+        }
+        final CountDownLatch isListeningLatch = new CountDownLatch(1);
+        _service.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception
+            {
+                return newServer(new TestModules(module)).
+                    setIsListeningLatch(isListeningLatch).
+                    start(new String[] { "--port=" + port });
+            }
+        });
+        isListeningLatch.await();
+        return port;
+    }
+
+    @Test
+    public void testWriteAndReadBatch() throws IOException
+    {
+        Path src = _tempDir.newFolder().toPath();
+        Path dst = Paths.get(src.toString() + ".dst");
+        Path mirror = Paths.get(src.toString() + ".mirror");
+        Path batch = Paths.get(src.toString() + ".batch");
+        Path dstCopy = dst.resolve(src.getFileName());
+        Path mirrorCopy = mirror.resolve(src.getFileName());
+        writeSourceAndOldCopies(src, dstCopy, mirrorCopy);
+
+        ReturnStatus status = fileCopy(src, dst, "--recursive", "--delete",
+                                       "--write-batch=" + batch);
+        assertTrue(status.rc == 0);
+        assertTrue(FileUtil.isDirectoriesIdentical(src, dstCopy));
+
+        assertReplayed(batch, mirror, status);
+        assertTrue(FileUtil.isDirectoriesIdentical(src, mirrorCopy));
+    }
+
+    @Test(timeout=10000)
+    public void testWriteBatchOfPullFromDaemon()
+        throws IOException, InterruptedException
+    {
+        Path modulePath = _tempDir.newFolder().toPath();
+        Path src = modulePath.resolve("src");
+        Files.createDirectory(src);
+        FileUtil.writeToFiles(9, src.resolve("file4"));                         // excluded by a header filter rule
+        Path dst = _tempDir.newFolder().toPath();
+        Path mirror = _tempDir.newFolder().toPath();
+        Path batch = dst.resolveSibling(dst.getFileName() + ".batch");
+        writeSourceAndOldCopies(src, dst.resolve("src"), mirror.resolve("src"));
+        int port = startDaemon(new SimpleModule(Paths.get("test"), modulePath,
+                                                "a test module", true, false));
+
+        SyncClient client = newClient();
+        int rc = client.start(new String[] {
+            "--port=" + port, "--recursive", "--delete", "--exclude=file4",
+            "--write-batch=" + batch, "localhost::test/src", dst.toString() });
+        assertTrue(rc == 0);
+        assertFalse(FileUtil.exists(dst.resolve("src").resolve("file4")));
+
+        assertReplayed(batch, mirror, new ReturnStatus(rc, client.statistics()));
+        assertTrue(FileUtil.isDirectoriesIdentical(dst.resolve("src"),
+                                                   mirror.resolve("src")));
+    }
+
+    @Test(timeout=10000)
+    public void testWriteBatchOfPushToDaemon()
+        throws IOException, InterruptedException
+    {
+        Path src = _tempDir.newFolder().toPath();
+        Path modulePath = _tempDir.newFolder().toPath();
+        Path mirror = _tempDir.newFolder().toPath();
+        Path batch = src.resolveSibling(src.getFileName() + ".batch");
+        Path dstCopy = modulePath.resolve(src.getFileName());
+        Path mirrorCopy = mirror.resolve(src.getFileName());
+        writeSourceAndOldCopies(src, dstCopy, mirrorCopy);
+        int port = startDaemon(new SimpleModule(Paths.get("test"), modulePath,
+                                                "a test module", true, true));
+
+        SyncClient client = newClient();
+        int rc = client.start(new String[] {
+            "--port=" + port, "--recursive", "--delete",
+            "--bwlimit=100000",                                                 // recorded after rate limiting
+            "--write-batch=" + batch, src.toString(), "localhost::test/" });
+        assertTrue(rc == 0);
+        assertTrue(FileUtil.isDirectoriesIdentical(src, dstCopy));
+
+        assertReplayed(batch, mirror, new ReturnStatus(rc, client.statistics()));
+        assertTrue(FileUtil.isDirectoriesIdentical(src, mirrorCopy));
+    }
+
+    @Test
+    public void testEmptyBatchFileNameIsRejected() throws IOException
+    {
+        Path src = _tempDir.newFolder().toPath();
+        Path dst = Paths.get(src.toString() + ".dst");
+        FileUtil.writeToFiles(7, src.resolve("file1"));
+
+        ReturnStatus status = fileCopy(src, dst, "--recursive",
+                                       "--write-batch=\"\"");                   // empty once unquoted
+        assertTrue(status.rc != 0);
+        assertFalse(FileUtil.exists(dst));
+
+        Files.createDirectory(dst);
+        int rc = newClient().start(new String[] { "--read-batch=\"\"",
+                                                  dst.toString() });
+        assertTrue(rc != 0);
+    }
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.test;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.Test;
+
+import com.github.perlundq.yajsync.session.Statistics;
+import com.github.perlundq.yajsync.ui.SyncClient;
+
+/**
+ * Runs all system tests with --whole-file, i.e. local transfers are done
+ * in-process by LocalTransfer.
+ */
+public class YajSyncWholeFileSystemTest extends YajSyncSystemTest {
+
+    @Override
+    protected SyncClient newClient()
+    {
+        final SyncClient client = super.newClient();
+        return new SyncClient() {
+            @Override
+            public int start(String[] args) {
+                String[] nargs = new String[args.length + 1];
+                nargs[0] = "--whole-file";
+                System.arraycopy(args, 0, nargs, 1, args.length);
+                return client.start(nargs);
+            }
+            @Override
+            public Statistics statistics() {
+                return client.statistics();
+            }
+        };
+    }
+
+    @Test
+    public void testDeltaTransferOptionIsRejected() throws IOException
+    {
+        Path src = _tempDir.newFolder().toPath();
+        Path dst = _tempDir.newFolder().toPath();
+        FileUtil.writeToFiles(1, src.resolve("file1"));
+        for (String arg : new String[] { "--defer-write",
+                                         "--spill-threshold=10",
+                                         "--prefetch-dirs=2",
+                                         "--small-file-threshold=100",
+                                         "--input-buffer-size=4096",
+                                         "--max-input-buffer-size=65536" }) {
+            ReturnStatus status = fileCopy(src, dst, "--recursive", arg);
+            assertTrue(arg, status.rc != 0);
+        }
+        assertTrue(FileUtil.isDirectory(dst) &&
+                   !FileUtil.exists(dst.resolve(src.getFileName())));
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.text;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+import org.junit.Test;
+
+public class TextEncoderTest
+{
+    private static final Charset UTF8 = Charset.forName(Text.UTF8_NAME);
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    private static void assertRoundTrip(Charset charset, String string)
+    {
+        TextEncoder encoder = TextEncoder.newStrict(charset);
+        TextDecoder decoder = TextDecoder.newStrict(charset);
+        byte[] expected = string.getBytes(charset);
+        assertArrayEquals(expected, encoder.encode(string));
+        assertEquals(string, decoder.decodeOrNull(expected));
+
+        ByteBuffer buf = ByteBuffer.allocate(expected.length + 2);
+        buf.position(1);
+        buf.put(expected);
+        buf.flip();
+        buf.position(1);
+        assertEquals(string, decoder.decode(buf.slice()));
+    }
+
+    @Test
+    public void testRoundTrip()
+    {
+        assertRoundTrip(UTF8, "");
+        assertRoundTrip(UTF8, "dir/file.txt");
+        assertRoundTrip(UTF8, "räksmörgås");
+        assertRoundTrip(UTF8, "日本語/ࠀ￿");
+        assertRoundTrip(UTF8, "😀 􏿿");
+        assertRoundTrip(LATIN1, "räksmörgås");
+        assertRoundTrip(Charset.forName(Text.ASCII_NAME), "dir/file.txt");
+    }
+
+    @Test
+    public void testReusedScratchBufferGrows()
+    {
+        TextEncoder encoder = TextEncoder.newStrict(UTF8);
+        TextDecoder decoder = TextDecoder.newStrict(UTF8);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            sb.append("å日😀");
+            String s = sb.toString();
+            assertEquals(s, decoder.decodeOrNull(encoder.encode(s)));
+        }
+    }
+
+    @Test
+    public void testMalformedInput()
+    {
+        TextEncoder encoder = TextEncoder.newStrict(UTF8);
+        TextDecoder decoder = TextDecoder.newStrict(UTF8);
+        assertNull(encoder.encodeOrNull("a\ud83d"));
+        assertNull(encoder.encodeOrNull("\ude00a"));
+        assertNull(decoder.decodeOrNull(new byte[] { 'a', (byte) 0xc3 }));
+        assertNull(decoder.decodeOrNull(new byte[] { (byte) 0xc0,
+                                                     (byte) 0xaf }));           // overlong '/'
+        assertNull(decoder.decodeOrNull(new byte[] { (byte) 0xed,
+                                                     (byte) 0xa0,
+                                                     (byte) 0x80 }));           // surrogate
+        assertNull(decoder.decodeOrNull(new byte[] { (byte) 0xf4,
+                                                     (byte) 0x90,
+                                                     (byte) 0x80,
+                                                     (byte) 0x80 }));           // > U+10FFFF
+        assertNull(TextDecoder.newStrict(Charset.forName(Text.ASCII_NAME)).
+                   decodeOrNull(new byte[] { (byte) 0xe5 }));
+        assertFalse(TextDecoder.newFallback(UTF8).
+                    decodeOrNull(new byte[] { (byte) 0xff }).isEmpty());
+    }
+}
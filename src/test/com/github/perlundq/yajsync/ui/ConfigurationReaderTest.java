@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.ui;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.github.perlundq.yajsync.session.CachingModule;
+import com.github.perlundq.yajsync.session.Module;
+import com.github.perlundq.yajsync.session.ModuleException;
+import com.github.perlundq.yajsync.session.ModuleNotFoundException;
+import com.github.perlundq.yajsync.session.ThrottledModule;
+import com.github.perlundq.yajsync.util.ArgumentParser;
+import com.github.perlundq.yajsync.util.Option;
+
+public class ConfigurationReaderTest
+{
+    private Path _cfgFile;
+    private Configuration.Reader _reader;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        _cfgFile = Files.createTempFile("yajsyncd", ".conf");
+        _reader = new Configuration.Reader();
+        ArgumentParser argsParser = ArgumentParser.newNoUnnamed("test");
+        for (Option o : _reader.options()) {
+            argsParser.add(o);
+        }
+        argsParser.parse(Arrays.asList("--config=" + _cfgFile));
+    }
+
+    @After
+    public void tearDown() throws IOException
+    {
+        Files.deleteIfExists(_cfgFile);
+    }
+
+    // NOTE: module names of the same length give files of the same size
+    private void writeConfig(String moduleName, FileTime lastModifiedTime)
+        throws IOException
+    {
+        writeConfig(moduleName, 10, 100, lastModifiedTime);
+    }
+
+    private void writeConfig(String moduleName, int fileListCache,
+                             int bwlimit, FileTime lastModifiedTime)
+        throws IOException
+    {
+        String cfg = String.format("[%s]%npath = %s%nfile list cache = %d%n" +
+                                   "bwlimit = %d%n",
+                                   moduleName, _cfgFile.getParent(),
+                                   fileListCache, bwlimit);
+        Files.write(_cfgFile, cfg.getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(_cfgFile, lastModifiedTime);
+    }
+
+    private Module get(String moduleName) throws ModuleException
+    {
+        return _reader.newAnonymous(null).get(moduleName);
+    }
+
+    private void assertNotFound(String moduleName) throws ModuleException
+    {
+        try {
+            get(moduleName);
+            fail("expected " + moduleName + " to not exist");
+        } catch (ModuleNotFoundException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testUnchangedFileIsReused() throws Exception
+    {
+        FileTime mtime = FileTime.fromMillis(1000000000000L);
+        writeConfig("a", mtime);
+        Module a = get("a");
+        assertSame(a, get("a"));
+
+        writeConfig("b", mtime);                                                // same size and mtime
+        assertSame(a, get("a"));
+        assertNotFound("b");
+    }
+
+    @Test
+    public void testChangedFileIsReloaded() throws Exception
+    {
+        FileTime mtime = FileTime.fromMillis(1000000000000L);
+        writeConfig("a", mtime);
+        Module a = get("a");
+
+        mtime = FileTime.fromMillis(mtime.toMillis() + 1000);
+        writeConfig("a", mtime);                                                // only mtime changed
+        Module reloaded = get("a");
+        assertNotSame(a, reloaded);
+        assertEquals(a.name(), reloaded.name());
+        assertNotNull(((CachingModule) a).directoryCacheOrNull());
+        assertSame(((CachingModule) a).directoryCacheOrNull(),                  // unchanged settings, state carried over
+                   ((CachingModule) reloaded).directoryCacheOrNull());
+        assertNotNull(((ThrottledModule) a).bandwidthLimitOrNull());
+        assertSame(((ThrottledModule) a).bandwidthLimitOrNull(),
+                   ((ThrottledModule) reloaded).bandwidthLimitOrNull());
+
+        mtime = FileTime.fromMillis(mtime.toMillis() + 1000);
+        writeConfig("b", mtime);                                                // same size, mtime changed
+        assertNotNull(get("b"));
+        assertNotFound("a");
+
+        mtime = FileTime.fromMillis(mtime.toMillis() + 1000);
+        writeConfig("a", mtime);
+        Module readded = get("a");
+        assertNotSame(((CachingModule) a).directoryCacheOrNull(),               // a removed module starts afresh
+                      ((CachingModule) readded).directoryCacheOrNull());
+    }
+
+    @Test
+    public void testChangedSettingsRecreateModuleState() throws Exception
+    {
+        FileTime mtime = FileTime.fromMillis(1000000000000L);
+        writeConfig("a", 10, 100, mtime);
+        Module a = get("a");
+
+        mtime = FileTime.fromMillis(mtime.toMillis() + 1000);
+        writeConfig("a", 20, 100, mtime);
+        Module reloaded = get("a");
+        assertNotSame(((CachingModule) a).directoryCacheOrNull(),
+                      ((CachingModule) reloaded).directoryCacheOrNull());
+        assertSame(((ThrottledModule) a).bandwidthLimitOrNull(),
+                   ((ThrottledModule) reloaded).bandwidthLimitOrNull());
+
+        mtime = FileTime.fromMillis(mtime.toMillis() + 1000);
+        writeConfig("a", 20, 200, mtime);
+        Module again = get("a");
+        assertSame(((CachingModule) reloaded).directoryCacheOrNull(),
+                   ((CachingModule) again).directoryCacheOrNull());
+        assertEquals(200 * 1024,
+                     ((ThrottledModule) again).bandwidthLimitOrNull().
+                         bytesPerSecond());
+    }
+}
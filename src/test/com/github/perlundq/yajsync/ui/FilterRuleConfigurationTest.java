@@ -17,6 +17,7 @@
 package com.github.perlundq.yajsync.ui;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 
 import java.io.File;
 import java.io.IOException;
@@ -239,4 +240,48 @@ public class FilterRuleConfigurationTest {
 						&& dirCfg.include("abc", false)
 						&& dirCfg.hide("test", false));
 	}
+
+	@Test
+	public void testForDirectoryShared() throws ArgumentParsingError {
+
+		FilterRuleConfiguration parentCfg = new FilterRuleConfiguration(null,
+				rootDirectory);
+		parentCfg.readRule("+ test");
+		parentCfg.readRule("dir-merge .rsyncInclude-not-exists");
+
+		assertSame(parentCfg, FilterRuleConfiguration.forDirectory(parentCfg,
+				rootDirectory));
+	}
+
+	@Test
+	public void testForDirectoryMemoized() throws ArgumentParsingError {
+
+		FilterRuleConfiguration parentCfg = new FilterRuleConfiguration(null,
+				rootDirectory);
+		parentCfg.readRule("- test");
+		parentCfg.readRule("dir-merge " + mergeFile);
+
+		FilterRuleConfiguration dirCfg = FilterRuleConfiguration.forDirectory(
+				parentCfg, rootDirectory);
+
+		assertSame(dirCfg, FilterRuleConfiguration.forDirectory(parentCfg,
+				rootDirectory));
+		assertEquals(
+				true,
+				dirCfg.include("abc", false) && !dirCfg.include("def", false)
+						&& !dirCfg.include("test", false));
+
+		FilterRuleConfiguration otherParentCfg = new FilterRuleConfiguration(
+				null, rootDirectory);
+		otherParentCfg.readRule("+ test");
+		otherParentCfg.readRule("dir-merge " + mergeFile);
+
+		FilterRuleConfiguration otherDirCfg = FilterRuleConfiguration
+				.forDirectory(otherParentCfg, rootDirectory);
+
+		assertSame(otherParentCfg, otherDirCfg.getParentRuleConfiguration());
+		assertEquals(true,
+				otherDirCfg.include("test", false)
+						&& !otherDirCfg.include("def", false));
+	}
 }
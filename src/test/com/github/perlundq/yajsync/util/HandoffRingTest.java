@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class HandoffRingTest
+{
+    private static class Element
+    {
+        private int _value;
+    }
+
+    private static HandoffRing<Element> newRing(int capacity)
+    {
+        return new HandoffRing<>(capacity, new HandoffRing.Factory<Element>() {
+            @Override
+            public Element newInstance() {
+                return new Element();
+            }
+        });
+    }
+
+    private static void put(HandoffRing<Element> ring, int value)
+        throws InterruptedException
+    {
+        ring.claim()._value = value;
+        ring.publish();
+    }
+
+    @Test(timeout=20000)
+    public void testOrderIsKept() throws Exception
+    {
+        final HandoffRing<Element> ring = newRing(4);
+        final int numElements = 200000;
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < numElements; i++) {
+                        put(ring, i);
+                    }
+                } catch (InterruptedException e) {
+                    // ends the test with a timeout
+                }
+            }
+        };
+        producer.start();
+        for (int i = 0; i < numElements; i++) {
+            Element e = ring.take();
+            assertEquals(i, e._value);
+            ring.release();
+        }
+        producer.join();
+        assertTrue(ring.isEmpty());
+    }
+
+    @Test(timeout=20000)
+    public void testBusyConsumerOverflows() throws Exception
+    {
+        HandoffRing<Element> ring = newRing(2);
+        ring.setIsConsumerBusy(true);
+        for (int i = 0; i < 5; i++) {
+            put(ring, i);                                                       // would wait forever if not busy
+        }
+        ring.setIsConsumerBusy(false);
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, ring.poll()._value);
+            ring.release();
+        }
+        assertNull(ring.poll());
+    }
+
+    @Test(timeout=20000)
+    public void testWritingConsumerOverflowsWhenStalled() throws Exception
+    {
+        final HandoffRing<Element> ring = newRing(2);
+        ring.setIsConsumerWriting(true);
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            put(ring, i);
+        }
+        assertTrue(System.nanoTime() - start >= HandoffRing.STALL_NANOS);       // waited for the write before overflowing
+
+        ring.setIsConsumerWriting(false);
+        Thread producer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    put(ring, 5);
+                } catch (InterruptedException e) {
+                    // ends the test with a timeout
+                }
+            }
+        };
+        producer.start();
+        producer.join(100);
+        assertTrue(producer.isAlive());                                         // waits for the overflow to be consumed
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, ring.take()._value);
+            ring.release();
+        }
+        producer.join();
+        assertEquals(5, ring.poll()._value);
+        ring.release();
+        assertTrue(ring.isEmpty());
+    }
+}
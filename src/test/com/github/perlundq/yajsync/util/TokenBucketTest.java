@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2014 Per Lundqvist
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package com.github.perlundq.yajsync.util;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TokenBucketTest
+{
+    private static final long TOLERANCE_NANOS =
+        TimeUnit.MILLISECONDS.toNanos(100);
+
+    private static void assertAbout(long expectedNanos, long actualNanos)
+    {
+        assertTrue(String.format("expected about %d ns, got %d ns",
+                                 expectedNanos, actualNanos),
+                   Math.abs(expectedNanos - actualNanos) < TOLERANCE_NANOS);
+    }
+
+    @Test
+    public void testReservationsAreServedInOrder()
+    {
+        TokenBucket bucket = new TokenBucket(1000, 0);
+        assertAbout(TimeUnit.SECONDS.toNanos(1), bucket.reserve(1000));
+        assertAbout(TimeUnit.SECONDS.toNanos(3), bucket.reserve(2000));
+        assertAbout(TimeUnit.MILLISECONDS.toNanos(3500), bucket.reserve(500));
+    }
+
+    @Test
+    public void testBurstIsFree()
+    {
+        TokenBucket bucket = new TokenBucket(1000, 500);
+        assertEquals(0, bucket.reserve(500));
+        assertAbout(TimeUnit.MILLISECONDS.toNanos(500), bucket.reserve(500));
+    }
+
+    @Test
+    public void testKiloBytesPerSecond()
+    {
+        TokenBucket bucket = TokenBucket.newKiloBytesPerSecond(10);
+        assertEquals(10240, bucket.bytesPerSecond());
+        assertEquals(0, bucket.reserve(1024));
+    }
+}